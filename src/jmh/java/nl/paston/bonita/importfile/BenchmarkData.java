@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Input for the benchmarks: the wide header of CAR_TEST_INPUT.CSV and records
+ * with a valid value for every column of that header.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+final class BenchmarkData {
+
+    protected static final String CAR_FILE = "CAR_TEST_INPUT.CSV";
+
+    private static final CSVFormat CAR_HEADER_FORMAT
+            = CSVFormat.EXCEL.withDelimiter(';');
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Initializes Main the way the command line does, with quiet logging so
+     * the log does not end up in the measurements.
+     */
+    protected static void initialize() {
+        Main.parseArguments(new String[]{"-q"});
+    }
+
+    /**
+     * Reads the header of the file, which is separated by semicolons.
+     */
+    protected static CSVRecord readHeader(String fileName) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(
+                new File(fileName).toPath(), StandardCharsets.ISO_8859_1)) {
+            return parse(reader.readLine(), CAR_HEADER_FORMAT);
+        }
+    }
+
+    /**
+     * @return a value that can be converted to the type.
+     */
+    protected static String sampleValue(String headerType) {
+        switch (headerType) {
+            case "INTEGER":
+            case "LONG":
+                return "1450";
+            case "DOUBLE":
+            case "FLOAT":
+            case "BIGDECIMAL":
+                return "32500.50";
+            case "BOOLEAN":
+                return "TRUE";
+            case "DATE":
+            case "LOCALDATE":
+                return "2016/02/29";
+            default:
+                return "Volvo";
+        }
+    }
+
+    protected static List<String> sampleValues(CSVRecord fullHeader) {
+        List<String> values = new ArrayList<>(fullHeader.size());
+        for (String fullHeaderValue : fullHeader) {
+            values.add(sampleValue(Main.getHeaderFieldType(fullHeaderValue)));
+        }
+        return values;
+    }
+
+    /**
+     * @return a record with a valid value for every column of the header.
+     */
+    protected static CSVRecord sampleRecord(CSVRecord fullHeader)
+            throws IOException {
+        return parse(CSVFormat.EXCEL.format(
+                sampleValues(fullHeader).toArray()), CSVFormat.EXCEL);
+    }
+
+    /**
+     * Writes a comma separated file with the header and the given number of
+     * sample records. The file is deleted when the JVM exits.
+     */
+    protected static File writeFile(CSVRecord fullHeader, int records)
+            throws IOException {
+        File file = File.createTempFile("benchmark", ".csv");
+        file.deleteOnExit();
+        List<String> values = sampleValues(fullHeader);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.UTF_8);
+                CSVPrinter printer = new CSVPrinter(writer, CSVFormat.EXCEL)) {
+            printer.printRecord(fullHeader);
+            for (int i = 0; i < records; i++) {
+                printer.printRecord(values);
+            }
+        }
+        return file;
+    }
+
+    private static CSVRecord parse(String line, CSVFormat format)
+            throws IOException {
+        try (CSVParser parser = new CSVParser(new StringReader(line), format)) {
+            return parser.getRecords().get(0);
+        }
+    }
+
+}
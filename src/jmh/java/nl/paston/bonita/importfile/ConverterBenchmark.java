@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converts a valid value per type, both by looking up the converter for
+ * every value with getRecordField and with the converter that the header
+ * plan resolved once.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend
+        = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class ConverterBenchmark {
+
+    @Param({"STRING", "INTEGER", "LONG", "DOUBLE", "BIGDECIMAL", "BOOLEAN",
+        "DATE", "LOCALDATE"})
+    public String type;
+
+    private String value;
+    private Converter converter;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.initialize();
+        value = BenchmarkData.sampleValue(type);
+        converter = Main.getConverter(type);
+    }
+
+    @Benchmark
+    public Object getRecordField() {
+        return Main.getRecordField(type, value);
+    }
+
+    @Benchmark
+    public Object convert() {
+        return converter.convert(value);
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVRecord;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.process.ActivationState;
+import org.bonitasoft.engine.bpm.process.ConfigurationState;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.bonitasoft.engine.bpm.process.impl.internal.ProcessDeploymentInfoImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Imports a file from reading to starting the process instances, against a
+ * stub ProcessAPI with a fixed latency per start. The score is in records
+ * per second.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ImportBenchmark.RECORDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend
+        = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class ImportBenchmark {
+
+    protected static final int RECORDS = 1000;
+
+    @Param({"0", "1"})
+    public long latencyMillis;
+
+    @Param({"1", "8"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean memoryMapped;
+
+    private File file;
+    private ProcessAPI processAPI;
+    private ProcessDeploymentInfo info;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData.initialize();
+        file = BenchmarkData.writeFile(
+                BenchmarkData.readHeader(BenchmarkData.CAR_FILE), RECORDS);
+        processAPI = StubProcessAPI.create(latencyMillis);
+        info = new ProcessDeploymentInfoImpl(1, 1, "benchmark", "1.0", "",
+                null, 0, ActivationState.ENABLED, ConfigurationState.RESOLVED,
+                "", null, "", "");
+    }
+
+    @Benchmark
+    public long importFile() throws IOException, InterruptedException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            RecordSource source = open(reader);
+            Metrics metrics = new Metrics();
+            RecordSubmitter submitter = new RecordSubmitter(processAPI, info,
+                    new RetryPolicy(0, 0, 0), false, null, null, null,
+                    metrics, null);
+            ImportPipeline pipeline = new ImportPipeline(threads, threads * 2);
+            Main.importRecords(source, HeaderPlan.compile(
+                    source.getFullHeader()), new BitSet(), null, submitter,
+                    pipeline, metrics);
+            pipeline.awaitCompletion();
+            source.close();
+            return submitter.getSucceeded();
+        }
+    }
+
+    private RecordSource open(Reader reader) throws IOException {
+        if (memoryMapped) {
+            return RecordSource.chunked(file, StandardCharsets.UTF_8,
+                    1 << 16);
+        }
+        Iterator<CSVRecord> records = Main.getCSVRecords(reader).iterator();
+        return RecordSource.serial(Main.getFullHeader(records), records);
+    }
+
+}
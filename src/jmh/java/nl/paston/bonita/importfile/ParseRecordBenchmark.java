@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses a record with a valid value for every column of the wide
+ * CAR_TEST_INPUT.CSV header into the map for the contract.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend
+        = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class ParseRecordBenchmark {
+
+    private CSVRecord fullHeader;
+    private HeaderPlan headerPlan;
+    private CSVRecord record;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData.initialize();
+        fullHeader = BenchmarkData.readHeader(BenchmarkData.CAR_FILE);
+        headerPlan = HeaderPlan.compile(fullHeader);
+        record = BenchmarkData.sampleRecord(fullHeader);
+    }
+
+    @Benchmark
+    public Map<String, Serializable> parseRecordWithHeaderPlan() {
+        return Main.parseRecord(record, headerPlan);
+    }
+
+    @Benchmark
+    public Map<String, Serializable> parseRecordWithFullHeader() {
+        return Main.parseRecord(record, fullHeader);
+    }
+
+}
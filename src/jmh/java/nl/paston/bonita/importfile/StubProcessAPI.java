@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.process.ProcessInstance;
+import org.bonitasoft.engine.bpm.process.impl.internal.ProcessInstanceImpl;
+
+/**
+ * An in-process {@link ProcessAPI} that starts process instances after a
+ * fixed latency, standing in for the round trip to a Bonita server. Other
+ * calls are not supported.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+final class StubProcessAPI {
+
+    private StubProcessAPI() {
+    }
+
+    protected static ProcessAPI create(long latencyMillis) {
+        long latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        AtomicLong ids = new AtomicLong();
+        return (ProcessAPI) Proxy.newProxyInstance(
+                ProcessAPI.class.getClassLoader(),
+                new Class<?>[]{ProcessAPI.class},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(ids, args);
+                    }
+                    if (!method.getName().equals("startProcessWithInputs")) {
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                    if (latencyNanos > 0) {
+                        LockSupport.parkNanos(latencyNanos);
+                    }
+                    return startedInstance(ids.incrementAndGet());
+                });
+    }
+
+    private static ProcessInstance startedInstance(long id) {
+        ProcessInstanceImpl processInstance = new ProcessInstanceImpl("stub");
+        processInstance.setId(id);
+        return processInstance;
+    }
+
+}
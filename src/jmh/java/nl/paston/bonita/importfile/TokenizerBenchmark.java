@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads a wide, semicolon separated file of numbers, booleans and dates into
+ * maps, once with commons-csv and {@link Main#parseRecord} and once with the
+ * byte tokenizer. Run with {@code -prof gc} to compare the allocation per
+ * record.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend
+        = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class TokenizerBenchmark {
+
+    protected static final int RECORDS = 10000;
+    protected static final int COLUMNS = 60;
+
+    private static final String[] TYPES = {"INTEGER", "DOUBLE", "BOOLEAN",
+        "LOCALDATE", "LONG"};
+
+    private File file;
+    private HeaderPlan headerPlan;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData.initialize();
+        file = File.createTempFile("benchmark", ".csv");
+        file.deleteOnExit();
+        List<String> header = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < COLUMNS; i++) {
+            String type = TYPES[i % TYPES.length];
+            header.add("request.measurement.value" + i + " (" + type + ")");
+            values.add(BenchmarkData.sampleValue(type));
+        }
+        try (Writer writer = Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.UTF_8);
+                CSVPrinter printer = new CSVPrinter(writer,
+                        CSVFormat.EXCEL.withDelimiter(';'))) {
+            printer.printRecord(header);
+            for (int i = 0; i < RECORDS; i++) {
+                printer.printRecord(values);
+            }
+        }
+        RecordSource source = RecordSource.open(file, StandardCharsets.UTF_8,
+                ';');
+        headerPlan = HeaderPlan.compile(source.getFullHeader());
+        source.close();
+    }
+
+    @Benchmark
+    public void parseWithCommonsCsv(Blackhole blackhole) throws IOException {
+        RecordSource source = RecordSource.open(file, StandardCharsets.UTF_8,
+                ';');
+        Iterator<Map<String, Serializable>> maps = source.parse(
+                record -> Main.parseRecord(record, headerPlan));
+        while (maps.hasNext()) {
+            blackhole.consume(maps.next());
+        }
+        source.close();
+    }
+
+    @Benchmark
+    public void parseWithByteTokenizer(Blackhole blackhole)
+            throws IOException {
+        RecordSource source = RecordSource.tokenized(file,
+                StandardCharsets.UTF_8, ';');
+        source.prepare(headerPlan);
+        Iterator<Map<String, Serializable>> maps = source.parse(
+                (record, map) -> map);
+        while (maps.hasNext()) {
+            blackhole.consume(maps.next());
+        }
+        source.close();
+    }
+
+}
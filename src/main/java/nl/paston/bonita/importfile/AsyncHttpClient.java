@@ -0,0 +1,883 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking HTTP/1.1 client for plain HTTP. One I/O thread runs every
+ * connection, so the number of requests in flight does not depend on the
+ * number of threads. Every node gets a pool of keep-alive connections with
+ * the size, timeouts and keep-alive of the {@link HttpTransport.Settings};
+ * requests wait in line for a free connection. Responses are handed to the
+ * futures on the executor, so callbacks never hold up the I/O thread.
+ * <p>
+ * A request is sent once. When a connection fails or times out, its request
+ * fails with the IOException, and it is up to the caller to send it again.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class AsyncHttpClient implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncHttpClient.class);
+
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final long SCAN_INTERVAL_MILLIS = 100;
+
+    private final HttpTransport.Settings settings;
+    private final Executor callbacks;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Queue<Exchange> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Only touched by the I/O thread.
+    private final Map<String, Route> routes = new HashMap<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private int openConnections;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param callbacks the executor that completes the futures of the
+     * responses.
+     */
+    protected AsyncHttpClient(HttpTransport.Settings settings,
+            Executor callbacks) throws IOException {
+        this.settings = settings;
+        this.callbacks = callbacks;
+        this.selector = Selector.open();
+        this.ioThread = new Thread(this::run, "http-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Sends the request as soon as a connection to its node is free.
+     *
+     * @return the response, or an IOException when the request cannot be
+     * sent or the connection fails before the whole response is read.
+     */
+    protected CompletableFuture<Response> send(Request request) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(
+                    new IOException("The HTTP client is closed."));
+            return future;
+        }
+        Exchange exchange = new Exchange(request, future);
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+        incoming.add(exchange);
+        if (closed && incoming.remove(exchange)) {
+            inFlight.decrementAndGet();
+            future.completeExceptionally(
+                    new IOException("The HTTP client is closed."));
+        } else if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of requests that were sent.
+     */
+    protected long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of connections that were opened.
+     */
+    protected long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of requests that found every connection to their
+     * node in use and had to wait for one.
+     */
+    protected long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * @return the number of requests that wait for a connection or for their
+     * response.
+     */
+    protected long getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Adds the counters and the requests in flight to the metrics.
+     */
+    protected void register(Metrics metrics) {
+        metrics.register("http_requests", this::getRequests);
+        metrics.register("http_connections_opened", this::getOpened);
+        metrics.register("http_connection_waits", this::getWaits);
+        metrics.registerGauge("http_requests_in_flight", this::getInFlight);
+    }
+
+    /**
+     * Logs how often connections were reused and how often the pool was
+     * exhausted.
+     */
+    protected void logSummary() {
+        HttpTransport.logSummary(getRequests(), getOpened(), getWaits());
+    }
+
+    /**
+     * Closes every connection. Requests in flight fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long nextScan = System.currentTimeMillis() + SCAN_INTERVAL_MILLIS;
+        try {
+            while (!closed) {
+                selector.select(SCAN_INTERVAL_MILLIS);
+                wakeupPending.set(false);
+                Exchange exchange;
+                while ((exchange = incoming.poll()) != null) {
+                    enqueue(exchange);
+                }
+                Iterator<SelectionKey> keys
+                        = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Connection) key.attachment()).handle(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextScan) {
+                    expire(now);
+                    nextScan = now + SCAN_INTERVAL_MILLIS;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("HTTP client stopped. Reason: " + ex.getMessage());
+            log.debug("Stacktrace", ex);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void enqueue(Exchange exchange) {
+        Request request = exchange.request;
+        String key = request.host + ':' + request.port;
+        Route route = routes.get(key);
+        if (route == null) {
+            try {
+                route = new Route(new InetSocketAddress(request.host,
+                        request.port));
+            } catch (RuntimeException ex) {
+                finish(exchange, null, new IOException("Cannot connect to "
+                        + key + ". Reason: " + ex.getMessage(), ex));
+                return;
+            }
+            routes.put(key, route);
+        }
+        route.waiting.add(exchange);
+        dispatch(route);
+        if (!exchange.started) {
+            waits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Hands the waiting requests of the route to idle connections, and opens
+     * connections while the pool has room. A request that cannot be sent
+     * fails on its own, the I/O thread keeps running.
+     */
+    private void dispatch(Route route) {
+        while (!route.waiting.isEmpty() && !closed) {
+            Connection connection = route.idle.pollFirst();
+            if (connection == null) {
+                if (route.connections.size()
+                        >= settings.getMaxConnectionsPerNode()
+                        || openConnections >= settings.getMaxConnections()) {
+                    return;
+                }
+                try {
+                    connection = open(route);
+                } catch (IOException ex) {
+                    finish(route.waiting.poll(), null, ex);
+                    continue;
+                } catch (RuntimeException ex) {
+                    finish(route.waiting.poll(), null, new IOException(
+                            "Cannot connect to " + route.address
+                            + ". Reason: " + ex.getMessage(), ex));
+                    continue;
+                }
+            }
+            try {
+                connection.start(route.waiting.poll());
+            } catch (RuntimeException ex) {
+                connection.close(new IOException("Cannot send the request. "
+                        + "Reason: " + ex.getMessage(), ex));
+            }
+        }
+    }
+
+    private Connection open(Route route) throws IOException {
+        if (route.address.isUnresolved()) {
+            throw new IOException("Unknown host: " + route.address);
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            Connection connection = new Connection(route, channel);
+            boolean connected = channel.connect(route.address);
+            connection.key = channel.register(selector,
+                    connected ? 0 : SelectionKey.OP_CONNECT, connection);
+            route.connections.add(connection);
+            openConnections++;
+            if (connected) {
+                connection.connected = true;
+                opened.incrementAndGet();
+            } else {
+                connection.deadline = deadline(
+                        settings.getConnectTimeoutMillis());
+            }
+            return connection;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void expire(long now) {
+        for (Route route : routes.values()) {
+            for (Connection connection : new ArrayList<>(route.connections)) {
+                if (now >= connection.deadline) {
+                    connection.close(connection.exchange == null ? null
+                            : new SocketTimeoutException(connection.connected
+                                    ? "Read timed out" : "Connect timed out"));
+                }
+            }
+        }
+    }
+
+    private void shutdown() {
+        // Also when the I/O thread stops on an error: new requests fail at
+        // once and closing connections does not open new ones.
+        closed = true;
+        IOException failure = new IOException("The HTTP client is closed.");
+        for (Route route : routes.values()) {
+            for (Connection connection : new ArrayList<>(route.connections)) {
+                connection.close(failure);
+            }
+            Exchange exchange;
+            while ((exchange = route.waiting.poll()) != null) {
+                finish(exchange, null, failure);
+            }
+        }
+        Exchange exchange;
+        while ((exchange = incoming.poll()) != null) {
+            finish(exchange, null, failure);
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            log.debug("Cannot close selector", ex);
+        }
+    }
+
+    private void finish(Exchange exchange, Response response,
+            IOException failure) {
+        inFlight.decrementAndGet();
+        Runnable completion = () -> {
+            if (failure == null) {
+                exchange.future.complete(response);
+            } else {
+                exchange.future.completeExceptionally(failure);
+            }
+        };
+        try {
+            callbacks.execute(completion);
+        } catch (RejectedExecutionException ex) {
+            completion.run();
+        }
+    }
+
+    private static long deadline(long timeoutMillis) {
+        return timeoutMillis > 0
+                ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * The connections and waiting requests of one node.
+     */
+    private static class Route {
+
+        private final InetSocketAddress address;
+        private final List<Connection> connections = new ArrayList<>();
+        // Most recently used first, so idle connections that are not needed
+        // expire.
+        private final Deque<Connection> idle = new ArrayDeque<>();
+        private final Deque<Exchange> waiting = new ArrayDeque<>();
+
+        private Route(InetSocketAddress address) {
+            this.address = address;
+        }
+
+    }
+
+    private static class Exchange {
+
+        private final Request request;
+        private final CompletableFuture<Response> future;
+        private boolean started;
+
+        private Exchange(Request request, CompletableFuture<Response> future) {
+            this.request = request;
+            this.future = future;
+        }
+
+    }
+
+    private class Connection {
+
+        private final Route route;
+        private final SocketChannel channel;
+        private final ResponseParser parser = new ResponseParser();
+        private SelectionKey key;
+        private boolean connected;
+        private boolean closedConnection;
+        private Exchange exchange;
+        private ByteBuffer out;
+        private long deadline = Long.MAX_VALUE;
+
+        private Connection(Route route, SocketChannel channel) {
+            this.route = route;
+            this.channel = channel;
+        }
+
+        private void start(Exchange next) {
+            exchange = next;
+            exchange.started = true;
+            out = ByteBuffer.wrap(next.request.encode(
+                    settings.isCompression()));
+            parser.reset(next.request.isHead());
+            if (connected) {
+                deadline = deadline(settings.getSocketTimeoutMillis());
+                try {
+                    write();
+                } catch (IOException ex) {
+                    close(ex);
+                }
+            }
+        }
+
+        private void handle(SelectionKey selected) {
+            try {
+                if (selected.isConnectable() && channel.finishConnect()) {
+                    connected = true;
+                    opened.incrementAndGet();
+                    deadline = deadline(settings.getSocketTimeoutMillis());
+                    write();
+                }
+                if (selected.isValid() && selected.isWritable()) {
+                    write();
+                }
+                if (selected.isValid() && selected.isReadable()) {
+                    read();
+                }
+            } catch (IOException ex) {
+                close(ex);
+            } catch (CancelledKeyException ex) {
+                close(new IOException("Connection was closed."));
+            } catch (RuntimeException ex) {
+                close(new IOException("Cannot read the response. Reason: "
+                        + ex.getMessage(), ex));
+            }
+        }
+
+        private void write() throws IOException {
+            if (out != null && out.hasRemaining()) {
+                channel.write(out);
+            }
+            key.interestOps(out != null && out.hasRemaining()
+                    ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                if (exchange != null && parser.endOfStream()) {
+                    complete(false);
+                } else {
+                    close(exchange == null ? null : new IOException(
+                            "Connection closed before the whole response "
+                            + "was read."));
+                }
+                return;
+            }
+            if (exchange == null) {
+                // Nothing is expected on an idle connection.
+                close(null);
+                return;
+            }
+            parser.feed(readBuffer.array(), 0, count);
+            if (parser.isComplete()) {
+                complete(parser.isKeepAlive());
+            }
+        }
+
+        private void complete(boolean keepAlive) {
+            Exchange done = exchange;
+            exchange = null;
+            out = null;
+            Response response;
+            try {
+                response = parser.toResponse();
+            } catch (IOException ex) {
+                finish(done, null, ex);
+                close(null);
+                return;
+            }
+            if (keepAlive && !closed) {
+                deadline = deadline(Math.min(settings.getKeepAliveMillis(),
+                        parser.getKeepAliveMillis()));
+                key.interestOps(SelectionKey.OP_READ);
+                route.idle.addFirst(this);
+            } else {
+                close(null);
+            }
+            finish(done, response, null);
+            dispatch(route);
+        }
+
+        /**
+         * Closes the connection and fails its request, if it has one.
+         */
+        private void close(IOException failure) {
+            if (closedConnection) {
+                return;
+            }
+            closedConnection = true;
+            route.connections.remove(this);
+            route.idle.remove(this);
+            openConnections--;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.debug("Cannot close connection", ex);
+            }
+            if (exchange != null) {
+                Exchange failed = exchange;
+                exchange = null;
+                finish(failed, null, failure != null ? failure
+                        : new IOException("Connection was closed."));
+            }
+            dispatch(route);
+        }
+
+    }
+
+    /**
+     * Reads a response as it arrives: the status line and the headers, then
+     * a body with a length, a chunked body or a body that ends when the
+     * connection is closed.
+     */
+    private static class ResponseParser {
+
+        private enum State {
+            HEAD, BODY, BODY_UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_END,
+            TRAILER, DONE
+        }
+
+        private final StringBuilder line = new StringBuilder();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private Map<String, List<String>> headers;
+        private State state;
+        private boolean head;
+        private boolean http10;
+        private int status;
+        private long remaining;
+
+        private void reset(boolean headRequest) {
+            line.setLength(0);
+            body.reset();
+            headers = new HashMap<>();
+            state = State.HEAD;
+            head = headRequest;
+            http10 = false;
+            status = 0;
+            remaining = 0;
+        }
+
+        private void feed(byte[] bytes, int offset, int length)
+                throws IOException {
+            int end = offset + length;
+            int i = offset;
+            while (i < end && state != State.DONE) {
+                switch (state) {
+                    case BODY:
+                    case CHUNK_DATA: {
+                        int count = (int) Math.min(remaining, end - i);
+                        body.write(bytes, i, count);
+                        i += count;
+                        remaining -= count;
+                        if (remaining == 0) {
+                            state = state == State.BODY ? State.DONE
+                                    : State.CHUNK_END;
+                        }
+                        break;
+                    }
+                    case BODY_UNTIL_CLOSE:
+                        body.write(bytes, i, end - i);
+                        i = end;
+                        break;
+                    default: {
+                        byte b = bytes[i++];
+                        if (b == '\n') {
+                            int trimmed = line.length();
+                            if (trimmed > 0 && line.charAt(trimmed - 1) == '\r') {
+                                line.setLength(trimmed - 1);
+                            }
+                            String text = line.toString();
+                            line.setLength(0);
+                            readLine(text);
+                        } else {
+                            line.append((char) (b & 0xff));
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void readLine(String text) throws IOException {
+            switch (state) {
+                case HEAD:
+                    if (status == 0) {
+                        readStatusLine(text);
+                    } else if (!text.isEmpty()) {
+                        int colon = text.indexOf(':');
+                        if (colon > 0) {
+                            headers.computeIfAbsent(text.substring(0, colon)
+                                    .trim().toLowerCase(Locale.ROOT),
+                                    name -> new ArrayList<>(1))
+                                    .add(text.substring(colon + 1).trim());
+                        }
+                    } else if (status < 200) {
+                        // An interim response; the real one follows.
+                        status = 0;
+                        headers.clear();
+                    } else {
+                        startBody();
+                    }
+                    break;
+                case CHUNK_SIZE: {
+                    int extension = text.indexOf(';');
+                    try {
+                        remaining = Long.parseLong((extension < 0 ? text
+                                : text.substring(0, extension)).trim(), 16);
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Bad chunk size: " + text);
+                    }
+                    state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_END:
+                    state = State.CHUNK_SIZE;
+                    break;
+                case TRAILER:
+                    if (text.isEmpty()) {
+                        state = State.DONE;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void readStatusLine(String text) throws IOException {
+            if (text.isEmpty()) {
+                return;
+            }
+            String[] parts = text.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Bad status line: " + text);
+            }
+            http10 = "HTTP/1.0".equals(parts[0]);
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad status line: " + text);
+            }
+        }
+
+        private void startBody() throws IOException {
+            String transferEncoding = getHeader("transfer-encoding");
+            String contentLength = getHeader("content-length");
+            if (head || status == 204 || status == 304) {
+                state = State.DONE;
+            } else if (transferEncoding != null && transferEncoding
+                    .toLowerCase(Locale.ROOT).contains("chunked")) {
+                state = State.CHUNK_SIZE;
+            } else if (contentLength != null) {
+                try {
+                    remaining = Long.parseLong(contentLength);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Bad content length: "
+                            + contentLength);
+                }
+                state = remaining == 0 ? State.DONE : State.BODY;
+            } else {
+                state = State.BODY_UNTIL_CLOSE;
+            }
+        }
+
+        private boolean endOfStream() {
+            if (state == State.BODY_UNTIL_CLOSE) {
+                state = State.DONE;
+            }
+            return state == State.DONE;
+        }
+
+        private boolean isComplete() {
+            return state == State.DONE;
+        }
+
+        private boolean isKeepAlive() {
+            String connection = getHeader("connection");
+            if (connection != null) {
+                connection = connection.toLowerCase(Locale.ROOT);
+                if (connection.contains("close")) {
+                    return false;
+                }
+                if (connection.contains("keep-alive")) {
+                    return true;
+                }
+            }
+            return !http10;
+        }
+
+        /**
+         * @return the time the server keeps the connection open, less a
+         * second to be safe, or the maximum if it does not say.
+         */
+        private long getKeepAliveMillis() {
+            String keepAlive = getHeader("keep-alive");
+            if (keepAlive != null) {
+                for (String parameter : keepAlive.split(",")) {
+                    String[] nameAndValue = parameter.trim().split("=", 2);
+                    if (nameAndValue.length == 2 && "timeout"
+                            .equalsIgnoreCase(nameAndValue[0].trim())) {
+                        try {
+                            return Math.max(0, (Long.parseLong(
+                                    nameAndValue[1].trim()) - 1) * 1000);
+                        } catch (NumberFormatException ex) {
+                            break;
+                        }
+                    }
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        private Response toResponse() throws IOException {
+            byte[] bytes = body.toByteArray();
+            String contentEncoding = getHeader("content-encoding");
+            if (contentEncoding != null && contentEncoding
+                    .toLowerCase(Locale.ROOT).contains("gzip")) {
+                try (InputStream in = new GZIPInputStream(
+                        new ByteArrayInputStream(bytes))) {
+                    ByteArrayOutputStream decoded = new ByteArrayOutputStream(
+                            bytes.length * 4);
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        decoded.write(buffer, 0, count);
+                    }
+                    bytes = decoded.toByteArray();
+                }
+            }
+            return new Response(status, headers, bytes);
+        }
+
+    }
+
+    /**
+     * A request to a plain HTTP URL. Headers can be added until it is sent.
+     */
+    protected static final class Request {
+
+        private final String method;
+        private final String host;
+        private final int port;
+        private final String target;
+        private final byte[] body;
+        private final List<String> headers = new ArrayList<>(4);
+
+        private Request(String method, URI uri, byte[] body) {
+            if (!"http".equalsIgnoreCase(uri.getScheme())
+                    || uri.getHost() == null) {
+                throw new IllegalArgumentException("Not a plain HTTP URL: "
+                        + uri);
+            }
+            this.method = method;
+            this.host = uri.getHost();
+            this.port = uri.getPort() < 0 ? 80 : uri.getPort();
+            String path = uri.getRawPath() == null || uri.getRawPath()
+                    .isEmpty() ? "/" : uri.getRawPath();
+            this.target = uri.getRawQuery() == null ? path
+                    : path + '?' + uri.getRawQuery();
+            this.body = body;
+        }
+
+        protected static Request get(URI uri) {
+            return new Request("GET", uri, null);
+        }
+
+        protected static Request post(URI uri, String contentType,
+                byte[] body) {
+            return new Request("POST", uri, body)
+                    .header("Content-Type", contentType);
+        }
+
+        protected Request header(String name, String value) {
+            headers.add(name + ": " + value);
+            return this;
+        }
+
+        private boolean isHead() {
+            return "HEAD".equals(method);
+        }
+
+        private byte[] encode(boolean compression) {
+            StringBuilder head = new StringBuilder(256)
+                    .append(method).append(' ').append(target)
+                    .append(" HTTP/1.1\r\nHost: ").append(host);
+            if (port != 80) {
+                head.append(':').append(port);
+            }
+            head.append("\r\n");
+            if (body != null) {
+                head.append("Content-Length: ").append(body.length)
+                        .append("\r\n");
+            }
+            if (compression) {
+                head.append("Accept-Encoding: gzip\r\n");
+            }
+            for (String header : headers) {
+                head.append(header).append("\r\n");
+            }
+            byte[] headBytes = head.append("\r\n").toString()
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            if (body == null || body.length == 0) {
+                return headBytes;
+            }
+            byte[] bytes = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+            System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+            return bytes;
+        }
+
+    }
+
+    protected static final class Response {
+
+        private final int status;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+
+        private Response(int status, Map<String, List<String>> headers,
+                byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        protected int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the values of the header, which may be empty.
+         */
+        protected List<String> getHeaders(String name) {
+            List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+            return values == null ? Collections.emptyList() : values;
+        }
+
+        protected byte[] getBody() {
+            return body;
+        }
+
+        protected String getText() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+    }
+
+}
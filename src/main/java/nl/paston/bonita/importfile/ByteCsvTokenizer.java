@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the rows of a CSV file into cells without decoding them. The cells
+ * are ranges of the buffer of the tokenizer until the next row is read, so
+ * values can be converted from the bytes and strings are only built for the
+ * cells that need one. Rows are read like {@code CSVFormat.EXCEL} reads
+ * them: values may be quoted, quotes in quoted values are doubled, line
+ * breaks are LF or CRLF and an empty line is a row with one empty cell.
+ * <p>
+ * The charset must encode the quote, the delimiter and the line breaks as
+ * the single ASCII bytes and never use those bytes within other characters,
+ * as UTF-8 and the ISO-8859 and Windows charsets do. The file is read with
+ * positional reads, so tokenizers on the same channel do not get in each
+ * other's way.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ByteCsvTokenizer {
+
+    private static final byte QUOTE = '"';
+    private static final byte LINE_FEED = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final FileChannel channel;
+    private final byte delimiter;
+    private ByteBuffer buffer;
+    private long bufferPosition;
+    private boolean endOfFile;
+    private int position;
+    private int rowStart;
+    private long rowPosition;
+    private int cells;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private boolean[] escaped = new boolean[64];
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param position the position in the file of the first row to read.
+     */
+    protected ByteCsvTokenizer(FileChannel channel, long position,
+            byte delimiter, int bufferSize) {
+        this.channel = channel;
+        this.delimiter = delimiter;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.limit(0);
+        this.bufferPosition = position;
+    }
+
+    /**
+     * @return the delimiter as a single byte in the charset.
+     * @throws IllegalArgumentException when the charset or the delimiter
+     * cannot be tokenized as bytes.
+     */
+    protected static byte getDelimiter(Charset charset, char delimiter) {
+        String special = "\"\r\n" + delimiter;
+        byte[] encoded = special.getBytes(charset);
+        if (!Arrays.equals(encoded, special.getBytes(StandardCharsets.ISO_8859_1))
+                || delimiter > 0x7f || "a".getBytes(charset).length != 1) {
+            throw new IllegalArgumentException("Cannot tokenize " + charset
+                    + " with delimiter " + delimiter + " as bytes.");
+        }
+        return encoded[3];
+    }
+
+    /**
+     * Reads the next row.
+     *
+     * @return false at the end of the file.
+     * @throws IOException when a quoted value is followed by anything but a
+     * delimiter or a line break, or when the file ends within quotes.
+     */
+    protected boolean next() throws IOException {
+        cells = 0;
+        if (position >= buffer.limit() && !fill(position)) {
+            return false;
+        }
+        rowStart = position;
+        rowPosition = bufferPosition + rowStart;
+        int cellStart = rowStart;
+        boolean quoted = false;
+        boolean closed = false;
+        boolean hasQuotes = false;
+        int i = rowStart;
+        while (true) {
+            if (i >= buffer.limit()) {
+                int offset = i - rowStart;
+                int cellOffset = cellStart - rowStart;
+                boolean more = fill(rowStart);
+                rowStart = (int) (rowPosition - bufferPosition);
+                if (!more) {
+                    if (quoted) {
+                        throw new IOException("File ends within quotes in "
+                                + "the row at byte " + rowPosition + ".");
+                    }
+                    addCell(cellOffset, offset, hasQuotes);
+                    position = buffer.limit();
+                    return true;
+                }
+                i = rowStart + offset;
+                cellStart = rowStart + cellOffset;
+            }
+            byte b = buffer.get(i);
+            if (quoted) {
+                if (b == QUOTE) {
+                    quoted = false;
+                    closed = true;
+                }
+                i++;
+            } else if (closed && b == QUOTE) {
+                // A doubled quote within a quoted value.
+                quoted = true;
+                closed = false;
+                hasQuotes = true;
+                i++;
+            } else if (b == delimiter) {
+                addCell(cellStart - rowStart, i - rowStart, hasQuotes);
+                i++;
+                cellStart = i;
+                closed = false;
+                hasQuotes = false;
+            } else if (b == LINE_FEED) {
+                int end = i > cellStart && buffer.get(i - 1) == CARRIAGE_RETURN
+                        ? i - 1 : i;
+                addCell(cellStart - rowStart, end - rowStart, hasQuotes);
+                position = i + 1;
+                return true;
+            } else if (closed && b != CARRIAGE_RETURN) {
+                throw new IOException("Invalid character after quoted value "
+                        + "in the row at byte " + rowPosition + ".");
+            } else {
+                if (b == QUOTE && i == cellStart) {
+                    quoted = true;
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * @return the position in the file of the row that was read last.
+     */
+    protected long getRowPosition() {
+        return rowPosition;
+    }
+
+    protected int getCellCount() {
+        return cells;
+    }
+
+    /**
+     * @return the bytes of the buffer; the cells of the current row are
+     * ranges of it.
+     */
+    protected byte[] getBytes() {
+        return buffer.array();
+    }
+
+    /**
+     * @return the start of the value of a cell, after an opening quote.
+     */
+    protected int getStart(int cell) {
+        return rowStart + starts[cell];
+    }
+
+    /**
+     * @return the end of the value of a cell, before a closing quote.
+     */
+    protected int getEnd(int cell) {
+        return rowStart + ends[cell];
+    }
+
+    /**
+     * @return whether the value of a cell has doubled quotes, in which case
+     * its bytes are not the value.
+     */
+    protected boolean isEscaped(int cell) {
+        return escaped[cell];
+    }
+
+    protected boolean isEmpty(int cell) {
+        return starts[cell] == ends[cell];
+    }
+
+    /**
+     * @return the value of the cell decoded with the charset.
+     */
+    protected String getString(int cell, Charset charset) {
+        int start = rowStart + starts[cell];
+        int length = ends[cell] - starts[cell];
+        if (!escaped[cell]) {
+            return new String(buffer.array(), start, length, charset);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        byte[] bytes = buffer.array();
+        int count = 0;
+        for (int i = start; i < start + length; i++) {
+            scratch[count++] = bytes[i];
+            if (bytes[i] == QUOTE) {
+                i++;
+            }
+        }
+        return new String(scratch, 0, count, charset);
+    }
+
+    /**
+     * @return the values of every cell of the row.
+     */
+    protected String[] getStrings(Charset charset) {
+        String[] values = new String[cells];
+        for (int i = 0; i < cells; i++) {
+            values[i] = getString(i, charset);
+        }
+        return values;
+    }
+
+    /**
+     * Adds a cell with the given offsets from the start of the row.
+     */
+    private void addCell(int start, int end, boolean hasQuotes) {
+        if (cells == starts.length) {
+            starts = Arrays.copyOf(starts, cells * 2);
+            ends = Arrays.copyOf(ends, cells * 2);
+            escaped = Arrays.copyOf(escaped, cells * 2);
+        }
+        boolean quoted = start < end
+                && buffer.get(rowStart + start) == QUOTE;
+        if (quoted) {
+            start++;
+            end--;
+        }
+        starts[cells] = start;
+        ends[cells] = end;
+        escaped[cells] = quoted && hasQuotes;
+        cells++;
+    }
+
+    /**
+     * Moves the bytes from the given index to the start of the buffer and
+     * reads more of the file after them. The buffer grows when the row does
+     * not fit.
+     *
+     * @return false when nothing more could be read.
+     */
+    private boolean fill(int keep) throws IOException {
+        if (endOfFile) {
+            return false;
+        }
+        int kept = buffer.limit() - keep;
+        if (kept == buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.position(keep);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            System.arraycopy(buffer.array(), keep, buffer.array(), 0, kept);
+            buffer.clear();
+            buffer.position(kept);
+        }
+        bufferPosition += keep;
+        position -= keep;
+        buffer.limit(buffer.capacity());
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, bufferPosition + buffer.position());
+            if (count < 0) {
+                endOfFile = true;
+                break;
+            }
+            read += count;
+        }
+        buffer.flip();
+        return read > 0;
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a CSV file that is memory-mapped and split into chunks that are
+ * parsed in parallel. Chunks always end at a line break outside quotes, so
+ * quoted values may contain line breaks. The number of records per chunk is
+ * counted before the chunks are parsed, so every record gets the same record
+ * number as it would get from a single parser over the whole file.
+ * <p>
+ * Line breaks must be LF or CRLF and the charset must encode the line break
+ * and the quote as single bytes, as UTF-8 and the ISO-8859 charsets do.
+ * Quotes inside values that are not quoted themselves cannot be told apart
+ * from real quotes; the mismatch in the number of records that follows is
+ * reported as an IOException instead of renumbering records.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ChunkedCsvReader implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedCsvReader.class);
+
+    private static final byte QUOTE = '"';
+    private static final byte LINE_FEED = '\n';
+    private static final long READ_AHEAD_BYTES = 64L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Charset charset;
+    private final CSVFormat format;
+    private final long size;
+    private final CSVRecord fullHeader;
+    private final List<Chunk> chunks;
+    private volatile long bytesParsed;
+
+    private ChunkedCsvReader(File file, Charset charset, char delimiter,
+            int chunkSize, ForkJoinPool pool) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.charset = charset;
+        this.format = CSVFormat.EXCEL.withDelimiter(delimiter);
+        this.size = channel.size();
+        long headerEnd = findHeaderEnd(chunkSize);
+        List<CSVRecord> header = parse(new Chunk(0, headerEnd, 1, 1),
+                Function.identity());
+        this.fullHeader = header.isEmpty() ? null : header.get(0);
+        this.chunks = split(headerEnd, chunkSize, pool);
+    }
+
+    /**
+     * Maps the file and splits it into chunks of about the given size. The
+     * chunks are scanned on the pool.
+     */
+    protected static ChunkedCsvReader open(File file, Charset charset,
+            int chunkSize, ForkJoinPool pool) throws IOException {
+        return open(file, charset, ',', chunkSize, pool);
+    }
+
+    protected static ChunkedCsvReader open(File file, Charset charset,
+            char delimiter, int chunkSize, ForkJoinPool pool)
+            throws IOException {
+        return new ChunkedCsvReader(file, charset, delimiter, chunkSize, pool);
+    }
+
+    /**
+     * @return the first record of the file, or null if the file is empty.
+     */
+    protected CSVRecord getFullHeader() {
+        return fullHeader;
+    }
+
+    protected int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * @return the part of the file that has been parsed and handed out, as
+     * a fraction between 0 and 1.
+     */
+    protected double getFractionRead() {
+        return size == 0 ? 1 : (double) bytesParsed / size;
+    }
+
+    /**
+     * Parses the chunks on the pool and applies the function to every record
+     * in the pool as well. The results are returned in file order. At most
+     * two chunks per thread of the pool are read ahead, and no more than
+     * {@value #READ_AHEAD_BYTES} bytes of the file unless that is less than
+     * two chunks, as every chunk that is read ahead is held as objects.
+     */
+    protected <T> Iterator<T> parse(Function<CSVRecord, T> function,
+            ForkJoinPool pool) {
+        return new ChunkIterator<>(function, pool,
+                Math.max(2, pool.getParallelism() * 2));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private long findHeaderEnd(int chunkSize) throws IOException {
+        boolean quoted = false;
+        for (long start = 0; start < size; start += chunkSize) {
+            MappedByteBuffer buffer = map(start,
+                    Math.min(start + chunkSize, size));
+            for (int i = 0; i < buffer.limit(); i++) {
+                byte b = buffer.get(i);
+                if (b == QUOTE) {
+                    quoted = !quoted;
+                } else if (b == LINE_FEED && !quoted) {
+                    return start + i + 1;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Scans fixed ranges of the file in parallel, for both possible quote
+     * states at the start of the range. Once the quote state at the start of
+     * every range is known, every range with a line break outside quotes
+     * starts a new chunk right after that line break.
+     */
+    private List<Chunk> split(long start, int chunkSize, ForkJoinPool pool)
+            throws IOException {
+        List<ForkJoinTask<Scan>> tasks = new ArrayList<>();
+        for (long from = start; from < size; from += chunkSize) {
+            long rangeStart = from;
+            long rangeEnd = Math.min(from + chunkSize, size);
+            tasks.add(pool.submit(() -> scan(rangeStart, rangeEnd)));
+        }
+        List<Chunk> result = new ArrayList<>();
+        boolean quoted = false;
+        long chunkStart = start;
+        long chunkRecords = 0;
+        long recordNumber = 2;
+        for (int k = 0; k < tasks.size(); k++) {
+            Scan scan = join(tasks.get(k));
+            int state = quoted ? 1 : 0;
+            if (k > 0 && scan.first[state] >= 0) {
+                // The first line break belongs to the previous chunk.
+                long boundary = scan.first[state] + 1;
+                chunkRecords++;
+                result.add(new Chunk(chunkStart, boundary, recordNumber,
+                        chunkRecords));
+                recordNumber += chunkRecords;
+                chunkStart = boundary;
+                chunkRecords = scan.lineBreaks[state] - 1;
+            } else {
+                chunkRecords += scan.lineBreaks[state];
+            }
+            if (scan.quotes % 2 == 1) {
+                quoted = !quoted;
+            }
+        }
+        if (chunkStart < size) {
+            if (lastByte() != LINE_FEED) {
+                chunkRecords++;
+            }
+            result.add(new Chunk(chunkStart, size, recordNumber, chunkRecords));
+        }
+        log.debug("Split file into " + result.size() + " chunks.");
+        return result;
+    }
+
+    private Scan scan(long start, long end) {
+        try {
+            MappedByteBuffer buffer = map(start, end);
+            Scan scan = new Scan();
+            boolean odd = false;
+            for (int i = 0; i < buffer.limit(); i++) {
+                byte b = buffer.get(i);
+                if (b == QUOTE) {
+                    odd = !odd;
+                    scan.quotes++;
+                } else if (b == LINE_FEED) {
+                    // Outside quotes if the number of quotes seen so far
+                    // has the same parity as the state at the start.
+                    int state = odd ? 1 : 0;
+                    scan.lineBreaks[state]++;
+                    if (scan.first[state] < 0) {
+                        scan.first[state] = start + i;
+                    }
+                }
+            }
+            return scan;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private <T> List<T> parse(Chunk chunk, Function<CSVRecord, T> function)
+            throws IOException {
+        if (chunk.end - chunk.start > Integer.MAX_VALUE) {
+            throw new IOException("Record too large at offset " + chunk.start);
+        }
+        if (chunk.start == chunk.end) {
+            return Collections.emptyList();
+        }
+        List<T> results = new ArrayList<>((int) Math.min(chunk.records, 1 << 20));
+        try (CSVParser parser = new CSVParser(new InputStreamReader(
+                new BufferInputStream(map(chunk.start, chunk.end)), charset),
+                format, 0, chunk.firstRecordNumber)) {
+            for (CSVRecord record : parser) {
+                results.add(function.apply(record));
+            }
+            if (parser.getRecordNumber() - chunk.firstRecordNumber + 1
+                    != chunk.records) {
+                throw new IOException("Expected " + chunk.records
+                        + " records from record number "
+                        + chunk.firstRecordNumber + " but parsed "
+                        + (parser.getRecordNumber() - chunk.firstRecordNumber + 1));
+            }
+        }
+        return results;
+    }
+
+    private MappedByteBuffer map(long start, long end) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    private byte lastByte() throws IOException {
+        return map(size - 1, size).get(0);
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static class Scan {
+
+        private long quotes;
+        private final long[] lineBreaks = new long[2];
+        private final long[] first = {-1, -1};
+
+    }
+
+    private static class Chunk {
+
+        private final long start;
+        private final long end;
+        private final long firstRecordNumber;
+        private final long records;
+
+        private Chunk(long start, long end, long firstRecordNumber,
+                long records) {
+            this.start = start;
+            this.end = end;
+            this.firstRecordNumber = firstRecordNumber;
+            this.records = records;
+        }
+
+    }
+
+    private class ChunkIterator<T> implements Iterator<T> {
+
+        private final Function<CSVRecord, T> function;
+        private final ForkJoinPool pool;
+        private final int readAhead;
+        private final Deque<ForkJoinTask<List<T>>> pending = new ArrayDeque<>();
+        private final Deque<Chunk> pendingChunks = new ArrayDeque<>();
+        private long pendingBytes;
+        private int nextChunk;
+        private Iterator<T> current = Collections.emptyIterator();
+
+        private ChunkIterator(Function<CSVRecord, T> function,
+                ForkJoinPool pool, int readAhead) {
+            this.function = function;
+            this.pool = pool;
+            this.readAhead = readAhead;
+            fill();
+        }
+
+        private void fill() {
+            while (pending.size() < readAhead && nextChunk < chunks.size()
+                    && (pending.size() < 2
+                    || pendingBytes < READ_AHEAD_BYTES)) {
+                Chunk chunk = chunks.get(nextChunk++);
+                pendingChunks.add(chunk);
+                pendingBytes += chunk.end - chunk.start;
+                pending.add(pool.submit(() -> {
+                    try {
+                        return parse(chunk, function);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && !pending.isEmpty()) {
+                ForkJoinTask<List<T>> task = pending.poll();
+                Chunk chunk = pendingChunks.poll();
+                pendingBytes -= chunk.end - chunk.start;
+                fill();
+                current = task.join().iterator();
+                bytesParsed = chunk.end;
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+    }
+
+    /**
+     * Reads a mapped buffer without copying it.
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of calls to the server that are in flight, and
+ * optionally the number of calls per second. The limit is adjusted with
+ * additive increase and multiplicative decrease: it grows by one per limit
+ * calls while the limit is used and the latency is stable, and is cut as
+ * soon as the server fails or the short-term latency rises well above the
+ * long-term latency. At most one cut is made per round trip, so a burst of
+ * slow calls that were already in flight counts once.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ConcurrencyLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    private static final double ERROR_BACKOFF = 0.5;
+    private static final double LATENCY_BACKOFF = 0.8;
+    private static final double LATENCY_TOLERANCE = 1.5;
+    private static final double SHORT_SMOOTHING = 0.1;
+    private static final double LONG_SMOOTHING = 0.01;
+    private static final int MIN_LIMIT = 1;
+
+    private final boolean adaptive;
+    private final int maxLimit;
+    private final long intervalNanos;
+    private double limit;
+    private int inFlight;
+    private double shortRtt;
+    private double longRtt;
+    private long lastDecrease;
+    private long nextStart;
+
+    /**
+     * @param adaptive whether the limit adapts to the server, otherwise it
+     * stays at the maximum.
+     * @param initialLimit the limit to start with when it adapts.
+     * @param maxLimit the highest limit.
+     * @param maxStartsPerSecond the most calls per second, or 0 for no
+     * maximum.
+     */
+    protected ConcurrencyLimiter(boolean adaptive, int initialLimit,
+            int maxLimit, int maxStartsPerSecond) {
+        if (maxLimit < MIN_LIMIT || maxStartsPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "maxLimit must be at least 1 and maxStartsPerSecond "
+                    + "cannot be negative.");
+        }
+        this.adaptive = adaptive;
+        this.maxLimit = maxLimit;
+        this.limit = adaptive
+                ? Math.max(MIN_LIMIT, Math.min(initialLimit, maxLimit))
+                : maxLimit;
+        this.intervalNanos = maxStartsPerSecond == 0 ? 0
+                : TimeUnit.SECONDS.toNanos(1) / maxStartsPerSecond;
+    }
+
+    /**
+     * Waits until a call can be made within the limits. When interrupted,
+     * no call is made and nothing needs to be released.
+     */
+    protected void acquire() throws InterruptedException {
+        long delay;
+        synchronized (this) {
+            while (inFlight >= getLimit()) {
+                wait();
+            }
+            inFlight++;
+            long now = System.nanoTime();
+            long start = Math.max(now, nextStart);
+            nextStart = start + intervalNanos;
+            delay = start - now;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException ex) {
+                synchronized (this) {
+                    inFlight--;
+                    notifyAll();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Ends a call that took the given time. A call that was overloaded,
+     * e.g. because the server failed or could not be reached, cuts the
+     * limit.
+     */
+    protected synchronized void release(long rttNanos, boolean overloaded) {
+        boolean saturated = inFlight >= getLimit();
+        inFlight--;
+        if (adaptive) {
+            adapt(rttNanos, overloaded, saturated);
+        }
+        notifyAll();
+    }
+
+    protected synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    private void adapt(long rttNanos, boolean overloaded, boolean saturated) {
+        long now = System.nanoTime();
+        if (overloaded) {
+            decrease(now, ERROR_BACKOFF);
+            return;
+        }
+        if (longRtt == 0) {
+            shortRtt = rttNanos;
+            longRtt = rttNanos;
+        } else {
+            shortRtt += SHORT_SMOOTHING * (rttNanos - shortRtt);
+            longRtt += LONG_SMOOTHING * (rttNanos - longRtt);
+        }
+        if (shortRtt > longRtt * LATENCY_TOLERANCE) {
+            decrease(now, LATENCY_BACKOFF);
+        } else if (saturated && limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private void decrease(long now, double backoff) {
+        if (now - lastDecrease < shortRtt) {
+            return;
+        }
+        lastDecrease = now;
+        int before = getLimit();
+        limit = Math.max(MIN_LIMIT, limit * backoff);
+        if (getLimit() != before) {
+            log.debug("Lowered the concurrency limit to " + getLimit() + ".");
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.contract.ContractDefinition;
+import org.bonitasoft.engine.bpm.contract.FileInputValue;
+import org.bonitasoft.engine.bpm.contract.InputContainerDefinition;
+import org.bonitasoft.engine.bpm.contract.InputDefinition;
+import org.bonitasoft.engine.bpm.contract.Type;
+import org.bonitasoft.engine.bpm.process.ProcessDefinitionNotFoundException;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the maps that are parsed from the records against the contract of
+ * the process before they are sent to Bonita. Values of the wrong type,
+ * lists for single inputs and simple values for complex inputs are
+ * violations, like they are on the server. Values are coerced to the type of
+ * their input where no information is lost, e.g. a LONG for an INTEGER input
+ * or a LOCALDATE for a DATE input.
+ * <p>
+ * Inputs that are not in the contract are ignored by the server and are only
+ * reported once. Missing inputs are left to the constraints of the contract,
+ * which are only evaluated on the server.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ContractValidator {
+
+    private static final Logger log = LoggerFactory.getLogger(ContractValidator.class);
+
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+    private final Map<String, Input> inputs;
+    private final Set<String> unexpected = ConcurrentHashMap.newKeySet();
+
+    protected ContractValidator(InputContainerDefinition contract) {
+        this(index(contract));
+    }
+
+    private ContractValidator(Map<String, Input> inputs) {
+        this.inputs = inputs;
+    }
+
+    /**
+     * Fetches the contract of the process once.
+     */
+    protected static ContractValidator fetch(ProcessAPI processAPI,
+            ProcessDeploymentInfo info)
+            throws ProcessDefinitionNotFoundException {
+        ContractDefinition contract
+                = processAPI.getProcessContract(info.getProcessId());
+        log.info("Validating records against the contract of "
+                + info.getName() + " " + info.getVersion() + ".");
+        return new ContractValidator(contract);
+    }
+
+    /**
+     * @return a validator for the elements of a list of complex inputs, or
+     * null when the contract has no such input with the name.
+     */
+    protected ContractValidator forListInput(String name) {
+        Input input = inputs.get(name);
+        return input != null && input.multiple && input.children != null
+                ? new ContractValidator(input.children) : null;
+    }
+
+    /**
+     * Validates the map against the contract and coerces its values in
+     * place.
+     *
+     * @return the violations, which is empty when the map can be sent.
+     */
+    protected List<String> validate(Map<String, Serializable> map) {
+        if (map == null) {
+            return Collections.emptyList();
+        }
+        List<String> violations = new ArrayList<>(0);
+        validateInputs("", inputs, map, violations);
+        return violations;
+    }
+
+    private void validateInputs(String prefix, Map<String, Input> inputs,
+            Map<String, Serializable> map, List<String> violations) {
+        for (Map.Entry<String, Serializable> entry : map.entrySet()) {
+            String path = prefix + entry.getKey();
+            Input input = inputs.get(entry.getKey());
+            if (input == null) {
+                if (unexpected.add(path)) {
+                    log.warn("Input is not in the contract and will be "
+                            + "ignored by the server: " + path);
+                }
+                continue;
+            }
+            Serializable value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (input.multiple) {
+                if (!(value instanceof List)) {
+                    List<Serializable> list = new ArrayList<>(1);
+                    list.add(value);
+                    value = (Serializable) list;
+                    entry.setValue(value);
+                }
+                @SuppressWarnings("unchecked")
+                List<Serializable> values = (List<Serializable>) value;
+                ListIterator<Serializable> elements = values.listIterator();
+                while (elements.hasNext()) {
+                    Serializable element = elements.next();
+                    Serializable coerced = validateValue(path + "["
+                            + elements.previousIndex() + "]", input, element,
+                            violations);
+                    if (coerced != element) {
+                        elements.set(coerced);
+                    }
+                }
+            } else if (value instanceof List) {
+                violations.add(path + ": a list for a single input");
+            } else {
+                Serializable coerced = validateValue(path, input, value,
+                        violations);
+                if (coerced != value) {
+                    entry.setValue(coerced);
+                }
+            }
+        }
+    }
+
+    private Serializable validateValue(String path, Input input,
+            Serializable value, List<String> violations) {
+        if (value == null) {
+            return null;
+        }
+        if (input.children != null) {
+            if (value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Serializable> map
+                        = (Map<String, Serializable>) value;
+                validateInputs(path + ".", input.children, map, violations);
+            } else {
+                violations.add(path + ": " + value
+                        + " for a complex input");
+            }
+            return value;
+        }
+        Serializable coerced = coerce(input.type, value);
+        if (coerced == null) {
+            violations.add(path + ": " + value + " is not a " + input.type);
+            return value;
+        }
+        return coerced;
+    }
+
+    /**
+     * @return the value as the type of the input, or null when the value
+     * cannot be converted without losing information.
+     */
+    protected static Serializable coerce(Type type, Serializable value) {
+        switch (type) {
+            case TEXT:
+                if (value instanceof String) {
+                    return value;
+                }
+                return value instanceof Number || value instanceof Boolean
+                        || value instanceof Character
+                        ? value.toString() : null;
+            case BOOLEAN:
+                if (value instanceof Boolean) {
+                    return value;
+                }
+                if (value instanceof String) {
+                    if (Boolean.TRUE.toString().equalsIgnoreCase((String) value)) {
+                        return Boolean.TRUE;
+                    }
+                    if (Boolean.FALSE.toString().equalsIgnoreCase((String) value)) {
+                        return Boolean.FALSE;
+                    }
+                }
+                return null;
+            case DATE:
+                if (value instanceof Date) {
+                    return value;
+                }
+                return value instanceof LocalDate
+                        ? Date.from(((LocalDate) value)
+                                .atStartOfDay(ZoneId.systemDefault())
+                                .toInstant())
+                        : null;
+            case INTEGER:
+                return coerceInteger(value);
+            case DECIMAL:
+                return coerceDecimal(value);
+            case BYTE_ARRAY:
+                return value instanceof byte[] ? value : null;
+            case FILE:
+                return value instanceof FileInputValue ? value : null;
+            default:
+                return value;
+        }
+    }
+
+    private static Serializable coerceInteger(Serializable value) {
+        if (value instanceof Integer) {
+            return value;
+        }
+        if (value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            long longValue = ((Number) value).longValue();
+            // Leave a long that does not fit to the server.
+            return longValue == (int) longValue ? (int) longValue : value;
+        }
+        if (value instanceof BigDecimal) {
+            try {
+                return ((BigDecimal) value).intValueExact();
+            } catch (ArithmeticException ex) {
+                return null;
+            }
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.valueOf((String) value);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static Serializable coerceDecimal(Serializable value) {
+        if (value instanceof Double) {
+            return value;
+        }
+        if (value instanceof Float) {
+            // Keep the decimal digits that were read, not the binary value.
+            return Double.valueOf(value.toString());
+        }
+        if (value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Long) {
+            long longValue = (Long) value;
+            return Math.abs(longValue) <= MAX_EXACT_DOUBLE
+                    ? (double) longValue : null;
+        }
+        if (value instanceof BigDecimal) {
+            double doubleValue = ((BigDecimal) value).doubleValue();
+            return !Double.isInfinite(doubleValue) && BigDecimal
+                    .valueOf(doubleValue).compareTo((BigDecimal) value) == 0
+                    ? doubleValue : null;
+        }
+        if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, Input> index(InputContainerDefinition container) {
+        Map<String, Input> index = new HashMap<>();
+        if (container == null || container.getInputs() == null) {
+            return index;
+        }
+        for (InputDefinition definition : container.getInputs()) {
+            index.put(definition.getName(), new Input(definition));
+        }
+        return index;
+    }
+
+    private static class Input {
+
+        private final Type type;
+        private final boolean multiple;
+        private final Map<String, Input> children;
+
+        private Input(InputDefinition definition) {
+            this.type = definition.getType();
+            this.multiple = definition.isMultiple();
+            // Complex inputs have no type, only inputs of their own.
+            this.children = type == null ? index(definition) : null;
+        }
+
+    }
+
+}
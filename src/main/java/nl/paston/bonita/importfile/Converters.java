@@ -0,0 +1,696 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the converters for the types in the header. A header type can
+ * carry an argument after a colon, e.g. {@code (DATE:d/M/yyyy)} for the date
+ * pattern of a column or {@code (BOOLEAN:J/N)} for the boolean values of a
+ * column. The converters are resolved once per column and are immutable, so
+ * they can be used from any number of threads.
+ * <p>
+ * Numbers, booleans and dates can also be converted straight from the bytes
+ * of a cell in an ASCII-compatible charset. A byte converter gives the same
+ * value as the converter of the type, and hands the cell to that converter
+ * as a string when it cannot tell the value apart on its own, e.g. a
+ * double with many digits or an exponent.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class Converters {
+
+    private static final Map<String, DateTimeFormatter> FORMATTERS
+            = new ConcurrentHashMap<>();
+    private static final Map<String, DateTimeFormatter> PRINTERS
+            = new ConcurrentHashMap<>();
+
+    private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+    /**
+     * Powers of ten that are exact as a double; dividing a mantissa of at
+     * most 15 digits by one of them rounds correctly.
+     */
+    private static final double[] DOUBLE_POWERS = {1e0, 1e1, 1e2, 1e3, 1e4,
+        1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+        1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final float[] FLOAT_POWERS = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f,
+        1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    private static final long MAX_EXACT_DOUBLE_MANTISSA = 999_999_999_999_999L;
+    private static final long MAX_EXACT_FLOAT_MANTISSA = 1 << 24;
+
+    private final Map<String, Factory> factories = new ConcurrentHashMap<>();
+    private final Map<String, ByteFactory> byteFactories
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the converter of a type for the argument in the header, which
+     * is null when the header has no argument. Returns null for an argument
+     * that is not valid.
+     */
+    @FunctionalInterface
+    protected interface Factory {
+
+        Converter create(String argument);
+
+    }
+
+    /**
+     * Creates the byte converter of a type for the argument in the header
+     * and the charset of the file. The converter of the type is handed in
+     * for the values that are converted from a string after all.
+     */
+    @FunctionalInterface
+    protected interface ByteFactory {
+
+        ByteConverter create(String argument, Charset charset,
+                Converter converter);
+
+    }
+
+    protected Converters(String trueValue, String falseValue,
+            String datePattern) {
+        register("BOOLEAN", argument -> {
+            if (argument == null) {
+                return booleanConverter(trueValue, falseValue);
+            }
+            String[] values = argument.split("/");
+            return values.length == 2
+                    ? booleanConverter(values[0], values[1]) : null;
+        });
+        register("DATE", argument -> {
+            DateTimeFormatter formatter = getFormatter(
+                    argument == null ? datePattern : argument);
+            ZoneId zone = ZoneId.systemDefault();
+            return formatter == null ? null : stringValue -> {
+                LocalDate date = parseDate(formatter, stringValue);
+                return date == null ? null
+                        : Date.from(date.atStartOfDay(zone).toInstant());
+            };
+        });
+        register("LOCALDATE", argument -> {
+            DateTimeFormatter formatter = getFormatter(
+                    argument == null ? datePattern : argument);
+            return formatter == null ? null
+                    : stringValue -> parseDate(formatter, stringValue);
+        });
+        register("INTEGER", argument -> stringValue -> {
+            long value = parseLong(stringValue, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE);
+            return value == NOT_A_NUMBER ? null : Integer.valueOf((int) value);
+        });
+        register("LONG", argument -> stringValue -> {
+            long value = parseLong(stringValue, Long.MIN_VALUE + 1,
+                    Long.MAX_VALUE);
+            return value == NOT_A_NUMBER ? null : Long.valueOf(value);
+        });
+        register("DOUBLE", argument -> stringValue -> {
+            try {
+                return Double.valueOf(stringValue);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        });
+        register("FLOAT", argument -> stringValue -> {
+            try {
+                return Float.valueOf(stringValue);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        });
+        register("BIGDECIMAL", argument -> stringValue -> {
+            try {
+                return new BigDecimal(stringValue);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        });
+        Converter string = stringValue -> stringValue;
+        register("STRING", argument -> string);
+        register("TEXT", argument -> string);
+        registerBytes("BOOLEAN", (argument, charset, converter) -> {
+            String[] values = argument == null
+                    ? new String[]{trueValue, falseValue} : argument.split("/");
+            return booleanByteConverter(values[0].getBytes(charset),
+                    values[1].getBytes(charset));
+        });
+        registerBytes("DATE", (argument, charset, converter) -> {
+            DatePattern pattern = DatePattern.compile(
+                    argument == null ? datePattern : argument);
+            ZoneId zone = ZoneId.systemDefault();
+            return pattern == null ? null : (bytes, start, end) -> {
+                LocalDate date = pattern.parse(bytes, start, end);
+                if (date == DatePattern.UNKNOWN) {
+                    return converter.convert(ascii(bytes, start, end));
+                }
+                return date == null ? null
+                        : Date.from(date.atStartOfDay(zone).toInstant());
+            };
+        });
+        registerBytes("LOCALDATE", (argument, charset, converter) -> {
+            DatePattern pattern = DatePattern.compile(
+                    argument == null ? datePattern : argument);
+            return pattern == null ? null : (bytes, start, end) -> {
+                LocalDate date = pattern.parse(bytes, start, end);
+                return date == DatePattern.UNKNOWN
+                        ? converter.convert(ascii(bytes, start, end)) : date;
+            };
+        });
+        registerBytes("INTEGER", (argument, charset, converter)
+                -> (bytes, start, end) -> {
+                    long value = parseLong(bytes, start, end,
+                            Integer.MIN_VALUE, Integer.MAX_VALUE);
+                    return value == NOT_A_NUMBER ? null
+                            : Integer.valueOf((int) value);
+                });
+        registerBytes("LONG", (argument, charset, converter)
+                -> (bytes, start, end) -> {
+                    long value = parseLong(bytes, start, end,
+                            Long.MIN_VALUE + 1, Long.MAX_VALUE);
+                    return value == NOT_A_NUMBER ? null : Long.valueOf(value);
+                });
+        registerBytes("DOUBLE", (argument, charset, converter)
+                -> (bytes, start, end) -> {
+                    Decimal decimal = Decimal.parse(bytes, start, end,
+                            MAX_EXACT_DOUBLE_MANTISSA, DOUBLE_POWERS.length);
+                    if (decimal == null) {
+                        return converter.convert(ascii(bytes, start, end));
+                    }
+                    double value = decimal.mantissa / DOUBLE_POWERS[decimal.scale];
+                    return decimal.negative ? -value : value;
+                });
+        registerBytes("FLOAT", (argument, charset, converter)
+                -> (bytes, start, end) -> {
+                    Decimal decimal = Decimal.parse(bytes, start, end,
+                            MAX_EXACT_FLOAT_MANTISSA, FLOAT_POWERS.length);
+                    if (decimal == null) {
+                        return converter.convert(ascii(bytes, start, end));
+                    }
+                    float value = decimal.mantissa / FLOAT_POWERS[decimal.scale];
+                    return decimal.negative ? -value : value;
+                });
+    }
+
+    /**
+     * Registers the factory of a type, replacing the factory that was
+     * registered for the type before. The values of the type are converted
+     * from strings only, unless a byte factory is registered after it.
+     */
+    protected void register(String type, Factory factory) {
+        String key = type.toUpperCase(Locale.ROOT);
+        factories.put(key, factory);
+        byteFactories.remove(key);
+    }
+
+    /**
+     * Registers the byte factory of a type that has a factory.
+     */
+    protected void registerBytes(String type, ByteFactory factory) {
+        byteFactories.put(type.toUpperCase(Locale.ROOT), factory);
+    }
+
+    /**
+     * @return the converter for a header type with an optional argument, or
+     * null when the type is unknown or the argument is not valid.
+     */
+    protected Converter get(String headerType) {
+        if (headerType == null) {
+            return null;
+        }
+        int colon = headerType.indexOf(':');
+        String type = colon < 0 ? headerType : headerType.substring(0, colon);
+        String argument = colon < 0 ? null : headerType.substring(colon + 1);
+        Factory factory = factories.get(type.trim().toUpperCase(Locale.ROOT));
+        return factory == null ? null : factory.create(argument);
+    }
+
+    /**
+     * @return the byte converter for a header type with an optional
+     * argument, or null when the values of the type are converted from
+     * strings only, or when the type is unknown or the argument is not
+     * valid.
+     */
+    protected ByteConverter getByteConverter(String headerType,
+            Charset charset) {
+        Converter converter = get(headerType);
+        if (converter == null) {
+            return null;
+        }
+        int colon = headerType.indexOf(':');
+        String type = colon < 0 ? headerType : headerType.substring(0, colon);
+        String argument = colon < 0 ? null : headerType.substring(colon + 1);
+        ByteFactory factory = byteFactories.get(
+                type.trim().toUpperCase(Locale.ROOT));
+        return factory == null ? null
+                : factory.create(argument, charset, converter);
+    }
+
+    /**
+     * @return the shared formatter that parses dates of a pattern, or null
+     * when the pattern is not valid. Dates are resolved strictly, so
+     * 31/2/2016 is not a date. A dd or MM between literals also takes a
+     * single digit, like SimpleDateFormat did, so yyyy/MM/dd parses
+     * 2016/1/5.
+     */
+    protected static DateTimeFormatter getFormatter(String pattern) {
+        try {
+            return FORMATTERS.computeIfAbsent(pattern, p -> {
+                String strictPattern = p.indexOf('\'') < 0 && p.indexOf('G') < 0
+                        ? p.replace('y', 'u') : p;
+                return parser(strictPattern)
+                        .withResolverStyle(ResolverStyle.STRICT);
+            });
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the shared formatter that prints dates in a pattern, with the
+     * full width of every field, or null when the pattern is not valid.
+     */
+    protected static DateTimeFormatter getPrinter(String pattern) {
+        try {
+            return PRINTERS.computeIfAbsent(pattern,
+                    DateTimeFormatter::ofPattern);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the formatter of the pattern, with a lenient width for every dd
+     * and MM between literals. Patterns with quotes or optional sections are
+     * left as they are.
+     */
+    private static DateTimeFormatter parser(String pattern) {
+        for (char c : "'[]{}#".toCharArray()) {
+            if (pattern.indexOf(c) >= 0) {
+                return DateTimeFormatter.ofPattern(pattern);
+            }
+        }
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+        int literal = 0;
+        for (int i = 0; i < pattern.length();) {
+            char c = pattern.charAt(i);
+            int count = 1;
+            while (i + count < pattern.length()
+                    && pattern.charAt(i + count) == c) {
+                count++;
+            }
+            if (isLenientWidth(pattern, i, count)) {
+                if (literal < i) {
+                    builder.appendPattern(pattern.substring(literal, i));
+                }
+                builder.appendValue(c == 'd' ? ChronoField.DAY_OF_MONTH
+                        : ChronoField.MONTH_OF_YEAR, 1, 2,
+                        SignStyle.NOT_NEGATIVE);
+                literal = i + count;
+            }
+            i += count;
+        }
+        if (literal < pattern.length()) {
+            builder.appendPattern(pattern.substring(literal));
+        }
+        return builder.toFormatter(Locale.getDefault());
+    }
+
+    /**
+     * @return whether the dd or MM at the index is not next to another
+     * field, so it can take one or two digits.
+     */
+    private static boolean isLenientWidth(String pattern, int index,
+            int count) {
+        char c = pattern.charAt(index);
+        if (count != 2 || (c != 'd' && c != 'M')) {
+            return false;
+        }
+        int end = index + count;
+        return (index == 0 || !isPatternLetter(pattern.charAt(index - 1)))
+                && (end == pattern.length()
+                || !isPatternLetter(pattern.charAt(end)));
+    }
+
+    private static boolean isPatternLetter(char c) {
+        return c <= 0x7f && Character.isLetter(c);
+    }
+
+    private static Converter booleanConverter(String trueValue,
+            String falseValue) {
+        return stringValue -> {
+            if (stringValue.equals(trueValue)) {
+                return Boolean.TRUE;
+            }
+            if (stringValue.equals(falseValue)) {
+                return Boolean.FALSE;
+            }
+            return null;
+        };
+    }
+
+    private static ByteConverter booleanByteConverter(byte[] trueValue,
+            byte[] falseValue) {
+        return (bytes, start, end) -> {
+            if (equals(bytes, start, end, trueValue)) {
+                return Boolean.TRUE;
+            }
+            if (equals(bytes, start, end, falseValue)) {
+                return Boolean.FALSE;
+            }
+            return null;
+        };
+    }
+
+    private static boolean equals(byte[] bytes, int start, int end,
+            byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (bytes[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a cell that the byte converter hands to the converter of the
+     * type. Characters outside ASCII are never part of a number or a date,
+     * so they only need to make the conversion fail.
+     */
+    private static String ascii(byte[] bytes, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            int b = bytes[start + i];
+            chars[i] = b < 0 ? '\uFFFD' : (char) b;
+        }
+        return new String(chars);
+    }
+
+    private static LocalDate parseDate(DateTimeFormatter formatter,
+            String stringValue) {
+        try {
+            return LocalDate.parse(stringValue, formatter);
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a decimal number without creating an exception for values that
+     * are not a number or out of range; those return {@link #NOT_A_NUMBER}.
+     */
+    private static long parseLong(String stringValue, long min, long max) {
+        int length = stringValue.length();
+        if (length == 0) {
+            return NOT_A_NUMBER;
+        }
+        int i = 0;
+        boolean negative = false;
+        char first = stringValue.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++i == length) {
+                return NOT_A_NUMBER;
+            }
+        }
+        long limit = negative ? -min : max;
+        long value = 0;
+        for (; i < length; i++) {
+            int digit = stringValue.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (limit - digit) / 10) {
+                return NOT_A_NUMBER;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the bytes of a cell like {@link #parseLong(String, long, long)}.
+     */
+    private static long parseLong(byte[] bytes, int start, int end,
+            long min, long max) {
+        if (start == end) {
+            return NOT_A_NUMBER;
+        }
+        int i = start;
+        boolean negative = false;
+        byte first = bytes[i];
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++i == end) {
+                return NOT_A_NUMBER;
+            }
+        }
+        long limit = negative ? -min : max;
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || value > (limit - digit) / 10) {
+                return NOT_A_NUMBER;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * A plain decimal number, e.g. {@code -12.50}, as a mantissa and the
+     * number of digits after the point.
+     */
+    private static final class Decimal {
+
+        private final boolean negative;
+        private final long mantissa;
+        private final int scale;
+
+        private Decimal(boolean negative, long mantissa, int scale) {
+            this.negative = negative;
+            this.mantissa = mantissa;
+            this.scale = scale;
+        }
+
+        /**
+         * @return the decimal, or null when the cell is not a plain decimal
+         * number or its mantissa or scale is too large.
+         */
+        private static Decimal parse(byte[] bytes, int start, int end,
+                long maxMantissa, int maxScale) {
+            int i = start;
+            boolean negative = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negative = bytes[i] == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int scale = -1;
+            for (; i < end; i++) {
+                byte b = bytes[i];
+                if (b == '.' && scale < 0) {
+                    scale = 0;
+                    continue;
+                }
+                int digit = b - '0';
+                if (digit < 0 || digit > 9) {
+                    return null;
+                }
+                mantissa = mantissa * 10 + digit;
+                digits++;
+                if (scale >= 0) {
+                    scale++;
+                }
+                if (mantissa > maxMantissa || scale >= maxScale) {
+                    return null;
+                }
+            }
+            return digits == 0 ? null
+                    : new Decimal(negative, mantissa, Math.max(scale, 0));
+        }
+
+    }
+
+    /**
+     * A date pattern of day, month and year numbers with literals in
+     * between, e.g. {@code d/M/yyyy} or {@code yyyy-MM-dd}, that is parsed
+     * from bytes as the strict formatter of the pattern parses it. Other
+     * patterns are left to the formatter.
+     */
+    private static final class DatePattern {
+
+        /**
+         * Parsed for values that the formatter has to parse.
+         */
+        private static final LocalDate UNKNOWN = LocalDate.MIN;
+
+        private static final int LITERAL = 0;
+        private static final int DAY = 1;
+        private static final int MONTH = 2;
+        private static final int YEAR = 3;
+        private static final int MAX_DIGITS = 18;
+
+        private final int[] kinds;
+        private final int[] widths;
+        private final int[] minWidths;
+        private final byte[] literals;
+
+        private DatePattern(int[] kinds, int[] widths, int[] minWidths,
+                byte[] literals) {
+            this.kinds = kinds;
+            this.widths = widths;
+            this.minWidths = minWidths;
+            this.literals = literals;
+        }
+
+        /**
+         * @return the pattern, or null when the pattern has letters other
+         * than d, M and y or u, quotes, optional sections, or numbers that
+         * are not separated by a literal.
+         */
+        private static DatePattern compile(String pattern) {
+            if (getFormatter(pattern) == null || pattern.indexOf('G') >= 0) {
+                return null;
+            }
+            List<int[]> fields = new ArrayList<>();
+            for (int i = 0; i < pattern.length();) {
+                char c = pattern.charAt(i);
+                int count = 1;
+                while (i + count < pattern.length()
+                        && pattern.charAt(i + count) == c) {
+                    count++;
+                }
+                if (c == 'd' || c == 'M') {
+                    if (count > 2) {
+                        return null;
+                    }
+                    fields.add(new int[]{c == 'd' ? DAY : MONTH, count});
+                } else if (c == 'y' || c == 'u') {
+                    if (count != 4) {
+                        return null;
+                    }
+                    fields.add(new int[]{YEAR, count});
+                } else if (c > 0x7f || Character.isLetter(c)
+                        || "'[]{}#".indexOf(c) >= 0) {
+                    return null;
+                } else {
+                    for (int k = 0; k < count; k++) {
+                        fields.add(new int[]{LITERAL, c});
+                    }
+                }
+                i += count;
+            }
+            int[] kinds = new int[fields.size()];
+            int[] widths = new int[fields.size()];
+            int[] minWidths = new int[fields.size()];
+            byte[] literals = new byte[fields.size()];
+            boolean[] seen = new boolean[4];
+            for (int k = 0; k < kinds.length; k++) {
+                int[] field = fields.get(k);
+                kinds[k] = field[0];
+                if (field[0] == LITERAL) {
+                    literals[k] = (byte) field[1];
+                } else {
+                    if (seen[field[0]]) {
+                        return null;
+                    }
+                    seen[field[0]] = true;
+                    widths[k] = field[1];
+                    // A dd or MM between literals takes one or two digits.
+                    boolean lenient = field[0] != YEAR && field[1] == 2
+                            && (k == 0 || fields.get(k - 1)[0] == LITERAL)
+                            && (k + 1 == fields.size()
+                            || fields.get(k + 1)[0] == LITERAL);
+                    minWidths[k] = lenient ? 1 : field[1];
+                    boolean variable = field[0] == YEAR || field[1] == 1;
+                    if (variable && k + 1 < fields.size()
+                            && fields.get(k + 1)[0] != LITERAL) {
+                        return null;
+                    }
+                }
+            }
+            return new DatePattern(kinds, widths, minWidths, literals);
+        }
+
+        /**
+         * @return the date, null when the value is not a date, or
+         * {@link #UNKNOWN} when the formatter has to parse the value.
+         */
+        private LocalDate parse(byte[] bytes, int start, int end) {
+            int[] values = new int[4];
+            int i = start;
+            for (int k = 0; k < kinds.length; k++) {
+                if (kinds[k] == LITERAL) {
+                    if (i == end || bytes[i] != literals[k]) {
+                        return null;
+                    }
+                    i++;
+                    continue;
+                }
+                if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                    return kinds[k] == YEAR ? UNKNOWN : null;
+                }
+                // A year has four digits without a sign in strict parsing;
+                // a single d or M takes as many digits as there are, a dd or
+                // MM between literals one or two.
+                int digitsStart = i;
+                int max = widths[k] == 1 ? MAX_DIGITS : widths[k];
+                long value = 0;
+                while (i < end && i - digitsStart < max
+                        && bytes[i] >= '0' && bytes[i] <= '9') {
+                    value = value * 10 + bytes[i] - '0';
+                    i++;
+                }
+                int digits = i - digitsStart;
+                if (digits == MAX_DIGITS) {
+                    return UNKNOWN;
+                }
+                if (digits < minWidths[k] || value > Integer.MAX_VALUE) {
+                    return null;
+                }
+                values[kinds[k]] = (int) value;
+            }
+            if (i != end) {
+                return null;
+            }
+            try {
+                return LocalDate.of(values[YEAR], values[MONTH], values[DAY]);
+            } catch (DateTimeException ex) {
+                return null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates records for values that were not read from a CSV file, so the
+ * rest of the import cannot tell them apart from parsed records. The
+ * constructor of {@link CSVRecord} is not public; when it cannot be used,
+ * the values are written as a CSV line and parsed again.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+final class CsvRecords {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvRecords.class);
+
+    private static final CSVFormat FORMAT = CSVFormat.EXCEL;
+    private static final Constructor<CSVRecord> CONSTRUCTOR = getConstructor();
+
+    private CsvRecords() {
+    }
+
+    /**
+     * @return a record with the values and the record number.
+     */
+    protected static CSVRecord create(String[] values, long recordNumber) {
+        return create(values, recordNumber, -1);
+    }
+
+    /**
+     * @return a record with the values, the record number and the position
+     * of the record in its file.
+     */
+    protected static CSVRecord create(String[] values, long recordNumber,
+            long characterPosition) {
+        if (CONSTRUCTOR != null) {
+            try {
+                return CONSTRUCTOR.newInstance(values, null, null,
+                        recordNumber, characterPosition);
+            } catch (ReflectiveOperationException ex) {
+                log.debug("Cannot create record.", ex);
+            }
+        }
+        try {
+            StringWriter line = new StringWriter();
+            // An empty line is not a record, a line with an empty value is.
+            FORMAT.printRecord(line, values.length == 0
+                    ? new Object[]{""} : values);
+            Iterator<CSVRecord> records = new CSVParser(new StringReader(
+                    line.toString()), FORMAT, Math.max(characterPosition, 0),
+                    recordNumber).iterator();
+            return records.next();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @return the values of the record.
+     */
+    protected static String[] values(CSVRecord record) {
+        String[] values = new String[record.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = record.get(i);
+        }
+        return values;
+    }
+
+    private static Constructor<CSVRecord> getConstructor() {
+        try {
+            Constructor<CSVRecord> constructor
+                    = CSVRecord.class.getDeclaredConstructor(String[].class,
+                            Map.class, String.class, long.class, long.class);
+            constructor.setAccessible(true);
+            CSVRecord record = constructor.newInstance(new String[]{"a"},
+                    null, null, 1L, -1L);
+            return Arrays.equals(values(record), new String[]{"a"})
+                    ? constructor : null;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.debug("Creating records by parsing them.", ex);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.function.UnaryOperator;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CSV file of the records that failed permanently. The file starts with the
+ * original full header and has the charset and delimiter of the import file,
+ * so it can be corrected and imported again as is, with the same options.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class DeadLetter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DeadLetter.class);
+
+    private final CSVPrinter printer;
+    private final UnaryOperator<CSVRecord> restore;
+    private long count;
+
+    private DeadLetter(CSVPrinter printer, UnaryOperator<CSVRecord> restore) {
+        this.printer = printer;
+        this.restore = restore;
+    }
+
+    protected static DeadLetter create(File file, CSVRecord fullHeader,
+            Charset charset, char delimiter) throws IOException {
+        return create(file, fullHeader, charset, delimiter,
+                UnaryOperator.identity());
+    }
+
+    /**
+     * Creates the file for records that may have to be restored before they
+     * are written, because their source left values out of them.
+     */
+    protected static DeadLetter create(File file, CSVRecord fullHeader,
+            Charset charset, char delimiter, UnaryOperator<CSVRecord> restore)
+            throws IOException {
+        log.debug("Creating dead letter file: " + file.getAbsolutePath());
+        CSVPrinter printer = new CSVPrinter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), charset)),
+                CSVFormat.EXCEL.withDelimiter(delimiter));
+        printer.printRecord(fullHeader);
+        printer.flush();
+        return new DeadLetter(printer, restore);
+    }
+
+    protected synchronized void write(CSVRecord record) throws IOException {
+        try {
+            printer.printRecord(restore.apply(record));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        count++;
+    }
+
+    protected synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        printer.close();
+    }
+
+}
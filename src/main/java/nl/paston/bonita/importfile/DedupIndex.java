@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of the business keys that were imported, to skip records
+ * whose key was imported before, in this run or in an earlier one.
+ * <p>
+ * The index is a file with a hash table of the 128-bit MD5 hashes of the
+ * keys, with linear probing. The table is read and written in place and is
+ * rebuilt into a file twice the size when it is half full, so the heap only
+ * holds the Bloom filter in front of the table: 4 bits per slot, which is 8
+ * to 16 bits per key. Most keys that are new are recognized by the filter
+ * without reading the file. The filter is written to the file when the index
+ * is closed, and rebuilt from the table when the index was not closed.
+ * <p>
+ * A key is claimed when its record is read and added to the index when its
+ * record was pushed. A key that is claimed by a record in flight is a
+ * duplicate as well; when that record fails, the key is released, so a later
+ * record with the same key is tried again.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class DedupIndex implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DedupIndex.class);
+
+    private static final int MAGIC = 0x42494458;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final long INITIAL_CAPACITY = 1 << 16;
+    private static final long MAX_CAPACITY = 1L << 31;
+    private static final int BLOOM_BITS_PER_SLOT = 4;
+    private static final int BLOOM_HASHES = 5;
+    private static final int PROBE_SLOTS = 16;
+    private static final int SCAN_SLOTS = 1 << 16;
+
+    private final File file;
+    private final int keyColumn;
+    private final MessageDigest md5;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final ByteBuffer probe = ByteBuffer.allocate(PROBE_SLOTS * SLOT_SIZE);
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+    private final long[] hash = new long[2];
+    private Table table;
+    private long suppressed;
+
+    private DedupIndex(File file, int keyColumn) throws IOException {
+        this.file = file;
+        this.keyColumn = keyColumn;
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        this.table = file.exists() && file.length() > 0 ? Table.open(file)
+                : Table.create(file, INITIAL_CAPACITY);
+        log.debug("Opened dedup index with " + table.size + " keys: "
+                + file.getAbsolutePath());
+    }
+
+    /**
+     * Opens the index, or creates it when the file does not exist.
+     *
+     * @param keyColumn the index of the column with the business key.
+     */
+    protected static DedupIndex open(File file, int keyColumn)
+            throws IOException {
+        return new DedupIndex(file, keyColumn);
+    }
+
+    /**
+     * Claims the key of the record. Records with an empty key are never
+     * duplicates.
+     *
+     * @return false when the record is a duplicate and must be skipped.
+     */
+    protected synchronized boolean claim(CSVRecord record) throws IOException {
+        String key = getKey(record);
+        if (key.isEmpty()) {
+            return true;
+        }
+        if (!inFlight.add(key)) {
+            suppressed++;
+            return false;
+        }
+        hash(key);
+        if (table.mightContain(hash[0], hash[1])
+                && table.find(hash[0], hash[1], probe) >= 0) {
+            inFlight.remove(key);
+            suppressed++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the key of a record that was pushed to the index, or releases the
+     * key of a record that failed.
+     */
+    protected synchronized void complete(CSVRecord record, boolean pushed)
+            throws IOException {
+        String key = getKey(record);
+        if (key.isEmpty()) {
+            return;
+        }
+        if (pushed) {
+            hash(key);
+            if (table.size + 1 > table.capacity / 2) {
+                grow();
+            }
+            table.insert(hash[0], hash[1], probe, slot);
+        }
+        inFlight.remove(key);
+    }
+
+    /**
+     * @return the index of the column with the business key.
+     */
+    protected int getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * @return the number of records that were skipped as a duplicate.
+     */
+    protected synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * @return the number of keys in the index.
+     */
+    protected synchronized long size() {
+        return table.size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (table != null) {
+            table.close();
+            table = null;
+        }
+    }
+
+    private String getKey(CSVRecord record) {
+        return keyColumn < record.size() ? record.get(keyColumn).trim() : "";
+    }
+
+    private void hash(String key) {
+        byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        hash[0] = buffer.getLong();
+        hash[1] = buffer.getLong();
+        if (hash[0] == 0 && hash[1] == 0) {
+            // All zeros marks an empty slot.
+            hash[1] = 1;
+        }
+    }
+
+    /**
+     * Rebuilds the table into a file of twice the size and replaces the
+     * file, so the index stays valid when the rebuild is interrupted.
+     */
+    private void grow() throws IOException {
+        if (table.capacity >= MAX_CAPACITY) {
+            throw new IOException("Dedup index is full: " + file);
+        }
+        File rebuilt = new File(file.getPath() + ".tmp");
+        Table bigger = Table.create(rebuilt, table.capacity * 2);
+        ByteBuffer scan = ByteBuffer.allocate(SCAN_SLOTS * SLOT_SIZE);
+        for (long start = 0; start < table.capacity; start += SCAN_SLOTS) {
+            table.read(start, scan);
+            while (scan.remaining() >= SLOT_SIZE) {
+                long high = scan.getLong();
+                long low = scan.getLong();
+                if (high != 0 || low != 0) {
+                    bigger.insert(high, low, probe, slot);
+                }
+            }
+        }
+        bigger.close();
+        table.channel.close();
+        Files.move(rebuilt.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        table = Table.open(file);
+        log.debug("Grew dedup index to " + table.capacity + " slots.");
+    }
+
+    /**
+     * The file with the header, the Bloom filter and the slots.
+     */
+    private static final class Table {
+
+        private final FileChannel channel;
+        private final long capacity;
+        private final long[] bloom;
+        private final long bloomMask;
+        private final long slotsOffset;
+        private long size;
+
+        private Table(FileChannel channel, long capacity, long[] bloom,
+                long size) {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.bloom = bloom;
+            this.bloomMask = (long) bloom.length * Long.SIZE - 1;
+            this.slotsOffset = HEADER_SIZE + (long) bloom.length * Long.BYTES;
+            this.size = size;
+        }
+
+        private static Table create(File file, long capacity)
+                throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            Table table = new Table(channel, capacity, new long[Math.toIntExact(
+                    capacity * BLOOM_BITS_PER_SLOT / Long.SIZE)], 0);
+            channel.write(ByteBuffer.allocate(1),
+                    table.slotsOffset + capacity * SLOT_SIZE - 1);
+            table.writeHeader(false);
+            return table;
+        }
+
+        private static Table open(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IOException("Not a dedup index: " + file);
+                }
+                long capacity = header.getLong();
+                long size = header.getLong();
+                boolean clean = header.get() == 1;
+                Table table = new Table(channel, capacity,
+                        new long[Math.toIntExact(header.getLong())], size);
+                if (clean) {
+                    table.readBloom();
+                } else {
+                    log.info("Dedup index was not closed. Rebuilding its "
+                            + "filter: " + file.getAbsolutePath());
+                    table.rebuildBloom();
+                }
+                table.writeHeader(false);
+                return table;
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        private boolean mightContain(long high, long low) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = (low + i * high) & bloomMask;
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addToBloom(long high, long low) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = (low + i * high) & bloomMask;
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        /**
+         * @return the slot of the hash, or -(slot + 1) for the empty slot
+         * where it belongs.
+         */
+        private long find(long high, long low, ByteBuffer probe)
+                throws IOException {
+            long index = high & (capacity - 1);
+            while (true) {
+                read(index, probe);
+                long slots = probe.remaining() / SLOT_SIZE;
+                for (long i = index; probe.remaining() >= SLOT_SIZE; i++) {
+                    long slotHigh = probe.getLong();
+                    long slotLow = probe.getLong();
+                    if (slotHigh == 0 && slotLow == 0) {
+                        return -(i + 1);
+                    }
+                    if (slotHigh == high && slotLow == low) {
+                        return i;
+                    }
+                }
+                index = (index + slots) & (capacity - 1);
+            }
+        }
+
+        private void insert(long high, long low, ByteBuffer probe,
+                ByteBuffer slot) throws IOException {
+            long found = find(high, low, probe);
+            if (found >= 0) {
+                return;
+            }
+            slot.clear();
+            slot.putLong(high).putLong(low).flip();
+            while (slot.hasRemaining()) {
+                channel.write(slot, slotsOffset
+                        + (-found - 1) * SLOT_SIZE + slot.position());
+            }
+            addToBloom(high, low);
+            size++;
+        }
+
+        /**
+         * Reads the slots from the given slot up to the end of the buffer or
+         * the table, whichever comes first.
+         */
+        private void read(long index, ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            long slots = Math.min(buffer.capacity() / SLOT_SIZE,
+                    capacity - index);
+            buffer.limit((int) (slots * SLOT_SIZE));
+            readFully(channel, buffer, slotsOffset + index * SLOT_SIZE);
+            buffer.flip();
+        }
+
+        private void readBloom() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_SLOTS * SLOT_SIZE);
+            int next = 0;
+            long position = HEADER_SIZE;
+            while (next < bloom.length) {
+                buffer.clear();
+                buffer.limit(Math.min(buffer.capacity(),
+                        (bloom.length - next) * Long.BYTES));
+                readFully(channel, buffer, position);
+                position += buffer.limit();
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    bloom[next++] = buffer.getLong();
+                }
+            }
+        }
+
+        private void rebuildBloom() throws IOException {
+            ByteBuffer scan = ByteBuffer.allocate(SCAN_SLOTS * SLOT_SIZE);
+            size = 0;
+            for (long start = 0; start < capacity; start += SCAN_SLOTS) {
+                read(start, scan);
+                while (scan.remaining() >= SLOT_SIZE) {
+                    long high = scan.getLong();
+                    long low = scan.getLong();
+                    if (high != 0 || low != 0) {
+                        addToBloom(high, low);
+                        size++;
+                    }
+                }
+            }
+        }
+
+        private void writeBloom() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_SLOTS * SLOT_SIZE);
+            long position = HEADER_SIZE;
+            for (int next = 0; next < bloom.length;) {
+                buffer.clear();
+                while (buffer.hasRemaining() && next < bloom.length) {
+                    buffer.putLong(bloom[next++]);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+
+        private void writeHeader(boolean clean) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(capacity)
+                    .putLong(size).put((byte) (clean ? 1 : 0))
+                    .putLong(bloom.length);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+
+        private void close() throws IOException {
+            try {
+                writeBloom();
+                writeHeader(true);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer,
+                long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position + buffer.position());
+                if (count < 0) {
+                    throw new IOException("Dedup index is truncated.");
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The full header of an import file, compiled once into an immutable plan per
+ * column. Parsing a record only has to walk this plan instead of parsing the
+ * header again for every cell.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class HeaderPlan {
+
+    private static final Logger log = LoggerFactory.getLogger(HeaderPlan.class);
+
+    private static final Pattern LIST_PARAMETERS = Pattern.compile("\\[(.*)\\]");
+    private static final Pattern LIST_NAME = Pattern.compile("(.*)\\[");
+    private static final String ROUTE = "ROUTE";
+
+    private final List<Column> columns;
+    private final PayloadTemplate payloadTemplate;
+
+    private HeaderPlan(List<Column> columns) {
+        this.columns = Collections.unmodifiableList(columns);
+        this.payloadTemplate = PayloadTemplate.compile(this.columns);
+    }
+
+    /**
+     * @throws IllegalArgumentException when a parameter of a list column is
+     * not a name or a name=value pair.
+     */
+    protected static HeaderPlan compile(CSVRecord fullHeader) {
+        if (fullHeader == null) {
+            log.warn("fullHeader is null.");
+            return null;
+        }
+        List<Column> columns = new ArrayList<>(fullHeader.size());
+        for (String fullHeaderValue : fullHeader) {
+            columns.add(compileColumn(fullHeaderValue));
+        }
+        return new HeaderPlan(columns);
+    }
+
+    protected static Column compileColumn(String fullHeaderValue) {
+        String type = Main.getHeaderFieldType(fullHeaderValue);
+        String headerField = Main.getHeaderField(fullHeaderValue);
+        if (ROUTE.equals(type)) {
+            return new Column(fullHeaderValue, type, null, null, null, null);
+        }
+        Converter converter = Main.getConverter(type);
+        if (headerField == null || converter == null) {
+            log.warn("Values of column are skipped: " + fullHeaderValue);
+            return new Column(fullHeaderValue, type, null, null, null, null);
+        }
+        String[] headerFieldParts = headerField.split("\\.");
+        String[] path = new String[headerFieldParts.length - 1];
+        System.arraycopy(headerFieldParts, 0, path, 0, path.length);
+        String name = headerFieldParts[headerFieldParts.length - 1];
+        Matcher listMatcher = LIST_PARAMETERS.matcher(name);
+        if (!listMatcher.find()) {
+            return new Column(fullHeaderValue, type, path, name, null,
+                    converter);
+        }
+        String parametersString = listMatcher.group(1);
+        Matcher nameMatcher = LIST_NAME.matcher(name);
+        if (!nameMatcher.find()) {
+            log.warn("No list name found in: " + fullHeaderValue);
+            return new Column(fullHeaderValue, type, null, null, null, null);
+        }
+        String[][] parameters;
+        if (parametersString.isEmpty()) {
+            parameters = new String[0][];
+        } else {
+            String[] parameterStrings = parametersString.split("&");
+            parameters = new String[parameterStrings.length][];
+            for (int i = 0; i < parameterStrings.length; i++) {
+                parameters[i] = parameterStrings[i].split("=");
+                if (parameters[i].length != 1 && parameters[i].length != 2) {
+                    throw new IllegalArgumentException(
+                            "Wrong number of parameters for: " + name);
+                }
+            }
+        }
+        return new Column(fullHeaderValue, type, path, nameMatcher.group(1),
+                parameters, converter);
+    }
+
+    protected int size() {
+        return columns.size();
+    }
+
+    protected Column getColumn(int index) {
+        return columns.get(index);
+    }
+
+    protected List<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the template of the maps of the records, or null when the
+     * maps are built value by value.
+     */
+    protected PayloadTemplate getPayloadTemplate() {
+        return payloadTemplate;
+    }
+
+    /**
+     * @return the index of the first column with the given header field,
+     * e.g. {@code hearingAidInput.request.uniqueID}, or with the given full
+     * header value. Returns -1 when there is no such column.
+     */
+    protected int indexOf(String headerField) {
+        for (int i = 0; i < columns.size(); i++) {
+            String fullHeaderValue = columns.get(i).getFullHeaderValue();
+            int type = fullHeaderValue.indexOf('(');
+            String field = type < 0 ? fullHeaderValue
+                    : fullHeaderValue.substring(0, type);
+            if (field.trim().equals(headerField)
+                    || fullHeaderValue.equals(headerField)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first column of type ROUTE, which holds the
+     * name and version of the process of every record, or -1 when the
+     * records are not routed.
+     */
+    protected int getRouteColumn() {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).isRoute()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The compiled form of a single header value, e.g.
+     * {@code passengerCarInput.more[kee=polKey&val=] (STRING)}.
+     */
+    protected static final class Column {
+
+        private final String fullHeaderValue;
+        private final String type;
+        private final String[] path;
+        private final String name;
+        private final String[][] parameters;
+        private final Converter converter;
+
+        private Column(String fullHeaderValue, String type, String[] path,
+                String name, String[][] parameters, Converter converter) {
+            this.fullHeaderValue = fullHeaderValue;
+            this.type = type;
+            this.path = path;
+            this.name = name;
+            this.parameters = parameters;
+            this.converter = converter;
+        }
+
+        protected String getFullHeaderValue() {
+            return fullHeaderValue;
+        }
+
+        protected String getType() {
+            return type;
+        }
+
+        /**
+         * @return the names of the maps in which the value is put, without
+         * the name of the value itself.
+         */
+        protected String[] getPath() {
+            return path;
+        }
+
+        /**
+         * @return the name of the value, or the name of the list for a list
+         * column.
+         */
+        protected String getName() {
+            return name;
+        }
+
+        protected boolean isList() {
+            return parameters != null;
+        }
+
+        /**
+         * @return the list parameters. A parameter with a key and a value is
+         * a constant, a parameter with only a key receives the cell value.
+         */
+        protected String[][] getParameters() {
+            return parameters;
+        }
+
+        protected boolean isSkipped() {
+            return converter == null;
+        }
+
+        /**
+         * @return whether the column holds the process of the record, as
+         * {@code name/version}. Its values are not put in the map.
+         */
+        protected boolean isRoute() {
+            return ROUTE.equals(type);
+        }
+
+        protected Object convert(String stringValue) {
+            return converter == null ? null : converter.convert(stringValue);
+        }
+
+    }
+
+}
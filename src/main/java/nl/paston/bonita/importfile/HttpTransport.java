@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.bonitasoft.engine.api.HTTPServerAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTP connections of the Bonita client. {@link HTTPServerAPI} keeps one
+ * HttpClient for the whole JVM in a static field and creates it with the
+ * defaults of HttpClient, two connections per node and no timeouts, unless
+ * the field is set already. The transport sets it to a client with the pool
+ * size, timeouts, keep-alive and compression of its settings, before the
+ * first ServerAPI is created.
+ * <p>
+ * The transport counts the requests, the connections that were opened and
+ * the requests that had to wait for a free connection, so connection reuse
+ * and pool exhaustion can be reported.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class HttpTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(HttpTransport.class);
+
+    private static final String CLIENT_FIELD = "httpclient";
+
+    private final Settings settings;
+    private final CountingConnectionManager manager;
+    private final DefaultHttpClient client;
+    private final AtomicLong requests = new AtomicLong();
+
+    private HttpTransport(Settings settings) {
+        this.settings = settings;
+        this.manager = new CountingConnectionManager(
+                SchemeRegistryFactory.createDefault());
+        manager.setMaxTotal(settings.maxConnections);
+        manager.setDefaultMaxPerRoute(settings.maxConnectionsPerNode);
+        this.client = new DefaultHttpClient(manager);
+        HttpParams params = client.getParams();
+        params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
+                settings.connectTimeoutMillis);
+        params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,
+                settings.socketTimeoutMillis);
+        params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+        params.setBooleanParameter(CoreConnectionPNames.SO_KEEPALIVE, true);
+        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response,
+                    HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration < 0 ? settings.keepAliveMillis
+                        : Math.min(duration, settings.keepAliveMillis);
+            }
+
+        });
+        client.addRequestInterceptor((request, context)
+                -> requests.incrementAndGet());
+        if (settings.compression) {
+            client.addRequestInterceptor(new RequestAcceptEncoding());
+            client.addResponseInterceptor(new ResponseContentEncoding());
+        }
+    }
+
+    /**
+     * Makes the Bonita client use a client with the given settings.
+     *
+     * @return the transport, or null when the client of {@link HTTPServerAPI}
+     * cannot be replaced and keeps its defaults.
+     */
+    protected static HttpTransport install(Settings settings) {
+        HttpTransport transport = new HttpTransport(settings);
+        try {
+            Field field = HTTPServerAPI.class.getDeclaredField(CLIENT_FIELD);
+            field.setAccessible(true);
+            Object previous = field.get(null);
+            field.set(null, transport.client);
+            if (previous instanceof DefaultHttpClient) {
+                ((DefaultHttpClient) previous).getConnectionManager().shutdown();
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.warn("Cannot tune the HTTP connections of the Bonita client. "
+                    + "Reason: " + ex.getMessage());
+            transport.manager.shutdown();
+            return null;
+        }
+        log.debug("Using " + settings.maxConnectionsPerNode
+                + " HTTP connections per node, " + settings.maxConnections
+                + " in total.");
+        return transport;
+    }
+
+    /**
+     * Opens connections to every node and puts them in the pool, so the
+     * first requests do not pay for the TCP and TLS handshakes. Connections
+     * that cannot be opened are left to the requests.
+     *
+     * @param connectionsPerNode the number of connections per node, at most
+     * the maximum per node.
+     */
+    protected void prewarm(List<String> serverUrls, int connectionsPerNode) {
+        int count = Math.min(connectionsPerNode, settings.maxConnectionsPerNode);
+        long opened = manager.getOpened();
+        for (String serverUrl : serverUrls) {
+            HttpRoute route;
+            try {
+                URI uri = URI.create(serverUrl);
+                route = new HttpRoute(new HttpHost(uri.getHost(),
+                        uri.getPort(), uri.getScheme()));
+            } catch (IllegalArgumentException ex) {
+                log.debug("Cannot prewarm " + serverUrl, ex);
+                continue;
+            }
+            List<ManagedClientConnection> connections = new ArrayList<>();
+            try {
+                // Leases every connection at once, so the pool hands out the
+                // open connections first and new ones after those.
+                for (int i = 0; i < count; i++) {
+                    ClientConnectionRequest request
+                            = manager.requestConnection(route, null);
+                    ManagedClientConnection connection = request.getConnection(
+                            settings.connectTimeoutMillis,
+                            TimeUnit.MILLISECONDS);
+                    connections.add(connection);
+                    if (!connection.isOpen()) {
+                        connection.open(route, new BasicHttpContext(),
+                                client.getParams());
+                    }
+                    connection.markReusable();
+                }
+            } catch (IOException | InterruptedException ex) {
+                log.debug("Cannot prewarm " + serverUrl + ". Reason: "
+                        + ex.getMessage());
+                if (ex instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                for (ManagedClientConnection connection : connections) {
+                    manager.releaseConnection(connection,
+                            settings.keepAliveMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        log.info("Opened " + (manager.getOpened() - opened)
+                + " HTTP connection(s) ahead of the import.");
+    }
+
+    /**
+     * @return the number of HTTP requests that were sent.
+     */
+    protected long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of connections that were opened.
+     */
+    protected long getOpened() {
+        return manager.getOpened();
+    }
+
+    /**
+     * @return the number of requests that found every connection to their
+     * node in use and had to wait for one.
+     */
+    protected long getWaits() {
+        return manager.getWaits();
+    }
+
+    /**
+     * @return the number of connections that are in use.
+     */
+    protected long getLeased() {
+        return manager.getTotalStats().getLeased();
+    }
+
+    /**
+     * Adds the counters and the connections in use to the metrics.
+     */
+    protected void register(Metrics metrics) {
+        metrics.register("http_requests", this::getRequests);
+        metrics.register("http_connections_opened", this::getOpened);
+        metrics.register("http_connection_waits", this::getWaits);
+        metrics.registerGauge("http_connections_leased", this::getLeased);
+    }
+
+    /**
+     * Logs how often connections were reused and how often the pool was
+     * exhausted.
+     */
+    protected void logSummary() {
+        logSummary(getRequests(), getOpened(), getWaits());
+    }
+
+    protected static void logSummary(long requests, long opened, long waits) {
+        log.info("Sent " + requests + " HTTP requests over " + opened
+                + " connection(s), " + (requests == 0 ? 0
+                : Math.max(0, 100 * (requests - opened) / requests))
+                + "% on a reused connection. Waited " + waits
+                + " time(s) for a free connection.");
+    }
+
+    /**
+     * The tunable parameters of the connections.
+     */
+    protected static final class Settings {
+
+        private final int maxConnectionsPerNode;
+        private final int maxConnections;
+        private final int connectTimeoutMillis;
+        private final int socketTimeoutMillis;
+        private final long keepAliveMillis;
+        private final boolean compression;
+
+        /**
+         * @param socketTimeoutMillis the time to wait for data, or 0 to wait
+         * for as long as a call takes.
+         * @param keepAliveMillis the time an idle connection is kept, unless
+         * the server closes it sooner.
+         */
+        protected Settings(int maxConnectionsPerNode, int maxConnections,
+                int connectTimeoutMillis, int socketTimeoutMillis,
+                long keepAliveMillis, boolean compression) {
+            if (maxConnectionsPerNode < 1 || maxConnections < 1) {
+                throw new IllegalArgumentException(
+                        "The number of connections must be at least 1.");
+            }
+            this.maxConnectionsPerNode = maxConnectionsPerNode;
+            this.maxConnections = Math.max(maxConnections,
+                    maxConnectionsPerNode);
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.socketTimeoutMillis = socketTimeoutMillis;
+            this.keepAliveMillis = keepAliveMillis;
+            this.compression = compression;
+        }
+
+        protected int getMaxConnectionsPerNode() {
+            return maxConnectionsPerNode;
+        }
+
+        protected int getMaxConnections() {
+            return maxConnections;
+        }
+
+        protected int getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+
+        protected int getSocketTimeoutMillis() {
+            return socketTimeoutMillis;
+        }
+
+        protected long getKeepAliveMillis() {
+            return keepAliveMillis;
+        }
+
+        protected boolean isCompression() {
+            return compression;
+        }
+
+    }
+
+    /**
+     * A pool that counts the connections it opens and the requests that find
+     * every connection of their node in use.
+     */
+    private static class CountingConnectionManager
+            extends PoolingClientConnectionManager {
+
+        private final AtomicLong opened = new AtomicLong();
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicBoolean warned = new AtomicBoolean();
+
+        private CountingConnectionManager(SchemeRegistry registry) {
+            super(registry);
+        }
+
+        @Override
+        protected ClientConnectionOperator createConnectionOperator(
+                SchemeRegistry registry) {
+            return new DefaultClientConnectionOperator(registry) {
+
+                @Override
+                public void openConnection(OperatedClientConnection connection,
+                        HttpHost target, InetAddress local,
+                        HttpContext context, HttpParams params)
+                        throws IOException {
+                    super.openConnection(connection, target, local, context,
+                            params);
+                    opened.incrementAndGet();
+                }
+
+            };
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route,
+                Object state) {
+            PoolStats stats = getStats(route);
+            if (stats.getAvailable() == 0
+                    && stats.getLeased() >= stats.getMax()) {
+                waits.incrementAndGet();
+                if (warned.compareAndSet(false, true)) {
+                    log.warn("All " + stats.getMax() + " HTTP connections to "
+                            + route.getTargetHost() + " are in use. "
+                            + "Requests wait for a free connection; see "
+                            + "--httpMaxConnections.");
+                }
+            }
+            return super.requestConnection(route, state);
+        }
+
+        private long getOpened() {
+            return opened.get();
+        }
+
+        private long getWaits() {
+            return waits.get();
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Signals that a single record cannot be imported. A retryable exception is
+ * caused by a transient problem and the record may succeed when it is pushed
+ * again. Any other exception is permanent for the record. A rejected
+ * exception is caused by the inputs of the record, like a contract
+ * violation, so other records may still succeed.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ImportException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean retryable;
+    private final boolean rejected;
+
+    protected ImportException(String message, boolean retryable) {
+        this(message, retryable, null);
+    }
+
+    protected ImportException(String message, boolean retryable,
+            Throwable cause) {
+        this(message, retryable, false, cause);
+    }
+
+    private ImportException(String message, boolean retryable,
+            boolean rejected, Throwable cause) {
+        super(message, cause);
+        this.retryable = retryable;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return a permanent exception for inputs that were rejected.
+     */
+    protected static ImportException rejected(String message,
+            Throwable cause) {
+        return new ImportException(message, false, true, cause);
+    }
+
+    protected boolean isRetryable() {
+        return retryable;
+    }
+
+    protected boolean isRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the failure of an asynchronous start as an ImportException. A
+     * failure to reach the server is retryable, like an undeclared
+     * exception of the Java client.
+     */
+    protected static ImportException from(Throwable failure) {
+        Throwable cause = failure;
+        while (cause instanceof CompletionException
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ImportException) {
+            return (ImportException) cause;
+        }
+        if (cause instanceof IOException) {
+            return new ImportException("Cannot connect to the server. "
+                    + "Reason: " + cause.getMessage(), true, cause);
+        }
+        return new ImportException(String.valueOf(cause), false, cause);
+    }
+
+}
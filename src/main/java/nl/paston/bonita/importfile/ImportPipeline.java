@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs submissions to Bonita on a fixed number of submitter threads. The
+ * reading thread hands over its tasks through a bounded queue and blocks as
+ * soon as the maximum number of tasks is in flight, so memory stays flat no
+ * matter how large the file is. Tasks that do not block take a place in the
+ * same window until the future they return completes, without a submitter
+ * thread.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ImportPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(ImportPipeline.class);
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Semaphore window;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    protected ImportPipeline(int threads, int maxInFlight) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException(
+                    "threads and maxInFlight must be at least 1.");
+        }
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxInFlight),
+                new SubmitterThreadFactory());
+    }
+
+    /**
+     * Hands a task to the submitters. Blocks while the in-flight window is
+     * full.
+     */
+    protected void submit(Runnable task) throws InterruptedException {
+        window.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                    completed.incrementAndGet();
+                } catch (RuntimeException ex) {
+                    failed.incrementAndGet();
+                    log.error("Submission failed. Reason: " + ex.getMessage());
+                    log.debug("Stacktrace", ex);
+                } finally {
+                    window.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            window.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs a task that does not block on the calling thread. The task keeps
+     * its place in the in-flight window until its future completes. Blocks
+     * while the window is full.
+     */
+    protected void submitAsync(Supplier<CompletableFuture<?>> task)
+            throws InterruptedException {
+        window.acquire();
+        CompletableFuture<?> future;
+        try {
+            future = task.get();
+        } catch (RuntimeException ex) {
+            window.release();
+            failed.incrementAndGet();
+            log.error("Submission failed. Reason: " + ex.getMessage());
+            log.debug("Stacktrace", ex);
+            return;
+        }
+        future.whenComplete((result, failure) -> {
+            if (failure == null) {
+                completed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                log.error("Submission failed. Reason: "
+                        + failure.getMessage());
+                log.debug("Stacktrace", failure);
+            }
+            window.release();
+        });
+    }
+
+    /**
+     * Waits until every task that was submitted has completed or failed.
+     */
+    protected void awaitCompletion() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.debug("Waiting for submissions in flight.");
+        }
+        // Tasks that do not block hold their place until they complete.
+        while (!window.tryAcquire(maxInFlight, 1, TimeUnit.MINUTES)) {
+            log.debug("Waiting for submissions in flight.");
+        }
+        window.release(maxInFlight);
+    }
+
+    protected long getCompleted() {
+        return completed.get();
+    }
+
+    protected long getFailed() {
+        return failed.get();
+    }
+
+    private static class SubmitterThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger number = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                    "submitter-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
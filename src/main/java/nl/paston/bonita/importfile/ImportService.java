@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.process.ProcessDefinitionNotFoundException;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs imports as jobs for as long as the process runs, so the login and the
+ * lookup of processes and contracts are done once instead of once per file.
+ * Jobs are posted to a local HTTP endpoint and run concurrently:
+ * <ul>
+ * <li>{@code POST /jobs?csvFile=..&processName=..&processVersion=..} starts
+ * a job, optionally with {@code results}, {@code keyColumn},
+ * {@code deadLetter}, {@code charset} and {@code delimiter}. The parameters
+ * can also be sent as a form. The
+ * request needs the header {@code X-Requested-By}, which a web page cannot
+ * send to another site without asking first, so a page that is open in a
+ * browser cannot post jobs.</li>
+ * <li>{@code GET /jobs} lists the jobs and {@code GET /jobs/<id>} shows the
+ * state and the counts of one job.</li>
+ * </ul>
+ * Records that fail do not stop a job; they are counted, and written to the
+ * results and dead letter files of the job when given. These files must not
+ * exist yet, or be empty. Relative paths are relative to the working
+ * directory of the service.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ImportService {
+
+    private static final Logger log = LoggerFactory.getLogger(ImportService.class);
+
+    private static final String JOBS = "/jobs";
+    private static final String REQUESTED_BY = "X-Requested-By";
+
+    protected enum State {
+
+        QUEUED, RUNNING, COMPLETED, FAILED
+
+    }
+
+    private final ProcessAPI processAPI;
+    private final ProcessCatalog catalog;
+    private final int threads;
+    private final int maxInFlight;
+    private final RetryPolicy retryPolicy;
+    private final ConcurrencyLimiter limiter;
+    private final boolean contractCheck;
+    private final ExecutorService jobExecutor;
+    private final Map<Long, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private HttpServer server;
+
+    /**
+     * @param processAPI the API to start processes with, usually the one of
+     * a session pool.
+     * @param maxJobs the number of jobs that run at the same time.
+     * @param threads the submitter threads per job.
+     * @param maxInFlight the records in flight per job.
+     * @param limiter the limiter that is shared by every job, or null.
+     * @param contractCheck whether records are checked against the contract.
+     */
+    protected ImportService(ProcessAPI processAPI, int maxJobs, int threads,
+            int maxInFlight, RetryPolicy retryPolicy,
+            ConcurrencyLimiter limiter, boolean contractCheck) {
+        this.processAPI = processAPI;
+        this.catalog = new ProcessCatalog(processAPI);
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.retryPolicy = retryPolicy;
+        this.limiter = limiter;
+        this.contractCheck = contractCheck;
+        AtomicInteger number = new AtomicInteger();
+        this.jobExecutor = Executors.newFixedThreadPool(maxJobs, runnable
+                -> new Thread(runnable, "job-" + number.incrementAndGet()));
+    }
+
+    /**
+     * Starts listening on the loopback address. Port 0 picks a free port.
+     */
+    protected synchronized void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(JOBS, this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "import-service");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        log.info("Accepting import jobs on http://localhost:" + getPort()
+                + JOBS + ".");
+    }
+
+    protected synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @throws IllegalArgumentException when a required parameter is missing
+     * or an output file already exists.
+     */
+    protected Job submit(Map<String, String> parameters) {
+        Job job = new Job(nextId.incrementAndGet(),
+                required(parameters, Main.Cmd.CSV_FILE),
+                required(parameters, Main.Cmd.PROCESS_NAME),
+                required(parameters, Main.Cmd.PROCESS_VERSION),
+                newFile(parameters, Main.Cmd.RESULTS),
+                parameters.get(Main.Cmd.KEY_COLUMN.getName()),
+                newFile(parameters, Main.Cmd.DEAD_LETTER),
+                getCharset(parameters.get(Main.Cmd.CHARSET.getName())),
+                getDelimiter(parameters.get(Main.Cmd.DELIMITER.getName())));
+        jobs.put(job.id, job);
+        jobExecutor.execute(job::run);
+        log.info("Queued job " + job.id + ": " + job.csvFile + " for "
+                + job.processName + " " + job.processVersion + ".");
+        return job;
+    }
+
+    protected Job getJob(long id) {
+        return jobs.get(id);
+    }
+
+    protected List<Job> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Waits until the service is closed.
+     */
+    protected void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    /**
+     * Stops accepting jobs and waits for the jobs that were queued.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+        jobExecutor.shutdown();
+        while (!jobExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.debug("Waiting for running jobs.");
+        }
+        closed.countDown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals(JOBS) || path.equals(JOBS + "/")) {
+                if ("POST".equals(method)) {
+                    if (exchange.getRequestHeaders()
+                            .getFirst(REQUESTED_BY) == null) {
+                        respond(exchange, 403, error("Post jobs with the "
+                                + "header " + REQUESTED_BY + "."));
+                        return;
+                    }
+                    Map<String, String> parameters = parseForm(
+                            exchange.getRequestURI().getRawQuery());
+                    parameters.putAll(parseForm(new String(
+                            readAll(exchange.getRequestBody()),
+                            StandardCharsets.UTF_8)));
+                    respond(exchange, 202, submit(parameters).toJson());
+                } else if ("GET".equals(method)) {
+                    StringBuilder json = new StringBuilder("[");
+                    String separator = "";
+                    for (Job job : getJobs()) {
+                        json.append(separator).append(job.toJson());
+                        separator = ",";
+                    }
+                    respond(exchange, 200, json.append(']').toString());
+                } else {
+                    respond(exchange, 405, error("Use GET or POST."));
+                }
+                return;
+            }
+            Job job = null;
+            try {
+                job = getJob(Long.parseLong(path.substring(JOBS.length() + 1)));
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                log.debug("Not a job: " + path);
+            }
+            if (job == null) {
+                respond(exchange, 404, error("No such job: " + path));
+            } else if (!"GET".equals(method)) {
+                respond(exchange, 405, error("Use GET."));
+            } else {
+                respond(exchange, 200, job.toJson());
+            }
+        } catch (IllegalArgumentException ex) {
+            respond(exchange, 400, error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            log.error("Cannot handle request. Reason: " + ex.getMessage());
+            log.debug("Stacktrace", ex);
+            respond(exchange, 500, error(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    private static String required(Map<String, String> parameters,
+            Main.Cmd cmd) {
+        String value = parameters.get(cmd.getName());
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing parameter: "
+                    + cmd.getName());
+        }
+        return value;
+    }
+
+    /**
+     * @return the path of an output file, or null if none is given.
+     * @throws IllegalArgumentException when the file already has content,
+     * so a job cannot overwrite it.
+     */
+    private static String newFile(Map<String, String> parameters,
+            Main.Cmd cmd) {
+        String value = parameters.get(cmd.getName());
+        if (value != null && resolve(value).length() > 0) {
+            throw new IllegalArgumentException("File already exists: "
+                    + value);
+        }
+        return value;
+    }
+
+    private static Charset getCharset(String name) {
+        if (name == null) {
+            return Charset.defaultCharset();
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown charset: " + name, ex);
+        }
+    }
+
+    private static char getDelimiter(String value) {
+        return value == null ? ',' : Main.parseDelimiter(value);
+    }
+
+    private static File resolve(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file
+                : new File(System.getProperty("user.dir"), path);
+    }
+
+    private static Map<String, String> parseForm(String form)
+            throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(
+                        URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status,
+            String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String quote(String value) {
+        return JsonWriter.quote(value);
+    }
+
+    /**
+     * An import of one file into one process.
+     */
+    protected class Job {
+
+        private final long id;
+        private final String csvFile;
+        private final String processName;
+        private final String processVersion;
+        private final String resultsFile;
+        private final String keyColumn;
+        private final String deadLetterFile;
+        private final Charset charset;
+        private final char delimiter;
+        private final Metrics metrics = new Metrics();
+        private final Instant queued = Instant.now();
+        private volatile State state = State.QUEUED;
+        private volatile Instant started;
+        private volatile Instant finished;
+        private volatile String message;
+        private volatile RecordSource source;
+
+        private Job(long id, String csvFile, String processName,
+                String processVersion, String resultsFile, String keyColumn,
+                String deadLetterFile, Charset charset, char delimiter) {
+            this.id = id;
+            this.csvFile = csvFile;
+            this.processName = processName;
+            this.processVersion = processVersion;
+            this.resultsFile = resultsFile;
+            this.keyColumn = keyColumn;
+            this.deadLetterFile = deadLetterFile;
+            this.charset = charset;
+            this.delimiter = delimiter;
+        }
+
+        protected long getId() {
+            return id;
+        }
+
+        protected State getState() {
+            return state;
+        }
+
+        protected String getMessage() {
+            return message;
+        }
+
+        protected long getCounter(String name) {
+            return metrics.getCounter(name);
+        }
+
+        private void run() {
+            started = Instant.now();
+            state = State.RUNNING;
+            DeadLetter deadLetter = null;
+            ResultWriter results = null;
+            try {
+                ProcessDeploymentInfo info
+                        = catalog.getProcess(processName, processVersion);
+                ContractValidator contractValidator = contractCheck
+                        ? catalog.getContractValidator(info) : null;
+                source = RecordSource.open(resolve(csvFile), charset,
+                        delimiter);
+                if (source.getFullHeader() == null) {
+                    throw new IOException("File is empty.");
+                }
+                HeaderPlan headerPlan
+                        = HeaderPlan.compile(source.getFullHeader());
+                int keyIndex = -1;
+                if (keyColumn != null) {
+                    keyIndex = headerPlan.indexOf(keyColumn);
+                    if (keyIndex < 0) {
+                        throw new IllegalArgumentException(
+                                "Key column not found in header: " + keyColumn);
+                    }
+                }
+                if (deadLetterFile != null) {
+                    deadLetter = DeadLetter.create(resolve(deadLetterFile),
+                            source.getFullHeader(), charset, delimiter);
+                }
+                if (resultsFile != null) {
+                    results = ResultWriter.create(resolve(resultsFile),
+                            keyIndex);
+                }
+                RecordSubmitter submitter = new RecordSubmitter(processAPI,
+                        info, retryPolicy, true, null, deadLetter, results,
+                        metrics, limiter);
+                AtomicReference<IOException> outputError
+                        = new AtomicReference<>();
+                submitter.setOutputErrorHandler(ex -> {
+                    if (outputError.compareAndSet(null, ex)) {
+                        log.error("Job " + id + ": " + ex.getMessage());
+                    }
+                });
+                ImportPipeline pipeline = new ImportPipeline(threads,
+                        maxInFlight);
+                metrics.register("records_succeeded", submitter::getSucceeded);
+                metrics.register("records_failed",
+                        () -> submitter.getFailed() + pipeline.getFailed());
+                Main.importRecords(source, headerPlan, new BitSet(),
+                        contractValidator, submitter, pipeline, metrics);
+                pipeline.awaitCompletion();
+                // Close the files here, so a failed last write fails the job.
+                if (deadLetter != null) {
+                    deadLetter.close();
+                }
+                if (results != null) {
+                    results.close();
+                }
+                if (outputError.get() != null) {
+                    fail(outputError.get().getMessage());
+                } else {
+                    state = State.COMPLETED;
+                }
+            } catch (ProcessDefinitionNotFoundException ex) {
+                fail("Process not found: " + processName + " "
+                        + processVersion);
+            } catch (UndeclaredThrowableException ex) {
+                fail("Cannot connect to the server.");
+            } catch (IOException | UncheckedIOException
+                    | IllegalArgumentException | IllegalStateException ex) {
+                fail(ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                fail("Job was interrupted.");
+            } catch (RuntimeException ex) {
+                log.error("Job " + id + " stopped unexpectedly.", ex);
+                fail("Unexpected error: " + ex);
+            } finally {
+                close(source, deadLetter, results);
+                finished = Instant.now();
+            }
+            log.info("Job " + id + " " + state.name().toLowerCase() + ": "
+                    + getCounter("records_succeeded") + " records pushed, "
+                    + getCounter("records_failed") + " failed."
+                    + (message == null ? "" : " " + message));
+        }
+
+        private void fail(String reason) {
+            message = reason;
+            state = State.FAILED;
+        }
+
+        private void close(RecordSource source, DeadLetter deadLetter,
+                ResultWriter results) {
+            if (source != null) {
+                source.close();
+            }
+            Main.closeDeadLetter(deadLetter);
+            Main.closeResultWriter(results);
+        }
+
+        protected String toJson() {
+            RecordSource current = source;
+            double fractionRead = state == State.COMPLETED ? 1
+                    : current == null ? 0 : current.getFractionRead();
+            return "{\"id\":" + id
+                    + ",\"csvFile\":" + quote(csvFile)
+                    + ",\"processName\":" + quote(processName)
+                    + ",\"processVersion\":" + quote(processVersion)
+                    + ",\"state\":" + quote(state.name())
+                    + ",\"read\":" + getCounter("records_read")
+                    + ",\"succeeded\":" + getCounter("records_succeeded")
+                    + ",\"failed\":" + getCounter("records_failed")
+                    + ",\"fractionRead\":" + Math.max(0, fractionRead)
+                    + ",\"queued\":" + quote(queued.toString())
+                    + ",\"started\":" + quote(started == null ? null
+                            : started.toString())
+                    + ",\"finished\":" + quote(finished == null ? null
+                            : finished.toString())
+                    + ",\"message\":" + quote(message) + "}";
+        }
+
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the records that were pushed to Bonita. Every line
+ * holds the record number and the id of the process instance that was
+ * started. Lines are written in the order in which the starts complete, so
+ * the journal can have gaps. The journal is forced to disk in batches: every
+ * {@value #SYNC_BATCH} records and at least once per second.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class Journal implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+    private static final int SYNC_BATCH = 1000;
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private final File file;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final Writer writer;
+    private final ScheduledExecutorService syncer;
+    private int unsynced;
+    private boolean closed;
+
+    private Journal(File file) throws IOException {
+        this.file = file;
+        this.out = new FileOutputStream(file, true);
+        this.channel = out.getChannel();
+        this.writer = new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::syncQuietly,
+                SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the journal for appending. A line that was only partly written
+     * before a crash is removed first, so the next line is not glued onto
+     * it.
+     */
+    protected static Journal open(File file) throws IOException {
+        log.debug("Opening journal: " + file.getAbsolutePath());
+        if (file.exists()) {
+            truncateTornLine(file);
+        }
+        return new Journal(file);
+    }
+
+    /**
+     * Cuts the file back to the end of its last complete line.
+     */
+    protected static void truncateTornLine(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long end = size;
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            while (end > 0) {
+                int length = (int) Math.min(buffer.capacity(), end);
+                buffer.clear().limit(length);
+                long position = end - length;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Journal shrank while reading: "
+                                + file);
+                    }
+                }
+                int newline = length - 1;
+                while (newline >= 0 && buffer.get(newline) != '\n') {
+                    newline--;
+                }
+                if (newline >= 0) {
+                    end = position + newline + 1;
+                    break;
+                }
+                end = position;
+            }
+            if (end < size) {
+                log.warn("Removing a partly written line at the end of "
+                        + file.getAbsolutePath());
+                channel.truncate(end);
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Reads the record numbers that are completed according to the journal.
+     * A line that was only partly written before a crash is ignored.
+     */
+    protected static BitSet readCompleted(File file) throws IOException {
+        BitSet completed = new BitSet();
+        if (!file.exists()) {
+            return completed;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(',');
+                if (separator < 1) {
+                    continue;
+                }
+                try {
+                    long recordNumber
+                            = Long.parseLong(line.substring(0, separator));
+                    Long.parseLong(line.substring(separator + 1));
+                    completed.set(Math.toIntExact(recordNumber));
+                } catch (NumberFormatException | ArithmeticException ex) {
+                    log.warn("Ignoring journal line: " + line);
+                }
+            }
+        }
+        return completed;
+    }
+
+    protected synchronized void record(long recordNumber,
+            long processInstanceId) throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed: " + file);
+        }
+        writer.write(Long.toString(recordNumber));
+        writer.write(',');
+        writer.write(Long.toString(processInstanceId));
+        writer.write('\n');
+        if (++unsynced >= SYNC_BATCH) {
+            sync();
+        }
+    }
+
+    protected synchronized void sync() throws IOException {
+        if (closed || unsynced == 0) {
+            return;
+        }
+        writer.flush();
+        channel.force(false);
+        unsynced = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        syncer.shutdown();
+        sync();
+        closed = true;
+        writer.close();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException ex) {
+            log.error("Cannot write journal: " + ex.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.math.BigDecimal;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Writes the values of a parsed record as JSON, in the form the REST API of
+ * Bonita accepts as the inputs of a process contract: maps as objects,
+ * collections as arrays, numbers and booleans as they are, dates as ISO-8601
+ * text and every other value as its text. Numbers that JSON cannot hold, NaN
+ * and the infinities, are written as null.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+final class JsonWriter {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonWriter() {
+    }
+
+    protected static String write(Object value) {
+        StringBuilder json = new StringBuilder(256);
+        write(json, value);
+        return json.toString();
+    }
+
+    protected static void write(StringBuilder json, Object value) {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof String) {
+            quote(json, (String) value);
+        } else if (value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            json.append(value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            json.append(Double.isNaN(number) || Double.isInfinite(number)
+                    ? "null" : value.toString());
+        } else if (value instanceof BigDecimal) {
+            json.append(((BigDecimal) value).toPlainString());
+        } else if (value instanceof Date) {
+            quote(json, DATE_FORMAT.format(((Date) value).toInstant()));
+        } else if (value instanceof TemporalAccessor) {
+            quote(json, value.toString());
+        } else if (value instanceof Map) {
+            json.append('{');
+            char separator = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (separator != 0) {
+                    json.append(separator);
+                }
+                separator = ',';
+                quote(json, String.valueOf(entry.getKey()));
+                json.append(':');
+                write(json, entry.getValue());
+            }
+            json.append('}');
+        } else if (value instanceof Collection) {
+            json.append('[');
+            char separator = 0;
+            for (Object element : (Collection<?>) value) {
+                if (separator != 0) {
+                    json.append(separator);
+                }
+                separator = ',';
+                write(json, element);
+            }
+            json.append(']');
+        } else {
+            quote(json, value.toString());
+        }
+    }
+
+    /**
+     * @return the value as a JSON string, or null.
+     */
+    protected static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quote(quoted, value);
+        return quoted.toString();
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+}
@@ -20,20 +20,27 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.UndeclaredThrowableException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.cli.CommandLine;
@@ -44,26 +51,24 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
-import org.bonitasoft.engine.api.ApiAccessType;
+import org.bonitasoft.engine.api.HTTPServerAPI;
 import org.bonitasoft.engine.api.LoginAPI;
 import org.bonitasoft.engine.api.ProcessAPI;
-import org.bonitasoft.engine.api.TenantAPIAccessor;
+import org.bonitasoft.engine.api.impl.ClientInterceptor;
+import org.bonitasoft.engine.api.internal.ServerAPI;
 import org.bonitasoft.engine.bpm.contract.ContractViolationException;
 import org.bonitasoft.engine.bpm.process.ProcessActivationException;
 import org.bonitasoft.engine.bpm.process.ProcessDefinitionNotFoundException;
 import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
 import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfoSearchDescriptor;
 import org.bonitasoft.engine.bpm.process.ProcessExecutionException;
-import org.bonitasoft.engine.exception.BonitaHomeNotSetException;
+import org.bonitasoft.engine.bpm.process.ProcessInstance;
 import org.bonitasoft.engine.exception.SearchException;
-import org.bonitasoft.engine.exception.ServerAPIException;
-import org.bonitasoft.engine.exception.UnknownAPITypeException;
 import org.bonitasoft.engine.platform.LoginException;
 import org.bonitasoft.engine.search.Order;
 import org.bonitasoft.engine.search.SearchOptions;
 import org.bonitasoft.engine.search.SearchOptionsBuilder;
 import org.bonitasoft.engine.session.APISession;
-import org.bonitasoft.engine.util.APITypeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.impl.SimpleLogger;
@@ -85,6 +90,27 @@ public class Main {
     private static final String DEFAULT_APPLICATION = "bonita";
     private static final String DEFAULT_USER = "walter.bates";
 
+    private static final int DEFAULT_RETRIES = 3;
+    private static final int DEFAULT_MAX_JOBS = 2;
+    private static final int DEFAULT_REST_IN_FLIGHT = 1024;
+    private static final int DEFAULT_REST_CONNECTIONS = 64;
+    private static final String DEFAULT_BATCH_INPUT = "records";
+    private static final char DEFAULT_DELIMITER = ',';
+    private static final int VALIDATION_OFFENDERS = 10;
+    private static final int DEFAULT_CHUNK_SIZE_MB = 8;
+    private static final int MAX_CHUNK_SIZE_MB = 1024;
+    private static final int PROGRESS_INTERVAL = 10;
+    private static final int INITIAL_LIMIT_DIVISOR = 4;
+    private static final long RETRY_BASE_DELAY_MILLIS = 200;
+    private static final long RETRY_MAX_DELAY_MILLIS = 30000;
+
+    private static final Converters CONVERTERS = new Converters(
+            BUNDLE.getString("excel.true"), BUNDLE.getString("excel.false"),
+            BUNDLE.getString("date.pattern"));
+
+    private static final Pattern HEADER_FIELD = Pattern.compile("(.*?)[\\s\\(]");
+    private static final Pattern HEADER_FIELD_TYPE = Pattern.compile("\\((.*?)\\)");
+
     protected static enum Cmd {
         SERVER_URL("serverUrl"),
         APPLICATION_NAME("applicationName"),
@@ -94,6 +120,43 @@ public class Main {
         PROCESS_VERSION("processVersion"),
         INPUT_VARIABLE("inputVariable"),
         CSV_FILE("csvFile"),
+        THREADS("threads"),
+        SESSIONS_PER_NODE("sessionsPerNode"),
+        MAX_IN_FLIGHT("maxInFlight"),
+        JOURNAL("journal"),
+        DEDUP_KEY("dedupKey"),
+        DEDUP_INDEX("dedupIndex"),
+        BATCH_SIZE("batchSize"),
+        BATCH_INPUT("batchInput"),
+        RESUME("resume"),
+        CONTINUE_ON_ERROR("continueOnError"),
+        RETRIES("retries"),
+        DEAD_LETTER("deadLetter"),
+        RESULTS("results"),
+        KEY_COLUMN("keyColumn"),
+        VALIDATE_ONLY("validateOnly"),
+        CONVERT("convert"),
+        REPLAY("replay"),
+        MEMORY_MAPPED("mmap"),
+        CHUNK_SIZE("chunkSize"),
+        BYTE_TOKENIZER("byteTokenizer"),
+        CHARSET("charset"),
+        DELIMITER("delimiter"),
+        SKIP_CONTRACT_CHECK("skipContractCheck"),
+        PROGRESS_INTERVAL("progressInterval"),
+        METRICS("metrics"),
+        ADAPTIVE("adaptive"),
+        DAEMON("daemon"),
+        MAX_JOBS("maxJobs"),
+        MAX_STARTS_PER_SECOND("maxStartsPerSecond"),
+        HTTP_MAX_CONNECTIONS("httpMaxConnections"),
+        HTTP_CONNECT_TIMEOUT("httpConnectTimeout"),
+        HTTP_SOCKET_TIMEOUT("httpSocketTimeout"),
+        HTTP_KEEP_ALIVE("httpKeepAlive"),
+        HTTP_COMPRESSION("httpCompression"),
+        REST("rest"),
+        SHARD("shard"),
+        MERGE("merge"),
         HELP("help"),
         TALKATIVE("talkative"),
         QUIET("quiet");
@@ -115,6 +178,21 @@ public class Main {
         CommandLine cmd = parseArguments(args);
         log.info("Starting bonita-importfile. For help information add -h.");
 
+        // Only validate the file, without connecting to a server.
+        if (cmd.hasOption(Cmd.VALIDATE_ONLY.getName())) {
+            System.exit(validateFile(cmd) ? 0 : 1);
+        }
+
+        // Only convert the file into a replay file.
+        if (cmd.hasOption(Cmd.CONVERT.getName())) {
+            System.exit(convertFile(cmd) ? 0 : 1);
+        }
+
+        // Only merge the results files of the shards of an import.
+        if (cmd.hasOption(Cmd.MERGE.getName())) {
+            System.exit(mergeResults(cmd) ? 0 : 1);
+        }
+
         // Get input paramters for Login API
         String serverUrl = getConsoleInput("Bonita server URL",
                 DEFAULT_URL, cmd, Cmd.SERVER_URL.getName());
@@ -122,10 +200,7 @@ public class Main {
         String applicationName = getConsoleInput("Bonita application name",
                 DEFAULT_APPLICATION, cmd, Cmd.APPLICATION_NAME.getName());
 
-        // Connect to Bonita server and create the Login API.
-        LoginAPI loginAPI = getLoginAPI(serverUrl, applicationName);
-
-        // Get login parameters for APISession
+        // Get login parameters for the APISessions
         String userName = getConsoleInput("Bonita user name",
                 DEFAULT_USER, cmd, Cmd.USERNAME.getName());
 
@@ -133,174 +208,1114 @@ public class Main {
                 ? cmd.getOptionValue(Cmd.PASSWORD.getName()).toCharArray()
                 : System.console().readPassword("Bonita password: ");
 
-        // Create an APISession and a ProcessAPI.
-        APISession apiSession = getAPISession(loginAPI, userName, password);
-        ProcessAPI processAPI = getProcessAPI(apiSession);
+        // Log into every Bonita node and create a balancing ProcessAPI, or
+        // log into the REST API of every node.
+        List<String> serverUrls = getServerUrls(serverUrl);
+        boolean rest = cmd.hasOption(Cmd.REST.getName());
+        HttpTransport transport = null;
+        SessionPool sessionPool = null;
+        ProcessAPI processAPI = null;
+        AsyncHttpClient restClient = null;
+        RestEngine restEngine = null;
+        if (cmd.hasOption(Cmd.DAEMON.getName())
+                && cmd.hasOption(Cmd.SHARD.getName())) {
+            log.error("The daemon cannot import a shard.");
+            System.exit(1);
+        }
+        if (rest) {
+            if (cmd.hasOption(Cmd.DAEMON.getName())) {
+                log.error("The daemon cannot use the REST API.");
+                System.exit(1);
+            }
+            restClient = getAsyncHttpClient(cmd, serverUrls.size());
+            restEngine = getRestEngine(serverUrls, applicationName, userName,
+                    password, restClient);
+        } else {
+            int sessionsPerNode = getIntegerOption(cmd,
+                    Cmd.SESSIONS_PER_NODE.getName(), 1);
+            transport = getHttpTransport(cmd, serverUrls.size());
+            sessionPool = SessionPool.login(serverUrls, applicationName,
+                    userName, password, sessionsPerNode);
+            processAPI = sessionPool.getProcessAPI();
+            if (transport != null) {
+                transport.prewarm(serverUrls,
+                        getIntegerOption(cmd, Cmd.THREADS.getName(), 1));
+            }
+        }
+
+        // Keep the sessions and run the imports that are posted as jobs.
+        if (cmd.hasOption(Cmd.DAEMON.getName())) {
+            runImportService(cmd, sessionPool);
+            return;
+        }
 
-        // Get a list of processes and let the user choose the process.
-        List<ProcessDeploymentInfo> processList = getProcessList(processAPI);
+        // Open the journal and read the records that are already done.
+        BitSet completedRecords = getCompletedRecords(cmd);
+        Journal journal = getJournal(cmd);
 
-        ProcessDeploymentInfo processDeploymentInfo
-                = getProcess(processList, cmd);
+        // Read the full header from file.
+        RecordSource source = getRecordSource(cmd);
+        CSVRecord fullHeader = source.getFullHeader();
+        HeaderPlan headerPlan = getHeaderPlan(fullHeader);
 
-        // Read records from file;
-        Reader in = getReader(cmd);
-        Iterable<CSVRecord> records = getCSVRecords(in);
+        // Find the process, unless every record names its own process.
+        ProcessCatalog catalog = new ProcessCatalog(processAPI);
+        int routeColumn = headerPlan.getRouteColumn();
+        ProcessDeploymentInfo processDeploymentInfo = null;
+        if (routeColumn < 0 || cmd.hasOption(Cmd.PROCESS_NAME.getName())) {
+            processDeploymentInfo = rest ? getProcess(restEngine, cmd)
+                    : getProcess(catalog, processAPI, cmd);
+        }
 
         // Parse and push records to Bonita.
-        Iterator<CSVRecord> iterator = records.iterator();
-        CSVRecord fullHeader = getFullHeader(iterator);
-        for (CSVRecord record : records) {
-            Map<String, Serializable> map = parseRecord(record, fullHeader);
-            pushRecordToBonita(processAPI,
-                    processDeploymentInfo, map);
+        boolean continueOnError = cmd.hasOption(Cmd.CONTINUE_ON_ERROR.getName());
+        boolean contractCheck = !rest
+                && !cmd.hasOption(Cmd.SKIP_CONTRACT_CHECK.getName());
+        if (rest && !cmd.hasOption(Cmd.SKIP_CONTRACT_CHECK.getName())) {
+            log.info("Records are not checked against the contract before "
+                    + "they are sent through the REST API.");
+        }
+        DeadLetter deadLetter = getDeadLetter(cmd, source);
+        ResultWriter results = getResultWriter(cmd, headerPlan);
+        DedupIndex dedupIndex = getDedupIndex(cmd, headerPlan);
+        Shard shard = getShard(cmd, headerPlan);
+        source.prepare(headerPlan,
+                results == null ? -1 : results.getKeyColumn(),
+                dedupIndex == null ? -1 : dedupIndex.getKeyColumn(),
+                shard == null ? -1 : shard.getKeyColumn());
+        int threads = getIntegerOption(cmd, Cmd.THREADS.getName(), 1);
+        int maxInFlight = getIntegerOption(cmd, Cmd.MAX_IN_FLIGHT.getName(),
+                rest ? DEFAULT_REST_IN_FLIGHT : threads);
+        Metrics metrics = new Metrics();
+        if (transport != null) {
+            transport.register(metrics);
+        }
+        if (restClient != null) {
+            restClient.register(metrics);
+        }
+        if (dedupIndex != null) {
+            metrics.register("records_duplicate", dedupIndex::getSuppressed);
+        }
+        if (shard != null) {
+            metrics.register("records_other_shard", shard::getOthers);
+            metrics.registerGauge("shard", shard::getIndex);
+            metrics.registerGauge("shards", shard::getCount);
+            metrics.setLabel("shard " + shard);
+        }
+        ConcurrencyLimiter limiter = getConcurrencyLimiter(cmd, threads);
+        if (limiter != null) {
+            metrics.registerGauge("concurrency_limit", limiter::getLimit);
+        }
+        RetryPolicy retryPolicy = getRetryPolicy(cmd, continueOnError);
+        RestEngine engine = restEngine;
+        ProcessAPI sessionAPI = processAPI;
+        Function<ProcessDeploymentInfo, RecordSubmitter> submitters
+                = info -> engine != null ? new RecordSubmitter(
+                        inputs -> engine.start(info.getProcessId(), inputs),
+                        retryPolicy, continueOnError, journal, deadLetter,
+                        results, metrics, limiter)
+                : new RecordSubmitter(sessionAPI, info, retryPolicy,
+                        continueOnError, journal, deadLetter, results, metrics,
+                        limiter);
+        int batchSize = getIntegerOption(cmd, Cmd.BATCH_SIZE.getName(), 1);
+        String batchInput = cmd.getOptionValue(Cmd.BATCH_INPUT.getName(),
+                DEFAULT_BATCH_INPUT);
+        Router.Lane defaultLane = null;
+        if (processDeploymentInfo != null) {
+            try {
+                defaultLane = createLane(processDeploymentInfo,
+                        contractCheck ? getContractValidator(processAPI,
+                                processDeploymentInfo) : null,
+                        submitters.apply(processDeploymentInfo),
+                        new ImportPipeline(threads, maxInFlight), batchInput,
+                        batchSize);
+            } catch (ImportException ex) {
+                log.error(ex.getMessage());
+                System.exit(1);
+            }
+        }
+        if (batchSize > 1) {
+            log.info("Starting a process per batch of " + batchSize
+                    + " records in input " + batchInput + ".");
+        }
+        Router router = routeColumn < 0 ? Router.single(defaultLane)
+                : Router.routed(routeColumn, (name, version) -> {
+                    if (engine != null) {
+                        ProcessDeploymentInfo info
+                                = engine.getProcess(name, version);
+                        return createLane(info, null, submitters.apply(info),
+                                new ImportPipeline(threads, maxInFlight),
+                                batchInput, batchSize);
+                    }
+                    try {
+                        ProcessDeploymentInfo info
+                                = catalog.getProcess(name, version);
+                        return createLane(info, contractCheck
+                                ? catalog.getContractValidator(info) : null,
+                                submitters.apply(info),
+                                new ImportPipeline(threads, maxInFlight),
+                                batchInput, batchSize);
+                    } catch (ProcessDefinitionNotFoundException ex) {
+                        throw new ImportException("Process not found: "
+                                + name + " " + version, false, ex);
+                    } catch (UndeclaredThrowableException ex) {
+                        throw new ImportException(
+                                "Cannot connect to the server.", true, ex);
+                    }
+                }, defaultLane, submitters.apply(null));
+        metrics.register("records_succeeded", router::getSucceeded);
+        metrics.register("records_failed", router::getFailed);
+        metrics.startProgress(TimeUnit.SECONDS.toMillis(getIntegerOption(
+                cmd, Cmd.PROGRESS_INTERVAL.getName(), PROGRESS_INTERVAL)),
+                () -> metrics.getCounter("records_succeeded")
+                + metrics.getCounter("records_failed")
+                + metrics.getCounter("records_skipped"),
+                source::getFractionRead);
+        long skipped = 0;
+        try {
+            skipped = importRecords(source, headerPlan, completedRecords,
+                    router, dedupIndex, shard, metrics);
+            router.awaitCompletion();
+            metrics.stopProgress();
+            log.info("Pushed " + router.getSucceeded() + " records, "
+                    + router.getFailed() + " failed, " + skipped
+                    + " skipped as already done"
+                    + (dedupIndex == null ? "" : ", "
+                    + dedupIndex.getSuppressed() + " skipped as duplicate")
+                    + (shard == null ? "." : ", " + shard.getOthers()
+                    + " left to other shards."));
+        } catch (InterruptedException ex) {
+            log.error("Import was interrupted.");
+            System.exit(1);
+        } catch (UncheckedIOException | IllegalStateException ex) {
+            log.error("File cannot be parsed as csv. Reason: "
+                    + ex.getMessage());
+            System.exit(1);
+        }
+        source.close();
+        closeDeadLetter(deadLetter);
+        closeResultWriter(results);
+        closeDedupIndex(dedupIndex);
+        closeJournal(journal);
+        if (transport != null) {
+            transport.logSummary();
+        }
+        writeMetrics(cmd, metrics);
+        if (restEngine != null) {
+            restClient.logSummary();
+            restEngine.logout();
+            restClient.close();
+        } else {
+            sessionPool.logout();
         }
         log.info("Finished bonita-importfile succesfully.");
     }
 
+    /**
+     * Runs the import service until the process is stopped.
+     */
+    protected static void runImportService(CommandLine cmd,
+            SessionPool sessionPool) {
+        int threads = getIntegerOption(cmd, Cmd.THREADS.getName(), 1);
+        ImportService service = new ImportService(sessionPool.getProcessAPI(),
+                getIntegerOption(cmd, Cmd.MAX_JOBS.getName(), DEFAULT_MAX_JOBS),
+                threads, getIntegerOption(cmd, Cmd.MAX_IN_FLIGHT.getName(),
+                        threads), getRetryPolicy(cmd, true),
+                getConcurrencyLimiter(cmd, threads),
+                !cmd.hasOption(Cmd.SKIP_CONTRACT_CHECK.getName()));
+        try {
+            service.start(getIntegerOption(cmd, Cmd.DAEMON.getName(), 0));
+        } catch (IOException ex) {
+            log.error("Cannot start the import service. Reason: "
+                    + ex.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                service.close();
+            } catch (InterruptedException ex) {
+                log.warn("Stopped while jobs were running.");
+            }
+            sessionPool.logout();
+        }));
+        try {
+            service.awaitClose();
+        } catch (InterruptedException ex) {
+            log.error("Import service was interrupted.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the compiled full header. Stops the program when the header is
+     * not valid.
+     */
+    protected static HeaderPlan getHeaderPlan(CSVRecord fullHeader) {
+        try {
+            return HeaderPlan.compile(fullHeader);
+        } catch (IllegalArgumentException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
     protected static Map<String, Serializable> parseRecord(CSVRecord record, CSVRecord fullHeader) {
+        return parseRecord(record, HeaderPlan.compile(fullHeader));
+    }
+
+    protected static Map<String, Serializable> parseRecord(CSVRecord record,
+            HeaderPlan headerPlan) {
+        return parseRecord(record, headerPlan, null);
+    }
+
+    /**
+     * Parses the records of the source and hands them to the pipeline.
+     * Records that are completed according to the journal are skipped.
+     * Records that violate the contract, or with values that cannot be
+     * converted when the import continues on errors, fail without being sent.
+     *
+     * @return the number of records that were skipped.
+     */
+    protected static long importRecords(RecordSource source,
+            HeaderPlan headerPlan, BitSet completedRecords,
+            ContractValidator contractValidator, RecordSubmitter submitter,
+            ImportPipeline pipeline, Metrics metrics)
+            throws InterruptedException {
+        return importRecords(source, headerPlan, completedRecords,
+                Router.single(new Router.Lane(contractValidator, submitter,
+                        pipeline)), null, metrics);
+    }
+
+    /**
+     * Imports the records like
+     * {@link #importRecords(RecordSource, HeaderPlan, BitSet, ContractValidator, RecordSubmitter, ImportPipeline, Metrics)},
+     * but hands every record to the lane of its process. Records that cannot
+     * be routed fail without being parsed. Records with a key that is in the
+     * dedup index are skipped without being parsed. Records of a replay
+     * source are not parsed at all.
+     *
+     * @param dedupIndex the index of the keys that were imported, or null.
+     * @return the number of records that were skipped as already done.
+     */
+    protected static long importRecords(RecordSource source,
+            HeaderPlan headerPlan, BitSet completedRecords, Router router,
+            DedupIndex dedupIndex, Metrics metrics)
+            throws InterruptedException {
+        return importRecords(source, headerPlan, completedRecords, router,
+                dedupIndex, null, metrics);
+    }
+
+    /**
+     * Imports the records like
+     * {@link #importRecords(RecordSource, HeaderPlan, BitSet, Router, DedupIndex, Metrics)},
+     * but only the records of the shard. The other records are skipped
+     * before anything else is done with them.
+     *
+     * @param shard the shard to import, or null for every record.
+     * @return the number of records that were skipped as already done.
+     */
+    protected static long importRecords(RecordSource source,
+            HeaderPlan headerPlan, BitSet completedRecords, Router router,
+            DedupIndex dedupIndex, Shard shard, Metrics metrics)
+            throws InterruptedException {
+        Thread importer = Thread.currentThread();
+        // Parsing time on the importing thread, which is not reading time.
+        long[] inlineNanos = {0};
+        Iterator<ParsedRecord> parsedRecords = source.parse((record,
+                converted) -> {
+            if (shard != null && !shard.contains(record)) {
+                return ParsedRecord.otherShard(record);
+            }
+            if (completedRecords.get(
+                    Math.toIntExact(record.getRecordNumber()))) {
+                return ParsedRecord.skipped(record);
+            }
+            if (dedupIndex != null && !claimKey(dedupIndex, record)) {
+                return ParsedRecord.duplicate(record);
+            }
+            long start = System.nanoTime();
+            Router.Lane lane;
+            try {
+                lane = router.route(record);
+            } catch (ImportException ex) {
+                return ParsedRecord.unrouted(record, ex.getMessage());
+            }
+            List<String> errors = converted == null ? new ArrayList<>()
+                    : Collections.emptyList();
+            Map<String, Serializable> map = converted == null
+                    ? parseRecord(record, headerPlan, errors, metrics)
+                    : converted;
+            long parsed = System.nanoTime();
+            if (converted == null) {
+                metrics.record(Metrics.Stage.PARSE, parsed - start);
+            }
+            ContractValidator contractValidator = lane.getContractValidator();
+            ParsedRecord parsedRecord = new ParsedRecord(record, map, errors,
+                    contractValidator == null ? Collections.emptyList()
+                    : contractValidator.validate(map), lane);
+            if (contractValidator != null) {
+                metrics.record(Metrics.Stage.VALIDATE,
+                        System.nanoTime() - parsed);
+            }
+            if (Thread.currentThread() == importer) {
+                inlineNanos[0] += System.nanoTime() - start;
+            }
+            return parsedRecord;
+        });
+        long skipped = 0;
+        while (true) {
+            long start = System.nanoTime();
+            long inline = inlineNanos[0];
+            if (!parsedRecords.hasNext()) {
+                break;
+            }
+            ParsedRecord parsedRecord = parsedRecords.next();
+            metrics.record(Metrics.Stage.READ, System.nanoTime() - start
+                    - (inlineNanos[0] - inline));
+            metrics.recordRead();
+            CSVRecord record = parsedRecord.getRecord();
+            if (parsedRecord.isSkipped()) {
+                skipped++;
+                metrics.recordSkipped();
+                continue;
+            }
+            if (parsedRecord.isDuplicate() || parsedRecord.isOtherShard()) {
+                metrics.recordSkipped();
+                continue;
+            }
+            Router.Lane lane = parsedRecord.getLane();
+            RecordSubmitter submitter = lane == null ? router.getFallback()
+                    : lane.getSubmitter();
+            String failure = null;
+            if (lane == null) {
+                failure = parsedRecord.getRouteFailure();
+            } else if (submitter.isContinueOnError()
+                    && !parsedRecord.getErrors().isEmpty()) {
+                failure = "Cannot convert " + parsedRecord.getErrors();
+            } else if (!parsedRecord.getViolations().isEmpty()) {
+                failure = "Contract violation " + parsedRecord.getViolations();
+            }
+            if (failure != null) {
+                completeKey(dedupIndex, record, false);
+                submitter.fail(record, failure);
+                continue;
+            }
+            Map<String, Serializable> map = parsedRecord.getMap();
+            long queued = System.nanoTime();
+            if (!lane.isBatched() && submitter.isAsync()) {
+                lane.getPipeline().submitAsync(() -> submitter
+                        .submitAsync(record, map).thenAccept(pushed
+                        -> completeKey(dedupIndex, record, pushed)));
+            } else if (!lane.isBatched()) {
+                lane.getPipeline().submit(() -> completeKey(dedupIndex,
+                        record, submitter.submit(record, map)));
+            } else if (lane.add(record, map)) {
+                submitBatch(lane, lane.takeBatch(), dedupIndex);
+            }
+            metrics.record(Metrics.Stage.QUEUE, System.nanoTime() - queued);
+        }
+        for (Router.Lane lane : router.getLanes()) {
+            Router.Batch batch = lane.takeBatch();
+            if (batch != null) {
+                submitBatch(lane, batch, dedupIndex);
+            }
+        }
+        return skipped;
+    }
+
+    private static void submitBatch(Router.Lane lane, Router.Batch batch,
+            DedupIndex dedupIndex) throws InterruptedException {
+        RecordSubmitter submitter = lane.getSubmitter();
+        lane.getPipeline().submit(() -> {
+            List<CSVRecord> records = batch.getRecords();
+            boolean[] pushed = submitter.submitBatch(lane.getBatchInput(),
+                    records, batch.getMaps());
+            for (int i = 0; i < pushed.length; i++) {
+                completeKey(dedupIndex, records.get(i), pushed[i]);
+            }
+        });
+    }
+
+    /**
+     * Creates the lane of a process. With a batch size above 1, the records
+     * are sent in batches as the list input of the process and validated
+     * against the inputs of its elements.
+     */
+    protected static Router.Lane createLane(ProcessDeploymentInfo info,
+            ContractValidator contractValidator, RecordSubmitter submitter,
+            ImportPipeline pipeline, String batchInput, int batchSize)
+            throws ImportException {
+        if (batchSize <= 1) {
+            return new Router.Lane(contractValidator, submitter, pipeline);
+        }
+        ContractValidator elementValidator = null;
+        if (contractValidator != null) {
+            elementValidator = contractValidator.forListInput(batchInput);
+            if (elementValidator == null) {
+                throw new ImportException("The contract of " + info.getName()
+                        + " " + info.getVersion() + " has no list of complex "
+                        + "inputs named " + batchInput + ".", false);
+            }
+        }
+        return new Router.Lane(elementValidator, submitter, pipeline,
+                batchInput, batchSize);
+    }
+
+    /**
+     * Parses a record into the map for the process contract. Cells that
+     * cannot be converted are skipped. When errors is not null, the column
+     * and value of every non-empty cell that cannot be converted is added to
+     * it.
+     */
+    protected static Map<String, Serializable> parseRecord(CSVRecord record,
+            HeaderPlan headerPlan, List<String> errors) {
+        return parseRecord(record, headerPlan, errors, null);
+    }
+
+    /**
+     * Parses a record like {@link #parseRecord(CSVRecord, HeaderPlan, List)}
+     * and times the conversions of the records that the metrics sample.
+     */
+    protected static Map<String, Serializable> parseRecord(CSVRecord record,
+            HeaderPlan headerPlan, List<String> errors, Metrics metrics) {
         if (record == null) {
             log.warn("Record is null.");
             return null;
         }
-        log.info("Parsing record number: " + (record.getRecordNumber() - 1));
-        log.debug(" with content: " + record.toString());
-        final Map<String, Serializable> map = new HashMap<>();
+        if (headerPlan == null) {
+            log.warn("headerPlan is null.");
+            return null;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Parsing record number: " + (record.getRecordNumber() - 1)
+                    + " with content: " + record.toString());
+        }
+        PayloadTemplate template = headerPlan.getPayloadTemplate();
+        PayloadTemplate.Row row = template == null ? null : template.newRow();
+        final Map<String, Serializable> map = row == null ? new HashMap<>()
+                : row.getMap();
+        boolean sampled = metrics != null
+                && metrics.isSampled(record.getRecordNumber());
         for (int i = 0; i < record.size(); i++) {
-            String headerFieldType = getHeaderFieldType(fullHeader.get(i));
-            Object recordField = getRecordField(headerFieldType, record.get(i));
-            if (recordField != null) {
-                String headerField = getHeaderField(fullHeader.get(i));
-                String[] headerFieldParts = headerField.split("\\.");
-                Map<String, Serializable> targetMap = map;
-                for (int j = 0; j < headerFieldParts.length - 1; j++) {
-                    try {
-                        targetMap = (Map<String, Serializable>) targetMap.computeIfAbsent(headerFieldParts[j], x -> new HashMap<>());
-                    } catch (ClassCastException ex) {
-                        log.debug("Problem parsing: " + headerFieldParts[j]);
-                    }
-                }
-                String currentHeaderField = headerFieldParts[headerFieldParts.length - 1];
-                Matcher listMatcher = Pattern.compile("\\[(.*)\\]").matcher(currentHeaderField);
-                if (listMatcher.find()) {
-                    String parametersString = listMatcher.group(1);
-                    Matcher chfNameMatcher = Pattern.compile("(.*)\\[").matcher(currentHeaderField);
-                    if (chfNameMatcher.find()) {
-                        String chfName = chfNameMatcher.group(1);
-                        String[] parameters = parametersString.split("&");
-                        List<Serializable> list = (List<Serializable>) targetMap.computeIfAbsent(chfName, x -> new ArrayList<>());
-                        if (parametersString.isEmpty()) {
-                            list.add((Serializable) recordField);
-                        } else {
-                            Map<String, Serializable> subMap = new HashMap<>();
-                            for (String parameter : parameters) {
-                                String[] parameterKeys = parameter.split("=");
-                                if (parameterKeys.length == 2) {
-                                    subMap.put(parameterKeys[0], parameterKeys[1]);
-                                } else if (parameterKeys.length == 1) {
-                                    subMap.put(parameterKeys[0], (Serializable) recordField);
-                                } else {
-                                    log.error("Wrong number of parameters for: " + currentHeaderField);
-                                    System.exit(1);
-                                }
-                            }
-                            list.add((Serializable) subMap);
-                        }
-                    }
-                } else {
-                    targetMap.put(currentHeaderField, (Serializable) recordField);
-                }
+            if (i >= headerPlan.size()) {
+                log.warn("No header for record item: " + record.get(i));
+                continue;
+            }
+            HeaderPlan.Column column = headerPlan.getColumn(i);
+            Object recordField;
+            if (sampled) {
+                long start = System.nanoTime();
+                recordField = column.convert(record.get(i));
+                metrics.record(Metrics.Stage.CONVERT,
+                        System.nanoTime() - start);
+            } else {
+                recordField = column.convert(record.get(i));
+            }
+            if (recordField instanceof String && template != null) {
+                recordField = template.intern(i, (String) recordField);
+            }
+            if (row != null && recordField != null) {
+                row.put(i, (Serializable) recordField);
+            } else if (recordField != null) {
+                putValue(map, column, (Serializable) recordField);
+            } else if (column.isSkipped() || record.get(i).isEmpty()) {
+                log.debug("Skipped value for record item: " + record.get(i));
             } else {
                 log.warn("Skipped value for record item: "
                         + record.get(i));
+                if (errors != null) {
+                    errors.add(column.getFullHeaderValue() + " = "
+                            + record.get(i));
+                }
             }
         }
         return map;
     }
 
-    protected static void pushRecordToBonita(ProcessAPI processAPI,
-            ProcessDeploymentInfo info, Map<String, Serializable> map) {
+    /**
+     * Puts the converted value of a column in the map, in the nested maps of
+     * the path of the column and, for a list column, in the list.
+     */
+    protected static void putValue(Map<String, Serializable> map,
+            HeaderPlan.Column column, Serializable value) {
+        Map<String, Serializable> targetMap = map;
+        for (String part : column.getPath()) {
+            try {
+                @SuppressWarnings("unchecked")
+                Map<String, Serializable> partMap = (Map<String, Serializable>) targetMap.computeIfAbsent(part, x -> new HashMap<>());
+                targetMap = partMap;
+            } catch (ClassCastException ex) {
+                log.debug("Problem parsing: " + part);
+            }
+        }
+        if (column.isList()) {
+            @SuppressWarnings("unchecked")
+            List<Serializable> list = (List<Serializable>) targetMap.computeIfAbsent(column.getName(), x -> new ArrayList<>());
+            String[][] parameters = column.getParameters();
+            if (parameters.length == 0) {
+                list.add(value);
+            } else {
+                Map<String, Serializable> subMap = new HashMap<>();
+                for (String[] parameter : parameters) {
+                    if (parameter.length == 2) {
+                        subMap.put(parameter[0], parameter[1]);
+                    } else {
+                        subMap.put(parameter[0], value);
+                    }
+                }
+                list.add((Serializable) subMap);
+            }
+        } else {
+            targetMap.put(column.getName(), value);
+        }
+    }
+
+    protected static ProcessInstance pushRecordToBonita(ProcessAPI processAPI,
+            ProcessDeploymentInfo info, Map<String, Serializable> map)
+            throws ImportException {
         if (map == null) {
             log.warn("map is null.");
-            return;
+            return null;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Pushing record to Bonita server: " + map.toString());
         }
-        log.info("Pushing record to Bonita server.");
-        log.debug(map.toString());
         try {
-            processAPI.startProcessWithInputs(info.getProcessId(), map);
+            ProcessInstance processInstance
+                    = processAPI.startProcessWithInputs(info.getProcessId(), map);
             log.debug("Succesfully pushed record.");
+            return processInstance;
+        } catch (ContractViolationException ex) {
+            throw ImportException.rejected(ex.getMessage() + " "
+                    + ex.getExplanations(), ex);
         } catch (ProcessDefinitionNotFoundException |
-                ProcessActivationException |
-                ProcessExecutionException |
-                ContractViolationException ex) {
-            log.error("Cannot push data to bonita. Reason: "
+                ProcessActivationException ex) {
+            throw new ImportException(ex.getMessage(), false, ex);
+        } catch (ProcessExecutionException ex) {
+            throw new ImportException(ex.getMessage(), true, ex);
+        } catch (UndeclaredThrowableException ex) {
+            throw new ImportException("Cannot connect to the server.", true,
+                    ex);
+        }
+    }
+
+    protected static ContractValidator getContractValidator(
+            ProcessAPI processAPI, ProcessDeploymentInfo info) {
+        try {
+            return ContractValidator.fetch(processAPI, info);
+        } catch (ProcessDefinitionNotFoundException ex) {
+            log.error("Cannot get the contract of the process. Reason: "
+                    + ex.getMessage());
+        } catch (UndeclaredThrowableException ex) {
+            log.error("Cannot connect to the server.");
+        }
+        System.exit(1);
+        return null;
+    }
+
+    /**
+     * Logs the summary of the metrics and writes them to the metrics file,
+     * if one was given.
+     */
+    protected static void writeMetrics(CommandLine cmd, Metrics metrics) {
+        metrics.logSummary();
+        if (cmd == null || !cmd.hasOption(Cmd.METRICS.getName())) {
+            return;
+        }
+        File file = getOutputFile(cmd, cmd.getOptionValue(
+                Cmd.METRICS.getName()));
+        try {
+            metrics.write(file);
+        } catch (IOException ex) {
+            log.error("Metrics file cannot be written: "
+                    + file.getAbsolutePath() + ". Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the limiter for the calls to the server, or null when the
+     * threads are the only limit.
+     */
+    protected static ConcurrencyLimiter getConcurrencyLimiter(CommandLine cmd,
+            int threads) {
+        boolean adaptive = cmd != null
+                && cmd.hasOption(Cmd.ADAPTIVE.getName());
+        boolean rateLimited = cmd != null
+                && cmd.hasOption(Cmd.MAX_STARTS_PER_SECOND.getName());
+        if (!adaptive && !rateLimited) {
+            return null;
+        }
+        int maxStartsPerSecond = rateLimited ? getIntegerOption(cmd,
+                Cmd.MAX_STARTS_PER_SECOND.getName(), 1) : 0;
+        return new ConcurrencyLimiter(adaptive,
+                Math.max(1, threads / INITIAL_LIMIT_DIVISOR), threads,
+                maxStartsPerSecond);
+    }
+
+    protected static RetryPolicy getRetryPolicy(CommandLine cmd,
+            boolean continueOnError) {
+        int retries = getIntegerOption(cmd, Cmd.RETRIES.getName(),
+                continueOnError ? DEFAULT_RETRIES : 0, 0);
+        return new RetryPolicy(retries, RETRY_BASE_DELAY_MILLIS,
+                RETRY_MAX_DELAY_MILLIS);
+    }
+
+    protected static DeadLetter getDeadLetter(CommandLine cmd,
+            CSVRecord fullHeader) {
+        return getDeadLetter(cmd, fullHeader, UnaryOperator.identity());
+    }
+
+    /**
+     * Creates the dead letter file for the records of the source, which
+     * restores the values that the source left out of a record.
+     */
+    protected static DeadLetter getDeadLetter(CommandLine cmd,
+            RecordSource source) {
+        return getDeadLetter(cmd, source.getFullHeader(), source::restore);
+    }
+
+    private static DeadLetter getDeadLetter(CommandLine cmd,
+            CSVRecord fullHeader, UnaryOperator<CSVRecord> restore) {
+        if (cmd == null || !cmd.hasOption(Cmd.DEAD_LETTER.getName())) {
+            return null;
+        }
+        File file = getOutputFile(cmd, cmd.getOptionValue(
+                Cmd.DEAD_LETTER.getName()));
+        try {
+            return DeadLetter.create(file, fullHeader, getCharset(cmd),
+                    getDelimiter(cmd), restore);
+        } catch (IOException ex) {
+            log.error("Dead letter file cannot be created: "
+                    + file.getAbsolutePath());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    protected static void closeDeadLetter(DeadLetter deadLetter) {
+        if (deadLetter == null) {
+            return;
+        }
+        try {
+            deadLetter.close();
+            if (deadLetter.getCount() > 0) {
+                log.warn("Wrote " + deadLetter.getCount()
+                        + " failed records to the dead letter file.");
+            }
+        } catch (IOException ex) {
+            log.error("Cannot close dead letter file. Reason: "
+                    + ex.getMessage());
+        }
+    }
+
+    protected static ResultWriter getResultWriter(CommandLine cmd,
+            HeaderPlan headerPlan) {
+        if (cmd == null || !cmd.hasOption(Cmd.RESULTS.getName())) {
+            return null;
+        }
+        int keyColumn = -1;
+        if (cmd.hasOption(Cmd.KEY_COLUMN.getName())) {
+            String keyField = cmd.getOptionValue(Cmd.KEY_COLUMN.getName());
+            keyColumn = headerPlan.indexOf(keyField);
+            if (keyColumn < 0) {
+                log.error("Key column not found in header: " + keyField);
+                System.exit(1);
+            }
+        }
+        File file = getOutputFile(cmd, cmd.getOptionValue(
+                Cmd.RESULTS.getName()));
+        boolean resume = cmd.hasOption(Cmd.RESUME.getName());
+        if (file.exists() && file.length() > 0 && !resume) {
+            log.error("Results file already exists, add --"
+                    + Cmd.RESUME.getName() + " to continue the import: "
+                    + file.getAbsolutePath());
+            System.exit(1);
+        }
+        try {
+            ResultWriter results = resume
+                    ? ResultWriter.append(file, keyColumn)
+                    : ResultWriter.create(file, keyColumn);
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread(() -> closeResultWriter(results)));
+            return results;
+        } catch (IOException ex) {
+            log.error("Results file cannot be created: "
+                    + file.getAbsolutePath());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    protected static void closeResultWriter(ResultWriter results) {
+        if (results == null) {
+            return;
+        }
+        try {
+            results.close();
+        } catch (IOException ex) {
+            log.error("Cannot close results file. Reason: "
+                    + ex.getMessage());
+        }
+    }
+
+    protected static boolean validateFile(CommandLine cmd) {
+        RecordSource source = getRecordSource(cmd);
+        HeaderPlan headerPlan = getHeaderPlan(source.getFullHeader());
+        int threads = getIntegerOption(cmd, Cmd.THREADS.getName(),
+                Runtime.getRuntime().availableProcessors());
+        Validator validator = new Validator(headerPlan, VALIDATION_OFFENDERS);
+        try {
+            validator.validate(source.parse(Function.identity()), threads);
+        } catch (InterruptedException ex) {
+            log.error("Validation was interrupted.");
+            System.exit(1);
+        } catch (UncheckedIOException | IllegalStateException ex) {
+            log.error("File cannot be parsed as csv. Reason: "
                     + ex.getMessage());
             System.exit(1);
         }
+        source.close();
+        validator.printReport(System.out);
+        return validator.isValid();
+    }
+
+    /**
+     * Converts the records of the file and writes them to a replay file, in
+     * file order. Records with values that cannot be converted are left out.
+     *
+     * @return whether every record was converted.
+     */
+    protected static boolean convertFile(CommandLine cmd) {
+        RecordSource source = getRecordSource(cmd);
+        CSVRecord fullHeader = source.getFullHeader();
+        HeaderPlan headerPlan = getHeaderPlan(fullHeader);
+        File file = new File(cmd.getOptionValue(Cmd.CONVERT.getName()));
+        long leftOut = 0;
+        try (ReplayFile.Writer writer = ReplayFile.create(file, fullHeader)) {
+            Iterator<ParsedRecord> parsedRecords = source.parse(record -> {
+                List<String> errors = new ArrayList<>();
+                return new ParsedRecord(record,
+                        parseRecord(record, headerPlan, errors), errors);
+            });
+            while (parsedRecords.hasNext()) {
+                ParsedRecord parsedRecord = parsedRecords.next();
+                if (!parsedRecord.getErrors().isEmpty()) {
+                    leftOut++;
+                    log.warn("Record number "
+                            + (parsedRecord.getRecord().getRecordNumber() - 1)
+                            + " left out. Cannot convert "
+                            + parsedRecord.getErrors());
+                    continue;
+                }
+                writer.write(parsedRecord.getRecord(), parsedRecord.getMap());
+            }
+            log.info("Converted " + writer.getRecords() + " records to "
+                    + file.getPath() + ", " + leftOut + " left out.");
+        } catch (IOException ex) {
+            log.error("Cannot write replay file: " + file.getAbsolutePath()
+                    + ". Reason: " + ex.getMessage());
+            System.exit(1);
+        } catch (UncheckedIOException | IllegalStateException ex) {
+            log.error("File cannot be parsed as csv. Reason: "
+                    + ex.getMessage());
+            System.exit(1);
+        }
+        source.close();
+        return leftOut == 0;
+    }
+
+    protected static BitSet getCompletedRecords(CommandLine cmd) {
+        if (cmd == null || !cmd.hasOption(Cmd.RESUME.getName())) {
+            return new BitSet();
+        }
+        if (!cmd.hasOption(Cmd.JOURNAL.getName())) {
+            log.error("Cannot resume without a journal.");
+            System.exit(1);
+        }
+        File file = getOutputFile(cmd, cmd.getOptionValue(
+                Cmd.JOURNAL.getName()));
+        try {
+            BitSet completedRecords = Journal.readCompleted(file);
+            log.info("Resuming import. Skipping "
+                    + completedRecords.cardinality() + " records already done.");
+            return completedRecords;
+        } catch (IOException ex) {
+            log.error("Journal cannot be read: " + file.getAbsolutePath());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    protected static Journal getJournal(CommandLine cmd) {
+        if (cmd == null || !cmd.hasOption(Cmd.JOURNAL.getName())) {
+            return null;
+        }
+        File file = getOutputFile(cmd, cmd.getOptionValue(
+                Cmd.JOURNAL.getName()));
+        if (file.exists() && file.length() > 0
+                && !cmd.hasOption(Cmd.RESUME.getName())) {
+            log.error("Journal already exists, add --" + Cmd.RESUME.getName()
+                    + " to continue the import: " + file.getAbsolutePath());
+            System.exit(1);
+        }
+        try {
+            Journal journal = Journal.open(file);
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread(() -> closeJournal(journal)));
+            return journal;
+        } catch (IOException ex) {
+            log.error("Journal cannot be opened: " + file.getAbsolutePath());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the case of the record to the journal, if there is a journal
+     * and a case id, which is -1 if no process was started.
+     */
+    protected static void journalRecord(Journal journal, long recordNumber,
+            long caseId) {
+        if (journal == null || caseId < 0) {
+            return;
+        }
+        try {
+            journal.record(recordNumber, caseId);
+        } catch (IOException ex) {
+            log.error("Cannot write journal. Reason: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    protected static DedupIndex getDedupIndex(CommandLine cmd,
+            HeaderPlan headerPlan) {
+        if (cmd == null || !cmd.hasOption(Cmd.DEDUP_KEY.getName())) {
+            return null;
+        }
+        String keyField = cmd.getOptionValue(Cmd.DEDUP_KEY.getName());
+        int keyColumn = headerPlan.indexOf(keyField);
+        if (keyColumn < 0) {
+            log.error("Dedup key column not found in header: " + keyField);
+            System.exit(1);
+        }
+        File file = getOutputFile(cmd, cmd.hasOption(Cmd.DEDUP_INDEX.getName())
+                ? cmd.getOptionValue(Cmd.DEDUP_INDEX.getName())
+                : keyField.replaceAll("[^A-Za-z0-9_.-]", "_") + ".dedup");
+        try {
+            DedupIndex dedupIndex = DedupIndex.open(file, keyColumn);
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread(() -> closeDedupIndex(dedupIndex)));
+            log.info("Skipping records whose " + keyField + " is in "
+                    + file.getPath() + " (" + dedupIndex.size() + " keys).");
+            return dedupIndex;
+        } catch (IOException ex) {
+            log.error("Dedup index cannot be opened: " + file.getAbsolutePath()
+                    + ". Reason: " + ex.getMessage());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    protected static boolean claimKey(DedupIndex dedupIndex,
+            CSVRecord record) {
+        try {
+            return dedupIndex.claim(record);
+        } catch (IOException ex) {
+            log.error("Cannot read dedup index. Reason: " + ex.getMessage());
+            System.exit(1);
+        }
+        return false;
+    }
+
+    protected static void completeKey(DedupIndex dedupIndex, CSVRecord record,
+            boolean pushed) {
+        if (dedupIndex == null) {
+            return;
+        }
+        try {
+            dedupIndex.complete(record, pushed);
+        } catch (IOException ex) {
+            log.error("Cannot write dedup index. Reason: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    protected static void closeDedupIndex(DedupIndex dedupIndex) {
+        if (dedupIndex == null) {
+            return;
+        }
+        try {
+            dedupIndex.close();
+        } catch (IOException ex) {
+            log.error("Cannot close dedup index. Reason: " + ex.getMessage());
+        }
+    }
+
+    protected static void closeJournal(Journal journal) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            log.error("Cannot close journal. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the shard of the file to import, divided by the key column if
+     * there is one, or null to import every record. With a dedup key the
+     * shard is divided by the dedup key, because every shard keeps its own
+     * dedup index: a key has to end up in the same shard on every run.
+     */
+    protected static Shard getShard(CommandLine cmd, HeaderPlan headerPlan) {
+        if (cmd == null || !cmd.hasOption(Cmd.SHARD.getName())) {
+            return null;
+        }
+        Shard shard = getShard(cmd);
+        String keyField = cmd.getOptionValue(Cmd.KEY_COLUMN.getName());
+        if (cmd.hasOption(Cmd.DEDUP_KEY.getName())) {
+            String dedupKey = cmd.getOptionValue(Cmd.DEDUP_KEY.getName());
+            if (keyField == null) {
+                keyField = dedupKey;
+            } else if (headerPlan.indexOf(keyField)
+                    != headerPlan.indexOf(dedupKey)) {
+                log.error("A shard with --" + Cmd.DEDUP_KEY.getName()
+                        + " is divided by the dedup key, so --"
+                        + Cmd.KEY_COLUMN.getName() + " must be "
+                        + dedupKey + " or left out.");
+                System.exit(1);
+            }
+        }
+        if (keyField != null) {
+            int keyColumn = headerPlan.indexOf(keyField);
+            if (keyColumn < 0) {
+                log.error("Key column not found in header: " + keyField);
+                System.exit(1);
+            }
+            shard = shard.withKeyColumn(keyColumn);
+        }
+        log.info("Importing shard " + shard + " of the records, divided by "
+                + (keyField == null ? "record number." : keyField + "."));
+        return shard;
+    }
+
+    private static Shard getShard(CommandLine cmd) {
+        try {
+            return Shard.parse(cmd.getOptionValue(Cmd.SHARD.getName()));
+        } catch (IllegalArgumentException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the output file of the import, with the shard in its name when
+     * only a shard of the file is imported.
+     */
+    protected static File getOutputFile(CommandLine cmd, String path) {
+        if (!cmd.hasOption(Cmd.SHARD.getName())) {
+            return new File(path);
+        }
+        return getShard(cmd).getFile(path);
+    }
+
+    /**
+     * Merges the results files of every shard of an import into the results
+     * file, and logs the totals.
+     *
+     * @return whether every record succeeded.
+     */
+    protected static boolean mergeResults(CommandLine cmd) {
+        if (!cmd.hasOption(Cmd.RESULTS.getName())) {
+            log.error("Add --" + Cmd.RESULTS.getName() + " with the results "
+                    + "file of the import to merge the shards into.");
+            System.exit(1);
+        }
+        String path = cmd.getOptionValue(Cmd.RESULTS.getName());
+        int shards = getIntegerOption(cmd, Cmd.MERGE.getName(), 1);
+        List<File> shardFiles = new ArrayList<>();
+        for (int i = 1; i <= shards; i++) {
+            File shardFile = Shard.getFile(path, i, shards);
+            if (!shardFile.isFile()) {
+                log.error("Results file of shard " + i + "/" + shards
+                        + " not found: " + shardFile.getAbsolutePath());
+                System.exit(1);
+            }
+            shardFiles.add(shardFile);
+        }
+        File file = new File(path);
+        Shard.Summary summary = null;
+        try {
+            summary = Shard.merge(shardFiles, file);
+        } catch (IOException | UncheckedIOException | IllegalStateException ex) {
+            log.error("Cannot merge results files into "
+                    + file.getAbsolutePath() + ". Reason: " + ex.getMessage());
+            System.exit(1);
+        }
+        Histogram durations = summary.getDurations();
+        log.info("Merged " + shards + " shards into " + file.getPath() + ": "
+                + durations.getCount() + " records, " + summary.getSucceeded()
+                + " succeeded, " + summary.getFailed() + " failed.");
+        if (durations.getCount() > 0) {
+            log.info("Duration: mean " + Math.round(durations.getMean()
+                    / 1e6) + ", p50 " + millis(durations, 50) + ", p90 "
+                    + millis(durations, 90) + ", p99 " + millis(durations, 99)
+                    + ", max " + durations.getMax() / 1_000_000 + " ms");
+        }
+        if (summary.getOverlapping() > 0) {
+            log.warn(summary.getOverlapping() + " records are in more than "
+                    + "one shard and were merged once. Were the shards "
+                    + "imported with the same --" + Cmd.KEY_COLUMN.getName()
+                    + "?");
+        }
+        return summary.getFailed() == 0;
+    }
+
+    private static long millis(Histogram histogram, double percentile) {
+        return Math.round(histogram.getPercentile(percentile) / 1e6);
     }
 
     protected static Object getRecordField(String headerType,
             String stringValue) {
+        Converter converter = getConverter(headerType);
+        if (converter == null) {
+            return null;
+        }
+        Object recordField = converter.convert(stringValue);
+        if (recordField == null) {
+            log.warn("This is not a " + headerType + ": " + stringValue);
+        }
+        return recordField;
+    }
+
+    /**
+     * Resolves the converter for a header type. The converters do not log,
+     * so they can be used for every cell of large files.
+     */
+    protected static Converter getConverter(String headerType) {
         if (headerType == null) {
             log.warn("Cannot parse an based on an empty headertype.");
             return null;
         }
-        switch (headerType) {
-            case "BOOLEAN":
-                String trueValue = BUNDLE.getString("excel.true");
-                if (stringValue.equals(trueValue)) {
-                    return true;
-                }
-                String falseValue = BUNDLE.getString("excel.false");
-                if (stringValue.equals(falseValue)) {
-                    return false;
-                }
-                log.warn("This is not a boolean ("
-                        + trueValue + "," + falseValue + "): " + stringValue);
-                return null;
-            case "DATE":
-                try {
-                    DateFormat df = new SimpleDateFormat("yyyy/MM/dd");
-                    return df.parse(stringValue);
-                } catch (ParseException ex) {
-                    log.warn("This is not a date: " + stringValue);
-                    return null;
-                }
-            case "DOUBLE":
-                try {
-                    return Double.parseDouble(stringValue);
-                } catch (NumberFormatException ex) {
-                    log.warn("This is not a double: " + stringValue);
-                    return null;
-                }
-            case "FLOAT":
-                try {
-                    return Float.parseFloat(stringValue);
-                } catch (NumberFormatException ex) {
-                    log.warn("This is not a float: " + stringValue);
-                    return null;
-                }
-            case "INTEGER":
-                try {
-                    return Integer.parseInt(stringValue);
-                } catch (NumberFormatException ex) {
-                    log.warn("This is not an integer: " + stringValue);
-                    return null;
-                }
-            case "LONG":
-                try {
-                    return Long.parseLong(stringValue);
-                } catch (NumberFormatException ex) {
-                    log.warn("This is not a long: " + stringValue);
-                    return null;
-                }
-            case "STRING":
-            case "TEXT":
-                return stringValue;
-            default:
-                log.warn("Type not recognized from header: " + headerType);
-                return null;
+        Converter converter = CONVERTERS.get(headerType);
+        if (converter == null) {
+            log.warn("Type not recognized from header: " + headerType);
         }
+        return converter;
+    }
+
+    /**
+     * @return the converter that converts the values of a header type from
+     * the bytes of the charset, or null when they are converted from
+     * strings.
+     */
+    protected static ByteConverter getByteConverter(String headerType,
+            Charset charset) {
+        return headerType == null ? null
+                : CONVERTERS.getByteConverter(headerType, charset);
     }
 
     protected static CSVRecord getFullHeader(Iterator<CSVRecord> iterator) {
@@ -331,26 +1346,210 @@ public class Main {
         return null;
     }
 
-    protected static Reader getReader(CommandLine cmd) {
-        log.debug("Reading CSV file.");
-        while (cmd != null) {
-            String fileName = cmd.hasOption(Cmd.CSV_FILE.getName())
-                    ? cmd.getOptionValue(Cmd.CSV_FILE.getName())
-                    : System.console().readLine("Name of the CSV File to read: ");
-            String userDir = System.getProperty("user.dir");
-            File file = new File(userDir + File.separatorChar + fileName);
+    /**
+     * @return the size of the chunks of a memory-mapped file in bytes.
+     */
+    private static int getChunkSize(CommandLine cmd) {
+        int megabytes = getIntegerOption(cmd, Cmd.CHUNK_SIZE.getName(),
+                DEFAULT_CHUNK_SIZE_MB);
+        if (megabytes > MAX_CHUNK_SIZE_MB) {
+            log.error("Option " + Cmd.CHUNK_SIZE.getName()
+                    + " must be at most " + MAX_CHUNK_SIZE_MB + ".");
+            System.exit(1);
+        }
+        return megabytes * 1024 * 1024;
+    }
+
+    protected static RecordSource getRecordSource(CommandLine cmd) {
+        if (cmd != null && cmd.hasOption(Cmd.REPLAY.getName())) {
+            File file = new File(cmd.getOptionValue(Cmd.REPLAY.getName()));
+            try {
+                RecordSource source = RecordSource.replay(file);
+                log.info("Succesfully opened replay file.");
+                return source;
+            } catch (FileNotFoundException ex) {
+                log.error("File cannot be found: " + file.getAbsolutePath());
+            } catch (IOException ex) {
+                log.error("File cannot be read: " + file.getAbsolutePath()
+                        + ". Reason: " + ex.getMessage());
+            }
+            System.exit(1);
+        }
+        File file = getFile(cmd);
+        Charset charset = getCharset(cmd);
+        char delimiter = getDelimiter(cmd);
+        if (cmd != null && cmd.hasOption(Cmd.BYTE_TOKENIZER.getName())
+                && !XlsxReader.isWorkbook(file)) {
             try {
-                InputStream is = new FileInputStream(file);
+                RecordSource source = RecordSource.tokenized(file, charset,
+                        delimiter);
                 log.info("Succesfully read CSV file.");
-                return new InputStreamReader(is);
+                if (source.getFullHeader() == null) {
+                    log.error("File is empty. Not parsing any records.");
+                    System.exit(1);
+                }
+                return source;
             } catch (FileNotFoundException ex) {
                 log.error("File cannot be found: " + file.getAbsolutePath());
+            } catch (IOException | IllegalArgumentException ex) {
+                log.error("File cannot be read: " + file.getAbsolutePath()
+                        + ". Reason: " + ex.getMessage());
+            }
+            System.exit(1);
+        }
+        if (cmd != null && cmd.hasOption(Cmd.MEMORY_MAPPED.getName())
+                && !XlsxReader.isWorkbook(file)) {
+            try {
+                RecordSource source = RecordSource.chunked(file, charset,
+                        delimiter, getChunkSize(cmd));
+                log.info("Succesfully read CSV file.");
+                if (source.getFullHeader() == null) {
+                    log.error("File is empty. Not parsing any records.");
+                    System.exit(1);
+                }
+                return source;
+            } catch (IOException ex) {
+                log.error("File cannot be read: " + file.getAbsolutePath()
+                        + ". Reason: " + ex.getMessage());
                 System.exit(1);
             }
         }
+        try {
+            RecordSource source = RecordSource.open(file, charset,
+                    delimiter);
+            log.info("Succesfully read CSV file.");
+            if (source.getFullHeader() == null) {
+                log.error("File is empty. Not parsing any records.");
+                System.exit(1);
+            }
+            return source;
+        } catch (FileNotFoundException ex) {
+            log.error("File cannot be found: " + file.getAbsolutePath());
+        } catch (IOException | IllegalStateException ex) {
+            log.error(XlsxReader.isWorkbook(file)
+                    ? "File cannot be read as workbook. Reason: "
+                    + ex.getMessage() : "File cannot be parsed as csv.");
+        }
+        System.exit(1);
+        return null;
+    }
+
+    protected static File getFile(CommandLine cmd) {
+        if (cmd == null) {
+            return null;
+        }
+        String fileName = cmd.hasOption(Cmd.CSV_FILE.getName())
+                ? cmd.getOptionValue(Cmd.CSV_FILE.getName())
+                : System.console().readLine("Name of the CSV File to read: ");
+        String userDir = System.getProperty("user.dir");
+        return new File(userDir + File.separatorChar + fileName);
+    }
+
+    /**
+     * Opens an Excel workbook with the true, false and date values of the
+     * resource bundle.
+     */
+    protected static XlsxReader openWorkbook(File file) throws IOException {
+        return XlsxReader.open(file, BUNDLE.getString("excel.true"),
+                BUNDLE.getString("excel.false"),
+                BUNDLE.getString("date.pattern"));
+    }
+
+    protected static Reader getReader(CommandLine cmd) {
+        log.debug("Reading CSV file.");
+        if (cmd != null) {
+            return new InputStreamReader(getInputStream(getFile(cmd)),
+                    getCharset(cmd));
+        }
+        return null;
+    }
+
+    /**
+     * @return the charset of the CSV file, which is the default charset of
+     * the platform unless the option names one.
+     */
+    protected static Charset getCharset(CommandLine cmd) {
+        if (cmd == null || !cmd.hasOption(Cmd.CHARSET.getName())) {
+            return Charset.defaultCharset();
+        }
+        String name = cmd.getOptionValue(Cmd.CHARSET.getName());
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException ex) {
+            log.error("Unknown charset: " + name);
+            System.exit(1);
+        }
         return null;
     }
 
+    /**
+     * @return the delimiter of the CSV file, which is a comma unless the
+     * option names another character. A tab can be given as {@code \t}.
+     */
+    protected static char getDelimiter(CommandLine cmd) {
+        if (cmd == null || !cmd.hasOption(Cmd.DELIMITER.getName())) {
+            return DEFAULT_DELIMITER;
+        }
+        try {
+            return parseDelimiter(cmd.getOptionValue(Cmd.DELIMITER.getName()));
+        } catch (IllegalArgumentException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+        }
+        return DEFAULT_DELIMITER;
+    }
+
+    /**
+     * @return the delimiter for a value of the delimiter option.
+     * @throws IllegalArgumentException when the value is not a single
+     * character that can separate values.
+     */
+    protected static char parseDelimiter(String value) {
+        if ("\\t".equals(value)) {
+            return '\t';
+        }
+        if (value.length() != 1 || value.charAt(0) == '"'
+                || value.charAt(0) == '\n' || value.charAt(0) == '\r') {
+            throw new IllegalArgumentException(
+                    "Delimiter must be a single character: " + value);
+        }
+        return value.charAt(0);
+    }
+
+    protected static FileInputStream getInputStream(File file) {
+        try {
+            FileInputStream is = new FileInputStream(file);
+            log.info("Succesfully read CSV file.");
+            return is;
+        } catch (FileNotFoundException ex) {
+            log.error("File cannot be found: " + file.getAbsolutePath());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the process with the name and version of the options, or lets
+     * the user choose one of the processes that were deployed last.
+     */
+    protected static ProcessDeploymentInfo getProcess(ProcessCatalog catalog,
+            ProcessAPI processAPI, CommandLine cmd) {
+        if (cmd != null && cmd.hasOption(Cmd.PROCESS_NAME.getName())
+                && cmd.hasOption(Cmd.PROCESS_VERSION.getName())) {
+            String name = cmd.getOptionValue(Cmd.PROCESS_NAME.getName());
+            String version = cmd.getOptionValue(Cmd.PROCESS_VERSION.getName());
+            try {
+                return catalog.getProcess(name, version);
+            } catch (ProcessDefinitionNotFoundException ex) {
+                log.error("Process not found: " + name + " " + version);
+            } catch (UndeclaredThrowableException ex) {
+                log.error("Cannot connect to the server.");
+            }
+            System.exit(1);
+        }
+        return getProcess(getProcessList(processAPI), cmd);
+    }
+
     protected static ProcessDeploymentInfo getProcess(
             List<ProcessDeploymentInfo> processList,
             CommandLine cmd) {
@@ -405,18 +1604,18 @@ public class Main {
         return null;
     }
 
-    protected static ProcessAPI getProcessAPI(APISession apiSession) {
+    protected static ProcessAPI getProcessAPI(ServerAPI serverAPI,
+            APISession apiSession) {
         log.debug("Connecting to ProcessAPI.");
-        try {
-            ProcessAPI processAPI = TenantAPIAccessor.getProcessAPI(apiSession);
-            log.info("Succesfully connected to ProcessAPI.");
-            return processAPI;
-        } catch (BonitaHomeNotSetException | ServerAPIException |
-                UnknownAPITypeException ex) {
-            log.error("Error creating the Process API.");
-            System.exit(1);
+        if (serverAPI == null) {
+            log.warn("serverAPI is null.");
+            return null;
         }
-        return null;
+        ProcessAPI processAPI = getAPI(ProcessAPI.class,
+                new ClientInterceptor(ProcessAPI.class.getName(), serverAPI,
+                        apiSession));
+        log.info("Succesfully connected to ProcessAPI.");
+        return processAPI;
     }
 
     protected static APISession getAPISession(LoginAPI loginAPI,
@@ -444,24 +1643,160 @@ public class Main {
         return null;
     }
 
-    protected static LoginAPI getLoginAPI(String serverUrl,
-            String applicationName) {
+    protected static LoginAPI getLoginAPI(ServerAPI serverAPI) {
         log.debug("Creating LoginAPI.");
+        if (serverAPI == null) {
+            log.warn("serverAPI is null.");
+            return null;
+        }
+        LoginAPI loginAPI = getAPI(LoginAPI.class,
+                new ClientInterceptor(LoginAPI.class.getName(), serverAPI));
+        log.debug("Succesfully created LoginAPI.");
+        return loginAPI;
+    }
+
+    /**
+     * Creates the HTTP connection to a single Bonita node. Unlike the
+     * APITypeManager settings, which are global to the JVM, every node gets
+     * its own ServerAPI.
+     */
+    protected static ServerAPI getServerAPI(String serverUrl,
+            String applicationName) {
+        log.debug("Creating ServerAPI for: " + serverUrl);
         Map<String, String> settings = new HashMap<>();
         settings.put("server.url", serverUrl);
         settings.put("application.name", applicationName);
-        APITypeManager.setAPITypeAndParams(ApiAccessType.HTTP, settings);
-        try {
-            LoginAPI loginAPI = TenantAPIAccessor.getLoginAPI();
-            log.debug("Succesfully created LoginAPI.");
-            return loginAPI;
-        } catch (BonitaHomeNotSetException | ServerAPIException |
-                UnknownAPITypeException ex) {
-            log.error("Error creating the Login API");
-            log.debug("Stacktrace", ex);
+        return new HTTPServerAPI(settings);
+    }
+
+    /**
+     * Sets up the HTTP connections of the Bonita client from the options and
+     * the defaults in the properties. Unless given, the number of
+     * connections per node is at least the number of threads, so a thread
+     * never waits for a connection.
+     *
+     * @return the transport, or null if the defaults of the Bonita client
+     * are used.
+     */
+    protected static HttpTransport getHttpTransport(CommandLine cmd,
+            int nodes) {
+        int threads = getIntegerOption(cmd, Cmd.THREADS.getName(), 1);
+        return HttpTransport.install(getHttpSettings(cmd, nodes,
+                Math.max(threads, Integer.parseInt(BUNDLE.getString(
+                        "http.maxConnectionsPerNode")))));
+    }
+
+    /**
+     * Creates the client of the REST API, with the HTTP options and
+     * {@value #DEFAULT_REST_CONNECTIONS} connections per node unless given.
+     * The threads complete the starts.
+     */
+    protected static AsyncHttpClient getAsyncHttpClient(CommandLine cmd,
+            int nodes) {
+        int threads = getIntegerOption(cmd, Cmd.THREADS.getName(), 1);
+        AtomicInteger number = new AtomicInteger();
+        ExecutorService callbacks = Executors.newFixedThreadPool(threads,
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "rest-" + number.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            return new AsyncHttpClient(getHttpSettings(cmd, nodes,
+                    DEFAULT_REST_CONNECTIONS), callbacks);
+        } catch (IOException ex) {
+            log.error("Cannot start the HTTP client. Reason: "
+                    + ex.getMessage());
             System.exit(1);
+            return null;
+        }
+    }
+
+    protected static RestEngine getRestEngine(List<String> serverUrls,
+            String applicationName, String userName, char[] password,
+            AsyncHttpClient client) {
+        try {
+            return RestEngine.login(serverUrls, applicationName, userName,
+                    password, client);
+        } catch (ImportException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+            return null;
         }
-        return null;
+    }
+
+    /**
+     * Looks up the process with the name and version of the options through
+     * the REST API.
+     */
+    protected static ProcessDeploymentInfo getProcess(RestEngine restEngine,
+            CommandLine cmd) {
+        if (!cmd.hasOption(Cmd.PROCESS_NAME.getName())
+                || !cmd.hasOption(Cmd.PROCESS_VERSION.getName())) {
+            log.error("The REST API needs the options "
+                    + Cmd.PROCESS_NAME.getName() + " and "
+                    + Cmd.PROCESS_VERSION.getName() + ".");
+            System.exit(1);
+        }
+        try {
+            return restEngine.getProcess(
+                    cmd.getOptionValue(Cmd.PROCESS_NAME.getName()),
+                    cmd.getOptionValue(Cmd.PROCESS_VERSION.getName()));
+        } catch (ImportException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static HttpTransport.Settings getHttpSettings(CommandLine cmd,
+            int nodes, int defaultPerNode) {
+        int perNode = getIntegerOption(cmd,
+                Cmd.HTTP_MAX_CONNECTIONS.getName(), defaultPerNode);
+        return new HttpTransport.Settings(perNode, perNode * nodes,
+                getSecondsOption(cmd, Cmd.HTTP_CONNECT_TIMEOUT,
+                        "http.connectTimeout", 0),
+                getSecondsOption(cmd, Cmd.HTTP_SOCKET_TIMEOUT,
+                        "http.socketTimeout", 0),
+                getSecondsOption(cmd, Cmd.HTTP_KEEP_ALIVE, "http.keepAlive",
+                        1),
+                cmd.hasOption(Cmd.HTTP_COMPRESSION.getName())
+                || Boolean.parseBoolean(BUNDLE.getString("http.compression")));
+    }
+
+    /**
+     * @return the option in seconds, or the property if the option is not
+     * given, as milliseconds.
+     */
+    private static int getSecondsOption(CommandLine cmd, Cmd option,
+            String property, int minimum) {
+        return (int) TimeUnit.SECONDS.toMillis(getIntegerOption(cmd,
+                option.getName(),
+                Integer.parseInt(BUNDLE.getString(property)), minimum));
+    }
+
+    protected static List<String> getServerUrls(String serverUrl) {
+        List<String> serverUrls = new ArrayList<>();
+        if (serverUrl != null) {
+            for (String url : serverUrl.split(",")) {
+                if (!url.trim().isEmpty()) {
+                    serverUrls.add(url.trim());
+                }
+            }
+        }
+        if (serverUrls.isEmpty()) {
+            log.error("No Bonita server URL given.");
+            System.exit(1);
+        }
+        return serverUrls;
+    }
+
+    private static <T> T getAPI(Class<T> apiClass,
+            ClientInterceptor interceptor) {
+        return apiClass.cast(Proxy.newProxyInstance(
+                apiClass.getClassLoader(), new Class<?>[]{apiClass},
+                interceptor));
     }
 
     protected static String getConsoleInput(String displayText,
@@ -500,12 +1835,38 @@ public class Main {
         return retVal;
     }
 
+    protected static int getIntegerOption(CommandLine cmd, String optionName,
+            int defaultValue) {
+        return getIntegerOption(cmd, optionName, defaultValue, 1);
+    }
+
+    /**
+     * @param minimum the smallest value that is allowed: 1, or 0 for an
+     * option where 0 means no limit or, for retries, no retry.
+     */
+    protected static int getIntegerOption(CommandLine cmd, String optionName,
+            int defaultValue, int minimum) {
+        if (cmd == null || !cmd.hasOption(optionName)) {
+            return defaultValue;
+        }
+        int value;
+        try {
+            value = Integer.parseInt(cmd.getOptionValue(optionName));
+        } catch (NumberFormatException ex) {
+            value = -1;
+        }
+        if (value < minimum) {
+            log.error("Option " + optionName + " must be "
+                    + (minimum > 0 ? "a positive number." : "0 or more."));
+            System.exit(1);
+        }
+        return value;
+    }
+
     protected static String getHeaderField(String fullHeaderValue) {
         if (fullHeaderValue != null && !fullHeaderValue.isEmpty()) {
-            Matcher matcher = Pattern.compile("(.*?)[\\s\\(]")
-                    .matcher(fullHeaderValue);
-            matcher.find();
-            String header = matcher.group(1);
+            Matcher matcher = HEADER_FIELD.matcher(fullHeaderValue);
+            String header = matcher.find() ? matcher.group(1) : "";
             if (!header.isEmpty()) {
                 return header;
             } else {
@@ -520,10 +1881,12 @@ public class Main {
 
     protected static String getHeaderFieldType(String fullHeaderValue) {
         if (fullHeaderValue != null && !fullHeaderValue.isEmpty()) {
-            Matcher matcher = Pattern.compile("\\((.*?)\\)")
-                    .matcher(fullHeaderValue);
-            matcher.find();
-            String headerType = matcher.group(1).toUpperCase().trim();
+            Matcher matcher = HEADER_FIELD_TYPE.matcher(fullHeaderValue);
+            String headerType = matcher.find() ? matcher.group(1).trim() : "";
+            int colon = headerType.indexOf(':');
+            headerType = colon < 0 ? headerType.toUpperCase()
+                    : headerType.substring(0, colon).trim().toUpperCase()
+                    + ":" + headerType.substring(colon + 1).trim();
             if (!headerType.isEmpty()) {
                 return headerType;
             } else {
@@ -540,7 +1903,8 @@ public class Main {
         Options options = new Options();
 
         Option serverUrl = new Option("s", Cmd.SERVER_URL.getName(),
-                true, "URL of the Bonita BPM Server.");
+                true, "URL of the Bonita BPM Server. Separate the URLs of several"
+                + " cluster nodes with a comma.");
         options.addOption(serverUrl);
 
         Option applicationName = new Option("a", Cmd.APPLICATION_NAME.getName(),
@@ -556,7 +1920,8 @@ public class Main {
         options.addOption(password);
 
         Option processName = new Option("n", Cmd.PROCESS_NAME.getName(),
-                true, "Name of the Bonita BPM Process");
+                true, "Name of the Bonita BPM Process. With a (ROUTE) "
+                + "column, the process of records without a route.");
         options.addOption(processName);
 
         Option procesVersion = new Option("v", Cmd.PROCESS_VERSION.getName(),
@@ -567,6 +1932,262 @@ public class Main {
                 true, "Filename of the CSV file.");
         options.addOption(csvFilename);
 
+        Option threads = Option.builder().longOpt(Cmd.THREADS.getName())
+                .hasArg().desc("Number of concurrent submitters (default 1).")
+                .build();
+        options.addOption(threads);
+
+        Option sessionsPerNode = Option.builder()
+                .longOpt(Cmd.SESSIONS_PER_NODE.getName()).hasArg()
+                .desc("Number of sessions per Bonita node (default 1).")
+                .build();
+        options.addOption(sessionsPerNode);
+
+        Option maxInFlight = Option.builder()
+                .longOpt(Cmd.MAX_IN_FLIGHT.getName()).hasArg()
+                .desc("Maximum number of records read ahead and in flight"
+                        + " (default the number of threads).")
+                .build();
+        options.addOption(maxInFlight);
+
+        Option journal = Option.builder().longOpt(Cmd.JOURNAL.getName())
+                .hasArg().desc("Journal file of the records that are done.")
+                .build();
+        options.addOption(journal);
+
+        Option resume = Option.builder().longOpt(Cmd.RESUME.getName())
+                .desc("Skip the records that are done according to the"
+                        + " journal.")
+                .build();
+        options.addOption(resume);
+
+        Option continueOnError = Option.builder()
+                .longOpt(Cmd.CONTINUE_ON_ERROR.getName())
+                .desc("Continue with the next record when a record fails.")
+                .build();
+        options.addOption(continueOnError);
+
+        Option retries = Option.builder().longOpt(Cmd.RETRIES.getName())
+                .hasArg().desc("Number of retries of a transient failure"
+                        + " (default 3 when continuing on errors, else 0).")
+                .build();
+        options.addOption(retries);
+
+        Option deadLetter = Option.builder().longOpt(Cmd.DEAD_LETTER.getName())
+                .hasArg().desc("CSV file for the records that failed.")
+                .build();
+        options.addOption(deadLetter);
+
+        Option batchSize = Option.builder().longOpt(Cmd.BATCH_SIZE.getName())
+                .hasArg().desc("Number of records to send in one start of "
+                        + "the process, as a list input. Defaults to 1.")
+                .build();
+        options.addOption(batchSize);
+
+        Option batchInput = Option.builder()
+                .longOpt(Cmd.BATCH_INPUT.getName())
+                .hasArg().desc("Name of the list input of the process that "
+                        + "gets the records of a batch. Defaults to "
+                        + DEFAULT_BATCH_INPUT + ".")
+                .build();
+        options.addOption(batchInput);
+
+        Option dedupKey = Option.builder().longOpt(Cmd.DEDUP_KEY.getName())
+                .hasArg().desc("Header field of a business key. Records with "
+                        + "a key that was imported before are skipped. "
+                        + "Shards are divided by this key, so keep the same "
+                        + "number of shards across runs.")
+                .build();
+        options.addOption(dedupKey);
+
+        Option dedupIndex = Option.builder()
+                .longOpt(Cmd.DEDUP_INDEX.getName())
+                .hasArg().desc("File with the keys that were imported, kept "
+                        + "between runs. Defaults to <dedupKey>.dedup.")
+                .build();
+        options.addOption(dedupIndex);
+
+        Option results = Option.builder().longOpt(Cmd.RESULTS.getName())
+                .hasArg().desc("CSV file with the case and status of every "
+                        + "record.")
+                .build();
+        options.addOption(results);
+
+        Option keyColumn = Option.builder().longOpt(Cmd.KEY_COLUMN.getName())
+                .hasArg().desc("Header field of the business key for the "
+                        + "results file, and to divide the records over the "
+                        + "shards.")
+                .build();
+        options.addOption(keyColumn);
+
+        Option shard = Option.builder().longOpt(Cmd.SHARD.getName())
+                .hasArg().desc("Only import shard i of n of the records, "
+                        + "e.g. 2/4, divided by the hash of the dedup key or "
+                        + "key column, or else by record number. The output "
+                        + "files get the shard in their name, so use the same "
+                        + "number of shards when an import is run again.")
+                .build();
+        options.addOption(shard);
+
+        Option merge = Option.builder().longOpt(Cmd.MERGE.getName())
+                .hasArg().desc("Only merge the results files of the given "
+                        + "number of shards into the results file, without "
+                        + "connecting to the Bonita BPM Server.")
+                .build();
+        options.addOption(merge);
+
+        Option validateOnly = Option.builder()
+                .longOpt(Cmd.VALIDATE_ONLY.getName())
+                .desc("Only validate the values in the file, without"
+                        + " connecting to the Bonita BPM Server.")
+                .build();
+        options.addOption(validateOnly);
+
+        Option convert = Option.builder().longOpt(Cmd.CONVERT.getName())
+                .hasArg().desc("Only convert the file into the given replay "
+                        + "file, without connecting to the Bonita BPM Server.")
+                .build();
+        options.addOption(convert);
+
+        Option replay = Option.builder().longOpt(Cmd.REPLAY.getName())
+                .hasArg().desc("Import the records of a replay file instead "
+                        + "of a CSV file.")
+                .build();
+        options.addOption(replay);
+
+        Option memoryMapped = Option.builder()
+                .longOpt(Cmd.MEMORY_MAPPED.getName())
+                .desc("Memory-map the CSV file and parse and convert it in"
+                        + " parallel chunks.")
+                .build();
+        options.addOption(memoryMapped);
+
+        Option chunkSize = Option.builder()
+                .longOpt(Cmd.CHUNK_SIZE.getName()).hasArg()
+                .desc("Size in MB of the chunks of --"
+                        + Cmd.MEMORY_MAPPED.getName() + " (default "
+                        + DEFAULT_CHUNK_SIZE_MB + ").")
+                .build();
+        options.addOption(chunkSize);
+
+        Option byteTokenizer = Option.builder()
+                .longOpt(Cmd.BYTE_TOKENIZER.getName())
+                .desc("Tokenize the CSV file as bytes and convert numbers, "
+                        + "booleans and dates without building strings.")
+                .build();
+        options.addOption(byteTokenizer);
+
+        Option charset = Option.builder().longOpt(Cmd.CHARSET.getName())
+                .hasArg().desc("Charset of the CSV file, e.g. UTF-8. Defaults "
+                        + "to the charset of the platform.")
+                .build();
+        options.addOption(charset);
+
+        Option delimiter = Option.builder().longOpt(Cmd.DELIMITER.getName())
+                .hasArg().desc("Delimiter of the CSV file, e.g. ; or \\t. "
+                        + "Defaults to " + DEFAULT_DELIMITER + ".")
+                .build();
+        options.addOption(delimiter);
+
+        Option skipContractCheck = Option.builder()
+                .longOpt(Cmd.SKIP_CONTRACT_CHECK.getName())
+                .desc("Do not check the records against the contract of the "
+                        + "process before they are sent.")
+                .build();
+        options.addOption(skipContractCheck);
+
+        Option progressInterval = Option.builder()
+                .longOpt(Cmd.PROGRESS_INTERVAL.getName())
+                .hasArg()
+                .desc("Seconds between progress lines. Defaults to "
+                        + PROGRESS_INTERVAL + ".")
+                .build();
+        options.addOption(progressInterval);
+
+        Option metricsFile = Option.builder()
+                .longOpt(Cmd.METRICS.getName())
+                .hasArg()
+                .desc("File to write the metrics of the import to as JSON. "
+                        + "The Prometheus text format is written next to it"
+                        + " with the extension .prom.")
+                .build();
+        options.addOption(metricsFile);
+
+        Option adaptive = Option.builder()
+                .longOpt(Cmd.ADAPTIVE.getName())
+                .desc("Adapt the number of starts in flight to the latency "
+                        + "and failures of the server, up to the number of "
+                        + "threads.")
+                .build();
+        options.addOption(adaptive);
+
+        Option maxStartsPerSecond = Option.builder()
+                .longOpt(Cmd.MAX_STARTS_PER_SECOND.getName())
+                .hasArg()
+                .desc("Maximum number of process starts per second.")
+                .build();
+        options.addOption(maxStartsPerSecond);
+
+        Option httpMaxConnections = Option.builder()
+                .longOpt(Cmd.HTTP_MAX_CONNECTIONS.getName()).hasArg()
+                .desc("Maximum number of HTTP connections per Bonita node "
+                        + "(default the number of threads or "
+                        + "http.maxConnectionsPerNode, whichever is larger; "
+                        + DEFAULT_REST_CONNECTIONS + " with --"
+                        + Cmd.REST.getName() + ").")
+                .build();
+        options.addOption(httpMaxConnections);
+
+        Option httpConnectTimeout = Option.builder()
+                .longOpt(Cmd.HTTP_CONNECT_TIMEOUT.getName()).hasArg()
+                .desc("Seconds to wait for an HTTP connection to a Bonita "
+                        + "node (0 for no limit).")
+                .build();
+        options.addOption(httpConnectTimeout);
+
+        Option httpSocketTimeout = Option.builder()
+                .longOpt(Cmd.HTTP_SOCKET_TIMEOUT.getName()).hasArg()
+                .desc("Seconds to wait for the response of a Bonita node "
+                        + "(default 0, no limit).")
+                .build();
+        options.addOption(httpSocketTimeout);
+
+        Option httpKeepAlive = Option.builder()
+                .longOpt(Cmd.HTTP_KEEP_ALIVE.getName()).hasArg()
+                .desc("Seconds to keep an idle HTTP connection open.")
+                .build();
+        options.addOption(httpKeepAlive);
+
+        Option httpCompression = Option.builder()
+                .longOpt(Cmd.HTTP_COMPRESSION.getName())
+                .desc("Ask Bonita nodes to compress their responses.")
+                .build();
+        options.addOption(httpCompression);
+
+        Option rest = Option.builder().longOpt(Cmd.REST.getName())
+                .desc("Start processes through the REST API of Bonita, "
+                        + "without blocking a thread per start (default "
+                        + DEFAULT_REST_IN_FLIGHT + " records in flight and "
+                        + DEFAULT_REST_CONNECTIONS + " connections per "
+                        + "node). Only for http server URLs; the contract "
+                        + "is not checked before sending.")
+                .build();
+        options.addOption(rest);
+
+        Option daemon = Option.builder().longOpt(Cmd.DAEMON.getName())
+                .hasArg().desc("Keep running and accept import jobs on this "
+                        + "local HTTP port, e.g. POST /jobs?csvFile=..."
+                        + "&processName=...&processVersion=... with the "
+                        + "header X-Requested-By.")
+                .build();
+        options.addOption(daemon);
+
+        Option maxJobs = Option.builder().longOpt(Cmd.MAX_JOBS.getName())
+                .hasArg().desc("Number of jobs the daemon runs at the same "
+                        + "time.")
+                .build();
+        options.addOption(maxJobs);
+
         Option help = new Option("h", Cmd.HELP.getName(), false,
                 "Display help information.");
         options.addOption(help);
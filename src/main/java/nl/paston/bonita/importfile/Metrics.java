@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timings, counters and gauges of an import. Every stage has a histogram of
+ * its durations, counters and gauges are read from the component that owns
+ * them. While the
+ * import runs, a progress line with the throughput and the estimated time to
+ * finish is logged periodically. At the end a summary is logged and can be
+ * written as JSON and in the Prometheus text format.
+ * <p>
+ * Conversion is timed per value, so only one in {@value #SAMPLE_RATE}
+ * records is timed to keep the overhead low.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class Metrics {
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    private static final int SAMPLE_RATE = 16;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * The stages of an import.
+     */
+    protected enum Stage {
+
+        /**
+         * Waiting for the next record on the importing thread, without the
+         * parsing that is done on that thread.
+         */
+        READ,
+        /**
+         * Parsing a record into a map, including conversion.
+         */
+        PARSE,
+        /**
+         * Converting a single value, sampled.
+         */
+        CONVERT,
+        /**
+         * Checking a map against the contract.
+         */
+        VALIDATE,
+        /**
+         * Waiting for room in the pipeline. A long wait means the server is
+         * the bottleneck.
+         */
+        QUEUE,
+        /**
+         * A single call to start a process instance on the server.
+         */
+        SUBMIT;
+
+        protected String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+    }
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final Map<String, LongSupplier> counters = new LinkedHashMap<>();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final LongAdder read = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final long started = System.nanoTime();
+    private ScheduledExecutorService reporter;
+    private volatile String label;
+
+    protected Metrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        counters.put("records_read", read::sum);
+        counters.put("records_skipped", skipped::sum);
+    }
+
+    protected void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    protected Histogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * @return whether the values of the record are timed one by one.
+     */
+    protected boolean isSampled(long recordNumber) {
+        return recordNumber % SAMPLE_RATE == 0;
+    }
+
+    protected void recordRead() {
+        read.increment();
+    }
+
+    protected void recordSkipped() {
+        skipped.increment();
+    }
+
+    /**
+     * Adds a counter that is owned by another component, e.g. the number of
+     * records that were pushed.
+     */
+    protected synchronized void register(String name, LongSupplier counter) {
+        counters.put(name, counter);
+    }
+
+    /**
+     * Adds a value that can go up and down, e.g. a limit.
+     */
+    protected synchronized void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    protected synchronized long getCounter(String name) {
+        LongSupplier counter = counters.get(name);
+        return counter == null ? 0 : counter.getAsLong();
+    }
+
+    /**
+     * Names the import in the progress lines, e.g. when several imports log
+     * to the same place.
+     */
+    protected void setLabel(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Logs a progress line at a fixed interval. The records that are done
+     * are counted by the supplier, the part of the file that has been read
+     * is a fraction between 0 and 1, or negative when it is not known.
+     */
+    protected synchronized void startProgress(long intervalMillis,
+            LongSupplier done, DoubleSupplier fractionRead) {
+        if (intervalMillis <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] last = {0, System.nanoTime()};
+        reporter.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            long records = done.getAsLong();
+            double rate = (records - last[0])
+                    / ((now - last[1]) / 1e9);
+            last[0] = records;
+            last[1] = now;
+            log.info(progress(records, rate, fractionRead.getAsDouble()));
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void stopProgress() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Estimates the total number of records from the part of the file that
+     * produced the records that were read so far.
+     */
+    protected String progress(long done, double rate, double fractionRead) {
+        StringBuilder line = new StringBuilder("Progress")
+                .append(label == null ? "" : " of " + label).append(": ")
+                .append(done).append(" records done, ")
+                .append(Math.round(rate)).append(" records/s");
+        long recordsRead = read.sum();
+        if (fractionRead > 0) {
+            line.append(", ").append(Math.round(fractionRead * 100))
+                    .append("% read");
+            long total = Math.round(recordsRead / Math.min(1, fractionRead));
+            if (rate > 0) {
+                line.append(", ETA ").append(formatDuration(
+                        Math.round(Math.max(0, total - done) / rate)));
+            }
+        }
+        return line.append('.').toString();
+    }
+
+    /**
+     * Logs the counters and the percentiles of every stage that was timed.
+     */
+    protected void logSummary() {
+        double seconds = getElapsedSeconds();
+        log.info("Finished " + getCounter("records_read") + " records in "
+                + formatDuration(Math.round(seconds)) + ", "
+                + Math.round(getCounter("records_read") / Math.max(seconds, 1e-3))
+                + " records/s.");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = getHistogram(stage);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder(stage.getName())
+                    .append(": count ").append(histogram.getCount())
+                    .append(", total ").append(millis(histogram.getSum()))
+                    .append(" ms, mean ").append(micros(histogram.getMean()));
+            for (double percentile : PERCENTILES) {
+                line.append(", p").append(format(percentile)).append(' ')
+                        .append(micros(histogram.getPercentile(percentile)));
+            }
+            line.append(", max ").append(micros(histogram.getMax()))
+                    .append(" us");
+            log.info(line.toString());
+        }
+    }
+
+    /**
+     * Writes the summary as JSON to the file, and in the Prometheus text
+     * format to the same file name with the extension .prom.
+     */
+    protected void write(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        File prometheus = new File(file.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".prom");
+        try (Writer writer = Files.newBufferedWriter(prometheus.toPath(),
+                StandardCharsets.UTF_8)) {
+            writer.write(toPrometheus());
+        }
+    }
+
+    protected synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"elapsedSeconds\": ")
+                .append(format(getElapsedSeconds())).append(",\n");
+        json.append("  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            json.append(separator).append("    \"").append(counter.getKey())
+                    .append("\": ").append(counter.getValue().getAsLong());
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"gauges\": {");
+        separator = "\n";
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            json.append(separator).append("    \"").append(gauge.getKey())
+                    .append("\": ").append(gauge.getValue().getAsLong());
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"stages\": {");
+        separator = "\n";
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = getHistogram(stage);
+            json.append(separator).append("    \"").append(stage.getName())
+                    .append("\": {\"count\": ").append(histogram.getCount())
+                    .append(", \"sumNanos\": ").append(histogram.getSum())
+                    .append(", \"meanNanos\": ")
+                    .append(format(histogram.getMean()));
+            for (double percentile : PERCENTILES) {
+                json.append(", \"p").append(format(percentile))
+                        .append("Nanos\": ")
+                        .append(histogram.getPercentile(percentile));
+            }
+            json.append(", \"maxNanos\": ").append(histogram.getMax())
+                    .append('}');
+            separator = ",\n";
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    protected synchronized String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE bonita_import_elapsed_seconds gauge\n")
+                .append("bonita_import_elapsed_seconds ")
+                .append(format(getElapsedSeconds())).append('\n');
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            String name = "bonita_import_" + counter.getKey() + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n")
+                    .append(name).append(' ')
+                    .append(counter.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            String name = "bonita_import_" + gauge.getKey();
+            text.append("# TYPE ").append(name).append(" gauge\n")
+                    .append(name).append(' ')
+                    .append(gauge.getValue().getAsLong()).append('\n');
+        }
+        text.append("# TYPE bonita_import_stage_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = getHistogram(stage);
+            String labels = "stage=\"" + stage.getName() + "\"";
+            for (double percentile : PERCENTILES) {
+                text.append("bonita_import_stage_seconds{").append(labels)
+                        .append(",quantile=\"").append(format(percentile / 100))
+                        .append("\"} ")
+                        .append(seconds(histogram.getPercentile(percentile)))
+                        .append('\n');
+            }
+            text.append("bonita_import_stage_seconds_sum{").append(labels)
+                    .append("} ").append(seconds(histogram.getSum()))
+                    .append('\n');
+            text.append("bonita_import_stage_seconds_count{").append(labels)
+                    .append("} ").append(histogram.getCount()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private double getElapsedSeconds() {
+        return (System.nanoTime() - started) / 1e9;
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format(Locale.ROOT, "%02d:%02d:%02d", seconds / 3600,
+                seconds / 60 % 60, seconds % 60);
+    }
+
+    private static String millis(long nanos) {
+        return format(nanos / 1e6);
+    }
+
+    private static String micros(double nanos) {
+        return format(nanos / 1e3);
+    }
+
+    private static String seconds(long nanos) {
+        return format(nanos / 1e9);
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.3f", value)
+                .replaceAll("\\.?0+$", "");
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * A record together with the map that was parsed from it, the values that
+ * could not be converted, the violations of the process contract and the
+ * lane of its process. The map is null for a record that was skipped
+ * without parsing it, that is a duplicate, that belongs to another shard, or
+ * that could not be routed to a lane.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ParsedRecord {
+
+    private final CSVRecord record;
+    private final Map<String, Serializable> map;
+    private final List<String> errors;
+    private final List<String> violations;
+    private final Router.Lane lane;
+    private final String routeFailure;
+    private final boolean duplicate;
+    private final boolean otherShard;
+
+    protected ParsedRecord(CSVRecord record, Map<String, Serializable> map,
+            List<String> errors) {
+        this(record, map, errors, Collections.emptyList());
+    }
+
+    protected ParsedRecord(CSVRecord record, Map<String, Serializable> map,
+            List<String> errors, List<String> violations) {
+        this(record, map, errors, violations, null, null, false, false);
+    }
+
+    protected ParsedRecord(CSVRecord record, Map<String, Serializable> map,
+            List<String> errors, List<String> violations, Router.Lane lane) {
+        this(record, map, errors, violations, lane, null, false, false);
+    }
+
+    private ParsedRecord(CSVRecord record, Map<String, Serializable> map,
+            List<String> errors, List<String> violations, Router.Lane lane,
+            String routeFailure, boolean duplicate, boolean otherShard) {
+        this.record = record;
+        this.map = map;
+        this.errors = errors;
+        this.violations = violations;
+        this.lane = lane;
+        this.routeFailure = routeFailure;
+        this.duplicate = duplicate;
+        this.otherShard = otherShard;
+    }
+
+    protected static ParsedRecord skipped(CSVRecord record) {
+        return new ParsedRecord(record, null, null);
+    }
+
+    protected static ParsedRecord unrouted(CSVRecord record, String reason) {
+        return new ParsedRecord(record, null, Collections.emptyList(),
+                Collections.emptyList(), null, reason, false, false);
+    }
+
+    /**
+     * @return a record that is skipped because its key was imported before.
+     */
+    protected static ParsedRecord duplicate(CSVRecord record) {
+        return new ParsedRecord(record, null, null, Collections.emptyList(),
+                null, null, true, false);
+    }
+
+    /**
+     * @return a record that is left to the importer of another shard.
+     */
+    protected static ParsedRecord otherShard(CSVRecord record) {
+        return new ParsedRecord(record, null, null, Collections.emptyList(),
+                null, null, false, true);
+    }
+
+    protected CSVRecord getRecord() {
+        return record;
+    }
+
+    protected Map<String, Serializable> getMap() {
+        return map;
+    }
+
+    protected List<String> getErrors() {
+        return errors;
+    }
+
+    protected List<String> getViolations() {
+        return violations;
+    }
+
+    /**
+     * @return the lane of the process of the record, or null when the
+     * record was not routed.
+     */
+    protected Router.Lane getLane() {
+        return lane;
+    }
+
+    /**
+     * @return why the record could not be routed, or null.
+     */
+    protected String getRouteFailure() {
+        return routeFailure;
+    }
+
+    protected boolean isSkipped() {
+        return map == null && errors == null && !duplicate && !otherShard;
+    }
+
+    protected boolean isDuplicate() {
+        return duplicate;
+    }
+
+    protected boolean isOtherShard() {
+        return otherShard;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The shape of the maps that are built for the records of a header. The
+ * nested maps and lists of the header are resolved once, with their sizes,
+ * so a row only fills in its values: a map or list is created, at its final
+ * size, when the first value of the row arrives in it, and the constant
+ * parameters of a list column are put next to the value without looking
+ * anything up. The map of a row equals the map that
+ * {@link Main#putValue(Map, HeaderPlan.Column, Serializable)} builds from
+ * the same values.
+ * <p>
+ * The template also interns the strings of the columns: every distinct value
+ * of a column is kept once, up to {@value #MAX_INTERNED} values per column,
+ * so low-cardinality values like {@code MALE} or {@code MONTH} share one
+ * instance across the records in flight. A column with more distinct values
+ * stops interning.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class PayloadTemplate {
+
+    protected static final int MAX_INTERNED = 256;
+    private static final int MAX_INTERNED_LENGTH = 64;
+
+    private static final int VALUE = 0;
+    private static final int LIST = 1;
+    private static final int LIST_MAP = 2;
+
+    private final int[] parents;
+    private final String[] nodeNames;
+    private final int[] nodeCapacities;
+    private final int[] listSizes;
+    private final Slot[] slots;
+    private final AtomicReferenceArray<Map<String, String>> interned;
+
+    private PayloadTemplate(int[] parents, String[] nodeNames,
+            int[] nodeCapacities, int[] listSizes, Slot[] slots) {
+        this.parents = parents;
+        this.nodeNames = nodeNames;
+        this.nodeCapacities = nodeCapacities;
+        this.listSizes = listSizes;
+        this.slots = slots;
+        this.interned = new AtomicReferenceArray<>(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            interned.set(i, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Resolves the maps and lists of the columns.
+     *
+     * @return the template, or null when a name is used both for a map and
+     * for a value, in which case the maps are built value by value.
+     */
+    protected static PayloadTemplate compile(List<HeaderPlan.Column> columns) {
+        List<Integer> parents = new ArrayList<>();
+        List<String> nodeNames = new ArrayList<>();
+        List<Map<String, Integer>> children = new ArrayList<>();
+        List<Map<String, Integer>> leaves = new ArrayList<>();
+        List<Integer> listSizes = new ArrayList<>();
+        parents.add(-1);
+        nodeNames.add(null);
+        children.add(new HashMap<>());
+        leaves.add(new HashMap<>());
+        Slot[] slots = new Slot[columns.size()];
+        for (int i = 0; i < slots.length; i++) {
+            HeaderPlan.Column column = columns.get(i);
+            if (column.isSkipped() || column.isRoute()) {
+                continue;
+            }
+            int node = 0;
+            for (String part : column.getPath()) {
+                if (leaves.get(node).containsKey(part)) {
+                    return null;
+                }
+                Integer child = children.get(node).get(part);
+                if (child == null) {
+                    child = parents.size();
+                    parents.add(node);
+                    nodeNames.add(part);
+                    children.add(new HashMap<>());
+                    leaves.add(new HashMap<>());
+                    children.get(node).put(part, child);
+                }
+                node = child;
+            }
+            String name = column.getName();
+            if (children.get(node).containsKey(name)) {
+                return null;
+            }
+            int kind = !column.isList() ? VALUE
+                    : column.getParameters().length == 0 ? LIST : LIST_MAP;
+            Integer list = leaves.get(node).get(name);
+            if (list != null && (list < 0) != (kind == VALUE)) {
+                return null;
+            }
+            if (kind != VALUE) {
+                if (list == null) {
+                    list = listSizes.size();
+                    listSizes.add(0);
+                }
+                listSizes.set(list, listSizes.get(list) + 1);
+            } else {
+                list = -1;
+            }
+            leaves.get(node).put(name, list);
+            slots[i] = new Slot(node, name, kind, list,
+                    column.getParameters());
+        }
+        int[] nodeCapacities = new int[parents.size()];
+        for (int node = 0; node < nodeCapacities.length; node++) {
+            nodeCapacities[node] = capacity(children.get(node).size()
+                    + leaves.get(node).size());
+        }
+        return new PayloadTemplate(toArray(parents),
+                nodeNames.toArray(new String[0]), nodeCapacities,
+                toArray(listSizes), slots);
+    }
+
+    /**
+     * @return a row to fill in with the values of a record.
+     */
+    protected Row newRow() {
+        return new Row();
+    }
+
+    /**
+     * @return the instance of the value that is shared by the records,
+     * or the value itself when the column has too many distinct values.
+     */
+    protected String intern(int column, String value) {
+        if (column >= slots.length || value.length() > MAX_INTERNED_LENGTH) {
+            return value;
+        }
+        Map<String, String> values = interned.get(column);
+        if (values == null) {
+            return value;
+        }
+        String shared = values.get(value);
+        if (shared != null) {
+            return shared;
+        }
+        if (values.size() >= MAX_INTERNED) {
+            interned.set(column, null);
+            return value;
+        }
+        shared = values.putIfAbsent(value, value);
+        return shared == null ? value : shared;
+    }
+
+    private static int capacity(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Where the value of a column goes.
+     */
+    private static final class Slot {
+
+        private final int node;
+        private final String name;
+        private final int kind;
+        private final int list;
+        private final String[][] parameters;
+        private final int parameterCapacity;
+
+        private Slot(int node, String name, int kind, int list,
+                String[][] parameters) {
+            this.node = node;
+            this.name = name;
+            this.kind = kind;
+            this.list = list;
+            this.parameters = parameters;
+            this.parameterCapacity = parameters == null ? 0
+                    : capacity(parameters.length);
+        }
+
+    }
+
+    /**
+     * The map of a single record while its values are filled in.
+     */
+    protected final class Row {
+
+        private final Map<String, Serializable>[] maps;
+        private final List<Serializable>[] lists;
+
+        @SuppressWarnings("unchecked")
+        private Row() {
+            maps = (Map<String, Serializable>[]) new Map<?, ?>[parents.length];
+            lists = (List<Serializable>[]) new List<?>[listSizes.length];
+            maps[0] = new HashMap<>(nodeCapacities[0]);
+        }
+
+        /**
+         * Puts the converted value of a column in the map.
+         */
+        protected void put(int column, Serializable value) {
+            Slot slot = slots[column];
+            Map<String, Serializable> map = getMap(slot.node);
+            if (slot.kind == VALUE) {
+                map.put(slot.name, value);
+                return;
+            }
+            List<Serializable> list = lists[slot.list];
+            if (list == null) {
+                list = new ArrayList<>(listSizes[slot.list]);
+                lists[slot.list] = list;
+                map.put(slot.name, (Serializable) list);
+            }
+            if (slot.kind == LIST) {
+                list.add(value);
+                return;
+            }
+            HashMap<String, Serializable> subMap
+                    = new HashMap<>(slot.parameterCapacity);
+            for (String[] parameter : slot.parameters) {
+                subMap.put(parameter[0],
+                        parameter.length == 2 ? parameter[1] : value);
+            }
+            list.add(subMap);
+        }
+
+        protected Map<String, Serializable> getMap() {
+            return maps[0];
+        }
+
+        private Map<String, Serializable> getMap(int node) {
+            Map<String, Serializable> map = maps[node];
+            if (map == null) {
+                map = new HashMap<>(nodeCapacities[node]);
+                maps[node] = map;
+                getMap(parents[node]).put(nodeNames[node], (Serializable) map);
+            }
+            return map;
+        }
+
+    }
+
+}
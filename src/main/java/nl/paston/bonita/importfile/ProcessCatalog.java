@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.process.ProcessDefinitionNotFoundException;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up deployed processes by name and version and keeps them, together
+ * with the contract validator of every process, so the server is asked only
+ * once per process, also when several imports ask at the same time.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ProcessCatalog {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessCatalog.class);
+
+    private final ProcessAPI processAPI;
+    private final Map<String, ProcessDeploymentInfo> processes
+            = new ConcurrentHashMap<>();
+    private final Map<Long, ContractValidator> validators
+            = new ConcurrentHashMap<>();
+
+    protected ProcessCatalog(ProcessAPI processAPI) {
+        this.processAPI = processAPI;
+    }
+
+    /**
+     * @return the deployed process with the name and version.
+     */
+    protected ProcessDeploymentInfo getProcess(String name, String version)
+            throws ProcessDefinitionNotFoundException {
+        String key = name + '\u0000' + version;
+        ProcessDeploymentInfo info = processes.get(key);
+        if (info != null) {
+            return info;
+        }
+        synchronized (this) {
+            info = processes.get(key);
+            if (info == null) {
+                long processId
+                        = processAPI.getProcessDefinitionId(name, version);
+                info = processAPI.getProcessDeploymentInfo(processId);
+                log.debug("Found process " + name + " " + version
+                        + " with id " + processId + ".");
+                processes.put(key, info);
+            }
+            return info;
+        }
+    }
+
+    protected ContractValidator getContractValidator(ProcessDeploymentInfo info)
+            throws ProcessDefinitionNotFoundException {
+        ContractValidator validator = validators.get(info.getProcessId());
+        if (validator != null) {
+            return validator;
+        }
+        synchronized (this) {
+            validator = validators.get(info.getProcessId());
+            if (validator == null) {
+                validator = ContractValidator.fetch(processAPI, info);
+                validators.put(info.getProcessId(), validator);
+            }
+            return validator;
+        }
+    }
+
+}
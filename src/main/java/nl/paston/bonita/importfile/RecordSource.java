@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The records of an import file, after the full header. A serial source
+ * parses and converts the records on the calling thread, a chunked source
+ * parses and converts them on a fork/join pool. A replay source reads records
+ * that were converted before, together with their maps. A tokenized source
+ * converts the records from bytes once it is prepared with the plan of the
+ * header, and hands them out together with their maps as well.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+abstract class RecordSource {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordSource.class);
+
+    private final CSVRecord fullHeader;
+
+    private RecordSource(CSVRecord fullHeader) {
+        this.fullHeader = fullHeader;
+    }
+
+    protected static RecordSource serial(CSVRecord fullHeader,
+            Iterator<CSVRecord> records) {
+        return serial(fullHeader, records, () -> -1);
+    }
+
+    /**
+     * Creates a serial source that reports the part of the file that was
+     * read with the given supplier.
+     */
+    protected static RecordSource serial(CSVRecord fullHeader,
+            Iterator<CSVRecord> records, DoubleSupplier fractionRead) {
+        return serial(fullHeader, records, fractionRead, () -> {
+        });
+    }
+
+    /**
+     * Opens a serial source on a file, which is either a CSV file in the
+     * charset or an Excel workbook. The full header is null when the file is
+     * empty. Closing the source closes the file.
+     */
+    protected static RecordSource open(File file, Charset charset)
+            throws IOException {
+        return open(file, charset, ',');
+    }
+
+    /**
+     * Opens a serial source like {@link #open(File, Charset)} on a CSV file
+     * with the given delimiter.
+     */
+    protected static RecordSource open(File file, Charset charset,
+            char delimiter) throws IOException {
+        if (XlsxReader.isWorkbook(file)) {
+            XlsxReader reader = Main.openWorkbook(file);
+            return serial(reader.getFullHeader(), reader,
+                    reader::getFractionRead, reader::close);
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            Iterator<CSVRecord> records = CSVFormat.EXCEL
+                    .withDelimiter(delimiter).parse(new InputStreamReader(in, charset)).iterator();
+            CSVRecord fullHeader = records.hasNext() ? records.next() : null;
+            FileChannel channel = in.getChannel();
+            long size = file.length();
+            return serial(fullHeader, records, () -> {
+                try {
+                    return size == 0 ? 1 : (double) channel.position() / size;
+                } catch (IOException ex) {
+                    return -1;
+                }
+            }, in);
+        } catch (IOException | RuntimeException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    private static RecordSource serial(CSVRecord fullHeader,
+            Iterator<CSVRecord> records, DoubleSupplier fractionRead,
+            Closeable closeable) {
+        return new RecordSource(fullHeader) {
+
+            @Override
+            protected <T> Iterator<T> parse(Function<CSVRecord, T> function) {
+                return new Iterator<T>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return records.hasNext();
+                    }
+
+                    @Override
+                    public T next() {
+                        return function.apply(records.next());
+                    }
+
+                };
+            }
+
+            @Override
+            protected double getFractionRead() {
+                return fractionRead.getAsDouble();
+            }
+
+            @Override
+            protected void close() {
+                try {
+                    closeable.close();
+                } catch (IOException ex) {
+                    log.debug("Cannot close file.", ex);
+                }
+            }
+
+        };
+    }
+
+    protected static RecordSource chunked(File file, Charset charset,
+            int chunkSize) throws IOException {
+        return chunked(file, charset, ',', chunkSize);
+    }
+
+    protected static RecordSource chunked(File file, Charset charset,
+            char delimiter, int chunkSize) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(
+                Runtime.getRuntime().availableProcessors());
+        ChunkedCsvReader reader = ChunkedCsvReader.open(file, charset,
+                delimiter, chunkSize, pool);
+        log.debug("Parsing " + reader.getChunkCount() + " chunks on "
+                + pool.getParallelism() + " threads.");
+        return new RecordSource(reader.getFullHeader()) {
+
+            @Override
+            protected <T> Iterator<T> parse(Function<CSVRecord, T> function) {
+                return reader.parse(function, pool);
+            }
+
+            @Override
+            protected double getFractionRead() {
+                return reader.getFractionRead();
+            }
+
+            @Override
+            protected void close() {
+                pool.shutdown();
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    log.debug("Cannot close file.", ex);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * Opens a CSV file that is tokenized as bytes. Closing the source closes
+     * the file.
+     *
+     * @throws IllegalArgumentException when the charset or the delimiter
+     * cannot be tokenized as bytes.
+     */
+    protected static RecordSource tokenized(File file, Charset charset,
+            char delimiter) throws IOException {
+        TypedCsvReader reader = TypedCsvReader.open(file, charset, delimiter);
+        return new RecordSource(reader.getFullHeader()) {
+
+            @Override
+            protected <T> Iterator<T> parse(Function<CSVRecord, T> function) {
+                return parse((record, map) -> function.apply(record));
+            }
+
+            @Override
+            protected <T> Iterator<T> parse(BiFunction<CSVRecord, Map<String, Serializable>, T> function) {
+                return new Iterator<T>() {
+
+                    private boolean read;
+                    private boolean hasNext;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (!read) {
+                            try {
+                                hasNext = reader.next();
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                            read = true;
+                        }
+                        return hasNext;
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        read = false;
+                        return function.apply(reader.getRecord(),
+                                reader.getMap());
+                    }
+
+                };
+            }
+
+            @Override
+            protected void prepare(HeaderPlan headerPlan, int... textColumns) {
+                reader.prepare(headerPlan, textColumns);
+            }
+
+            @Override
+            protected CSVRecord restore(CSVRecord record) {
+                try {
+                    return reader.restore(record);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            protected double getFractionRead() {
+                return reader.getFractionRead();
+            }
+
+            @Override
+            protected void close() {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    log.debug("Cannot close file.", ex);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * Opens a replay file that was written by the convert command. Closing
+     * the source closes the file.
+     */
+    protected static RecordSource replay(File file) throws IOException {
+        ReplayFile.Reader reader = ReplayFile.open(file);
+        return new RecordSource(reader.getFullHeader()) {
+
+            @Override
+            protected <T> Iterator<T> parse(Function<CSVRecord, T> function) {
+                return parse((record, map) -> function.apply(record));
+            }
+
+            @Override
+            protected <T> Iterator<T> parse(BiFunction<CSVRecord, Map<String, Serializable>, T> function) {
+                return new Iterator<T>() {
+
+                    private boolean read;
+                    private boolean hasNext;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (!read) {
+                            try {
+                                hasNext = reader.next();
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                            read = true;
+                        }
+                        return hasNext;
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        read = false;
+                        return function.apply(reader.getRecord(),
+                                reader.getMap());
+                    }
+
+                };
+            }
+
+            @Override
+            protected double getFractionRead() {
+                return reader.getFractionRead();
+            }
+
+            @Override
+            protected void close() {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    log.debug("Cannot close file.", ex);
+                }
+            }
+
+        };
+    }
+
+    protected CSVRecord getFullHeader() {
+        return fullHeader;
+    }
+
+    /**
+     * Applies the function to every record, in file order.
+     */
+    protected abstract <T> Iterator<T> parse(Function<CSVRecord, T> function);
+
+    /**
+     * Applies the function to every record and the map that was converted
+     * from it before, in file order. The map is null when the record still
+     * has to be parsed, which is the case for every source but a replay
+     * source and a prepared tokenized source.
+     */
+    protected <T> Iterator<T> parse(BiFunction<CSVRecord, Map<String, Serializable>, T> function) {
+        return parse(record -> function.apply(record, null));
+    }
+
+    /**
+     * Lets the source convert the records itself with the plan of the
+     * header, if it can. The values of the text columns are kept in the
+     * records that it hands out; other values may be left out of records
+     * that come with a map.
+     */
+    protected void prepare(HeaderPlan headerPlan, int... textColumns) {
+    }
+
+    /**
+     * @return the record with the values that the source left out, e.g.
+     * before it is written to the dead letter file.
+     */
+    protected CSVRecord restore(CSVRecord record) {
+        return record;
+    }
+
+    /**
+     * @return the part of the file that has been read, as a fraction between
+     * 0 and 1, or a negative number when it is not known.
+     */
+    protected double getFractionRead() {
+        return -1;
+    }
+
+    protected abstract void close();
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.apache.commons.csv.CSVRecord;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.bonitasoft.engine.bpm.process.ProcessInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes parsed records to Bonita, one by one or in batches that start a
+ * single process instance, and handles the outcome: retries transient
+ * failures, writes completed records to the journal and the outcome of every
+ * record to the results file and, when the import continues on errors,
+ * writes failed records to the dead letter file instead of stopping the
+ * import. A submitter with an {@link AsyncStarter} can also start single
+ * records without blocking, see {@link #submitAsync(CSVRecord, Map)}.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class RecordSubmitter {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordSubmitter.class);
+
+    private final ProcessAPI processAPI;
+    private final ProcessDeploymentInfo info;
+    private final AsyncStarter starter;
+    private final RetryPolicy retryPolicy;
+    private final boolean continueOnError;
+    private final Journal journal;
+    private final DeadLetter deadLetter;
+    private final ResultWriter results;
+    private final Metrics metrics;
+    private final ConcurrencyLimiter limiter;
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Consumer<IOException> outputErrorHandler;
+
+    /**
+     * Starts a process instance without blocking.
+     */
+    @FunctionalInterface
+    protected interface AsyncStarter {
+
+        /**
+         * @return the id of the case that was started, or an
+         * {@link ImportException} when the start failed.
+         */
+        CompletableFuture<Long> start(Map<String, Serializable> inputs);
+
+    }
+
+    protected RecordSubmitter(ProcessAPI processAPI, ProcessDeploymentInfo info,
+            RetryPolicy retryPolicy, boolean continueOnError, Journal journal,
+            DeadLetter deadLetter, ResultWriter results, Metrics metrics,
+            ConcurrencyLimiter limiter) {
+        this(processAPI, info, null, retryPolicy, continueOnError, journal,
+                deadLetter, results, metrics, limiter);
+    }
+
+    protected RecordSubmitter(AsyncStarter starter, RetryPolicy retryPolicy,
+            boolean continueOnError, Journal journal, DeadLetter deadLetter,
+            ResultWriter results, Metrics metrics, ConcurrencyLimiter limiter) {
+        this(null, null, starter, retryPolicy, continueOnError, journal,
+                deadLetter, results, metrics, limiter);
+    }
+
+    private RecordSubmitter(ProcessAPI processAPI, ProcessDeploymentInfo info,
+            AsyncStarter starter, RetryPolicy retryPolicy,
+            boolean continueOnError, Journal journal, DeadLetter deadLetter,
+            ResultWriter results, Metrics metrics, ConcurrencyLimiter limiter) {
+        this.processAPI = processAPI;
+        this.info = info;
+        this.starter = starter;
+        this.retryPolicy = retryPolicy;
+        this.continueOnError = continueOnError;
+        this.journal = journal;
+        this.deadLetter = deadLetter;
+        this.results = results;
+        this.metrics = metrics;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Sets the handler for errors writing the dead letter or results file.
+     * Without a handler such an error stops the program.
+     */
+    protected void setOutputErrorHandler(Consumer<IOException> handler) {
+        outputErrorHandler = handler;
+    }
+
+    /**
+     * Starts a process instance for the record.
+     *
+     * @return whether the instance was started.
+     */
+    protected boolean submit(CSVRecord record,
+            Map<String, Serializable> map) {
+        long submitted = System.nanoTime();
+        try {
+            long caseId = start(map);
+            succeed(record, caseId, System.nanoTime() - submitted);
+            return true;
+        } catch (ImportException ex) {
+            fail(record, ex.getMessage(), System.nanoTime() - submitted);
+            return false;
+        }
+    }
+
+    /**
+     * Starts a process instance for the record without blocking, apart from
+     * waiting for the concurrency limiter. Retries wait on a timer instead
+     * of a thread. Only for a submitter with an {@link AsyncStarter}.
+     *
+     * @return whether the instance was started.
+     */
+    protected CompletableFuture<Boolean> submitAsync(CSVRecord record,
+            Map<String, Serializable> map) {
+        long submitted = System.nanoTime();
+        return retryPolicy.executeAsync(() -> startAsync(map))
+                .handle((caseId, failure) -> {
+                    long duration = System.nanoTime() - submitted;
+                    if (failure == null) {
+                        succeed(record, caseId, duration);
+                        return true;
+                    }
+                    fail(record, ImportException.from(failure).getMessage(),
+                            duration);
+                    return false;
+                });
+    }
+
+    /**
+     * @return whether records can be started with
+     * {@link #submitAsync(CSVRecord, Map)}.
+     */
+    protected boolean isAsync() {
+        return starter != null;
+    }
+
+    /**
+     * Starts one process instance for a batch of records, with the maps of
+     * the records as the list input with the given name. Every record of
+     * the batch gets the case of the batch. When the inputs of the batch are
+     * rejected, its halves are sent again, so only the records that cannot
+     * be imported fail. Any other failure fails the whole batch.
+     *
+     * @return whether the instance of each record was started.
+     */
+    protected boolean[] submitBatch(String batchInput, List<CSVRecord> records,
+            List<Map<String, Serializable>> maps) {
+        boolean[] pushed = new boolean[records.size()];
+        submitBatch(batchInput, records, maps, 0, records.size(), pushed);
+        return pushed;
+    }
+
+    private void submitBatch(String batchInput, List<CSVRecord> records,
+            List<Map<String, Serializable>> maps, int from, int to,
+            boolean[] pushed) {
+        long submitted = System.nanoTime();
+        Map<String, Serializable> map = new HashMap<>(2);
+        map.put(batchInput, new ArrayList<>(maps.subList(from, to)));
+        try {
+            long caseId = start(map);
+            long duration = System.nanoTime() - submitted;
+            for (int i = from; i < to; i++) {
+                succeed(records.get(i), caseId, duration);
+                pushed[i] = true;
+            }
+        } catch (ImportException ex) {
+            if (ex.isRejected() && to - from > 1) {
+                log.debug("Batch of " + (to - from) + " records failed, "
+                        + "sending its halves. Reason: " + ex.getMessage());
+                int middle = (from + to) >>> 1;
+                submitBatch(batchInput, records, maps, from, middle, pushed);
+                submitBatch(batchInput, records, maps, middle, to, pushed);
+                return;
+            }
+            long duration = System.nanoTime() - submitted;
+            for (int i = from; i < to; i++) {
+                fail(records.get(i), ex.getMessage(), duration);
+            }
+        }
+    }
+
+    /**
+     * @return the id of the case that was started, or -1 if none was.
+     */
+    private long start(Map<String, Serializable> map) throws ImportException {
+        return retryPolicy.execute(() -> {
+            acquire();
+            long start = System.nanoTime();
+            boolean overloaded = false;
+            try {
+                if (starter != null) {
+                    return starter.start(map).join();
+                }
+                ProcessInstance processInstance
+                        = Main.pushRecordToBonita(processAPI, info, map);
+                return processInstance == null ? -1
+                        : processInstance.getId();
+            } catch (ImportException ex) {
+                overloaded = ex.isRetryable();
+                throw ex;
+            } catch (CompletionException ex) {
+                ImportException failure = ImportException.from(ex);
+                overloaded = failure.isRetryable();
+                throw failure;
+            } finally {
+                release(start, overloaded);
+            }
+        });
+    }
+
+    private CompletableFuture<Long> startAsync(Map<String, Serializable> map) {
+        CompletableFuture<Long> started = new CompletableFuture<>();
+        try {
+            acquire();
+        } catch (ImportException ex) {
+            started.completeExceptionally(ex);
+            return started;
+        }
+        long start = System.nanoTime();
+        try {
+            return starter.start(map).whenComplete((caseId, failure)
+                    -> release(start, failure != null
+                            && ImportException.from(failure).isRetryable()));
+        } catch (RuntimeException ex) {
+            release(start, false);
+            throw ex;
+        }
+    }
+
+    private void release(long start, boolean overloaded) {
+        long rtt = System.nanoTime() - start;
+        metrics.record(Metrics.Stage.SUBMIT, rtt);
+        if (limiter != null) {
+            limiter.release(rtt, overloaded);
+        }
+    }
+
+    private void succeed(CSVRecord record, long caseId, long durationNanos) {
+        succeeded.incrementAndGet();
+        Main.journalRecord(journal, record.getRecordNumber(), caseId);
+        writeResult(record, caseId, ResultWriter.Status.SUCCEEDED,
+                durationNanos);
+    }
+
+    private void acquire() throws ImportException {
+        if (limiter == null) {
+            return;
+        }
+        try {
+            limiter.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ImportException("Import was interrupted.", false, ex);
+        }
+    }
+
+    /**
+     * Handles a record that cannot be imported. Stops the import, unless the
+     * import continues on errors.
+     */
+    protected void fail(CSVRecord record, String reason) {
+        fail(record, reason, 0);
+    }
+
+    private void fail(CSVRecord record, String reason, long durationNanos) {
+        writeResult(record, -1, ResultWriter.Status.FAILED, durationNanos);
+        if (!continueOnError) {
+            log.error("Cannot push data to bonita. Reason: " + reason);
+            System.exit(1);
+        }
+        failed.incrementAndGet();
+        log.warn("Record number " + (record.getRecordNumber() - 1)
+                + " failed. Reason: " + reason);
+        if (deadLetter != null) {
+            try {
+                deadLetter.write(record);
+            } catch (IOException ex) {
+                outputFailed("Cannot write dead letter file. Reason: ", ex);
+            }
+        }
+    }
+
+    private void writeResult(CSVRecord record, long caseId,
+            ResultWriter.Status status, long durationNanos) {
+        if (results == null) {
+            return;
+        }
+        try {
+            results.write(record, caseId, status, durationNanos);
+        } catch (IOException ex) {
+            outputFailed("Cannot write results file. Reason: ", ex);
+        }
+    }
+
+    private void outputFailed(String message, IOException ex) {
+        Consumer<IOException> handler = outputErrorHandler;
+        if (handler == null) {
+            log.error(message + ex.getMessage());
+            System.exit(1);
+        }
+        handler.accept(new IOException(message + ex.getMessage(), ex));
+    }
+
+    protected boolean isContinueOnError() {
+        return continueOnError;
+    }
+
+    protected long getSucceeded() {
+        return succeeded.get();
+    }
+
+    protected long getFailed() {
+        return failed.get();
+    }
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * A file with records that were parsed before, so they can be imported
+ * again without parsing the CSV file. The file starts with a schema header:
+ * the magic number, the version and the full header of the CSV file. Every
+ * record that follows is prefixed with its length and holds the record
+ * number, the values of the record and the typed map that was parsed from
+ * it. The values are kept for the route column, the keys of the results
+ * file and the dedup index, and the dead letter file.
+ * <p>
+ * Values of the map are written with a tag for their type. Values of a type
+ * without a tag are written with Java serialization.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+final class ReplayFile {
+
+    private static final int MAGIC = 0x42495246;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte BIGDECIMAL = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte DATE = 8;
+    private static final byte LOCALDATE = 9;
+    private static final byte MAP = 10;
+    private static final byte LIST = 11;
+    private static final byte OBJECT = 12;
+
+    private ReplayFile() {
+    }
+
+    /**
+     * Creates the file and writes the schema header.
+     */
+    protected static Writer create(File file, CSVRecord fullHeader)
+            throws IOException {
+        return new Writer(file, fullHeader);
+    }
+
+    /**
+     * Opens the file and reads the schema header.
+     */
+    protected static Reader open(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    protected static final class Writer implements AutoCloseable {
+
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream record = new DataOutputStream(buffer);
+        private long records;
+
+        private Writer(File file, CSVRecord fullHeader) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeValues(out, CsvRecords.values(fullHeader));
+        }
+
+        protected void write(CSVRecord csvRecord, Map<String, Serializable> map)
+                throws IOException {
+            buffer.reset();
+            record.writeLong(csvRecord.getRecordNumber());
+            writeValues(record, CsvRecords.values(csvRecord));
+            writeValue(record, (Serializable) map);
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            records++;
+        }
+
+        /**
+         * @return the number of records that were written.
+         */
+        protected long getRecords() {
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+    }
+
+    protected static final class Reader implements AutoCloseable {
+
+        private final File file;
+        private final FileInputStream in;
+        private final FileChannel channel;
+        private final DataInputStream data;
+        private final long size;
+        private final CSVRecord fullHeader;
+        private byte[] bytes = new byte[256];
+        private long lastRecordNumber;
+        private CSVRecord record;
+        private Map<String, Serializable> map;
+
+        private Reader(File file) throws IOException {
+            this.file = file;
+            this.in = new FileInputStream(file);
+            this.channel = in.getChannel();
+            this.size = file.length();
+            this.data = new DataInputStream(new BufferedInputStream(in,
+                    BUFFER_SIZE));
+            try {
+                if (data.readInt() != MAGIC) {
+                    throw new IOException("Not a replay file: " + file);
+                }
+                int version = data.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Replay file has version "
+                            + version + " instead of " + VERSION + ": " + file);
+                }
+                this.fullHeader = CsvRecords.create(readValues(data), 1);
+            } catch (IOException ex) {
+                in.close();
+                throw ex instanceof EOFException
+                        ? new IOException("Not a replay file: " + file) : ex;
+            }
+        }
+
+        protected CSVRecord getFullHeader() {
+            return fullHeader;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return false at the end of the file.
+         * @throws IOException when the file ends within a record.
+         */
+        protected boolean next() throws IOException {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException ex) {
+                record = null;
+                map = null;
+                return false;
+            }
+            if (length < 0) {
+                throw new IOException("Replay file is damaged after record "
+                        + lastRecordNumber + ": " + file);
+            }
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            try {
+                data.readFully(bytes, 0, length);
+            } catch (EOFException ex) {
+                throw new IOException("Replay file ends within the record "
+                        + "after record " + lastRecordNumber + ": " + file, ex);
+            }
+            DataInputStream recordData = new DataInputStream(
+                    new ByteArrayInputStream(bytes, 0, length));
+            long recordNumber = recordData.readLong();
+            record = CsvRecords.create(readValues(recordData), recordNumber);
+            @SuppressWarnings("unchecked")
+            Map<String, Serializable> recordMap
+                    = (Map<String, Serializable>) readValue(recordData);
+            map = recordMap;
+            lastRecordNumber = recordNumber;
+            return true;
+        }
+
+        protected CSVRecord getRecord() {
+            return record;
+        }
+
+        protected Map<String, Serializable> getMap() {
+            return map;
+        }
+
+        /**
+         * @return the part of the file that has been read, as a fraction
+         * between 0 and 1.
+         */
+        protected double getFractionRead() {
+            try {
+                return size == 0 ? 1 : (double) channel.position() / size;
+            } catch (IOException ex) {
+                return -1;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+        }
+
+    }
+
+    private static void writeValues(DataOutput out, String[] values)
+            throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static String[] readValues(DataInput in) throws IOException {
+        String[] values = new String[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(in);
+        }
+        return values;
+    }
+
+    /**
+     * Writes a string of any length; {@link DataOutput#writeUTF(String)} is
+     * limited to 64K bytes.
+     */
+    private static void writeString(DataOutput out, String value)
+            throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static void writeValue(DataOutput out, Serializable value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIGDECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof LocalDate) {
+            out.writeByte(LOCALDATE);
+            out.writeLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, (String) entry.getKey());
+                writeValue(out, (Serializable) entry.getValue());
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, (Serializable) element);
+            }
+        } else {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut
+                    = new ObjectOutputStream(serialized)) {
+                objectOut.writeObject(value);
+            }
+            out.writeByte(OBJECT);
+            out.writeInt(serialized.size());
+            out.write(serialized.toByteArray());
+        }
+    }
+
+    private static Serializable readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case BIGDECIMAL:
+                return new BigDecimal(readString(in));
+            case BOOLEAN:
+                return in.readBoolean();
+            case DATE:
+                return new Date(in.readLong());
+            case LOCALDATE:
+                return LocalDate.ofEpochDay(in.readLong());
+            case MAP:
+                int size = in.readInt();
+                HashMap<String, Serializable> map = new HashMap<>(
+                        Math.max(4, size * 4 / 3 + 1));
+                for (int i = 0; i < size; i++) {
+                    map.put(readString(in), readValue(in));
+                }
+                return map;
+            case LIST:
+                int length = in.readInt();
+                ArrayList<Serializable> list = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case OBJECT:
+                byte[] serialized = new byte[in.readInt()];
+                in.readFully(serialized);
+                try (ObjectInputStream objectIn = new ObjectInputStream(
+                        new ByteArrayInputStream(serialized))) {
+                    return (Serializable) objectIn.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException(ex);
+                }
+            default:
+                throw new IOException("Unknown type in replay file: " + tag);
+        }
+    }
+
+}
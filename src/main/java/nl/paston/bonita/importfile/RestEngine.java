@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.bonitasoft.engine.bpm.process.ActivationState;
+import org.bonitasoft.engine.bpm.process.ConfigurationState;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.bonitasoft.engine.bpm.process.impl.internal.ProcessDeploymentInfoImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts processes through the REST API of Bonita instead of the HTTP API of
+ * the Java client. Every node is logged into through the login service; the
+ * session cookie and the API token of the node go with every call. The
+ * inputs of a process are posted as JSON to the instantiation resource of
+ * the process, on the nodes in turn. Calls do not block: a start returns a
+ * future of the case id, so many starts can be in flight on few threads.
+ * <p>
+ * A session that has expired is logged in again and the start is made once
+ * more. Failures are reported as an {@link ImportException} that is
+ * retryable in the same cases as with the Java client: when the server
+ * cannot be reached, is overloaded, or fails to execute the process.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class RestEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(RestEngine.class);
+
+    private static final String TOKEN = "X-Bonita-API-Token";
+    private static final String JSON = "application/json;charset=UTF-8";
+    private static final String FORM
+            = "application/x-www-form-urlencoded;charset=UTF-8";
+    private static final long LOOKUP_TIMEOUT_SECONDS = 60;
+    private static final int MAX_MESSAGE_LENGTH = 500;
+    private static final Map<String, Pattern> FIELDS
+            = new ConcurrentHashMap<>();
+
+    private final AsyncHttpClient client;
+    private final List<Node> nodes;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private RestEngine(AsyncHttpClient client, List<Node> nodes) {
+        this.client = client;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Logs into every node.
+     *
+     * @throws ImportException when a node does not accept the login.
+     */
+    protected static RestEngine login(List<String> serverUrls,
+            String applicationName, String userName, char[] password,
+            AsyncHttpClient client) throws ImportException {
+        List<Node> nodes = new ArrayList<>();
+        RestEngine engine = new RestEngine(client, nodes);
+        for (String serverUrl : serverUrls) {
+            URI base;
+            try {
+                base = URI.create(serverUrl.replaceAll("/+$", "") + "/"
+                        + applicationName + "/");
+            } catch (IllegalArgumentException ex) {
+                throw new ImportException("Not a valid server URL: "
+                        + serverUrl, false, ex);
+            }
+            if (!"http".equalsIgnoreCase(base.getScheme())) {
+                throw new ImportException("The REST API can only be used "
+                        + "over plain HTTP: " + serverUrl, false);
+            }
+            Node node = engine.new Node(base, userName, password);
+            await(node.session, "Cannot log into " + serverUrl);
+            nodes.add(node);
+        }
+        log.info("Logged into " + nodes.size() + " node(s) through the REST "
+                + "API.");
+        return engine;
+    }
+
+    /**
+     * @return the deployed process with the name and version.
+     * @throws ImportException when the process cannot be found.
+     */
+    protected ProcessDeploymentInfo getProcess(String name, String version)
+            throws ImportException {
+        Node node = select();
+        String query = "API/bpm/process?p=0&c=1&f=" + encode("name=" + name)
+                + "&f=" + encode("version=" + version);
+        String json = await(node.call(session -> client.send(node.authorize(
+                AsyncHttpClient.Request.get(node.base.resolve(query)),
+                session))).thenApply(RestEngine::checkStatus)
+                .thenApply(AsyncHttpClient.Response::getText),
+                "Cannot look up process " + name + " " + version);
+        String id = getField(json, "id");
+        if (id == null) {
+            throw new ImportException("Process not found: " + name + " "
+                    + version, false);
+        }
+        long processId = Long.parseLong(id);
+        String activationState = getField(json, "activationState");
+        String configurationState = getField(json, "configurationState");
+        log.debug("Found process " + name + " " + version + " with id "
+                + processId + ".");
+        return new ProcessDeploymentInfoImpl(processId, processId, name,
+                version, getField(json, "description"), null, 0,
+                activationState == null ? ActivationState.ENABLED
+                : ActivationState.valueOf(activationState),
+                configurationState == null ? ConfigurationState.RESOLVED
+                : ConfigurationState.valueOf(configurationState),
+                getField(json, "displayName"), null, null, "");
+    }
+
+    /**
+     * Starts an instance of the process with the inputs.
+     *
+     * @return the id of the case that was started, or an
+     * {@link ImportException} when the start failed.
+     */
+    protected CompletableFuture<Long> start(long processDefinitionId,
+            Map<String, Serializable> inputs) {
+        Node node = select();
+        URI uri = node.base.resolve("API/bpm/process/" + processDefinitionId
+                + "/instantiation");
+        byte[] body = JsonWriter.write(inputs).getBytes(StandardCharsets.UTF_8);
+        return node.call(session -> client.send(node.authorize(
+                AsyncHttpClient.Request.post(uri, JSON, body), session)))
+                .thenApply(RestEngine::checkStatus)
+                .thenApply(response -> {
+                    String caseId = getField(response.getText(), "caseId");
+                    if (caseId == null) {
+                        throw new CompletionException(new ImportException(
+                                "No case id in response: "
+                                + abbreviate(response.getText()), false));
+                    }
+                    return Long.parseLong(caseId);
+                });
+    }
+
+    /**
+     * Logs out of every node, without waiting long for an answer.
+     */
+    protected void logout() {
+        for (Node node : nodes) {
+            try {
+                node.session.thenCompose(session -> client.send(
+                        node.authorize(AsyncHttpClient.Request.get(node.base
+                                .resolve("logoutservice?redirect=false")),
+                                session)))
+                        .get(LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException
+                    | TimeoutException ex) {
+                log.debug("Cannot log out from " + node.base, ex);
+            }
+        }
+    }
+
+    private Node select() {
+        return nodes.get(Math.floorMod(next.getAndIncrement(), nodes.size()));
+    }
+
+    /**
+     * @return the response if its status is a success, otherwise fails with
+     * an ImportException.
+     */
+    private static AsyncHttpClient.Response checkStatus(
+            AsyncHttpClient.Response response) {
+        int status = response.getStatus();
+        if (status >= 200 && status < 300) {
+            return response;
+        }
+        String text = response.getText();
+        String message = getField(text, "message");
+        String explanations = getField(text, "explanations");
+        String reason = "HTTP " + status + ": " + (message == null
+                ? abbreviate(text) : message)
+                + (explanations == null ? "" : " " + explanations);
+        String exception = getField(text, "exception");
+        // Mirrors the Java client: execution failures and an unavailable
+        // server are transient, a rejected request is not.
+        boolean retryable = status == 429 || status >= 502
+                || status == 500 && (exception == null
+                || exception.endsWith("ProcessExecutionException"));
+        throw new CompletionException(status == 400
+                ? ImportException.rejected(reason, null)
+                : new ImportException(reason, retryable));
+    }
+
+    /**
+     * Waits for a call that is part of the setup of the import.
+     */
+    private static <T> T await(CompletableFuture<T> future, String message)
+            throws ImportException {
+        try {
+            return future.get(LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ImportException(message + ": interrupted.", false, ex);
+        } catch (TimeoutException ex) {
+            throw new ImportException(message + ": no answer.", true, ex);
+        } catch (ExecutionException ex) {
+            ImportException cause = ImportException.from(ex.getCause());
+            throw new ImportException(message + ". Reason: "
+                    + cause.getMessage(), cause.isRetryable(), cause);
+        }
+    }
+
+    /**
+     * @return the first value of the field in the JSON text, as text
+     * without quotes, or null if it is not there or null. Objects and arrays
+     * are returned as their JSON.
+     */
+    protected static String getField(String json, String name) {
+        Matcher matcher = FIELDS.computeIfAbsent(name,
+                field -> Pattern.compile("\"" + Pattern.quote(field)
+                        + "\"\\s*:\\s*")).matcher(json);
+        if (!matcher.find()) {
+            return null;
+        }
+        int start = matcher.end();
+        if (start >= json.length()) {
+            return null;
+        }
+        char first = json.charAt(start);
+        if (first == '"') {
+            StringBuilder value = new StringBuilder();
+            for (int i = start + 1; i < json.length(); i++) {
+                char c = json.charAt(i);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c == '\\' && i + 1 < json.length()) {
+                    char escaped = json.charAt(++i);
+                    switch (escaped) {
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case 'r':
+                            value.append('\r');
+                            break;
+                        case 'b':
+                            value.append('\b');
+                            break;
+                        case 'f':
+                            value.append('\f');
+                            break;
+                        case 'u':
+                            if (i + 4 < json.length()) {
+                                value.append((char) Integer.parseInt(
+                                        json.substring(i + 1, i + 5), 16));
+                                i += 4;
+                            }
+                            break;
+                        default:
+                            value.append(escaped);
+                            break;
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+            return null;
+        }
+        if (first == '{' || first == '[') {
+            char open = first;
+            char close = first == '{' ? '}' : ']';
+            int depth = 0;
+            boolean quoted = false;
+            for (int i = start; i < json.length(); i++) {
+                char c = json.charAt(i);
+                if (quoted) {
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == open) {
+                    depth++;
+                } else if (c == close && --depth == 0) {
+                    return json.substring(start, i + 1);
+                }
+            }
+            return null;
+        }
+        int end = start;
+        while (end < json.length() && ",}] \t\r\n".indexOf(
+                json.charAt(end)) < 0) {
+            end++;
+        }
+        String value = json.substring(start, end);
+        return "null".equals(value) ? null : value;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String abbreviate(String text) {
+        return text.length() <= MAX_MESSAGE_LENGTH ? text
+                : text.substring(0, MAX_MESSAGE_LENGTH) + "...";
+    }
+
+    /**
+     * The cookies and API token of a logged-in session.
+     */
+    private static class Session {
+
+        private final String cookies;
+        private final String token;
+
+        private Session(String cookies, String token) {
+            this.cookies = cookies;
+            this.token = token;
+        }
+
+    }
+
+    private class Node {
+
+        private final URI base;
+        private final String userName;
+        private final char[] password;
+        private volatile CompletableFuture<Session> session;
+
+        private Node(URI base, String userName, char[] password) {
+            this.base = base;
+            this.userName = userName;
+            this.password = password;
+            this.session = login();
+        }
+
+        private CompletableFuture<Session> login() {
+            byte[] form = ("username=" + encode(userName) + "&password="
+                    + encode(new String(password)) + "&redirect=false")
+                    .getBytes(StandardCharsets.UTF_8);
+            return client.send(AsyncHttpClient.Request.post(
+                    base.resolve("loginservice"), FORM, form))
+                    .thenApply(response -> {
+                        int status = response.getStatus();
+                        if (status >= 300) {
+                            // An unavailable server may accept the login
+                            // later, like a dropped connection.
+                            throw new CompletionException(new ImportException(
+                                    "Login refused with HTTP " + status,
+                                    status == 429 || status >= 500));
+                        }
+                        StringBuilder cookies = new StringBuilder();
+                        String token = null;
+                        for (String cookie : response.getHeaders("Set-Cookie")) {
+                            int end = cookie.indexOf(';');
+                            String pair = end < 0 ? cookie
+                                    : cookie.substring(0, end);
+                            if (cookies.length() > 0) {
+                                cookies.append("; ");
+                            }
+                            cookies.append(pair.trim());
+                            if (pair.trim().startsWith(TOKEN + "=")) {
+                                token = pair.trim().substring(
+                                        TOKEN.length() + 1);
+                            }
+                        }
+                        return new Session(cookies.toString(), token);
+                    });
+        }
+
+        private AsyncHttpClient.Request authorize(
+                AsyncHttpClient.Request request, Session current) {
+            if (!current.cookies.isEmpty()) {
+                request.header("Cookie", current.cookies);
+            }
+            if (current.token != null) {
+                request.header(TOKEN, current.token);
+            }
+            return request;
+        }
+
+        /**
+         * Makes the call with the session of the node. When the session has
+         * expired, logs in again, unless another call already did, and makes
+         * the call once more. When the last login failed, logs in again
+         * first.
+         */
+        private CompletableFuture<AsyncHttpClient.Response> call(
+                Function<Session, CompletableFuture<AsyncHttpClient.Response>>
+                call) {
+            CompletableFuture<Session> last = session;
+            CompletableFuture<Session> current = last.isCompletedExceptionally()
+                    ? relogin(last) : last;
+            return current.thenCompose(call).thenCompose(response -> {
+                if (response.getStatus() != 401) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                return relogin(current).thenCompose(call);
+            });
+        }
+
+        private synchronized CompletableFuture<Session> relogin(
+                CompletableFuture<Session> expired) {
+            if (session == expired) {
+                log.info((expired.isCompletedExceptionally() ? "Login on "
+                        + base + " failed" : "Session on " + base
+                        + " expired") + ". Logging in again.");
+                session = login();
+            }
+            return session;
+        }
+
+    }
+
+}
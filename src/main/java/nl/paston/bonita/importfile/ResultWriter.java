@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CSV file with the outcome of every record: the record number, the value of
+ * the business key column, the id of the case that was started, the status
+ * and the duration in milliseconds. The submitter threads only put the
+ * results on a queue; a background thread writes them in batches through a
+ * large buffer, so the file costs the submitters next to nothing. The
+ * submitters only block when the queue is full.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class ResultWriter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultWriter.class);
+
+    private static final int QUEUE_SIZE = 1 << 16;
+    private static final int BATCH_SIZE = 4096;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final Result END = new Result(0, null, -1, null, 0);
+
+    protected enum Status {
+
+        SUCCEEDED, FAILED
+
+    }
+
+    private final File file;
+    private final int keyColumn;
+    private final CSVPrinter printer;
+    private final BlockingQueue<Result> queue
+            = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    private volatile IOException failure;
+    private boolean closed;
+
+    private ResultWriter(File file, int keyColumn, boolean append)
+            throws IOException {
+        this.file = file;
+        this.keyColumn = keyColumn;
+        boolean header = !append || file.length() == 0;
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, append), StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+        this.printer = new CSVPrinter(out, CSVFormat.EXCEL);
+        if (header) {
+            printer.printRecord("record", "key", "case", "status",
+                    "duration_ms");
+        }
+        this.writer = new Thread(this::run, "result-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates the results file.
+     *
+     * @param keyColumn the index of the business key column, or -1 for no
+     * key.
+     */
+    protected static ResultWriter create(File file, int keyColumn)
+            throws IOException {
+        log.debug("Creating results file: " + file.getAbsolutePath());
+        return new ResultWriter(file, keyColumn, false);
+    }
+
+    /**
+     * Opens the results file of an interrupted import, to add the results of
+     * the records that are imported when it is resumed. A line that was only
+     * partly written before a crash is removed first.
+     *
+     * @param keyColumn the index of the business key column, or -1 for no
+     * key.
+     */
+    protected static ResultWriter append(File file, int keyColumn)
+            throws IOException {
+        log.debug("Appending to results file: " + file.getAbsolutePath());
+        if (file.exists()) {
+            Journal.truncateTornLine(file);
+        }
+        return new ResultWriter(file, keyColumn, true);
+    }
+
+    /**
+     * Queues the outcome of a record. Blocks while the queue is full.
+     *
+     * @param caseId the id of the case that was started, or -1 if none.
+     */
+    protected void write(CSVRecord record, long caseId, Status status,
+            long durationNanos) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        String key = keyColumn >= 0 && keyColumn < record.size()
+                ? record.get(keyColumn) : "";
+        try {
+            queue.put(new Result(record.getRecordNumber() - 1, key, caseId,
+                    status, durationNanos));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing results.", ex);
+        }
+    }
+
+    /**
+     * @return the index of the business key column, or -1 for no key.
+     */
+    protected int getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * Writes the results that are queued and closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing results.", ex);
+        }
+        printer.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void run() {
+        List<Result> batch = new ArrayList<>(BATCH_SIZE);
+        boolean ended = false;
+        try {
+            while (true) {
+                Result first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    printer.flush();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Result result : batch) {
+                    if (result == END) {
+                        ended = true;
+                        printer.flush();
+                        return;
+                    }
+                    printer.printRecord(result.recordNumber, result.key,
+                            result.caseId < 0 ? "" : result.caseId,
+                            result.status,
+                            TimeUnit.NANOSECONDS.toMillis(result.durationNanos));
+                }
+                batch.clear();
+            }
+        } catch (IOException ex) {
+            log.error("Cannot write results file " + file + ". Reason: "
+                    + ex.getMessage());
+            failure = ex;
+            if (!ended) {
+                // Keep taking results, so the submitters do not block.
+                drain();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (queue.take() != END) {
+                // Discard.
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Result {
+
+        private final long recordNumber;
+        private final String key;
+        private final long caseId;
+        private final Status status;
+        private final long durationNanos;
+
+        private Result(long recordNumber, String key, long caseId,
+                Status status, long durationNanos) {
+            this.recordNumber = recordNumber;
+            this.key = key;
+            this.caseId = caseId;
+            this.status = status;
+            this.durationNanos = durationNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries an action that fails with a retryable {@link ImportException}, with
+ * exponential backoff and full jitter between the attempts.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class RetryPolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    protected RetryPolicy(int maxRetries, long baseDelayMillis,
+            long maxDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @FunctionalInterface
+    protected interface Action<T> {
+
+        T run() throws ImportException;
+
+    }
+
+    /**
+     * Runs the action until it succeeds, fails permanently or the retries
+     * are used up. The last exception is thrown in the latter two cases.
+     */
+    protected <T> T execute(Action<T> action) throws ImportException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return action.run();
+            } catch (ImportException ex) {
+                if (!ex.isRetryable() || attempt >= maxRetries) {
+                    throw ex;
+                }
+                long delay = getDelayMillis(attempt);
+                log.debug("Retrying in " + delay + " ms. Reason: "
+                        + ex.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the action like {@link #execute(Action)}, without blocking: the
+     * action returns a future and the retries are scheduled on a timer
+     * thread. The future fails with the last ImportException.
+     */
+    protected <T> CompletableFuture<T> executeAsync(
+            Supplier<CompletableFuture<T>> action) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(action, 0, result);
+        return result;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> action,
+            int attempt, CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            future = action.get();
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        future.whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+                return;
+            }
+            ImportException ex = ImportException.from(failure);
+            if (!ex.isRetryable() || attempt >= maxRetries) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            long delay = getDelayMillis(attempt);
+            log.debug("Retrying in " + delay + " ms. Reason: "
+                    + ex.getMessage());
+            Timer.INSTANCE.schedule(() -> attempt(action, attempt + 1, result),
+                    delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    protected long getDelayMillis(int attempt) {
+        long ceiling = attempt >= 30 ? maxDelayMillis
+                : Math.min(maxDelayMillis, baseDelayMillis << attempt);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    protected int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * The thread that runs the asynchronous retries, created when the first
+     * one is scheduled.
+     */
+    private static class Timer {
+
+        private static final ScheduledExecutorService INSTANCE
+                = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "retry-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+    }
+
+}
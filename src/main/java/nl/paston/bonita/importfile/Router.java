@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends every record to the lane of its process. Without a route column all
+ * records go to one lane. With a route column, the column holds the process
+ * of the record as {@code name/version}; the lane of a process is created
+ * when its first record arrives and is kept for the rest of the import.
+ * Records with an empty route go to the default lane, if there is one.
+ * Every lane has its own submitters, so a slow process does not hold up
+ * the records of another process.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class Router {
+
+    private static final Logger log = LoggerFactory.getLogger(Router.class);
+
+    private final int routeColumn;
+    private final LaneFactory factory;
+    private final Lane defaultLane;
+    private final RecordSubmitter fallback;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final Map<String, String> unknownRoutes = new ConcurrentHashMap<>();
+    private final Map<String, Lane> created = new LinkedHashMap<>();
+
+    /**
+     * Creates the lane of a process.
+     */
+    @FunctionalInterface
+    protected interface LaneFactory {
+
+        Lane create(String processName, String processVersion)
+                throws ImportException;
+
+    }
+
+    private Router(int routeColumn, LaneFactory factory, Lane defaultLane,
+            RecordSubmitter fallback) {
+        this.routeColumn = routeColumn;
+        this.factory = factory;
+        this.defaultLane = defaultLane;
+        this.fallback = fallback;
+        if (defaultLane != null) {
+            created.put("", defaultLane);
+        }
+    }
+
+    /**
+     * Routes every record to the same lane.
+     */
+    protected static Router single(Lane lane) {
+        return new Router(-1, null, lane, lane.getSubmitter());
+    }
+
+    /**
+     * Routes records on the value of the route column.
+     *
+     * @param defaultLane the lane for records with an empty route, or null.
+     * @param fallback the submitter that fails the records that cannot be
+     * routed.
+     */
+    protected static Router routed(int routeColumn, LaneFactory factory,
+            Lane defaultLane, RecordSubmitter fallback) {
+        return new Router(routeColumn, factory, defaultLane, fallback);
+    }
+
+    /**
+     * @return the lane of the record.
+     * @throws ImportException when the route of the record is not valid or
+     * its process cannot be found.
+     */
+    protected Lane route(CSVRecord record) throws ImportException {
+        if (routeColumn < 0) {
+            return defaultLane;
+        }
+        String route = routeColumn < record.size()
+                ? record.get(routeColumn).trim() : "";
+        if (route.isEmpty()) {
+            if (defaultLane == null) {
+                throw new ImportException("No process in route column.",
+                        false);
+            }
+            return defaultLane;
+        }
+        Lane lane = lanes.get(route);
+        return lane != null ? lane : createLane(route);
+    }
+
+    /**
+     * @return the submitter that fails records that do not reach a lane.
+     */
+    protected RecordSubmitter getFallback() {
+        return fallback;
+    }
+
+    /**
+     * Waits until every lane has completed its records.
+     */
+    protected void awaitCompletion() throws InterruptedException {
+        for (Lane lane : getLanes()) {
+            lane.getPipeline().awaitCompletion();
+        }
+    }
+
+    protected long getSucceeded() {
+        long succeeded = 0;
+        for (Lane lane : getLanes()) {
+            succeeded += lane.getSubmitter().getSucceeded();
+        }
+        return succeeded;
+    }
+
+    protected long getFailed() {
+        long failed = isLaneSubmitter(fallback) ? 0 : fallback.getFailed();
+        for (Lane lane : getLanes()) {
+            failed += lane.getSubmitter().getFailed()
+                    + lane.getPipeline().getFailed();
+        }
+        return failed;
+    }
+
+    protected synchronized List<Lane> getLanes() {
+        return new ArrayList<>(created.values());
+    }
+
+    private synchronized boolean isLaneSubmitter(RecordSubmitter submitter) {
+        for (Lane lane : created.values()) {
+            if (lane.getSubmitter() == submitter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Lane createLane(String route) throws ImportException {
+        Lane lane = lanes.get(route);
+        if (lane != null) {
+            return lane;
+        }
+        String unknown = unknownRoutes.get(route);
+        if (unknown != null) {
+            throw new ImportException(unknown, false);
+        }
+        int separator = route.lastIndexOf('/');
+        if (separator <= 0 || separator == route.length() - 1) {
+            String reason = "Route is not name/version: " + route;
+            unknownRoutes.put(route, reason);
+            throw new ImportException(reason, false);
+        }
+        String name = route.substring(0, separator).trim();
+        String version = route.substring(separator + 1).trim();
+        String process = name + '/' + version;
+        lane = created.get(process);
+        if (lane == null) {
+            try {
+                lane = factory.create(name, version);
+            } catch (ImportException ex) {
+                if (!ex.isRetryable()) {
+                    unknownRoutes.put(route, ex.getMessage());
+                }
+                throw ex;
+            }
+            log.info("Routing records to " + process + ".");
+            created.put(process, lane);
+        }
+        lanes.put(route, lane);
+        return lane;
+    }
+
+    /**
+     * The contract validator, submitter and submitter threads of one
+     * process. A lane with a batch input collects its records into batches,
+     * which are only touched by the thread that reads the records.
+     */
+    protected static final class Lane {
+
+        private final ContractValidator contractValidator;
+        private final RecordSubmitter submitter;
+        private final ImportPipeline pipeline;
+        private final String batchInput;
+        private final int batchSize;
+        private Batch batch;
+
+        /**
+         * @param contractValidator the validator of the contract of the
+         * process, or null to send records without checking them.
+         */
+        protected Lane(ContractValidator contractValidator,
+                RecordSubmitter submitter, ImportPipeline pipeline) {
+            this(contractValidator, submitter, pipeline, null, 1);
+        }
+
+        /**
+         * @param contractValidator the validator of the elements of the batch
+         * input, or null to send records without checking them.
+         * @param batchInput the list input of the process that gets the
+         * records of a batch, or null to start a process per record.
+         */
+        protected Lane(ContractValidator contractValidator,
+                RecordSubmitter submitter, ImportPipeline pipeline,
+                String batchInput, int batchSize) {
+            this.contractValidator = contractValidator;
+            this.submitter = submitter;
+            this.pipeline = pipeline;
+            this.batchInput = batchInput;
+            this.batchSize = batchSize;
+        }
+
+        protected ContractValidator getContractValidator() {
+            return contractValidator;
+        }
+
+        protected RecordSubmitter getSubmitter() {
+            return submitter;
+        }
+
+        protected ImportPipeline getPipeline() {
+            return pipeline;
+        }
+
+        protected boolean isBatched() {
+            return batchInput != null;
+        }
+
+        protected String getBatchInput() {
+            return batchInput;
+        }
+
+        /**
+         * Adds the record to the current batch.
+         *
+         * @return whether the batch is full.
+         */
+        protected boolean add(CSVRecord record, Map<String, Serializable> map) {
+            if (batch == null) {
+                batch = new Batch(batchSize);
+            }
+            batch.records.add(record);
+            batch.maps.add(map);
+            return batch.records.size() >= batchSize;
+        }
+
+        /**
+         * @return the current batch, or null when it is empty. The next
+         * record starts a new batch.
+         */
+        protected Batch takeBatch() {
+            Batch taken = batch;
+            batch = null;
+            return taken;
+        }
+
+    }
+
+    /**
+     * The records of a batch and the maps that were parsed from them.
+     */
+    protected static final class Batch {
+
+        private final List<CSVRecord> records;
+        private final List<Map<String, Serializable>> maps;
+
+        private Batch(int batchSize) {
+            this.records = new ArrayList<>(batchSize);
+            this.maps = new ArrayList<>(batchSize);
+        }
+
+        protected List<CSVRecord> getRecords() {
+            return records;
+        }
+
+        protected List<Map<String, Serializable>> getMaps() {
+            return maps;
+        }
+
+    }
+
+}
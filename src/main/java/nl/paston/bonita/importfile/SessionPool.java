@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.bonitasoft.engine.api.LoginAPI;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.api.internal.ServerAPI;
+import org.bonitasoft.engine.exception.BonitaException;
+import org.bonitasoft.engine.platform.LoginException;
+import org.bonitasoft.engine.session.APISession;
+import org.bonitasoft.engine.session.InvalidSessionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of logged-in sessions on one or more Bonita cluster nodes. The
+ * {@link ProcessAPI} of the pool sends every call to the session with the
+ * least outstanding calls. A node whose calls fail to reach the server a
+ * number of times in a row is left out for a while. A session that has
+ * expired is logged in again and the call is made once more, so the pool can
+ * be kept for as long as the process runs.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class SessionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionPool.class);
+
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long NODE_DOWN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final List<Member> members;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ProcessAPI processAPI;
+
+    private SessionPool(List<Member> members) {
+        this.members = Collections.unmodifiableList(members);
+        this.processAPI = (ProcessAPI) Proxy.newProxyInstance(
+                ProcessAPI.class.getClassLoader(),
+                new Class<?>[]{ProcessAPI.class},
+                (proxy, method, args) -> invoke(method, args));
+    }
+
+    /**
+     * Logs into every node with the given number of sessions per node.
+     */
+    protected static SessionPool login(List<String> serverUrls,
+            String applicationName, String userName, char[] password,
+            int sessionsPerNode) {
+        Map<String, LoginAPI> loginAPIs = new LinkedHashMap<>();
+        Map<String, ServerAPI> serverAPIs = new LinkedHashMap<>();
+        for (String serverUrl : serverUrls) {
+            ServerAPI serverAPI = Main.getServerAPI(serverUrl, applicationName);
+            serverAPIs.put(serverUrl, serverAPI);
+            loginAPIs.put(serverUrl, Main.getLoginAPI(serverAPI));
+        }
+        return login(loginAPIs, (serverUrl, apiSession) -> Main.getProcessAPI(
+                serverAPIs.get(serverUrl), apiSession), userName, password,
+                sessionsPerNode);
+    }
+
+    /**
+     * Logs into every node through its LoginAPI, and gets the ProcessAPI of
+     * every session from the node and the session.
+     *
+     * @param loginAPIs the LoginAPI of every node by its URL.
+     */
+    protected static SessionPool login(Map<String, LoginAPI> loginAPIs,
+            BiFunction<String, APISession, ProcessAPI> processAPIs,
+            String userName, char[] password, int sessionsPerNode) {
+        List<Member> members = new ArrayList<>();
+        for (Map.Entry<String, LoginAPI> entry : loginAPIs.entrySet()) {
+            String serverUrl = entry.getKey();
+            Node node = new Node(serverUrl, entry.getValue(),
+                    apiSession -> processAPIs.apply(serverUrl, apiSession),
+                    userName, password);
+            for (int i = 0; i < sessionsPerNode; i++) {
+                APISession apiSession = Main.getAPISession(entry.getValue(),
+                        userName, password);
+                members.add(new Member(node, apiSession,
+                        node.processAPIs.apply(apiSession)));
+            }
+        }
+        log.info("Logged into " + loginAPIs.size() + " node(s) with "
+                + members.size() + " session(s).");
+        return new SessionPool(members);
+    }
+
+    /**
+     * @return a ProcessAPI that spreads its calls over the sessions of the
+     * pool.
+     */
+    protected ProcessAPI getProcessAPI() {
+        return processAPI;
+    }
+
+    protected void logout() {
+        for (Member member : members) {
+            try {
+                member.node.loginAPI.logout(member.apiSession);
+            } catch (BonitaException | UndeclaredThrowableException ex) {
+                log.debug("Cannot log out from " + member.node.serverUrl, ex);
+            }
+        }
+    }
+
+    private Object invoke(Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(this, args);
+        }
+        Member member = select();
+        member.outstanding.incrementAndGet();
+        try {
+            ProcessAPI sessionAPI = member.processAPI;
+            try {
+                return invoke(member, sessionAPI, method, args);
+            } catch (InvalidSessionException ex) {
+                if (!member.relogin(sessionAPI)) {
+                    throw ex;
+                }
+                return invoke(member, member.processAPI, method, args);
+            }
+        } finally {
+            member.outstanding.decrementAndGet();
+        }
+    }
+
+    private static Object invoke(Member member, ProcessAPI sessionAPI,
+            Method method, Object[] args) throws Throwable {
+        try {
+            Object result = method.invoke(sessionAPI, args);
+            member.node.succeeded();
+            return result;
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UndeclaredThrowableException) {
+                member.node.failed();
+            } else {
+                member.node.succeeded();
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * Selects the available session with the least outstanding calls,
+     * starting at the next session in round-robin order to break ties. When
+     * every node is down, the node that went down first is tried again.
+     */
+    private Member select() {
+        long now = System.currentTimeMillis();
+        int start = Math.floorMod(next.getAndIncrement(), members.size());
+        Member best = null;
+        Member earliestDown = null;
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get((start + i) % members.size());
+            if (member.node.isUp(now)) {
+                if (best == null
+                        || member.outstanding.get() < best.outstanding.get()) {
+                    best = member;
+                }
+            } else if (earliestDown == null
+                    || member.node.downUntil < earliestDown.node.downUntil) {
+                earliestDown = member;
+            }
+        }
+        return best != null ? best : earliestDown;
+    }
+
+    private static class Node {
+
+        private final String serverUrl;
+        private final LoginAPI loginAPI;
+        private final Function<APISession, ProcessAPI> processAPIs;
+        private final String userName;
+        private final char[] password;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long downUntil;
+
+        private Node(String serverUrl, LoginAPI loginAPI,
+                Function<APISession, ProcessAPI> processAPIs, String userName,
+                char[] password) {
+            this.serverUrl = serverUrl;
+            this.loginAPI = loginAPI;
+            this.processAPIs = processAPIs;
+            this.userName = userName;
+            this.password = password;
+        }
+
+        private boolean isUp(long now) {
+            return downUntil <= now;
+        }
+
+        /**
+         * Counts a call that reached the server. A node that was left out
+         * and answers again is used again right away.
+         */
+        private void succeeded() {
+            consecutiveFailures.set(0);
+            if (downUntil != 0) {
+                downUntil = 0;
+            }
+        }
+
+        private void failed() {
+            if (consecutiveFailures.incrementAndGet() >= MAX_CONSECUTIVE_FAILURES) {
+                consecutiveFailures.set(0);
+                downUntil = System.currentTimeMillis() + NODE_DOWN_MILLIS;
+                log.warn("Node " + serverUrl + " keeps failing. Not using it for "
+                        + TimeUnit.MILLISECONDS.toSeconds(NODE_DOWN_MILLIS)
+                        + " seconds.");
+            }
+        }
+
+    }
+
+    private static class Member {
+
+        private final Node node;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile APISession apiSession;
+        private volatile ProcessAPI processAPI;
+
+        private Member(Node node, APISession apiSession,
+                ProcessAPI processAPI) {
+            this.node = node;
+            this.apiSession = apiSession;
+            this.processAPI = processAPI;
+        }
+
+        /**
+         * Logs in again, unless another call already did so after the
+         * session expired.
+         *
+         * @return whether the call can be made again.
+         */
+        private synchronized boolean relogin(ProcessAPI expiredAPI) {
+            if (processAPI != expiredAPI) {
+                return true;
+            }
+            try {
+                APISession session = node.loginAPI.login(node.userName,
+                        new String(node.password));
+                processAPI = node.processAPIs.apply(session);
+                apiSession = session;
+                log.info("Session on " + node.serverUrl + " expired. Logged "
+                        + "in again.");
+                return true;
+            } catch (LoginException | UndeclaredThrowableException ex) {
+                log.warn("Cannot log in again on " + node.serverUrl
+                        + ". Reason: " + ex.getMessage());
+                return false;
+            }
+        }
+
+    }
+
+}
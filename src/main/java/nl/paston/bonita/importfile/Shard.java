@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * One of several disjoint parts of an import file, so that importers on
+ * different machines can import the same file together. A record belongs to
+ * a shard by the hash of its key column, or by its record number when there
+ * is no key column. The hash only depends on the value, so every importer
+ * makes the same choice, and records with the same key end up in the same
+ * shard. Shards are numbered from 1, e.g. 2/4 is the second of four shards.
+ * <p>
+ * Every shard writes its own output files, with the shard in the file name.
+ * The results files of the shards are merged into one afterwards. A run of
+ * the same import, like a resume or a later run with a dedup index, must use
+ * the same number of shards, or records move to other shards and their
+ * files.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class Shard {
+
+    private static final Pattern SPEC = Pattern.compile("(\\d+)/(\\d+)");
+    private static final String[] RESULT_HEADER
+            = {"record", "key", "case", "status", "duration_ms"};
+
+    private final int index;
+    private final int count;
+    private final int keyColumn;
+    private final LongAdder others = new LongAdder();
+
+    /**
+     * @param index the number of the shard, from 1 to the number of shards.
+     * @param keyColumn the index of the key column, or -1 to divide the
+     * records by record number.
+     */
+    protected Shard(int index, int count, int keyColumn) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Shard must be i/n with 1 <= "
+                    + "i <= n: " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+        this.keyColumn = keyColumn;
+    }
+
+    /**
+     * Parses a shard like 2/4, without a key column.
+     */
+    protected static Shard parse(String spec) {
+        Matcher matcher = SPEC.matcher(spec.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Shard must be i/n, e.g. 2/4: "
+                    + spec);
+        }
+        try {
+            return new Shard(Integer.parseInt(matcher.group(1)),
+                    Integer.parseInt(matcher.group(2)), -1);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Shard is too large: " + spec);
+        }
+    }
+
+    /**
+     * @return the same shard, divided by the key column.
+     */
+    protected Shard withKeyColumn(int keyColumn) {
+        return new Shard(index, count, keyColumn);
+    }
+
+    protected int getIndex() {
+        return index;
+    }
+
+    protected int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the index of the key column, or -1 when the records are
+     * divided by record number.
+     */
+    protected int getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * @return whether the record belongs to this shard. Records of other
+     * shards are counted.
+     */
+    protected boolean contains(CSVRecord record) {
+        int shard;
+        if (keyColumn < 0) {
+            shard = (int) Math.floorMod(record.getRecordNumber(), (long) count);
+        } else {
+            String key = keyColumn < record.size() ? record.get(keyColumn) : "";
+            shard = Math.floorMod(mix(key.hashCode()), count);
+        }
+        if (shard == index - 1) {
+            return true;
+        }
+        others.increment();
+        return false;
+    }
+
+    /**
+     * @return the number of records that were left to other shards.
+     */
+    protected long getOthers() {
+        return others.sum();
+    }
+
+    /**
+     * @return the file of this shard for a file name of the import.
+     */
+    protected File getFile(String path) {
+        return getFile(path, index, count);
+    }
+
+    /**
+     * Puts the shard before the extension of the file name, e.g.
+     * results.csv becomes results.2-of-4.csv.
+     */
+    protected static File getFile(String path, int index, int count) {
+        File file = new File(path);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String shard = "." + index + "-of-" + count;
+        name = dot > 0 ? name.substring(0, dot) + shard + name.substring(dot)
+                : name + shard;
+        return new File(file.getParentFile(), name);
+    }
+
+    /**
+     * Merges the results files of the shards into one results file. A record
+     * that is in one file more than once, because the shard was resumed,
+     * counts with its last line. Records that are in more than one file are
+     * written once and counted.
+     */
+    protected static Summary merge(List<File> shardFiles, File file)
+            throws IOException {
+        Summary summary = new Summary();
+        BitSet seen = new BitSet();
+        try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file),
+                        StandardCharsets.UTF_8)), CSVFormat.EXCEL)) {
+            printer.printRecord((Object[]) RESULT_HEADER);
+            for (File shardFile : shardFiles) {
+                // The first pass finds the last line of the records that
+                // were written more than once.
+                BitSet inFile = new BitSet();
+                Map<Integer, Long> lastLines = new HashMap<>();
+                try (Reader reader = Files.newBufferedReader(
+                        shardFile.toPath(), StandardCharsets.UTF_8);
+                        CSVParser parser = CSVFormat.EXCEL.withHeader()
+                        .parse(reader)) {
+                    for (CSVRecord record : parser) {
+                        int recordNumber = getRecordNumber(record, shardFile);
+                        if (inFile.get(recordNumber)) {
+                            lastLines.put(recordNumber,
+                                    record.getRecordNumber());
+                        }
+                        inFile.set(recordNumber);
+                    }
+                }
+                try (Reader reader = Files.newBufferedReader(
+                        shardFile.toPath(), StandardCharsets.UTF_8);
+                        CSVParser parser = CSVFormat.EXCEL.withHeader()
+                        .parse(reader)) {
+                    for (CSVRecord record : parser) {
+                        int recordNumber = getRecordNumber(record, shardFile);
+                        Long lastLine = lastLines.get(recordNumber);
+                        if (lastLine == null
+                                || lastLine == record.getRecordNumber()) {
+                            merge(record, recordNumber, shardFile, seen,
+                                    summary, printer);
+                        }
+                    }
+                }
+                seen.or(inFile);
+            }
+        }
+        return summary;
+    }
+
+    private static int getRecordNumber(CSVRecord record, File shardFile)
+            throws IOException {
+        try {
+            return Integer.parseInt(record.get(RESULT_HEADER[0]));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Not a results file: " + shardFile
+                    + ". Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes the line of a record, unless an earlier file had the record.
+     */
+    private static void merge(CSVRecord record, int recordNumber,
+            File shardFile, BitSet seen, Summary summary, CSVPrinter printer)
+            throws IOException {
+        long durationMillis;
+        try {
+            durationMillis = Long.parseLong(record.get(RESULT_HEADER[4]));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Not a results file: " + shardFile
+                    + ". Reason: " + ex.getMessage(), ex);
+        }
+        if (seen.get(recordNumber)) {
+            summary.overlapping++;
+            return;
+        }
+        String status = record.get(RESULT_HEADER[3]);
+        if (ResultWriter.Status.SUCCEEDED.name().equals(status)) {
+            summary.succeeded++;
+        } else {
+            summary.failed++;
+        }
+        summary.durations.record(TimeUnit.MILLISECONDS.toNanos(
+                durationMillis));
+        printer.printRecord(recordNumber, record.get(RESULT_HEADER[1]),
+                record.get(RESULT_HEADER[2]), status, durationMillis);
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+
+    /**
+     * The totals of the merged results files.
+     */
+    protected static class Summary {
+
+        private long succeeded;
+        private long failed;
+        private long overlapping;
+        private final Histogram durations = new Histogram();
+
+        protected long getSucceeded() {
+            return succeeded;
+        }
+
+        protected long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return the number of records that were in more than one file,
+         * which means the shards were not disjoint.
+         */
+        protected long getOverlapping() {
+            return overlapping;
+        }
+
+        /**
+         * @return the durations of the records in nanoseconds.
+         */
+        protected Histogram getDurations() {
+            return durations;
+        }
+
+    }
+
+    /**
+     * Spreads the bits of a string hash, so that keys that only differ in
+     * their last characters are spread evenly over the shards.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ hash >>> 16;
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Reads a CSV file with a {@link ByteCsvTokenizer} and converts the values
+ * of the records straight from the bytes. Until it is prepared with the plan
+ * of the header, every record holds all its values as strings and has no
+ * map. Once prepared, numbers, booleans and dates are converted from the
+ * bytes of their cells and strings are only built for the columns that are
+ * converted from strings and for the text columns; the other values of the
+ * record are null. A repeated string is not decoded again, as long as the
+ * column has few distinct values. A record with a value that cannot be converted holds all
+ * its values and has no map, so it is parsed like any other record and its
+ * errors are reported as usual.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class TypedCsvReader implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int RESTORE_BUFFER_SIZE = 1 << 12;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Charset charset;
+    private final byte delimiter;
+    private final long size;
+    private final ByteCsvTokenizer tokenizer;
+    private final CSVRecord fullHeader;
+    private long recordNumber = 1;
+    private HeaderPlan headerPlan;
+    private ByteConverter[] converters;
+    private boolean[] textColumns;
+    private StringCache[] strings;
+    private CSVRecord record;
+    private Map<String, Serializable> map;
+
+    private TypedCsvReader(File file, Charset charset, char delimiter)
+            throws IOException {
+        this.delimiter = ByteCsvTokenizer.getDelimiter(charset, delimiter);
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.charset = charset;
+        this.size = channel.size();
+        this.tokenizer = new ByteCsvTokenizer(channel, 0, this.delimiter,
+                BUFFER_SIZE);
+        try {
+            this.fullHeader = tokenizer.next() ? CsvRecords.create(
+                    tokenizer.getStrings(charset), recordNumber, 0) : null;
+        } catch (IOException ex) {
+            this.file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens the file and reads the full header.
+     *
+     * @throws IllegalArgumentException when the charset or the delimiter
+     * cannot be tokenized as bytes.
+     */
+    protected static TypedCsvReader open(File file, Charset charset,
+            char delimiter) throws IOException {
+        return new TypedCsvReader(file, charset, delimiter);
+    }
+
+    /**
+     * @return the first record of the file, or null if the file is empty.
+     */
+    protected CSVRecord getFullHeader() {
+        return fullHeader;
+    }
+
+    /**
+     * Converts the records that are read from now on with the plan of the
+     * header. The values of the text columns are kept in the records, e.g.
+     * for a business key.
+     */
+    protected void prepare(HeaderPlan headerPlan, int... textColumns) {
+        this.headerPlan = headerPlan;
+        this.converters = new ByteConverter[headerPlan.size()];
+        this.textColumns = new boolean[headerPlan.size()];
+        this.strings = new StringCache[headerPlan.size()];
+        for (int i = 0; i < headerPlan.size(); i++) {
+            HeaderPlan.Column column = headerPlan.getColumn(i);
+            if (!column.isSkipped()) {
+                converters[i] = Main.getByteConverter(column.getType(),
+                        charset);
+            }
+            strings[i] = new StringCache();
+        }
+        for (int textColumn : textColumns) {
+            if (textColumn >= 0 && textColumn < this.textColumns.length) {
+                this.textColumns[textColumn] = true;
+            }
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return false at the end of the file.
+     */
+    protected boolean next() throws IOException {
+        if (!tokenizer.next()) {
+            return false;
+        }
+        recordNumber++;
+        map = headerPlan == null ? null : convert();
+        if (map == null) {
+            record = CsvRecords.create(tokenizer.getStrings(charset),
+                    recordNumber, tokenizer.getRowPosition());
+        }
+        return true;
+    }
+
+    protected CSVRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * @return the map of the record that was read last, or null when the
+     * record still has to be parsed.
+     */
+    protected Map<String, Serializable> getMap() {
+        return map;
+    }
+
+    /**
+     * Reads a record that was read before again, with all its values.
+     */
+    protected CSVRecord restore(CSVRecord record) throws IOException {
+        if (record.getCharacterPosition() < 0) {
+            return record;
+        }
+        ByteCsvTokenizer restorer = new ByteCsvTokenizer(channel,
+                record.getCharacterPosition(), delimiter, RESTORE_BUFFER_SIZE);
+        if (!restorer.next()) {
+            throw new IOException("Record number "
+                    + (record.getRecordNumber() - 1) + " cannot be read again.");
+        }
+        return CsvRecords.create(restorer.getStrings(charset),
+                record.getRecordNumber(), record.getCharacterPosition());
+    }
+
+    /**
+     * @return the part of the file that has been read, as a fraction between
+     * 0 and 1.
+     */
+    protected double getFractionRead() {
+        return size == 0 ? 1 : (double) tokenizer.getRowPosition() / size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Converts the cells of the row into a map like
+     * {@link Main#parseRecord(CSVRecord, HeaderPlan, java.util.List)} does
+     * and sets the record with the strings that were built.
+     *
+     * @return the map, or null when a value cannot be converted or the row
+     * has more cells than the header.
+     */
+    private Map<String, Serializable> convert() {
+        int cells = tokenizer.getCellCount();
+        if (cells > converters.length) {
+            return null;
+        }
+        byte[] bytes = tokenizer.getBytes();
+        String[] values = new String[cells];
+        PayloadTemplate template = headerPlan.getPayloadTemplate();
+        PayloadTemplate.Row row = template == null ? null : template.newRow();
+        Map<String, Serializable> result = row == null ? new HashMap<>()
+                : row.getMap();
+        for (int i = 0; i < cells; i++) {
+            HeaderPlan.Column column = headerPlan.getColumn(i);
+            ByteConverter converter = converters[i];
+            Object value;
+            if (converter != null) {
+                value = converter.convert(bytes, tokenizer.getStart(i),
+                        tokenizer.getEnd(i));
+                if (value == null && !tokenizer.isEmpty(i)) {
+                    return null;
+                }
+                if (textColumns[i]) {
+                    values[i] = strings[i].get(tokenizer, i, charset);
+                }
+            } else {
+                values[i] = strings[i].get(tokenizer, i, charset);
+                value = column.convert(values[i]);
+                if (value == null && !column.isSkipped()
+                        && !values[i].isEmpty()) {
+                    return null;
+                }
+            }
+            if (row != null && value != null) {
+                row.put(i, (Serializable) value);
+            } else if (value != null) {
+                Main.putValue(result, column, (Serializable) value);
+            }
+        }
+        record = CsvRecords.create(values, recordNumber,
+                tokenizer.getRowPosition());
+        return result;
+    }
+
+    /**
+     * The strings of a column by the hash of their bytes, in a direct-mapped
+     * table, so a repeated value is neither decoded nor allocated again. A
+     * column that mostly misses, because it has many distinct values, stops
+     * caching.
+     */
+    private static final class StringCache {
+
+        private static final int SIZE = 256;
+        private static final int MAX_LENGTH = 64;
+        private static final int MIN_LOOKUPS = 1024;
+
+        private byte[][] keys = new byte[SIZE][];
+        private String[] values = new String[SIZE];
+        private int lookups;
+        private int hits;
+
+        private String get(ByteCsvTokenizer tokenizer, int cell,
+                Charset charset) {
+            int start = tokenizer.getStart(cell);
+            int end = tokenizer.getEnd(cell);
+            if (keys == null || tokenizer.isEscaped(cell)
+                    || end - start > MAX_LENGTH) {
+                return tokenizer.getString(cell, charset);
+            }
+            byte[] bytes = tokenizer.getBytes();
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            int index = (hash ^ hash >>> 16) & (SIZE - 1);
+            byte[] key = keys[index];
+            lookups++;
+            if (key != null && equals(key, bytes, start, end)) {
+                hits++;
+                return values[index];
+            }
+            String value = tokenizer.getString(cell, charset);
+            if (lookups >= MIN_LOOKUPS && hits < lookups / 2) {
+                keys = null;
+                values = null;
+                return value;
+            }
+            keys[index] = Arrays.copyOfRange(bytes, start, end);
+            values[index] = value;
+            return value;
+        }
+
+        private static boolean equals(byte[] key, byte[] bytes, int start,
+                int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != bytes[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
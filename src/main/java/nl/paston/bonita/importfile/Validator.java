@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts every cell of a file without pushing anything to Bonita and
+ * counts, per column, the empty values and the values that cannot be
+ * converted. Records are converted in batches on all submitter threads.
+ * A column with a header field whose type or arguments cannot be compiled
+ * makes the file invalid, as its values would be skipped on import.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class Validator {
+
+    private static final Logger log = LoggerFactory.getLogger(Validator.class);
+
+    private static final int BATCH_SIZE = 1024;
+
+    private final HeaderPlan headerPlan;
+    private final int maxOffenders;
+    private final ColumnStats[] columnStats;
+    private final boolean[] unusable;
+    private final TreeSet<Long> wrongSizeRecords = new TreeSet<>();
+    private long records;
+    private long wrongSize;
+    private long failedBatches;
+
+    protected Validator(HeaderPlan headerPlan, int maxOffenders) {
+        this.headerPlan = headerPlan;
+        this.maxOffenders = maxOffenders;
+        this.columnStats = new ColumnStats[headerPlan.size()];
+        this.unusable = new boolean[headerPlan.size()];
+        for (int i = 0; i < columnStats.length; i++) {
+            columnStats[i] = new ColumnStats();
+            HeaderPlan.Column column = headerPlan.getColumn(i);
+            unusable[i] = column.isSkipped() && !column.isRoute()
+                    && Main.getHeaderField(column.getFullHeaderValue()) != null;
+        }
+    }
+
+    protected void validate(Iterator<CSVRecord> iterator, int threads)
+            throws InterruptedException {
+        ImportPipeline pipeline = new ImportPipeline(threads, threads * 2);
+        while (iterator.hasNext()) {
+            List<CSVRecord> batch = new ArrayList<>(BATCH_SIZE);
+            while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                batch.add(iterator.next());
+            }
+            pipeline.submit(() -> validate(batch));
+        }
+        pipeline.awaitCompletion();
+        synchronized (this) {
+            failedBatches += pipeline.getFailed();
+        }
+        log.debug("Validated " + records + " records.");
+    }
+
+    private void validate(List<CSVRecord> batch) {
+        ColumnStats[] batchStats = new ColumnStats[columnStats.length];
+        for (int i = 0; i < batchStats.length; i++) {
+            batchStats[i] = new ColumnStats();
+        }
+        TreeSet<Long> batchWrongSizeRecords = new TreeSet<>();
+        long batchWrongSize = 0;
+        for (CSVRecord record : batch) {
+            long recordNumber = record.getRecordNumber() - 1;
+            if (record.size() != columnStats.length) {
+                batchWrongSize++;
+                addOffender(batchWrongSizeRecords, recordNumber);
+            }
+            int size = Math.min(record.size(), columnStats.length);
+            for (int i = 0; i < size; i++) {
+                HeaderPlan.Column column = headerPlan.getColumn(i);
+                if (column.isSkipped()) {
+                    continue;
+                }
+                String value = record.get(i);
+                ColumnStats stats = batchStats[i];
+                if (value.isEmpty()) {
+                    stats.empty++;
+                } else if (column.convert(value) == null) {
+                    stats.invalid++;
+                    addOffender(stats.offenders, recordNumber);
+                } else {
+                    stats.valid++;
+                }
+            }
+        }
+        synchronized (this) {
+            records += batch.size();
+            wrongSize += batchWrongSize;
+            for (Long recordNumber : batchWrongSizeRecords) {
+                addOffender(wrongSizeRecords, recordNumber);
+            }
+            for (int i = 0; i < columnStats.length; i++) {
+                columnStats[i].add(batchStats[i]);
+            }
+        }
+    }
+
+    /**
+     * Keeps the lowest record numbers only.
+     */
+    private void addOffender(TreeSet<Long> offenders, long recordNumber) {
+        if (offenders.size() < maxOffenders) {
+            offenders.add(recordNumber);
+        } else if (recordNumber < offenders.last()) {
+            offenders.pollLast();
+            offenders.add(recordNumber);
+        }
+    }
+
+    /**
+     * @return whether every record was validated and has valid values only.
+     */
+    protected synchronized boolean isValid() {
+        if (wrongSize > 0 || failedBatches > 0) {
+            return false;
+        }
+        for (int i = 0; i < columnStats.length; i++) {
+            if (unusable[i] || columnStats[i].invalid > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the column has a header field but is skipped, because
+     * its type is unknown or its arguments are invalid.
+     */
+    protected boolean isUnusable(int column) {
+        return unusable[column];
+    }
+
+    protected synchronized long getInvalid(int column) {
+        return columnStats[column].invalid;
+    }
+
+    protected synchronized long getEmpty(int column) {
+        return columnStats[column].empty;
+    }
+
+    protected synchronized List<Long> getOffenders(int column) {
+        return new ArrayList<>(columnStats[column].offenders);
+    }
+
+    protected synchronized void printReport(PrintStream out) {
+        out.println("Validated " + records + " records.");
+        if (wrongSize > 0) {
+            out.println("Records with a wrong number of values: " + wrongSize
+                    + " " + wrongSizeRecords);
+        }
+        if (failedBatches > 0) {
+            out.println("Batches that could not be validated: "
+                    + failedBatches + " of at most " + BATCH_SIZE
+                    + " records each, see the log.");
+        }
+        for (int i = 0; i < columnStats.length; i++) {
+            HeaderPlan.Column column = headerPlan.getColumn(i);
+            ColumnStats stats = columnStats[i];
+            StringBuilder line = new StringBuilder();
+            line.append(i + 1).append(". ").append(column.getFullHeaderValue());
+            if (unusable[i]) {
+                line.append(": skipped, unknown type or invalid arguments");
+            } else if (column.isSkipped()) {
+                line.append(": skipped");
+            } else {
+                line.append(": ").append(stats.valid).append(" valid, ")
+                        .append(stats.empty).append(" empty, ")
+                        .append(stats.invalid).append(" not a ")
+                        .append(column.getType());
+                if (stats.invalid > 0) {
+                    line.append(" ").append(stats.offenders);
+                }
+            }
+            out.println(line);
+        }
+        out.println(isValid() ? "File is valid." : "File is not valid.");
+    }
+
+    private class ColumnStats {
+
+        private long valid;
+        private long empty;
+        private long invalid;
+        private final TreeSet<Long> offenders = new TreeSet<>();
+
+        private void add(ColumnStats other) {
+            valid += other.valid;
+            empty += other.empty;
+            invalid += other.invalid;
+            for (Long recordNumber : other.offenders) {
+                addOffender(offenders, recordNumber);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,710 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the first sheet of an Excel workbook as records, with the same
+ * values as the records of the sheet saved as CSV: booleans as the Excel
+ * true and false values, numbers in the general format and dates in the
+ * pattern of the DATE or LOCALDATE type of their column. Empty rows are
+ * left out and rows are filled up to the width of the header.
+ * <p>
+ * The sheet is streamed from the zip file. The shared strings of the
+ * workbook are copied to a temporary file once and looked up by position,
+ * so the heap does not grow with the size of the workbook.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+class XlsxReader implements Iterator<CSVRecord>, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(XlsxReader.class);
+
+    private static final String WORKBOOK = "xl/workbook.xml";
+    private static final String WORKBOOK_RELATIONS = "xl/_rels/workbook.xml.rels";
+    private static final String SHARED_STRINGS = "xl/sharedStrings.xml";
+    private static final String STYLES = "xl/styles.xml";
+    private static final String FIRST_SHEET = "xl/worksheets/sheet1.xml";
+    private static final String RELATIONSHIPS
+            = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final LocalDate EPOCH_1900 = LocalDate.of(1899, 12, 30);
+    private static final LocalDate EPOCH_1904 = LocalDate.of(1904, 1, 1);
+    private static final MathContext GENERAL = new MathContext(15);
+    private static final XMLInputFactory XML = createFactory();
+
+    private final ZipFile zip;
+    private final String trueValue;
+    private final String falseValue;
+    private final String datePattern;
+    private final SharedStrings sharedStrings;
+    private final BitSet dateStyles;
+    private final LocalDate epoch;
+    private final CountingInputStream sheetIn;
+    private final XMLStreamReader sheet;
+    private final long sheetSize;
+    private final CSVRecord fullHeader;
+    private final DateTimeFormatter[] dateFormatters;
+    private final DateTimeFormatter defaultDateFormatter;
+    private String[] nextValues;
+    private long recordNumber;
+
+    private XlsxReader(File file, String trueValue, String falseValue,
+            String datePattern) throws IOException, XMLStreamException {
+        this.zip = new ZipFile(file);
+        this.trueValue = trueValue;
+        this.falseValue = falseValue;
+        this.datePattern = datePattern;
+        try {
+            String sheetName = findFirstSheet();
+            this.epoch = isDate1904() ? EPOCH_1904 : EPOCH_1900;
+            this.dateStyles = readDateStyles();
+            this.sharedStrings = SharedStrings.read(zip, getEntry(SHARED_STRINGS));
+            ZipEntry sheetEntry = getEntry(sheetName);
+            if (sheetEntry == null) {
+                throw new IOException("Workbook has no sheet: " + sheetName);
+            }
+            this.sheetSize = sheetEntry.getSize();
+            this.sheetIn = new CountingInputStream(zip.getInputStream(sheetEntry));
+            this.sheet = XML.createXMLStreamReader(sheetIn);
+            this.defaultDateFormatter = Converters.getPrinter(datePattern);
+            String[] header = readRow(0);
+            this.fullHeader = header == null ? null
+                    : CsvRecords.create(header, ++recordNumber);
+            this.dateFormatters = getDateFormatters(header);
+            this.nextValues = header == null ? null : readRow(header.length);
+        } catch (IOException | XMLStreamException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens the workbook and reads the header from its first sheet.
+     */
+    protected static XlsxReader open(File file, String trueValue,
+            String falseValue, String datePattern) throws IOException {
+        try {
+            return new XlsxReader(file, trueValue, falseValue, datePattern);
+        } catch (XMLStreamException ex) {
+            throw new IOException("Workbook cannot be read: "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return whether the file is an Excel workbook, going by its name.
+     */
+    protected static boolean isWorkbook(File file) {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".xlsx");
+    }
+
+    /**
+     * @return the first row of the sheet, or null if the sheet is empty.
+     */
+    protected CSVRecord getFullHeader() {
+        return fullHeader;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextValues != null;
+    }
+
+    @Override
+    public CSVRecord next() {
+        if (nextValues == null) {
+            throw new NoSuchElementException();
+        }
+        CSVRecord record = CsvRecords.create(nextValues, ++recordNumber);
+        try {
+            nextValues = readRow(fullHeader.size());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (XMLStreamException ex) {
+            throw new UncheckedIOException(new IOException(
+                    "Sheet cannot be read: " + ex.getMessage(), ex));
+        }
+        return record;
+    }
+
+    /**
+     * @return the part of the sheet that has been read, as a fraction
+     * between 0 and 1, or -1 when the size of the sheet is not known.
+     */
+    protected double getFractionRead() {
+        return sheetSize <= 0 ? -1
+                : Math.min(1, (double) sheetIn.count / sheetSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (sheet != null) {
+                sheet.close();
+            }
+        } catch (XMLStreamException ex) {
+            log.debug("Cannot close sheet.", ex);
+        }
+        if (sharedStrings != null) {
+            sharedStrings.close();
+        }
+        zip.close();
+    }
+
+    /**
+     * Reads the values of the next row that is not empty, filled up to the
+     * given width.
+     *
+     * @return the values, or null at the end of the sheet.
+     */
+    private String[] readRow(int width) throws IOException,
+            XMLStreamException {
+        while (sheet.hasNext()) {
+            int event = sheet.next();
+            if (event == XMLStreamConstants.START_ELEMENT
+                    && "row".equals(sheet.getLocalName())) {
+                List<String> values = readCells();
+                if (values.isEmpty()) {
+                    continue;
+                }
+                while (values.size() < width) {
+                    values.add("");
+                }
+                return values.toArray(new String[values.size()]);
+            }
+        }
+        return null;
+    }
+
+    private List<String> readCells() throws IOException, XMLStreamException {
+        List<String> values = new ArrayList<>();
+        boolean empty = true;
+        while (sheet.hasNext()) {
+            int event = sheet.next();
+            if (event == XMLStreamConstants.END_ELEMENT
+                    && "row".equals(sheet.getLocalName())) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT
+                    || !"c".equals(sheet.getLocalName())) {
+                continue;
+            }
+            String reference = sheet.getAttributeValue(null, "r");
+            int column = reference == null ? values.size()
+                    : getColumn(reference);
+            String type = sheet.getAttributeValue(null, "t");
+            String style = sheet.getAttributeValue(null, "s");
+            String value = readCell(column, type,
+                    style == null ? 0 : Integer.parseInt(style));
+            while (values.size() < column) {
+                values.add("");
+            }
+            values.add(value);
+            empty &= value.isEmpty();
+        }
+        if (empty) {
+            values.clear();
+        }
+        return values;
+    }
+
+    private String readCell(int column, String type, int style)
+            throws IOException, XMLStreamException {
+        String value = null;
+        StringBuilder inline = null;
+        while (sheet.hasNext()) {
+            int event = sheet.next();
+            if (event == XMLStreamConstants.END_ELEMENT
+                    && "c".equals(sheet.getLocalName())) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String element = sheet.getLocalName();
+            if ("v".equals(element)) {
+                value = sheet.getElementText();
+            } else if ("t".equals(element)) {
+                if (inline == null) {
+                    inline = new StringBuilder();
+                }
+                inline.append(sheet.getElementText());
+            }
+        }
+        if ("inlineStr".equals(type)) {
+            return inline == null ? "" : inline.toString();
+        }
+        if (value == null || value.isEmpty()) {
+            return "";
+        }
+        if (type == null || "n".equals(type)) {
+            return dateStyles.get(style) ? formatDate(column, value)
+                    : formatNumber(value);
+        }
+        switch (type) {
+            case "s":
+                return sharedStrings.get(Integer.parseInt(value.trim()));
+            case "b":
+                return "1".equals(value.trim()) ? trueValue : falseValue;
+            default:
+                // Strings of formulas, errors and ISO 8601 dates.
+                return value;
+        }
+    }
+
+    /**
+     * Formats a number like the general format of Excel: at most 15
+     * significant digits and no trailing zeros.
+     */
+    private static String formatNumber(String value) {
+        try {
+            BigDecimal number = new BigDecimal(value.trim()).round(GENERAL)
+                    .stripTrailingZeros();
+            return number.signum() == 0 ? "0" : number.toPlainString();
+        } catch (NumberFormatException ex) {
+            return value;
+        }
+    }
+
+    private String formatDate(int column, String value) {
+        double serial;
+        try {
+            serial = Double.parseDouble(value.trim());
+        } catch (NumberFormatException ex) {
+            return value;
+        }
+        long days = (long) Math.floor(serial);
+        LocalDateTime dateTime = epoch.plusDays(days).atStartOfDay()
+                .plusNanos(Math.round((serial - days) * 86_400_000L)
+                        * 1_000_000L);
+        DateTimeFormatter formatter = column < dateFormatters.length
+                && dateFormatters[column] != null ? dateFormatters[column]
+                : defaultDateFormatter;
+        try {
+            return formatter == null ? dateTime.toLocalDate().toString()
+                    : formatter.format(dateTime);
+        } catch (DateTimeException ex) {
+            return dateTime.toString();
+        }
+    }
+
+    /**
+     * @return the formatter of every column with a DATE or LOCALDATE type.
+     */
+    private DateTimeFormatter[] getDateFormatters(String[] header) {
+        if (header == null) {
+            return new DateTimeFormatter[0];
+        }
+        DateTimeFormatter[] formatters = new DateTimeFormatter[header.length];
+        for (int i = 0; i < header.length; i++) {
+            String type = header[i].indexOf('(') < 0 ? null
+                    : Main.getHeaderFieldType(header[i]);
+            if (type == null) {
+                continue;
+            }
+            int colon = type.indexOf(':');
+            String name = colon < 0 ? type : type.substring(0, colon);
+            if ("DATE".equals(name) || "LOCALDATE".equals(name)) {
+                formatters[i] = Converters.getPrinter(colon < 0
+                        ? datePattern : type.substring(colon + 1));
+            }
+        }
+        return formatters;
+    }
+
+    /**
+     * @return the zero-based column of a cell reference such as {@code AB12}.
+     */
+    protected static int getColumn(String reference) {
+        int column = 0;
+        for (int i = 0; i < reference.length(); i++) {
+            char c = reference.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    private String findFirstSheet() throws IOException, XMLStreamException {
+        String relationId = null;
+        try (XmlPart workbook = XmlPart.open(zip, getEntry(WORKBOOK))) {
+            while (workbook != null && workbook.reader.hasNext()) {
+                if (workbook.reader.next() == XMLStreamConstants.START_ELEMENT
+                        && "sheet".equals(workbook.reader.getLocalName())) {
+                    relationId = workbook.reader.getAttributeValue(
+                            RELATIONSHIPS, "id");
+                    break;
+                }
+            }
+        }
+        if (relationId == null) {
+            return FIRST_SHEET;
+        }
+        try (XmlPart relations = XmlPart.open(zip,
+                getEntry(WORKBOOK_RELATIONS))) {
+            while (relations != null && relations.reader.hasNext()) {
+                if (relations.reader.next() == XMLStreamConstants.START_ELEMENT
+                        && relationId.equals(relations.reader
+                                .getAttributeValue(null, "Id"))) {
+                    String target = relations.reader.getAttributeValue(null,
+                            "Target");
+                    return target.startsWith("/") ? target.substring(1)
+                            : "xl/" + target;
+                }
+            }
+        }
+        return FIRST_SHEET;
+    }
+
+    private boolean isDate1904() throws IOException, XMLStreamException {
+        try (XmlPart workbook = XmlPart.open(zip, getEntry(WORKBOOK))) {
+            while (workbook != null && workbook.reader.hasNext()) {
+                if (workbook.reader.next() == XMLStreamConstants.START_ELEMENT
+                        && "workbookPr".equals(workbook.reader.getLocalName())) {
+                    String date1904 = workbook.reader.getAttributeValue(null,
+                            "date1904");
+                    return "1".equals(date1904) || "true".equals(date1904);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the cell styles with a number format for dates.
+     */
+    private BitSet readDateStyles() throws IOException, XMLStreamException {
+        BitSet dates = new BitSet();
+        Map<Integer, String> formats = new HashMap<>();
+        try (XmlPart styles = XmlPart.open(zip, getEntry(STYLES))) {
+            boolean cellStyles = false;
+            int style = 0;
+            while (styles != null && styles.reader.hasNext()) {
+                int event = styles.reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT
+                        && "cellXfs".equals(styles.reader.getLocalName())) {
+                    break;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String element = styles.reader.getLocalName();
+                if ("numFmt".equals(element)) {
+                    formats.put(Integer.valueOf(styles.reader
+                            .getAttributeValue(null, "numFmtId")),
+                            styles.reader.getAttributeValue(null,
+                                    "formatCode"));
+                } else if ("cellXfs".equals(element)) {
+                    cellStyles = true;
+                } else if (cellStyles && "xf".equals(element)) {
+                    String formatId = styles.reader.getAttributeValue(null,
+                            "numFmtId");
+                    if (formatId != null && isDateFormat(
+                            Integer.parseInt(formatId), formats)) {
+                        dates.set(style);
+                    }
+                    style++;
+                }
+            }
+        }
+        return dates;
+    }
+
+    private static boolean isDateFormat(int formatId,
+            Map<Integer, String> formats) {
+        if ((formatId >= 14 && formatId <= 22)
+                || (formatId >= 45 && formatId <= 47)) {
+            return true;
+        }
+        String code = formats.get(formatId);
+        if (code == null) {
+            return false;
+        }
+        // Leave out quoted text, escaped characters and [colors].
+        String plain = code.replaceAll("\"[^\"]*\"|\\\\.|\\[[^\\]]*\\]", "")
+                .toLowerCase(Locale.ROOT);
+        return plain.matches(".*[dmyhs].*");
+    }
+
+    private ZipEntry getEntry(String name) {
+        return name == null ? null : zip.getEntry(name);
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * A part of the workbook that is read as XML.
+     */
+    private static final class XmlPart implements Closeable {
+
+        private final InputStream in;
+        private final XMLStreamReader reader;
+
+        private XmlPart(InputStream in) throws XMLStreamException {
+            this.in = in;
+            this.reader = XML.createXMLStreamReader(in);
+        }
+
+        /**
+         * @return the part, or null when the workbook does not have it.
+         */
+        private static XmlPart open(ZipFile zip, ZipEntry entry)
+                throws IOException, XMLStreamException {
+            if (entry == null) {
+                return null;
+            }
+            InputStream in = zip.getInputStream(entry);
+            try {
+                return new XmlPart(in);
+            } catch (XMLStreamException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+                log.debug("Cannot close part.", ex);
+            }
+            in.close();
+        }
+
+    }
+
+    /**
+     * The shared strings of the workbook in a temporary file. The file holds
+     * the offset of every string, followed by the strings themselves.
+     */
+    private static final class SharedStrings implements Closeable {
+
+        private static final int CACHE_SIZE = 4096;
+
+        private final File file;
+        private final RandomAccessFile data;
+        private final FileChannel channel;
+        private final long count;
+        private final long stringsStart;
+        private final ByteBuffer offset = ByteBuffer.allocate(16);
+        private final String[] cache = new String[CACHE_SIZE];
+        private final int[] cached = new int[CACHE_SIZE];
+
+        private SharedStrings(File file, long count, long stringsStart)
+                throws IOException {
+            this.file = file;
+            this.data = new RandomAccessFile(file, "r");
+            this.channel = data.getChannel();
+            this.count = count;
+            this.stringsStart = stringsStart;
+            Arrays.fill(cached, -1);
+        }
+
+        private static SharedStrings read(ZipFile zip, ZipEntry entry)
+                throws IOException, XMLStreamException {
+            File strings = File.createTempFile("shared-strings", ".tmp");
+            File offsets = File.createTempFile("shared-offsets", ".tmp");
+            try {
+                long count = 0;
+                long position = 0;
+                try (XmlPart part = XmlPart.open(zip, entry);
+                        DataOutputStream stringsOut = new DataOutputStream(
+                                new BufferedOutputStream(
+                                        new FileOutputStream(strings), 1 << 16));
+                        DataOutputStream offsetsOut = new DataOutputStream(
+                                new BufferedOutputStream(
+                                        new FileOutputStream(offsets), 1 << 16))) {
+                    StringBuilder text = null;
+                    while (part != null && part.reader.hasNext()) {
+                        int event = part.reader.next();
+                        if (event == XMLStreamConstants.START_ELEMENT) {
+                            String element = part.reader.getLocalName();
+                            if ("si".equals(element)) {
+                                text = new StringBuilder();
+                            } else if ("t".equals(element) && text != null) {
+                                text.append(part.reader.getElementText());
+                            } else if ("rPh".equals(element)) {
+                                // Phonetic runs are not part of the value.
+                                skip(part.reader);
+                            }
+                        } else if (event == XMLStreamConstants.END_ELEMENT
+                                && "si".equals(part.reader.getLocalName())) {
+                            byte[] utf8 = text.toString()
+                                    .getBytes(StandardCharsets.UTF_8);
+                            offsetsOut.writeLong(position);
+                            stringsOut.writeInt(utf8.length);
+                            stringsOut.write(utf8);
+                            position += 4 + utf8.length;
+                            count++;
+                            text = null;
+                        }
+                    }
+                }
+                // Append the strings after the offsets.
+                try (FileOutputStream out = new FileOutputStream(offsets, true);
+                        FileChannel from = new RandomAccessFile(strings, "r")
+                                .getChannel()) {
+                    long copied = 0;
+                    while (copied < from.size()) {
+                        copied += from.transferTo(copied,
+                                from.size() - copied, out.getChannel());
+                    }
+                }
+                log.debug("Copied " + count + " shared strings.");
+                return new SharedStrings(offsets, count, count * 8);
+            } catch (IOException | XMLStreamException | RuntimeException ex) {
+                delete(offsets);
+                throw ex;
+            } finally {
+                delete(strings);
+            }
+        }
+
+        private static void skip(XMLStreamReader reader)
+                throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0 && reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        }
+
+        private synchronized String get(int index) throws IOException {
+            if (index < 0 || index >= count) {
+                throw new IOException("No shared string " + index);
+            }
+            int slot = index & (CACHE_SIZE - 1);
+            if (cached[slot] == index) {
+                return cache[slot];
+            }
+            offset.clear().limit(8);
+            readFully(offset, index * 8L);
+            long position = stringsStart + offset.getLong(0);
+            offset.clear().limit(4);
+            readFully(offset, position);
+            ByteBuffer bytes = ByteBuffer.allocate(offset.getInt(0));
+            readFully(bytes, position + 4);
+            String value = new String(bytes.array(), StandardCharsets.UTF_8);
+            cache[slot] = value;
+            cached[slot] = index;
+            return value;
+        }
+
+        private void readFully(ByteBuffer buffer, long position)
+                throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Shared strings file is damaged.");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+            delete(file);
+        }
+
+        private static void delete(File file) {
+            if (!file.delete() && file.exists()) {
+                file.deleteOnExit();
+            }
+        }
+
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private volatile long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length)
+                throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class AsyncHttpClientTest {
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(8);
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(executor);
+        server.createContext("/echo", exchange -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = exchange.getRequestBody().read(buffer)) > 0) {
+                body.write(buffer, 0, count);
+            }
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // The client reuses the connection as soon as the response is
+                // in, so leave before responding.
+                active.decrementAndGet();
+            }
+            byte[] bytes = (exchange.getRequestMethod() + " "
+                    + body.toString("UTF-8")).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.createContext("/gzip", exchange -> {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                for (int i = 0; i < 10000; i++) {
+                    out.write('x');
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            // Length 0 makes the server send a chunked body.
+            exchange.sendResponseHeaders(201, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(compressed.toByteArray());
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRequestsShareThePool() throws Exception {
+        try (AsyncHttpClient client = new AsyncHttpClient(
+                new HttpTransport.Settings(3, 3, 5000, 5000, 30000, false),
+                Runnable::run)) {
+            List<CompletableFuture<AsyncHttpClient.Response>> responses
+                    = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                responses.add(client.send(AsyncHttpClient.Request.post(
+                        uri("/echo"), "text/plain",
+                        ("body " + i).getBytes(StandardCharsets.UTF_8))));
+            }
+            for (int i = 0; i < 50; i++) {
+                AsyncHttpClient.Response response = responses.get(i).join();
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals("POST body " + i, response.getText());
+            }
+            Assert.assertEquals(50, client.getRequests());
+            Assert.assertTrue(client.getOpened() <= 3);
+            Assert.assertTrue(client.getWaits() > 0);
+            Assert.assertTrue(maxActive.get() <= 3);
+            Assert.assertEquals(0, client.getInFlight());
+        }
+    }
+
+    @Test
+    public void testChunkedCompressedResponse() throws Exception {
+        try (AsyncHttpClient client = new AsyncHttpClient(
+                new HttpTransport.Settings(1, 1, 5000, 5000, 30000, true),
+                Runnable::run)) {
+            AsyncHttpClient.Response response = client.send(
+                    AsyncHttpClient.Request.get(uri("/gzip"))).join();
+            Assert.assertEquals(201, response.getStatus());
+            Assert.assertEquals(10000, response.getBody().length);
+            Assert.assertEquals("GET ", client.send(AsyncHttpClient.Request
+                    .get(uri("/echo"))).join().getText());
+            Assert.assertEquals(1, client.getOpened());
+        }
+    }
+
+    @Test
+    public void testBadRequestFailsOnItsOwn() throws Exception {
+        try (AsyncHttpClient client = new AsyncHttpClient(
+                new HttpTransport.Settings(1, 1, 5000, 5000, 30000, false),
+                Runnable::run)) {
+            try {
+                client.send(AsyncHttpClient.Request.get(
+                        URI.create("http://localhost:99999/echo"))).join();
+                Assert.fail("The port does not exist.");
+            } catch (CompletionException ex) {
+                Assert.assertTrue(ex.getCause() instanceof IOException);
+            }
+            Assert.assertEquals("GET ", client.send(AsyncHttpClient.Request
+                    .get(uri("/echo"))).join().getText());
+            Assert.assertEquals(0, client.getInFlight());
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getAddress().getPort()
+                + path);
+    }
+
+}
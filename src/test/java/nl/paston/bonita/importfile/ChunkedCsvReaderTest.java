@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class ChunkedCsvReaderTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void tearDown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void testSameRecordsAsSingleParser() throws IOException {
+        String csv = createCsv(500, true);
+        for (int chunkSize : new int[]{1, 7, 64, 1000, 1 << 20}) {
+            assertSameRecords(csv, chunkSize);
+        }
+    }
+
+    @Test
+    public void testWithoutTrailingLineBreak() throws IOException {
+        String csv = createCsv(100, false);
+        for (int chunkSize : new int[]{5, 50, 1 << 20}) {
+            assertSameRecords(csv, chunkSize);
+        }
+    }
+
+    @Test
+    public void testHeaderOnly() throws IOException {
+        File file = write("a (STRING),b (INTEGER)\r\n");
+        try (ChunkedCsvReader reader = ChunkedCsvReader.open(file,
+                StandardCharsets.UTF_8, 4, POOL)) {
+            Assert.assertEquals("b (INTEGER)", reader.getFullHeader().get(1));
+            Assert.assertFalse(reader.parse(Function.identity(), POOL).hasNext());
+        }
+    }
+
+    private void assertSameRecords(String csv, int chunkSize)
+            throws IOException {
+        List<CSVRecord> expected = CSVFormat.EXCEL.parse(
+                new StringReader(csv)).getRecords();
+        File file = write(csv);
+        try (ChunkedCsvReader reader = ChunkedCsvReader.open(file,
+                StandardCharsets.UTF_8, chunkSize, POOL)) {
+            Assert.assertEquals(toList(expected.get(0)),
+                    toList(reader.getFullHeader()));
+            Iterator<CSVRecord> records = reader.parse(Function.identity(), POOL);
+            for (int i = 1; i < expected.size(); i++) {
+                CSVRecord record = records.next();
+                Assert.assertEquals(expected.get(i).getRecordNumber(),
+                        record.getRecordNumber());
+                Assert.assertEquals(toList(expected.get(i)), toList(record));
+            }
+            Assert.assertFalse(records.hasNext());
+        }
+    }
+
+    private String createCsv(int rows, boolean trailingLineBreak) {
+        Random random = new Random(42);
+        StringBuilder csv = new StringBuilder(
+                "request.car.model (STRING),remark (TEXT),length (INTEGER)\n");
+        for (int i = 0; i < rows; i++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    csv.append("\"Model\nS\",\"say \"\"hi\"\"\r\nnow\",").append(i);
+                    break;
+                case 1:
+                    csv.append("Zoë,\"a,b\",").append(i);
+                    break;
+                case 2:
+                    csv.append("");
+                    break;
+                default:
+                    csv.append("BMW,plain,").append(i);
+            }
+            csv.append(random.nextBoolean() ? "\n" : "\r\n");
+        }
+        csv.append("last,row,").append(rows);
+        if (trailingLineBreak) {
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    private File write(String csv) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String> toList(CSVRecord record) {
+        List<String> values = new ArrayList<>();
+        record.forEach(values::add);
+        return values;
+    }
+
+}
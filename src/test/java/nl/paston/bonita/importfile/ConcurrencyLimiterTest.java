@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void testLimitGrowsWhileUsedAndStable() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 2, 8, 0);
+        for (int round = 0; round < 100; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                limiter.acquire();
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.release(RTT, false);
+            }
+        }
+        Assert.assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhenNotUsed() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 4, 8, 0);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(RTT, false);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testOverloadHalvesLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 8, 8, 0);
+        limiter.acquire();
+        limiter.release(RTT, true);
+        Assert.assertEquals(4, limiter.getLimit());
+        limiter.acquire();
+        limiter.release(RTT, true);
+        Assert.assertEquals(2, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(RTT, true);
+        }
+        Assert.assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void testLatencySpikeCutsLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 8, 8, 0);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(RTT, false);
+        }
+        Assert.assertEquals(8, limiter.getLimit());
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+            limiter.release(RTT * 10, false);
+        }
+        Assert.assertTrue(limiter.getLimit() < 8);
+    }
+
+    @Test
+    public void testFixedLimitDoesNotAdapt() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(false, 1, 4, 0);
+        Assert.assertEquals(4, limiter.getLimit());
+        limiter.acquire();
+        limiter.release(RTT, true);
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testStartsPerSecond() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(false, 1, 4, 100);
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            limiter.acquire();
+            limiter.release(0, false);
+        }
+        Assert.assertTrue(System.nanoTime() - start
+                >= TimeUnit.MILLISECONDS.toNanos(95));
+    }
+
+    @Test(timeout = 5000)
+    public void testInterruptedAcquireFreesSlot() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(false, 1, 1, 10);
+        limiter.acquire();
+        limiter.release(0, false);
+        Thread.currentThread().interrupt();
+        try {
+            limiter.acquire();
+            Assert.fail("Expected an InterruptedException.");
+        } catch (InterruptedException ex) {
+            // The slot is given back.
+        }
+        limiter.acquire();
+        limiter.release(0, false);
+    }
+
+}
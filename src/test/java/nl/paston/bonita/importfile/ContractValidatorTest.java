@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bonitasoft.engine.bpm.contract.InputDefinition;
+import org.bonitasoft.engine.bpm.contract.Type;
+import org.bonitasoft.engine.bpm.contract.impl.ContractDefinitionImpl;
+import org.bonitasoft.engine.bpm.contract.impl.InputDefinitionImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class ContractValidatorTest {
+
+    private final ContractValidator validator;
+
+    public ContractValidatorTest() {
+        ContractDefinitionImpl contract = new ContractDefinitionImpl();
+        List<InputDefinition> car = Arrays.asList(
+                new InputDefinitionImpl("make", Type.TEXT, "", false),
+                new InputDefinitionImpl("weight", Type.INTEGER, "", false),
+                new InputDefinitionImpl("listPrice", Type.DECIMAL, "", false),
+                new InputDefinitionImpl("isTurbo", Type.BOOLEAN, "", false));
+        List<InputDefinition> more = Arrays.asList(
+                new InputDefinitionImpl("kee", Type.TEXT, "", false),
+                new InputDefinitionImpl("val", Type.TEXT, "", false));
+        contract.addInput(new InputDefinitionImpl("request", "", false,
+                Arrays.asList(
+                        new InputDefinitionImpl("car", "", false, car),
+                        new InputDefinitionImpl("startDate", Type.DATE, "",
+                                false),
+                        new InputDefinitionImpl("covers", Type.TEXT, "",
+                                true))));
+        contract.addInput(new InputDefinitionImpl("more", "", true, more));
+        validator = new ContractValidator(contract);
+    }
+
+    @Test
+    public void testValidMapIsCoerced() {
+        Map<String, Serializable> car = new HashMap<>();
+        car.put("make", "Volvo");
+        car.put("weight", 1450L);
+        car.put("listPrice", new BigDecimal("32500.50"));
+        car.put("isTurbo", Boolean.TRUE);
+        Map<String, Serializable> request = new HashMap<>();
+        request.put("car", (Serializable) car);
+        request.put("startDate", LocalDate.of(2016, 1, 1));
+        request.put("covers", "WA");
+        Map<String, Serializable> map = new HashMap<>();
+        map.put("request", (Serializable) request);
+
+        Assert.assertTrue(validator.validate(map).isEmpty());
+        Assert.assertEquals(1450, car.get("weight"));
+        Assert.assertEquals(32500.5, car.get("listPrice"));
+        Assert.assertTrue(request.get("startDate") instanceof Date);
+        Assert.assertEquals(Arrays.asList("WA"), request.get("covers"));
+    }
+
+    @Test
+    public void testViolations() {
+        Map<String, Serializable> car = new HashMap<>();
+        car.put("weight", "heavy");
+        car.put("isTurbo", "maybe");
+        Map<String, Serializable> request = new HashMap<>();
+        request.put("car", (Serializable) car);
+        request.put("startDate", "2016/01/01");
+        Map<String, Serializable> map = new HashMap<>();
+        map.put("request", (Serializable) request);
+        map.put("more", "polKey");
+
+        List<String> violations = validator.validate(map);
+        Assert.assertEquals(violations.toString(), 4, violations.size());
+        Assert.assertTrue(violations.contains(
+                "request.car.weight: heavy is not a INTEGER"));
+        Assert.assertTrue(violations.contains(
+                "more[0]: polKey for a complex input"));
+    }
+
+    @Test
+    public void testListForSingleInput() {
+        Map<String, Serializable> request = new HashMap<>();
+        request.put("startDate", new ArrayList<>());
+        Map<String, Serializable> map = new HashMap<>();
+        map.put("request", (Serializable) request);
+
+        Assert.assertEquals(Arrays.asList(
+                "request.startDate: a list for a single input"),
+                validator.validate(map));
+    }
+
+    @Test
+    public void testUnexpectedInputIsIgnored() {
+        Map<String, Serializable> map = new HashMap<>();
+        map.put("other", "value");
+        Assert.assertTrue(validator.validate(map).isEmpty());
+    }
+
+    @Test
+    public void testLossyDecimalIsNotCoerced() {
+        Assert.assertNull(ContractValidator.coerce(Type.DECIMAL,
+                new BigDecimal("0.10000000000000000001")));
+        Assert.assertNull(ContractValidator.coerce(Type.DECIMAL,
+                Long.MAX_VALUE));
+        Assert.assertEquals(0.1, ContractValidator.coerce(Type.DECIMAL, 0.1f));
+    }
+
+    @Test
+    public void testListInput() {
+        ContractValidator elements = validator.forListInput("more");
+        Assert.assertNotNull(elements);
+        Assert.assertNull(validator.forListInput("request"));
+        Assert.assertNull(validator.forListInput("missing"));
+
+        Map<String, Serializable> map = new HashMap<>();
+        map.put("kee", "a");
+        map.put("val", 1L);
+        Assert.assertTrue(elements.validate(map).isEmpty());
+        Assert.assertEquals("1", map.get("val"));
+        map.put("val", new ArrayList<>());
+        Assert.assertEquals(1, elements.validate(map).size());
+    }
+
+}
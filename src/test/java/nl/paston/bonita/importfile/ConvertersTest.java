@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class ConvertersTest {
+
+    private final Converters converters
+            = new Converters("TRUE", "FALSE", "yyyy/MM/dd");
+
+    @Test
+    public void testDateUsesDefaultPattern() {
+        Object result = converters.get("DATE").convert("2016/02/29");
+        Assert.assertEquals(Date.from(LocalDate.of(2016, 2, 29)
+                .atStartOfDay(ZoneId.systemDefault()).toInstant()), result);
+    }
+
+    @Test
+    public void testDateUsesPatternOfColumn() {
+        Converter converter = converters.get("LOCALDATE:d/M/yyyy");
+        Assert.assertEquals(LocalDate.of(2015, 7, 3), converter.convert("3/7/2015"));
+        Assert.assertNull(converter.convert("2015/07/03"));
+    }
+
+    @Test
+    public void testDateTakesSingleDigitDayAndMonth() {
+        Assert.assertEquals(LocalDate.of(2016, 1, 5),
+                converters.get("LOCALDATE").convert("2016/1/5"));
+        Assert.assertEquals(LocalDate.of(2016, 1, 5),
+                converters.get("LOCALDATE:dd-MM-yyyy").convert("5-1-2016"));
+        Assert.assertNull(converters.get("LOCALDATE").convert("2016/001/5"));
+        // Fields next to each other keep their width.
+        Converter converter = converters.get("LOCALDATE:yyyyMMdd");
+        Assert.assertEquals(LocalDate.of(2016, 1, 5),
+                converter.convert("20160105"));
+        Assert.assertNull(converter.convert("201615"));
+    }
+
+    @Test
+    public void testDateIsStrict() {
+        Assert.assertNull(converters.get("DATE:d/M/yyyy").convert("31/2/2016"));
+    }
+
+    @Test
+    public void testInvalidPatternHasNoConverter() {
+        Assert.assertNull(converters.get("DATE:yyyy/MM/dd{"));
+    }
+
+    @Test
+    public void testBoolean() {
+        Assert.assertEquals(Boolean.TRUE, converters.get("BOOLEAN").convert("TRUE"));
+        Assert.assertNull(converters.get("BOOLEAN").convert("J"));
+        Converter converter = converters.get("BOOLEAN:J/N");
+        Assert.assertEquals(Boolean.TRUE, converter.convert("J"));
+        Assert.assertEquals(Boolean.FALSE, converter.convert("N"));
+        Assert.assertNull(converter.convert("TRUE"));
+    }
+
+    @Test
+    public void testInteger() {
+        Converter converter = converters.get("INTEGER");
+        Assert.assertEquals(-2147483648, converter.convert("-2147483648"));
+        Assert.assertEquals(42, converter.convert("+42"));
+        Assert.assertNull(converter.convert("2147483648"));
+        Assert.assertNull(converter.convert("4.2"));
+        Assert.assertNull(converter.convert("-"));
+        Assert.assertNull(converter.convert(""));
+    }
+
+    @Test
+    public void testLong() {
+        Converter converter = converters.get("LONG");
+        Assert.assertEquals(Long.MAX_VALUE, converter.convert("9223372036854775807"));
+        Assert.assertNull(converter.convert("9223372036854775808"));
+    }
+
+    @Test
+    public void testBigDecimal() {
+        Assert.assertEquals(new BigDecimal("1234.50"),
+                converters.get("BIGDECIMAL").convert("1234.50"));
+        Assert.assertNull(converters.get("BIGDECIMAL").convert("1,5"));
+    }
+
+    @Test
+    public void testByteConvertersAgreeWithConverters() {
+        String[][] cases = {
+            {"INTEGER", "42", "-2147483648", "2147483648", "+7", "-", "", "4.2"},
+            {"LONG", "9223372036854775807", "9223372036854775808", "007"},
+            {"DOUBLE", "1.5", "-0", ".25", "1.", ".", "0.1", "123456789.123456",
+                "1234567890123456789", "1e3", " 2", "NaN", "1,5"},
+            {"FLOAT", "0.1", "16777217", "3.4028235e38", "-2.5"},
+            {"BOOLEAN", "TRUE", "FALSE", "true", ""},
+            {"BOOLEAN:J/N", "J", "N", "TRUE"},
+            {"LOCALDATE", "2016/02/29", "2015/02/29", "2016/2/29", "12016/02/29",
+                "-2016/02/29", "2016/02/291", "2016-02-29", ""},
+            {"LOCALDATE:d/M/yyyy", "3/7/2015", "03/07/2015", "003/7/2015",
+                "31/2/2016", "3/7/15", "+3/7/2015", "3/7/2015 "},
+            {"DATE:dd-MM-yyyy", "29-02-2016", "1-02-2016", "29-02-2016x",
+                "1-2-2016", "001-02-2016"},
+            {"LOCALDATE:MM/dd/yyyy", "1/5/2016", "01/05/2016", "13/5/2016"}
+        };
+        for (String[] values : cases) {
+            Converter converter = converters.get(values[0]);
+            ByteConverter byteConverter = converters.getByteConverter(
+                    values[0], StandardCharsets.UTF_8);
+            Assert.assertNotNull(values[0], byteConverter);
+            for (int i = 1; i < values.length; i++) {
+                byte[] bytes = ("x" + values[i] + "x").getBytes(
+                        StandardCharsets.UTF_8);
+                Assert.assertEquals(values[0] + " " + values[i],
+                        converter.convert(values[i]),
+                        byteConverter.convert(bytes, 1, bytes.length - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testStringTypesHaveNoByteConverter() {
+        Assert.assertNull(converters.getByteConverter("STRING",
+                StandardCharsets.UTF_8));
+        Assert.assertNull(converters.getByteConverter("BIGDECIMAL",
+                StandardCharsets.UTF_8));
+        Assert.assertNull(converters.getByteConverter("MONEY",
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUnknownType() {
+        Assert.assertNull(converters.get("MONEY"));
+    }
+
+}
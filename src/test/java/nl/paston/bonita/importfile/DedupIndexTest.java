@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Iterator;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class DedupIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testClaimAndComplete() throws IOException {
+        File file = new File(folder.getRoot(), "keys.dedup");
+        try (DedupIndex index = DedupIndex.open(file, 1)) {
+            CSVRecord first = record("1,A1");
+            Assert.assertTrue(index.claim(first));
+            // A record in flight with the same key is a duplicate as well.
+            Assert.assertFalse(index.claim(record("2, A1 ")));
+            index.complete(first, true);
+            Assert.assertFalse(index.claim(record("3,A1")));
+
+            CSVRecord failing = record("4,A2");
+            Assert.assertTrue(index.claim(failing));
+            index.complete(failing, false);
+            // The key of a record that failed is released.
+            Assert.assertTrue(index.claim(record("5,A2")));
+
+            // Records without a key are never duplicates.
+            Assert.assertTrue(index.claim(record("6,")));
+            Assert.assertTrue(index.claim(record("7,")));
+            Assert.assertTrue(index.claim(record("8")));
+
+            Assert.assertEquals(1, index.size());
+            Assert.assertEquals(2, index.getSuppressed());
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        File file = new File(folder.getRoot(), "keys.dedup");
+        try (DedupIndex index = DedupIndex.open(file, 0)) {
+            push(index, 0, 1000);
+        }
+        try (DedupIndex index = DedupIndex.open(file, 0)) {
+            Assert.assertEquals(1000, index.size());
+            Assert.assertFalse(index.claim(record("key-999")));
+            Assert.assertTrue(index.claim(record("key-1000")));
+        }
+    }
+
+    @Test
+    public void testReopenAfterCrash() throws IOException {
+        File file = new File(folder.getRoot(), "keys.dedup");
+        File copy = new File(folder.getRoot(), "copy.dedup");
+        try (DedupIndex index = DedupIndex.open(file, 0)) {
+            push(index, 0, 1000);
+            // A copy of a file that is still open was not closed cleanly.
+            Files.copy(file.toPath(), copy.toPath());
+        }
+        try (DedupIndex index = DedupIndex.open(copy, 0)) {
+            Assert.assertEquals(1000, index.size());
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertFalse(index.claim(record("key-" + i)));
+            }
+            Assert.assertTrue(index.claim(record("key-1000")));
+        }
+    }
+
+    @Test
+    public void testGrow() throws IOException {
+        File file = new File(folder.getRoot(), "keys.dedup");
+        int keys = 100_000;
+        try (DedupIndex index = DedupIndex.open(file, 0)) {
+            push(index, 0, keys);
+            Assert.assertEquals(keys, index.size());
+        }
+        Assert.assertFalse(new File(folder.getRoot(), "keys.dedup.tmp")
+                .exists());
+        try (DedupIndex index = DedupIndex.open(file, 0)) {
+            Iterator<CSVRecord> records = records(0, keys + 1000);
+            for (int i = 0; i < keys; i++) {
+                Assert.assertFalse(index.claim(records.next()));
+            }
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertTrue(index.claim(records.next()));
+            }
+            Assert.assertEquals(keys, index.getSuppressed());
+        }
+    }
+
+    private static void push(DedupIndex index, int from, int to)
+            throws IOException {
+        Iterator<CSVRecord> records = records(from, to);
+        while (records.hasNext()) {
+            CSVRecord record = records.next();
+            Assert.assertTrue(index.claim(record));
+            index.complete(record, true);
+        }
+    }
+
+    private static Iterator<CSVRecord> records(int from, int to)
+            throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            csv.append("key-").append(i).append('\n');
+        }
+        return CSVFormat.EXCEL.parse(new StringReader(csv.toString()))
+                .iterator();
+    }
+
+    private static CSVRecord record(String line) throws IOException {
+        return CSVFormat.EXCEL.parse(new StringReader(line)).iterator().next();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bonitasoft.engine.api.LoginAPI;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.api.internal.ServerAPI;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.bonitasoft.engine.bpm.process.ProcessInstance;
+import org.bonitasoft.engine.session.APISession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class HttpTransportTest {
+
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Main.parseArguments(new String[0]);
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testPrewarmedConnectionsAreReused() throws Exception {
+        server = start(20);
+        ProcessDeploymentInfo info = server.deploy("Import", "1.0");
+        HttpTransport transport = HttpTransport.install(
+                new HttpTransport.Settings(4, 4, 5000, 5000, 30000, true));
+        Assert.assertNotNull(transport);
+        ProcessAPI processAPI = login();
+        transport.prewarm(Collections.singletonList(server.getUrl()), 4);
+        Assert.assertEquals(4, transport.getOpened());
+        startConcurrently(processAPI, info, 4, 20);
+
+        Assert.assertEquals(20, server.getStarted());
+        Assert.assertEquals(4, transport.getOpened());
+        Assert.assertEquals(0, transport.getWaits());
+        Assert.assertTrue(transport.getRequests() >= 20);
+        Assert.assertEquals(0, transport.getLeased());
+    }
+
+    @Test
+    public void testExhaustedPoolIsCounted() throws Exception {
+        server = start(50);
+        ProcessDeploymentInfo info = server.deploy("Import", "1.0");
+        HttpTransport transport = HttpTransport.install(
+                new HttpTransport.Settings(1, 1, 5000, 5000, 30000, false));
+        Assert.assertNotNull(transport);
+        ProcessAPI processAPI = login();
+        startConcurrently(processAPI, info, 3, 3);
+
+        Assert.assertEquals(3, server.getStarted());
+        Assert.assertEquals(1, server.getMaxActive());
+        Assert.assertTrue(transport.getWaits() > 0);
+    }
+
+    private static void startConcurrently(ProcessAPI processAPI,
+            ProcessDeploymentInfo info, int threads, int starts)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<ProcessInstance>> tasks = new ArrayList<>();
+            for (int i = 0; i < starts; i++) {
+                tasks.add(() -> Main.pushRecordToBonita(processAPI, info,
+                        new HashMap<>()));
+            }
+            for (Future<ProcessInstance> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private StandInServer start(long latencyMillis) throws IOException {
+        StandInServer standInServer = new StandInServer(0, "bonita", 4,
+                latencyMillis, 0);
+        standInServer.start();
+        return standInServer;
+    }
+
+    private ProcessAPI login() {
+        ServerAPI serverAPI = Main.getServerAPI(server.getUrl(), "bonita");
+        LoginAPI loginAPI = Main.getLoginAPI(serverAPI);
+        APISession apiSession = Main.getAPISession(loginAPI, "walter.bates",
+                "bpm".toCharArray());
+        return Main.getProcessAPI(serverAPI, apiSession);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class ImportPipelineTest {
+
+    @Test
+    public void testInFlightWindow() throws InterruptedException {
+        ImportPipeline pipeline = new ImportPipeline(4, 6);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            final int number = i;
+            pipeline.submit(() -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                if (number % 10 == 0) {
+                    throw new IllegalStateException("failure " + number);
+                }
+            });
+        }
+        pipeline.awaitCompletion();
+        Assert.assertEquals(90, pipeline.getCompleted());
+        Assert.assertEquals(10, pipeline.getFailed());
+        Assert.assertTrue(maxInFlight.get() <= 4);
+    }
+
+    @Test
+    public void testSubmitBlocksWhenWindowIsFull() throws InterruptedException {
+        ImportPipeline pipeline = new ImportPipeline(2, 6);
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        // Two tasks block the workers, four more wait in the queue.
+        for (int i = 0; i < 6; i++) {
+            pipeline.submit(() -> {
+                started.incrementAndGet();
+                try {
+                    blocked.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread submitter = new Thread(() -> {
+            try {
+                pipeline.submit(started::incrementAndGet);
+                submitted.countDown();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        Assert.assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, started.get());
+
+        blocked.countDown();
+        Assert.assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        pipeline.awaitCompletion();
+        Assert.assertEquals(7, started.get());
+        Assert.assertEquals(7, pipeline.getCompleted());
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class ImportServiceTest {
+
+    private static final Pattern ID = Pattern.compile("\"id\":(\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInServer server;
+    private SessionPool sessionPool;
+    private ImportService service;
+
+    @Before
+    public void setUp() throws Exception {
+        Main.parseArguments(new String[0]);
+        server = new StandInServer(0, "bonita", 4, 0, 0);
+        server.start();
+        server.deploy("Import", "1.0");
+        sessionPool = SessionPool.login(
+                Collections.singletonList(server.getUrl()), "bonita",
+                "walter.bates", "bpm".toCharArray(), 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void testJobs() throws Exception {
+        service = new ImportService(sessionPool.getProcessAPI(), 2, 2, 4,
+                new RetryPolicy(0, 1, 2), null, true);
+        service.start(0);
+        File file = writeFile(50);
+        File results = new File(folder.getRoot(), "results.csv");
+
+        String first = post("csvFile=" + encode(file.getAbsolutePath())
+                + "&processName=Import&processVersion=1.0&results="
+                + encode(results.getAbsolutePath()), 202);
+        String second = post("csvFile=" + encode(file.getAbsolutePath())
+                + "&processName=Import&processVersion=1.0", 202);
+        String missing = post("csvFile=" + encode(file.getAbsolutePath())
+                + "&processName=Missing&processVersion=1.0", 202);
+        Assert.assertTrue(post("csvFile=" + encode(file.getAbsolutePath())
+                + "&processName=Import&processVersion=1.0&deadLetter="
+                + encode(file.getAbsolutePath()), 400)
+                .contains("File already exists"));
+
+        String status = await(first);
+        Assert.assertTrue(status, status.contains("\"state\":\"COMPLETED\""));
+        Assert.assertTrue(status, status.contains("\"succeeded\":50"));
+        Assert.assertTrue(await(second).contains("\"succeeded\":50"));
+        status = await(missing);
+        Assert.assertTrue(status, status.contains("\"state\":\"FAILED\""));
+        Assert.assertEquals(100, server.getStarted());
+        Assert.assertEquals(1,
+                server.getCalls("ProcessAPI.getProcessDeploymentInfo"));
+        Assert.assertEquals(1, server.getCalls("LoginAPI.login"));
+        Assert.assertTrue(get("").contains("\"id\":3"));
+
+        service.close();
+        Assert.assertEquals(51, Files.readAllLines(results.toPath()).size());
+    }
+
+    @Test
+    public void testOutputErrorOnlyFailsTheJob() throws Exception {
+        File full = new File("/dev/full");
+        Assume.assumeTrue(full.exists());
+        service = new ImportService(sessionPool.getProcessAPI(), 2, 2, 4,
+                new RetryPolicy(0, 1, 2), null, true);
+        service.start(0);
+        File file = writeFile(50);
+
+        String status = await(post("csvFile="
+                + encode(file.getAbsolutePath())
+                + "&processName=Import&processVersion=1.0&results="
+                + encode(full.getAbsolutePath()), 202));
+        Assert.assertTrue(status, status.contains("\"state\":\"FAILED\""));
+        status = await(post("csvFile=" + encode(file.getAbsolutePath())
+                + "&processName=Import&processVersion=1.0", 202));
+        Assert.assertTrue(status, status.contains("\"state\":\"COMPLETED\""));
+    }
+
+    @Test
+    public void testBadHeaderOnlyFailsTheJob() throws Exception {
+        service = new ImportService(sessionPool.getProcessAPI(), 2, 2, 4,
+                new RetryPolicy(0, 1, 2), null, true);
+        service.start(0);
+        File bad = folder.newFile();
+        Files.write(bad.toPath(), Arrays.asList("x[a=b=c] (STRING)", "Volvo"),
+                StandardCharsets.UTF_8);
+
+        String status = await(post("csvFile=" + encode(bad.getAbsolutePath())
+                + "&processName=Import&processVersion=1.0", 202));
+        Assert.assertTrue(status, status.contains("\"state\":\"FAILED\""));
+        Assert.assertTrue(status, status.contains("Wrong number"));
+        status = await(post("csvFile=" + encode(writeFile(5).getAbsolutePath())
+                + "&processName=Import&processVersion=1.0", 202));
+        Assert.assertTrue(status, status.contains("\"state\":\"COMPLETED\""));
+    }
+
+    @Test
+    public void testDeadLetterKeepsCharsetAndDelimiter() throws Exception {
+        service = new ImportService(sessionPool.getProcessAPI(), 1, 1, 1,
+                new RetryPolicy(0, 1, 2), null, true);
+        service.start(0);
+        Charset charset = Charset.forName("windows-1252");
+        List<String> lines = Arrays.asList(
+                "request.make (STRING);request.weight (INTEGER)",
+                "Citro\u00ebn;12", "Citro\u00ebn;heavy");
+        File file = folder.newFile();
+        Files.write(file.toPath(), lines, charset);
+        File deadLetter = new File(folder.getRoot(), "failed.csv");
+
+        String status = await(post("csvFile=" + encode(file.getAbsolutePath())
+                + "&processName=Import&processVersion=1.0&deadLetter="
+                + encode(deadLetter.getAbsolutePath())
+                + "&charset=windows-1252&delimiter=%3B", 202));
+        Assert.assertTrue(status, status.contains("\"succeeded\":1"));
+        service.close();
+        Assert.assertEquals(Arrays.asList(lines.get(0), lines.get(2)),
+                Files.readAllLines(deadLetter.toPath(), charset));
+        service = null;
+    }
+
+    @Test
+    public void testMissingParameter() throws Exception {
+        service = new ImportService(sessionPool.getProcessAPI(), 1, 1, 1,
+                new RetryPolicy(0, 1, 2), null, false);
+        service.start(0);
+        Assert.assertTrue(post("processName=Import", 400)
+                .contains("csvFile"));
+        Assert.assertTrue(get("/7").contains("No such job"));
+
+        // A form posted by a web page has no custom headers.
+        HttpURLConnection connection = open("?csvFile=x&processName=Import"
+                + "&processVersion=1.0");
+        connection.setRequestMethod("POST");
+        Assert.assertTrue(read(connection, 403).contains("X-Requested-By"));
+        Assert.assertTrue(service.getJobs().isEmpty());
+    }
+
+    @Test
+    public void testExpiredSessionIsRenewed() throws Exception {
+        long processId = sessionPool.getProcessAPI()
+                .getProcessDefinitionId("Import", "1.0");
+        server.expireSessions();
+        Assert.assertEquals(processId, sessionPool.getProcessAPI()
+                .getProcessDefinitionId("Import", "1.0"));
+        Assert.assertEquals(2, server.getCalls("LoginAPI.login"));
+    }
+
+    private File writeFile(int records) throws IOException {
+        File file = folder.newFile();
+        List<String> lines = new ArrayList<>();
+        lines.add("request.make (STRING),request.weight (INTEGER)");
+        for (int i = 0; i < records; i++) {
+            lines.add("Volvo," + i);
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private String await(String job) throws Exception {
+        Matcher matcher = ID.matcher(job);
+        Assert.assertTrue(job, matcher.find());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            String status = get("/" + matcher.group(1));
+            if (status.contains("COMPLETED") || status.contains("FAILED")
+                    || System.currentTimeMillis() > deadline) {
+                return status;
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private String post(String query, int expectedStatus) throws IOException {
+        HttpURLConnection connection = open("?" + query);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("X-Requested-By", "test");
+        return read(connection, expectedStatus);
+    }
+
+    private String get(String path) throws IOException {
+        HttpURLConnection connection = open(path);
+        return read(connection, connection.getResponseCode());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:"
+                + service.getPort() + "/jobs" + path).openConnection();
+    }
+
+    private static String read(HttpURLConnection connection,
+            int expectedStatus) throws IOException {
+        Assert.assertEquals(expectedStatus, connection.getResponseCode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = connection.getResponseCode() < 400
+                ? connection.getInputStream() : connection.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+}
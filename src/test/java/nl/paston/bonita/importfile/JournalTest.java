@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadCompletedWithGapsAndTornLine() throws IOException {
+        File file = folder.newFile("import.journal");
+        try (Journal journal = Journal.open(file)) {
+            journal.record(2, 1001);
+            journal.record(4, 1003);
+            journal.record(3, 1002);
+            journal.record(7, 1006);
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("9,10".getBytes(StandardCharsets.UTF_8));
+            out.write("\n12,".getBytes(StandardCharsets.UTF_8));
+        }
+        BitSet completed = Journal.readCompleted(file);
+        Assert.assertEquals(5, completed.cardinality());
+        Assert.assertTrue(completed.get(2));
+        Assert.assertTrue(completed.get(7));
+        Assert.assertFalse(completed.get(5));
+        Assert.assertFalse(completed.get(12));
+    }
+
+    @Test
+    public void testTornLineIsRemovedBeforeAppending() throws IOException {
+        File file = folder.newFile("import.journal");
+        try (Journal journal = Journal.open(file)) {
+            journal.record(2, 1001);
+        }
+        // A crash in the middle of writing 15001,88.
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("1500".getBytes(StandardCharsets.UTF_8));
+        }
+        try (Journal journal = Journal.open(file)) {
+            journal.record(23, 99);
+        }
+        BitSet completed = Journal.readCompleted(file);
+        Assert.assertEquals(2, completed.cardinality());
+        Assert.assertTrue(completed.get(2));
+        Assert.assertTrue(completed.get(23));
+        Assert.assertFalse(completed.get(150023));
+
+        // Without a complete line, the whole file is torn.
+        File torn = folder.newFile("torn.journal");
+        try (FileOutputStream out = new FileOutputStream(torn)) {
+            out.write("7,".getBytes(StandardCharsets.UTF_8));
+        }
+        try (Journal journal = Journal.open(torn)) {
+            journal.record(8, 100);
+        }
+        Assert.assertEquals("8,100\n", new String(Files.readAllBytes(
+                torn.toPath()), StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class JsonWriterTest {
+
+    @Test
+    public void testWrite() {
+        Map<String, Serializable> map = new LinkedHashMap<>();
+        map.put("text", "a \"b\"\\\n");
+        map.put("integer", 1);
+        map.put("double", 1.5);
+        map.put("nan", Double.NaN);
+        map.put("decimal", new BigDecimal("1E+3"));
+        map.put("flag", true);
+        map.put("date", new Date(0));
+        map.put("localDate", LocalDate.of(2016, 2, 29));
+        map.put("empty", null);
+        ArrayList<Serializable> list = new ArrayList<>();
+        Map<String, Serializable> element = new LinkedHashMap<>();
+        element.put("x", 1L);
+        list.add((Serializable) element);
+        map.put("list", list);
+        Assert.assertEquals("{\"text\":\"a \\\"b\\\"\\\\\\u000a\","
+                + "\"integer\":1,\"double\":1.5,\"nan\":null,"
+                + "\"decimal\":1000,\"flag\":true,"
+                + "\"date\":\"1970-01-01T00:00:00.000Z\","
+                + "\"localDate\":\"2016-02-29\",\"empty\":null,"
+                + "\"list\":[{\"x\":1}]}", JsonWriter.write(map));
+    }
+
+    @Test
+    public void testGetField() {
+        String json = "[{\"id\":\"12\",\"name\":\"a \\\"b\\\"\","
+                + "\"list\":[1,[2]],\"caseId\":34,\"empty\":null}]";
+        Assert.assertEquals("12", RestEngine.getField(json, "id"));
+        Assert.assertEquals("a \"b\"", RestEngine.getField(json, "name"));
+        Assert.assertEquals("[1,[2]]", RestEngine.getField(json, "list"));
+        Assert.assertEquals("34", RestEngine.getField(json, "caseId"));
+        Assert.assertNull(RestEngine.getField(json, "empty"));
+        Assert.assertNull(RestEngine.getField(json, "missing"));
+        Assert.assertEquals("x", RestEngine.getField("{\"message\" : \"x\"}",
+                "message"));
+    }
+
+}
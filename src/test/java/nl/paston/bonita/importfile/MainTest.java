@@ -15,8 +15,11 @@
  */
 package nl.paston.bonita.importfile;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -24,9 +27,11 @@ import java.util.Map;
 import org.junit.Test;
 import org.junit.Assert;
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.bonitasoft.engine.api.LoginAPI;
 import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.api.internal.ServerAPI;
 import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
 import org.bonitasoft.engine.session.APISession;
 import org.junit.Before;
@@ -61,6 +66,8 @@ public class MainTest {
         Assert.assertEquals("STRING", Main.getHeaderFieldType(fullHeaderValue2));
         Assert.assertEquals("STRING", Main.getHeaderFieldType(fullHeaderValue3));
         Assert.assertEquals("STRING", Main.getHeaderFieldType(fullHeaderValue4));
+        Assert.assertEquals("DATE:d/M/yyyy",
+                Main.getHeaderFieldType("birthDate(date: d/M/yyyy)"));
     }
 
     @Test
@@ -73,7 +80,32 @@ public class MainTest {
     }
 
     @Test
-    public void testPushRecordToBonita() {
+    public void testParseRecordWithHeaderPlan() throws IOException {
+        Iterator<CSVRecord> records = CSVFormat.EXCEL.parse(new StringReader(
+                "input.more[kee=polKey&val=] (STRING),input.request.length (INTEGER),"
+                + "input.request.covers[] (STRING)\n"
+                + "123456,170,GENERIC\n")).iterator();
+        HeaderPlan headerPlan = HeaderPlan.compile(records.next());
+        Assert.assertEquals(3, headerPlan.size());
+        Assert.assertArrayEquals(new String[]{"input", "request"},
+                headerPlan.getColumn(1).getPath());
+        Assert.assertTrue(headerPlan.getColumn(0).isList());
+        Map<String, Serializable> result
+                = Main.parseRecord(records.next(), headerPlan);
+        @SuppressWarnings("unchecked")
+        Map<String, Serializable> input = (Map<String, Serializable>) result.get("input");
+        @SuppressWarnings("unchecked")
+        Map<String, Serializable> more = (Map<String, Serializable>) ((List<?>) input.get("more")).get(0);
+        Assert.assertEquals("polKey", more.get("kee"));
+        Assert.assertEquals("123456", more.get("val"));
+        @SuppressWarnings("unchecked")
+        Map<String, Serializable> request = (Map<String, Serializable>) input.get("request");
+        Assert.assertEquals(170, request.get("length"));
+        Assert.assertEquals("GENERIC", ((List<?>) request.get("covers")).get(0));
+    }
+
+    @Test
+    public void testPushRecordToBonita() throws ImportException {
         System.out.println("pushRecordToBonita");
         ProcessAPI processAPI = null;
         ProcessDeploymentInfo info = null;
@@ -134,9 +166,10 @@ public class MainTest {
     @Test
     public void testGetProcessAPI() {
         System.out.println("getProcessAPI");
+        ServerAPI serverAPI = null;
         APISession apiSession = null;
         ProcessAPI expResult = null;
-        ProcessAPI result = Main.getProcessAPI(apiSession);
+        ProcessAPI result = Main.getProcessAPI(serverAPI, apiSession);
     }
 
     @Test
@@ -155,7 +188,48 @@ public class MainTest {
         String serverUrl = "";
         String applicationName = "";
         LoginAPI expResult = null;
-        LoginAPI result = Main.getLoginAPI(serverUrl, applicationName);
+        LoginAPI result = Main.getLoginAPI(
+                Main.getServerAPI(serverUrl, applicationName));
+    }
+
+    @Test
+    public void testGetIntegerOption() {
+        CommandLine cmd = Main.parseArguments(new String[]{
+            "--httpSocketTimeout", "0", "--threads", "4"});
+        Assert.assertEquals(0,
+                Main.getIntegerOption(cmd, "httpSocketTimeout", 30, 0));
+        Assert.assertEquals(4, Main.getIntegerOption(cmd, "threads", 1));
+        Assert.assertEquals(7, Main.getIntegerOption(cmd, "maxInFlight", 7));
+    }
+
+    @Test
+    public void testGetRetryPolicy() {
+        Assert.assertEquals(0, Main.getRetryPolicy(Main.parseArguments(
+                new String[]{"--retries", "0"}), true).getMaxRetries());
+        Assert.assertEquals(5, Main.getRetryPolicy(Main.parseArguments(
+                new String[]{"--retries", "5"}), false).getMaxRetries());
+        Assert.assertEquals(0, Main.getRetryPolicy(Main.parseArguments(
+                new String[0]), false).getMaxRetries());
+    }
+
+    @Test
+    public void testShardIsDividedByDedupKey() throws IOException {
+        HeaderPlan headerPlan = HeaderPlan.compile(CSVFormat.EXCEL.parse(
+                new StringReader("input.name (STRING),input.id (STRING)\n"))
+                .getRecords().get(0));
+        Shard shard = Main.getShard(Main.parseArguments(new String[]{
+            "--shard", "1/2", "--dedupKey", "input.id"}), headerPlan);
+        Assert.assertEquals(1, shard.getKeyColumn());
+        shard = Main.getShard(Main.parseArguments(new String[]{
+            "--shard", "1/2", "--dedupKey", "input.id",
+            "--keyColumn", "input.id (STRING)"}), headerPlan);
+        Assert.assertEquals(1, shard.getKeyColumn());
+    }
+
+    @Test
+    public void testGetServerUrls() {
+        Assert.assertEquals(Arrays.asList("http://node1:8080", "http://node2:8080"),
+                Main.getServerUrls("http://node1:8080, http://node2:8080,"));
     }
 
     @Test
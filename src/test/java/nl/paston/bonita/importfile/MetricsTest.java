@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class MetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        Assert.assertEquals(100000, histogram.getCount());
+        Assert.assertEquals(100000000, histogram.getMax());
+        Assert.assertEquals(50000000, histogram.getPercentile(50),
+                50000000 * 0.01);
+        Assert.assertEquals(99000000, histogram.getPercentile(99),
+                99000000 * 0.01);
+        Assert.assertEquals(50000500, histogram.getMean(), 1);
+    }
+
+    @Test
+    public void testHistogramSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(-1);
+        Assert.assertEquals(0, histogram.getPercentile(10));
+        Assert.assertEquals(7, histogram.getPercentile(100));
+        Assert.assertEquals(0, new Histogram().getPercentile(99));
+    }
+
+    @Test
+    public void testSummary() {
+        Metrics metrics = new Metrics();
+        metrics.register("records_succeeded", () -> 2);
+        metrics.recordRead();
+        metrics.recordRead();
+        metrics.record(Metrics.Stage.SUBMIT, 1500000);
+        metrics.record(Metrics.Stage.SUBMIT, 2500000);
+
+        String json = metrics.toJson();
+        Assert.assertTrue(json, json.contains("\"records_read\": 2"));
+        Assert.assertTrue(json, json.contains("\"records_succeeded\": 2"));
+        Assert.assertTrue(json, json.contains("\"submit\": {\"count\": 2"));
+
+        String prometheus = metrics.toPrometheus();
+        Assert.assertTrue(prometheus,
+                prometheus.contains("bonita_import_records_read_total 2\n"));
+        Assert.assertTrue(prometheus, prometheus.contains(
+                "bonita_import_stage_seconds_count{stage=\"submit\"} 2\n"));
+        Assert.assertTrue(prometheus, prometheus.contains(
+                "bonita_import_stage_seconds_sum{stage=\"submit\"} 0.004\n"));
+    }
+
+    @Test
+    public void testProgress() {
+        Metrics metrics = new Metrics();
+        for (int i = 0; i < 250; i++) {
+            metrics.recordRead();
+        }
+        Assert.assertEquals(
+                "Progress: 200 records done, 100 records/s, 25% read,"
+                + " ETA 00:00:08.",
+                metrics.progress(200, 100, 0.25));
+        Assert.assertEquals("Progress: 200 records done, 100 records/s.",
+                metrics.progress(200, 100, -1));
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class PayloadTemplateTest {
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testSameMapsAsPutValue() throws IOException {
+        HeaderPlan headerPlan = compile("input.more[kee=polKey&val=] (STRING),"
+                + "input.request.length (INTEGER),input.request.covers[] (STRING),"
+                + "input.more[kee=agent&val=] (STRING),input.request.covers[] (STRING),"
+                + "input.request.name (STRING),other.flag (BOOLEAN),"
+                + "input.request.name (STRING)");
+        PayloadTemplate template = headerPlan.getPayloadTemplate();
+        Assert.assertNotNull(template);
+        Random random = new Random(42);
+        for (int row = 0; row < 200; row++) {
+            PayloadTemplate.Row templateRow = template.newRow();
+            Map<String, Serializable> expected = new HashMap<>();
+            for (int i = 0; i < headerPlan.size(); i++) {
+                if (random.nextInt(3) == 0) {
+                    continue;
+                }
+                HeaderPlan.Column column = headerPlan.getColumn(i);
+                Serializable value = (Serializable) column.convert(
+                        "BOOLEAN".equals(column.getType()) ? "TRUE"
+                        : Integer.toString(random.nextInt(5)));
+                templateRow.put(i, value);
+                Main.putValue(expected, column, value);
+            }
+            Assert.assertEquals(expected, templateRow.getMap());
+        }
+    }
+
+    @Test
+    public void testNameOfMapAndValueHasNoTemplate() throws IOException {
+        HeaderPlan headerPlan = compile("input.request (STRING),"
+                + "input.request.name (STRING)");
+        Assert.assertNull(headerPlan.getPayloadTemplate());
+        Iterator<CSVRecord> records = CSVFormat.EXCEL.parse(
+                new StringReader("a,b\n")).iterator();
+        Assert.assertNotNull(Main.parseRecord(records.next(), headerPlan));
+    }
+
+    @Test
+    public void testInternsLowCardinalityColumns() throws IOException {
+        PayloadTemplate template = compile("gender (STRING),id (STRING)")
+                .getPayloadTemplate();
+        String male = template.intern(0, new String("MALE"));
+        Assert.assertSame(male, template.intern(0, new String("MALE")));
+        for (int i = 0; i <= PayloadTemplate.MAX_INTERNED; i++) {
+            template.intern(1, Integer.toString(i));
+        }
+        String id = new String("7");
+        Assert.assertSame(id, template.intern(1, id));
+        Assert.assertSame(male, template.intern(0, new String("MALE")));
+    }
+
+    private static HeaderPlan compile(String header) throws IOException {
+        return HeaderPlan.compile(CSVFormat.EXCEL.parse(
+                new StringReader(header)).iterator().next());
+    }
+
+}
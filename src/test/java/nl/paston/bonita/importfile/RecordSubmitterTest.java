@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.csv.CSVRecord;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.contract.ContractViolationException;
+import org.bonitasoft.engine.bpm.process.ActivationState;
+import org.bonitasoft.engine.bpm.process.ConfigurationState;
+import org.bonitasoft.engine.bpm.process.ProcessActivationException;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.bonitasoft.engine.bpm.process.impl.internal.ProcessDeploymentInfoImpl;
+import org.bonitasoft.engine.bpm.process.impl.internal.ProcessInstanceImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class RecordSubmitterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger starts = new AtomicInteger();
+    private final List<Integer> batchSizes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testSubmitBatch() throws Exception {
+        List<CSVRecord> records = new ArrayList<>();
+        List<Map<String, Serializable>> maps = new ArrayList<>();
+        readRecords("name\na\nb\nbad\nc\nd\ne\nf\ng\n", records, maps);
+        File file = folder.newFile("results.csv");
+        RecordSubmitter submitter;
+        boolean[] pushed;
+        try (ResultWriter results = ResultWriter.create(file, 0)) {
+            submitter = new RecordSubmitter(getProcessAPI(false), getProcess(),
+                    new RetryPolicy(0, 1, 2), true, null, null, results,
+                    new Metrics(), null);
+            pushed = submitter.submitBatch("records", records, maps);
+        }
+
+        Assert.assertEquals(8, pushed.length);
+        for (int i = 0; i < pushed.length; i++) {
+            Assert.assertEquals(i != 2, pushed[i]);
+        }
+        Assert.assertEquals(7, submitter.getSucceeded());
+        Assert.assertEquals(1, submitter.getFailed());
+        // Only the halves without the rejected record are started: 4, 2
+        // and 1 records.
+        Assert.assertEquals(3, starts.get());
+        Assert.assertEquals(7, batchSizes.size());
+        Assert.assertEquals(8, (int) batchSizes.get(0));
+
+        List<String> lines = Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8);
+        Assert.assertEquals(9, lines.size());
+        Assert.assertEquals(7, lines.stream()
+                .filter(line -> line.contains(",SUCCEEDED,")).count());
+        Assert.assertTrue(lines.stream()
+                .anyMatch(line -> line.startsWith("3,bad,,FAILED,")));
+    }
+
+    @Test
+    public void testDisabledProcessFailsBatchAtOnce() throws Exception {
+        List<CSVRecord> records = new ArrayList<>();
+        List<Map<String, Serializable>> maps = new ArrayList<>();
+        readRecords("name\na\nb\nc\nd\ne\nf\ng\nh\n", records, maps);
+        RecordSubmitter submitter = new RecordSubmitter(getProcessAPI(true),
+                getProcess(), new RetryPolicy(0, 1, 2), true, null, null,
+                null, new Metrics(), null);
+        boolean[] pushed = submitter.submitBatch("records", records, maps);
+
+        for (boolean recordPushed : pushed) {
+            Assert.assertFalse(recordPushed);
+        }
+        Assert.assertEquals(8, submitter.getFailed());
+        Assert.assertEquals(Collections.singletonList(8), batchSizes);
+    }
+
+    private static void readRecords(String csv, List<CSVRecord> records,
+            List<Map<String, Serializable>> maps) {
+        for (CSVRecord record : Main.getCSVRecords(new StringReader(csv))) {
+            if (record.getRecordNumber() > 1) {
+                records.add(record);
+                Map<String, Serializable> map = new HashMap<>();
+                map.put("name", record.get(0));
+                maps.add(map);
+            }
+        }
+    }
+
+    /**
+     * A ProcessAPI that rejects every batch with a record named bad, or
+     * every batch when the process is disabled.
+     */
+    private ProcessAPI getProcessAPI(boolean disabled) {
+        return (ProcessAPI) Proxy.newProxyInstance(
+                ProcessAPI.class.getClassLoader(),
+                new Class<?>[]{ProcessAPI.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("startProcessWithInputs")) {
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Serializable>> batch
+                            = (List<Map<String, Serializable>>) ((Map<?, ?>) args[
+                            args.length - 1]).get("records");
+                    synchronized (batchSizes) {
+                        batchSizes.add(batch.size());
+                    }
+                    if (disabled) {
+                        throw new ProcessActivationException("Disabled");
+                    }
+                    for (Map<String, Serializable> map : batch) {
+                        if ("bad".equals(map.get("name"))) {
+                            throw new ContractViolationException("Rejected",
+                                    "Rejected", Collections.singletonList(
+                                            "name is bad"), null);
+                        }
+                    }
+                    ProcessInstanceImpl processInstance
+                            = new ProcessInstanceImpl("Bulk");
+                    processInstance.setId(starts.incrementAndGet());
+                    return processInstance;
+                });
+    }
+
+    private static ProcessDeploymentInfo getProcess() {
+        return new ProcessDeploymentInfoImpl(1, 1, "Bulk", "1.0", "",
+                new Date(), 1, ActivationState.ENABLED,
+                ConfigurationState.RESOLVED, "Bulk", new Date(), null, "");
+    }
+
+}
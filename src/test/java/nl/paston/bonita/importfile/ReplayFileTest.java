@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class ReplayFileTest {
+
+    private static final String CSV = "input.car.make (STRING),"
+            + "input.car.weight (INTEGER),input.price (BIGDECIMAL),"
+            + "input.start (DATE:d-M-yyyy),input.day (LOCALDATE:d-M-yyyy),"
+            + "input.turbo (BOOLEAN:J/N),input.covers[] (STRING),"
+            + "input.covers[] (STRING),input.more[kee=k&val=] (STRING),"
+            + "_process (ROUTE)\n"
+            + "\"Volvo, V70\",1450,32500.50,1-2-2016,2-2-2016,J,WA,,x,"
+            + "Car/1.0\n"
+            + "Saab,,,,,N,WA,Casco,,\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Iterator<CSVRecord> records = Main.getCSVRecords(
+                new StringReader(CSV)).iterator();
+        CSVRecord fullHeader = records.next();
+        HeaderPlan headerPlan = HeaderPlan.compile(fullHeader);
+        List<CSVRecord> written = new ArrayList<>();
+        List<Map<String, Serializable>> maps = new ArrayList<>();
+        File file = folder.newFile("cars.replay");
+        try (ReplayFile.Writer writer = ReplayFile.create(file, fullHeader)) {
+            while (records.hasNext()) {
+                CSVRecord record = records.next();
+                Map<String, Serializable> map
+                        = Main.parseRecord(record, headerPlan);
+                writer.write(record, map);
+                written.add(record);
+                maps.add(map);
+            }
+            Assert.assertEquals(2, writer.getRecords());
+        }
+
+        RecordSource source = RecordSource.replay(file);
+        Assert.assertEquals(Arrays.asList(CsvRecords.values(fullHeader)),
+                Arrays.asList(CsvRecords.values(source.getFullHeader())));
+        Iterator<Object[]> replayed = source.parse((record, map)
+                -> new Object[]{record, map});
+        for (int i = 0; i < written.size(); i++) {
+            Assert.assertTrue(replayed.hasNext());
+            Object[] next = replayed.next();
+            CSVRecord record = (CSVRecord) next[0];
+            Assert.assertEquals(written.get(i).getRecordNumber(),
+                    record.getRecordNumber());
+            Assert.assertEquals(Arrays.asList(CsvRecords.values(written.get(i))),
+                    Arrays.asList(CsvRecords.values(record)));
+            Assert.assertEquals(maps.get(i), next[1]);
+        }
+        Assert.assertFalse(replayed.hasNext());
+        source.close();
+
+        @SuppressWarnings("unchecked")
+        Map<String, Serializable> input
+                = (Map<String, Serializable>) maps.get(0).get("input");
+        Assert.assertEquals(new BigDecimal("32500.50"), input.get("price"));
+        Assert.assertTrue(input.get("start") instanceof Date);
+        Assert.assertEquals(LocalDate.of(2016, 2, 2), input.get("day"));
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        Iterator<CSVRecord> records = Main.getCSVRecords(
+                new StringReader("input.name (STRING)\na\nb\n")).iterator();
+        CSVRecord fullHeader = records.next();
+        HeaderPlan headerPlan = HeaderPlan.compile(fullHeader);
+        File file = folder.newFile("names.replay");
+        try (ReplayFile.Writer writer = ReplayFile.create(file, fullHeader)) {
+            while (records.hasNext()) {
+                CSVRecord record = records.next();
+                writer.write(record, Main.parseRecord(record, headerPlan));
+            }
+        }
+        try (RandomAccessFile damaged = new RandomAccessFile(file, "rw")) {
+            damaged.setLength(damaged.length() - 3);
+        }
+        try (ReplayFile.Reader reader = ReplayFile.open(file)) {
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(2, reader.getRecord().getRecordNumber());
+            reader.next();
+            Assert.fail("The last record is not complete.");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage(),
+                    ex.getMessage().contains("after record 2"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAReplayFile() throws IOException {
+        File file = folder.newFile("cars.csv");
+        Files.write(file.toPath(), CSV.getBytes(StandardCharsets.UTF_8));
+        ReplayFile.open(file).close();
+    }
+
+}
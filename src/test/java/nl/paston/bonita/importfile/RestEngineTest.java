@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.csv.CSVRecord;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class RestEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInServer server;
+    private ExecutorService callbacks;
+    private AsyncHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        Main.parseArguments(new String[0]);
+        callbacks = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        callbacks.shutdownNow();
+    }
+
+    @Test
+    public void testImportThroughRestApi() throws Exception {
+        server = start(20, 0);
+        server.deploy("Import", "1.0");
+        RestEngine engine = login(8);
+        ProcessDeploymentInfo info = engine.getProcess("Import", "1.0");
+        File file = folder.newFile("import.csv");
+        List<String> lines = new ArrayList<>();
+        lines.add("request.make (STRING),request.weight (INTEGER)");
+        for (int i = 0; i < 100; i++) {
+            lines.add("Volvo \"" + i + "\"," + i);
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+
+        Iterator<CSVRecord> records = Main.getCSVRecords(
+                Files.newBufferedReader(file.toPath())).iterator();
+        RecordSource source = RecordSource.serial(Main.getFullHeader(records),
+                records);
+        RecordSubmitter submitter = new RecordSubmitter(
+                inputs -> engine.start(info.getProcessId(), inputs),
+                new RetryPolicy(3, 1, 2), true, null, null, null,
+                new Metrics(), null);
+        ImportPipeline pipeline = new ImportPipeline(1, 100);
+        Main.importRecords(source, HeaderPlan.compile(source.getFullHeader()),
+                new BitSet(), null, submitter, pipeline, new Metrics());
+        pipeline.awaitCompletion();
+
+        Assert.assertEquals(100, submitter.getSucceeded());
+        Assert.assertEquals(100, server.getStarted());
+        Assert.assertEquals(100, server.getCalls("REST.instantiation"));
+        Assert.assertTrue(server.getMaxActive() <= 4);
+        Assert.assertTrue(client.getOpened() <= 8);
+        Assert.assertTrue(server.getJsonPayloads().contains(
+                "{\"request\":{\"make\":\"Volvo \\\"0\\\"\",\"weight\":0}}"));
+    }
+
+    @Test
+    public void testExpiredSessionLogsInAgain() throws Exception {
+        server = start(0, 0);
+        server.deploy("Import", "1.0");
+        RestEngine engine = login(2);
+        ProcessDeploymentInfo info = engine.getProcess("Import", "1.0");
+        Assert.assertTrue(engine.start(info.getProcessId(),
+                new HashMap<>()).join() > 0);
+
+        server.expireSessions();
+        Assert.assertTrue(engine.start(info.getProcessId(),
+                new HashMap<>()).join() > 0);
+        Assert.assertEquals(2, server.getStarted());
+        Assert.assertEquals(2, server.getCalls("REST.login"));
+    }
+
+    @Test
+    public void testFailedLoginIsRetried() throws Exception {
+        server = start(0, 0);
+        server.deploy("Import", "1.0");
+        RestEngine engine = login(2);
+        ProcessDeploymentInfo info = engine.getProcess("Import", "1.0");
+
+        server.expireSessions();
+        server.refuseLogins(1);
+        try {
+            engine.start(info.getProcessId(), new HashMap<>()).join();
+            Assert.fail("Start should fail.");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ImportException.from(ex).isRetryable());
+        }
+        Assert.assertTrue(engine.start(info.getProcessId(),
+                new HashMap<>()).join() > 0);
+        Assert.assertEquals(3, server.getCalls("REST.login"));
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        server = start(0, 1);
+        server.deploy("Import", "1.0");
+        RestEngine engine = login(2);
+        try {
+            engine.getProcess("Unknown", "1.0");
+            Assert.fail("Process should not be found.");
+        } catch (ImportException ex) {
+            Assert.assertFalse(ex.isRetryable());
+        }
+        ProcessDeploymentInfo info = engine.getProcess("Import", "1.0");
+        try {
+            engine.start(info.getProcessId(), new HashMap<>()).join();
+            Assert.fail("Start should fail.");
+        } catch (CompletionException ex) {
+            Assert.assertTrue(ImportException.from(ex).isRetryable());
+        }
+        try {
+            engine.start(info.getProcessId() + 100, new HashMap<>()).join();
+            Assert.fail("Start should fail.");
+        } catch (CompletionException ex) {
+            Assert.assertFalse(ImportException.from(ex).isRetryable());
+        }
+    }
+
+    private StandInServer start(long latencyMillis, double errorRate)
+            throws IOException {
+        StandInServer standInServer = new StandInServer(0, "bonita", 4,
+                latencyMillis, errorRate);
+        standInServer.start();
+        return standInServer;
+    }
+
+    private RestEngine login(int connections) throws Exception {
+        client = new AsyncHttpClient(new HttpTransport.Settings(connections,
+                connections, 5000, 5000, 30000, false), callbacks);
+        return RestEngine.login(Collections.singletonList(server.getUrl()),
+                "bonita", "walter.bates", "bpm".toCharArray(), client);
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class ResultWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResultsWithKey() throws IOException {
+        Iterator<CSVRecord> records = CSVFormat.EXCEL.parse(new StringReader(
+                "input.name (STRING),input.id (STRING)\n"
+                + "\"Doe, J.\",A1\nSmith,A2\n")).iterator();
+        HeaderPlan headerPlan = HeaderPlan.compile(records.next());
+        int keyColumn = headerPlan.indexOf("input.id");
+        Assert.assertEquals(1, keyColumn);
+        Assert.assertEquals(1, headerPlan.indexOf("input.id (STRING)"));
+        Assert.assertEquals(-1, headerPlan.indexOf("input.missing"));
+
+        File file = folder.newFile("results.csv");
+        try (ResultWriter results = ResultWriter.create(file, keyColumn)) {
+            results.write(records.next(), 1001, ResultWriter.Status.SUCCEEDED,
+                    TimeUnit.MILLISECONDS.toNanos(12));
+            results.write(records.next(), -1, ResultWriter.Status.FAILED, 0);
+        }
+        List<String> lines = Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8);
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals("record,key,case,status,duration_ms",
+                lines.get(0));
+        Assert.assertEquals("1,A1,1001,SUCCEEDED,12", lines.get(1));
+        Assert.assertEquals("2,A2,,FAILED,0", lines.get(2));
+    }
+
+    @Test
+    public void testManyResults() throws IOException {
+        CSVRecord record = CSVFormat.EXCEL.parse(new StringReader("x\ny\n"))
+                .getRecords().get(1);
+        File file = folder.newFile("results.csv");
+        try (ResultWriter results = ResultWriter.create(file, -1)) {
+            for (int i = 0; i < 200000; i++) {
+                results.write(record, i, ResultWriter.Status.SUCCEEDED, 0);
+            }
+        }
+        Assert.assertEquals(200001, Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testAppendKeepsEarlierResults() throws IOException {
+        List<CSVRecord> records = CSVFormat.EXCEL.parse(new StringReader(
+                "x\na\nb\n")).getRecords();
+        File file = folder.newFile("results.csv");
+        try (ResultWriter results = ResultWriter.create(file, 0)) {
+            results.write(records.get(1), 1001, ResultWriter.Status.SUCCEEDED,
+                    0);
+        }
+        // A crash in the middle of a line.
+        Files.write(file.toPath(), "3,b,10".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        try (ResultWriter results = ResultWriter.append(file, 0)) {
+            results.write(records.get(2), 1002, ResultWriter.Status.SUCCEEDED,
+                    0);
+        }
+        Assert.assertEquals(Arrays.asList("record,key,case,status,duration_ms",
+                "1,a,1001,SUCCEEDED,0", "2,b,1002,SUCCEEDED,0"),
+                Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+
+        File empty = new File(folder.getRoot(), "empty.csv");
+        try (ResultWriter results = ResultWriter.append(empty, 0)) {
+            results.write(records.get(1), 1001, ResultWriter.Status.SUCCEEDED,
+                    0);
+        }
+        Assert.assertEquals(2, Files.readAllLines(empty.toPath(),
+                StandardCharsets.UTF_8).size());
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseReportsFailedLastWrite() throws IOException {
+        File full = new File("/dev/full");
+        Assume.assumeTrue(full.exists());
+        CSVRecord record = CSVFormat.EXCEL.parse(new StringReader("x\ny\n"))
+                .getRecords().get(1);
+        ResultWriter results = ResultWriter.create(full, -1);
+        results.write(record, 1001, ResultWriter.Status.SUCCEEDED, 0);
+        try {
+            results.close();
+            Assert.fail("The results were not written.");
+        } catch (IOException ex) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class RetryPolicyTest {
+
+    private final RetryPolicy retryPolicy = new RetryPolicy(3, 1, 4);
+
+    @Test
+    public void testRetryableFailureIsRetried() throws ImportException {
+        AtomicInteger attempts = new AtomicInteger();
+        String result = retryPolicy.execute(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new ImportException("timeout", true);
+            }
+            return "started";
+        });
+        Assert.assertEquals("started", result);
+        Assert.assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testPermanentFailureIsNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            retryPolicy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new ImportException("contract violation", false);
+            });
+            Assert.fail();
+        } catch (ImportException ex) {
+            Assert.assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void testDelayIsBounded() {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long delay = retryPolicy.getDelayMillis(attempt);
+            Assert.assertTrue(delay >= 0 && delay <= 4);
+        }
+    }
+
+}
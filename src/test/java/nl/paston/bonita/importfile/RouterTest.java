@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.StringReader;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.process.ProcessDefinitionNotFoundException;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class RouterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Main.parseArguments(new String[0]);
+        server = new StandInServer(0, "bonita", 4, 0, 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testRouteColumn() {
+        HeaderPlan headerPlan = HeaderPlan.compile(Main.getCSVRecords(
+                new StringReader("car.make (STRING),_process (ROUTE)"))
+                .iterator().next());
+        Assert.assertEquals(1, headerPlan.getRouteColumn());
+        Assert.assertTrue(headerPlan.getColumn(1).isSkipped());
+        Assert.assertEquals(-1, HeaderPlan.compile(Main.getCSVRecords(
+                new StringReader("car.make (STRING)"))
+                .iterator().next()).getRouteColumn());
+    }
+
+    @Test
+    public void testRoutedImport() throws Exception {
+        server.deploy("Car", "1.0");
+        server.deploy("Aid", "2.0");
+        ProcessDeploymentInfo defaultProcess = server.deploy("Import", "1.0");
+        File file = folder.newFile("mixed.csv");
+        Files.write(file.toPath(), Arrays.asList(
+                "input.name (STRING),_process (ROUTE)",
+                "a,Car/1.0", "b,Aid/2.0", "c,Car/1.0", "d,Missing/1.0",
+                "e,", "f,Car", "g, Aid / 2.0 "), StandardCharsets.UTF_8);
+
+        ProcessAPI processAPI = SessionPool.login(
+                Collections.singletonList(server.getUrl()), "bonita",
+                "walter.bates", "bpm".toCharArray(), 1).getProcessAPI();
+        ProcessCatalog catalog = new ProcessCatalog(processAPI);
+        RetryPolicy retryPolicy = new RetryPolicy(0, 1, 2);
+        Metrics metrics = new Metrics();
+        RecordSource source = RecordSource.open(file, Charset.forName("UTF-8"));
+        HeaderPlan headerPlan = HeaderPlan.compile(source.getFullHeader());
+        Router.Lane defaultLane = new Router.Lane(null, new RecordSubmitter(
+                processAPI, defaultProcess, retryPolicy, true, null, null,
+                null, metrics, null), new ImportPipeline(1, 1));
+        Router router = Router.routed(headerPlan.getRouteColumn(),
+                (name, version) -> {
+                    try {
+                        return new Router.Lane(null, new RecordSubmitter(
+                                processAPI, catalog.getProcess(name, version),
+                                retryPolicy, true, null, null, null, metrics,
+                                null), new ImportPipeline(2, 2));
+                    } catch (ProcessDefinitionNotFoundException
+                            | UndeclaredThrowableException ex) {
+                        throw new ImportException("Process not found.", false,
+                                ex);
+                    }
+                }, defaultLane, new RecordSubmitter(processAPI, null,
+                        retryPolicy, true, null, null, null, metrics, null));
+
+        Main.importRecords(source, headerPlan, new BitSet(), router, null,
+                metrics);
+        router.awaitCompletion();
+        source.close();
+
+        Assert.assertEquals(5, router.getSucceeded());
+        Assert.assertEquals(2, router.getFailed());
+        Assert.assertEquals(3, router.getLanes().size());
+        Assert.assertEquals(5, server.getStarted());
+        Assert.assertEquals(3,
+                server.getCalls("ProcessAPI.getProcessDefinitionId"));
+        Assert.assertFalse(server.getPayloads().get(0)
+                .containsKey("_process"));
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.bonitasoft.engine.api.LoginAPI;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.session.APISession;
+import org.bonitasoft.engine.session.InvalidSessionException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class SessionPoolTest {
+
+    private final AtomicInteger logins = new AtomicInteger();
+    private final List<String> served = new ArrayList<>();
+    private final Map<String, CountDownLatch> blocked
+            = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> failing = new ConcurrentHashMap<>();
+    private final Map<APISession, Boolean> expired = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testLeastOutstandingSession() throws Exception {
+        SessionPool pool = createPool("a", "b");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch entered = new CountDownLatch(1);
+        blocked.put("a", release);
+        Thread caller = new Thread(() -> {
+            entered.countDown();
+            pool.getProcessAPI().getNumberOfProcessDeploymentInfos();
+        });
+        caller.start();
+        entered.await();
+        waitUntil(() -> served.contains("a"));
+
+        // While a has a call outstanding, every call goes to b.
+        for (int i = 0; i < 5; i++) {
+            pool.getProcessAPI().getNumberOfProcessDeploymentInfos();
+        }
+        release.countDown();
+        caller.join();
+        Assert.assertEquals(5, count("b"));
+        Assert.assertEquals(1, count("a"));
+    }
+
+    @Test
+    public void testFailingNodeIsLeftOutUntilItAnswers()
+            throws InterruptedException {
+        SessionPool pool = createPool("a", "b");
+        failing.put("a", true);
+        int failures = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                pool.getProcessAPI().getNumberOfProcessDeploymentInfos();
+            } catch (UndeclaredThrowableException ex) {
+                failures++;
+            }
+        }
+        // After three failures in a row, a is left out.
+        Assert.assertEquals(3, failures);
+        Assert.assertEquals(3, count("a"));
+        Assert.assertEquals(7, count("b"));
+
+        // When every node is down, the node that went down first is tried,
+        // and it is used again once it answers.
+        Thread.sleep(10);
+        failing.put("b", true);
+        failing.remove("a");
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.getProcessAPI().getNumberOfProcessDeploymentInfos();
+            } catch (UndeclaredThrowableException ex) {
+                // Expected.
+            }
+        }
+        served.clear();
+        for (int i = 0; i < 4; i++) {
+            pool.getProcessAPI().getNumberOfProcessDeploymentInfos();
+        }
+        Assert.assertEquals(4, count("a"));
+    }
+
+    @Test
+    public void testExpiredSessionIsLoggedInAgain() {
+        SessionPool pool = createPool("a");
+        Assert.assertEquals(1, logins.get());
+        expired.keySet().forEach(session -> expired.put(session, true));
+        Assert.assertEquals(1, pool.getProcessAPI()
+                .getNumberOfProcessDeploymentInfos());
+        Assert.assertEquals(2, logins.get());
+        Assert.assertEquals(1, pool.getProcessAPI()
+                .getNumberOfProcessDeploymentInfos());
+        Assert.assertEquals(2, logins.get());
+        Assert.assertEquals(2, count("a"));
+    }
+
+    private SessionPool createPool(String... nodes) {
+        Map<String, LoginAPI> loginAPIs = new LinkedHashMap<>();
+        for (String node : nodes) {
+            loginAPIs.put(node, (LoginAPI) Proxy.newProxyInstance(
+                    LoginAPI.class.getClassLoader(),
+                    new Class<?>[]{LoginAPI.class}, (proxy, method, args) -> {
+                        if (!method.getName().equals("login")) {
+                            return null;
+                        }
+                        logins.incrementAndGet();
+                        APISession session = (APISession) Proxy
+                                .newProxyInstance(
+                                        APISession.class.getClassLoader(),
+                                        new Class<?>[]{APISession.class},
+                                        (sessionProxy, sessionMethod,
+                                                sessionArgs) -> identity(
+                                                sessionProxy, sessionMethod
+                                                .getName(), sessionArgs));
+                        expired.put(session, false);
+                        return session;
+                    }));
+        }
+        return SessionPool.login(loginAPIs, this::getProcessAPI, "walter",
+                "bpm".toCharArray(), 1);
+    }
+
+    /**
+     * A ProcessAPI that counts the calls of the node, fails like an
+     * unreachable node while the node is failing, waits while the node is
+     * blocked, and rejects the session once it has expired.
+     */
+    private ProcessAPI getProcessAPI(String node, APISession session) {
+        return (ProcessAPI) Proxy.newProxyInstance(
+                ProcessAPI.class.getClassLoader(),
+                new Class<?>[]{ProcessAPI.class}, (proxy, method, args) -> {
+                    if (expired.get(session)) {
+                        throw new InvalidSessionException("Expired");
+                    }
+                    synchronized (served) {
+                        served.add(node);
+                    }
+                    CountDownLatch latch = blocked.remove(node);
+                    if (latch != null) {
+                        latch.await(5, TimeUnit.SECONDS);
+                    }
+                    if (failing.containsKey(node)) {
+                        throw new UndeclaredThrowableException(
+                                new IOException("Unreachable"));
+                    }
+                    return 1L;
+                });
+    }
+
+    private static Object identity(Object proxy, String method,
+            Object[] args) {
+        switch (method) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return null;
+        }
+    }
+
+    private long count(String node) {
+        synchronized (served) {
+            return served.stream().filter(node::equals).count();
+        }
+    }
+
+    private void waitUntil(BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class ShardTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testShardsAreDisjoint() throws IOException {
+        List<CSVRecord> records = records(1000);
+        for (int keyColumn : new int[]{-1, 0}) {
+            int[] owners = new int[records.size()];
+            for (int index = 1; index <= 4; index++) {
+                Shard shard = new Shard(index, 4, keyColumn);
+                int contained = 0;
+                for (int i = 0; i < records.size(); i++) {
+                    if (shard.contains(records.get(i))) {
+                        Assert.assertEquals(0, owners[i]);
+                        owners[i] = index;
+                        contained++;
+                    }
+                }
+                Assert.assertEquals(records.size() - contained,
+                        shard.getOthers());
+                Assert.assertTrue(contained > 200 && contained < 300);
+            }
+            for (int owner : owners) {
+                Assert.assertTrue(owner > 0);
+            }
+        }
+        // The same key is in the same shard, wherever the record is.
+        Shard shard = Shard.parse(" 3/4 ").withKeyColumn(0);
+        CSVRecord first = records.get(10);
+        CSVRecord moved = CSVFormat.EXCEL.parse(new StringReader(
+                "\n\n" + first.get(0) + ",x\n")).getRecords().get(0);
+        Assert.assertEquals(shard.contains(first), shard.contains(moved));
+    }
+
+    @Test
+    public void testParseAndFileNames() {
+        Shard shard = Shard.parse("2/4");
+        Assert.assertEquals("2/4", shard.toString());
+        Assert.assertEquals(-1, shard.getKeyColumn());
+        Assert.assertEquals(new File("out", "results.2-of-4.csv"),
+                shard.getFile("out" + File.separator + "results.csv"));
+        Assert.assertEquals(new File("journal.2-of-4"),
+                shard.getFile("journal"));
+        for (String spec : new String[]{"2", "0/4", "5/4", "a/b", "1/0"}) {
+            try {
+                Shard.parse(spec);
+                Assert.fail("Shard should not parse: " + spec);
+            } catch (IllegalArgumentException ex) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testImportShards() throws Exception {
+        ConcurrentLinkedQueue<Serializable> started
+                = new ConcurrentLinkedQueue<>();
+        for (int index = 1; index <= 3; index++) {
+            Iterator<CSVRecord> records = CSVFormat.EXCEL.parse(
+                    new StringReader(csv(300))).iterator();
+            RecordSource source = RecordSource.serial(records.next(), records);
+            HeaderPlan headerPlan = HeaderPlan.compile(source.getFullHeader());
+            Shard shard = new Shard(index, 3, headerPlan.indexOf("input.key"));
+            RecordSubmitter submitter = new RecordSubmitter(inputs -> {
+                started.add(((Map<?, ?>) inputs.get("input")).get("key")
+                        .toString());
+                return CompletableFuture.completedFuture(1L);
+            }, new RetryPolicy(0, 1, 1), false, null, null, null,
+                    new Metrics(), null);
+            ImportPipeline pipeline = new ImportPipeline(1, 10);
+            Metrics metrics = new Metrics();
+            Main.importRecords(source, headerPlan, new BitSet(),
+                    Router.single(new Router.Lane(null, submitter, pipeline)),
+                    null, shard, metrics);
+            pipeline.awaitCompletion();
+            Assert.assertEquals(300 - submitter.getSucceeded(),
+                    shard.getOthers());
+            Assert.assertEquals(shard.getOthers(),
+                    metrics.getCounter("records_skipped"));
+        }
+        Assert.assertEquals(300, started.size());
+        Assert.assertEquals(300, started.stream().distinct().count());
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        List<CSVRecord> records = records(3);
+        File first = folder.newFile("results.1-of-2.csv");
+        try (ResultWriter results = ResultWriter.create(first, 0)) {
+            results.write(records.get(0), 1001, ResultWriter.Status.SUCCEEDED,
+                    TimeUnit.MILLISECONDS.toNanos(12));
+            results.write(records.get(2), -1, ResultWriter.Status.FAILED,
+                    TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        File second = folder.newFile("results.2-of-2.csv");
+        try (ResultWriter results = ResultWriter.create(second, 0)) {
+            results.write(records.get(1), 1002, ResultWriter.Status.SUCCEEDED,
+                    TimeUnit.MILLISECONDS.toNanos(20));
+            results.write(records.get(2), 1003, ResultWriter.Status.SUCCEEDED,
+                    TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        File file = new File(folder.getRoot(), "results.csv");
+        Shard.Summary summary = Shard.merge(Arrays.asList(first, second),
+                file);
+        Assert.assertEquals(2, summary.getSucceeded());
+        Assert.assertEquals(1, summary.getFailed());
+        Assert.assertEquals(1, summary.getOverlapping());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(20),
+                summary.getDurations().getMax());
+        Assert.assertEquals(Arrays.asList(
+                "record,key,case,status,duration_ms",
+                "1,key-0,1001,SUCCEEDED,12",
+                "3,key-2,,FAILED,3",
+                "2,key-1,1002,SUCCEEDED,20"), Files.readAllLines(
+                file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMergeResumedShard() throws IOException {
+        List<CSVRecord> records = records(3);
+        File first = folder.newFile("results.1-of-2.csv");
+        try (ResultWriter results = ResultWriter.create(first, 0)) {
+            results.write(records.get(0), -1, ResultWriter.Status.FAILED, 3);
+            results.write(records.get(1), 1002, ResultWriter.Status.SUCCEEDED,
+                    0);
+        }
+        // The shard was resumed and retried the record that failed.
+        try (ResultWriter results = ResultWriter.append(first, 0)) {
+            results.write(records.get(0), 1001, ResultWriter.Status.SUCCEEDED,
+                    0);
+        }
+        File second = folder.newFile("results.2-of-2.csv");
+        try (ResultWriter results = ResultWriter.create(second, 0)) {
+            results.write(records.get(2), 1003, ResultWriter.Status.SUCCEEDED,
+                    0);
+        }
+        File file = new File(folder.getRoot(), "results.csv");
+        Shard.Summary summary = Shard.merge(Arrays.asList(first, second),
+                file);
+        Assert.assertEquals(3, summary.getSucceeded());
+        Assert.assertEquals(0, summary.getFailed());
+        Assert.assertEquals(0, summary.getOverlapping());
+        Assert.assertEquals(Arrays.asList(
+                "record,key,case,status,duration_ms",
+                "2,key-1,1002,SUCCEEDED,0",
+                "1,key-0,1001,SUCCEEDED,0",
+                "3,key-2,1003,SUCCEEDED,0"), Files.readAllLines(
+                file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    private static List<CSVRecord> records(int count) throws IOException {
+        Iterator<CSVRecord> records = CSVFormat.EXCEL.parse(
+                new StringReader(csv(count))).iterator();
+        records.next();
+        List<CSVRecord> list = new ArrayList<>();
+        records.forEachRemaining(list::add);
+        return list;
+    }
+
+    private static String csv(int count) {
+        StringBuilder csv = new StringBuilder(
+                "input.key (STRING),input.value (INTEGER)\n");
+        for (int i = 0; i < count; i++) {
+            csv.append("key-").append(i).append(',').append(i).append('\n');
+        }
+        return csv.toString();
+    }
+
+}
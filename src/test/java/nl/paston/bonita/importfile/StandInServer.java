@@ -0,0 +1,681 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.thoughtworks.xstream.XStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.bonitasoft.engine.api.BonitaStackTraceElementConverter;
+import org.bonitasoft.engine.api.LoginAPI;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.contract.ContractDefinition;
+import org.bonitasoft.engine.bpm.contract.impl.ContractDefinitionImpl;
+import org.bonitasoft.engine.bpm.process.ActivationState;
+import org.bonitasoft.engine.bpm.process.ConfigurationState;
+import org.bonitasoft.engine.bpm.process.ProcessDefinitionNotFoundException;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.bonitasoft.engine.bpm.process.ProcessExecutionException;
+import org.bonitasoft.engine.bpm.process.impl.internal.ProcessDeploymentInfoImpl;
+import org.bonitasoft.engine.bpm.process.impl.internal.ProcessInstanceImpl;
+import org.bonitasoft.engine.exception.BonitaRuntimeException;
+import org.bonitasoft.engine.platform.LoginException;
+import org.bonitasoft.engine.search.SearchOptions;
+import org.bonitasoft.engine.search.impl.SearchResultImpl;
+import org.bonitasoft.engine.session.APISession;
+import org.bonitasoft.engine.session.InvalidSessionException;
+import org.bonitasoft.engine.session.impl.APISessionImpl;
+
+/**
+ * A stand-in for the HTTP API of a Bonita server, for load and failure tests
+ * without a Bonita install. It speaks the protocol of the HTTPServerAPI of
+ * the client: a form post to {@code /<application>/serverAPI/<api>/<method>}
+ * with the parameters as XStream XML, answered with the result or the
+ * exception as XStream XML.
+ * <p>
+ * It supports login and logout, the search for process deployments, the
+ * process contract, process definition ids, process deployment infos and
+ * starting process instances. Calls with a session that was not logged in,
+ * or that has expired, fail with an InvalidSessionException. A start takes a
+ * fixed latency and fails with a ProcessExecutionException at the given
+ * rate. Requests are handled by a fixed number of threads, further requests
+ * wait. Every start is counted and the first {@value #KEPT_PAYLOADS} inputs
+ * are kept.
+ * <p>
+ * It also stands in for the part of the REST API that the REST engine uses:
+ * the login and logout services, the search for processes by name and
+ * version, and the instantiation of a process with its inputs as JSON. A
+ * REST session is a session cookie with an API token, and expires with the
+ * other sessions. The JSON of the first started instances is kept.
+ * <p>
+ * Run it on its own with
+ * {@code java -cp target/test-classes:target/classes:<classpath>
+ * nl.paston.bonita.importfile.StandInServer --port 8080 --latency 20}. On
+ * Java 9 and later XStream needs
+ * {@code --add-opens java.base/java.util=ALL-UNNAMED} and
+ * {@code --add-opens java.base/java.lang=ALL-UNNAMED}.
+ *
+ * @author <a href="mailto:martijnburger@paston.nl">Martijn Burger</a>
+ */
+public class StandInServer implements AutoCloseable {
+
+    private static final int KEPT_PAYLOADS = 1000;
+    private static final String SERVER_API = "/serverAPI/";
+
+    private final String applicationName;
+    private final long latencyMillis;
+    private final double errorRate;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final XStream xstream = new XStream();
+    private final Map<Long, ProcessDeploymentInfo> processes
+            = new ConcurrentHashMap<>();
+    private final Map<Long, ContractDefinition> contracts
+            = new ConcurrentHashMap<>();
+    private final Set<Long> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger refusedLogins = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Queue<Map<String, Serializable>> payloads
+            = new ConcurrentLinkedQueue<>();
+    private final Queue<String> jsonPayloads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a server on the port, or on a free port when the port is 0.
+     * The server does not accept requests until it is started.
+     */
+    public StandInServer(int port, String applicationName, int concurrency,
+            long latencyMillis, double errorRate) throws IOException {
+        this.applicationName = applicationName;
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        xstream.registerConverter(new BonitaStackTraceElementConverter(),
+                XStream.PRIORITY_VERY_HIGH);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable,
+                    "stand-in-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL to use as the Bonita server URL.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Deploys a process with an empty contract.
+     */
+    public ProcessDeploymentInfo deploy(String name, String version) {
+        return deploy(name, version, new ContractDefinitionImpl());
+    }
+
+    public ProcessDeploymentInfo deploy(String name, String version,
+            ContractDefinition contract) {
+        long id = nextId.incrementAndGet();
+        ProcessDeploymentInfo info = new ProcessDeploymentInfoImpl(id, id,
+                name, version, "", new Date(), 1, ActivationState.ENABLED,
+                ConfigurationState.RESOLVED, name, new Date(), null, "");
+        processes.put(id, info);
+        contracts.put(id, contract);
+        return info;
+    }
+
+    /**
+     * Expires every session that is logged in.
+     */
+    public void expireSessions() {
+        sessions.clear();
+    }
+
+    /**
+     * Answers the next REST logins with HTTP 503.
+     */
+    public void refuseLogins(int count) {
+        refusedLogins.set(count);
+    }
+
+    /**
+     * @return the number of process instances that were started.
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return the number of starts that failed on purpose.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * @return the highest number of requests that were handled at the same
+     * time.
+     */
+    public int getMaxActive() {
+        return maxActive.get();
+    }
+
+    /**
+     * @return the number of calls of a method, e.g. "ProcessAPI.startProcessWithInputs".
+     */
+    public long getCalls(String method) {
+        LongAdder count = calls.get(method);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return the inputs of the first started process instances.
+     */
+    public List<Map<String, Serializable>> getPayloads() {
+        return new ArrayList<>(payloads);
+    }
+
+    /**
+     * @return the JSON of the first process instances that were started
+     * through the REST API.
+     */
+    public List<String> getJsonPayloads() {
+        return new ArrayList<>(jsonPayloads);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int current = active.incrementAndGet();
+        maxActive.accumulateAndGet(current, Math::max);
+        try {
+            requests.increment();
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/" + applicationName + "/")
+                    && !path.startsWith("/" + applicationName + SERVER_API)) {
+                handleRest(exchange, path.substring(
+                        applicationName.length() + 2));
+                return;
+            }
+            String prefix = "/" + applicationName + SERVER_API;
+            if (!"POST".equals(exchange.getRequestMethod())
+                    || !path.startsWith(prefix)) {
+                respond(exchange, 404, "Not found: " + path);
+                return;
+            }
+            String[] apiAndMethod = path.substring(prefix.length()).split("/");
+            if (apiAndMethod.length != 2) {
+                respond(exchange, 404, "Not found: " + path);
+                return;
+            }
+            byte[] body = readAll(exchange.getRequestBody());
+            bytesReceived.add(body.length);
+            Map<String, String> form = parseForm(
+                    new String(body, StandardCharsets.UTF_8));
+            Object[] parameters = (Object[]) fromXML(
+                    form.get("parametersValues"));
+            @SuppressWarnings("unchecked")
+            Map<String, Serializable> options
+                    = (Map<String, Serializable>) fromXML(form.get("options"));
+            String api = apiAndMethod[0];
+            String method = apiAndMethod[1];
+            calls.computeIfAbsent(api.substring(api.lastIndexOf('.') + 1)
+                    + "." + method, x -> new LongAdder()).increment();
+            Object result;
+            try {
+                result = invoke(api, method,
+                        parameters == null ? new Object[0] : parameters,
+                        options == null ? null
+                        : (APISession) options.get("session"));
+            } catch (Exception ex) {
+                result = ex;
+            }
+            respond(exchange, 200, result == null ? "null" : toXML(result));
+        } catch (Exception ex) {
+            respond(exchange, 500, String.valueOf(ex));
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private void handleRest(HttpExchange exchange, String path)
+            throws Exception {
+        byte[] body = readAll(exchange.getRequestBody());
+        bytesReceived.add(body.length);
+        String method = exchange.getRequestMethod();
+        if ("loginservice".equals(path) && "POST".equals(method)) {
+            count("REST.login");
+            if (refusedLogins.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                respond(exchange, 503, "");
+                return;
+            }
+            String userName = parseForm(new String(body,
+                    StandardCharsets.UTF_8)).get("username");
+            if (userName == null || userName.isEmpty()) {
+                respond(exchange, 401, "");
+                return;
+            }
+            long id = nextId.incrementAndGet();
+            sessions.add(id);
+            exchange.getResponseHeaders().add("Set-Cookie",
+                    "JSESSIONID=" + id + "; Path=/" + applicationName
+                    + "; HttpOnly");
+            exchange.getResponseHeaders().add("Set-Cookie",
+                    "X-Bonita-API-Token=token-" + id + "; Path=/"
+                    + applicationName);
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+        if ("logoutservice".equals(path)) {
+            count("REST.logout");
+            respond(exchange, 200, "");
+            return;
+        }
+        if (!isRestSession(exchange)) {
+            respondJson(exchange, 401, "{\"message\":\"Not logged in.\"}");
+            return;
+        }
+        if ("API/bpm/process".equals(path) && "GET".equals(method)) {
+            count("REST.searchProcess");
+            respondJson(exchange, 200, searchRest(
+                    exchange.getRequestURI().getRawQuery()));
+            return;
+        }
+        String[] parts = path.split("/");
+        if (parts.length == 5 && "instantiation".equals(parts[4])
+                && "POST".equals(method)) {
+            count("REST.instantiation");
+            instantiate(exchange, Long.parseLong(parts[3]),
+                    new String(body, StandardCharsets.UTF_8));
+            return;
+        }
+        respond(exchange, 404, "Not found: " + path);
+    }
+
+    private boolean isRestSession(HttpExchange exchange) {
+        String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+        String token = exchange.getRequestHeaders()
+                .getFirst("X-Bonita-API-Token");
+        if (cookies == null || token == null) {
+            return false;
+        }
+        for (String cookie : cookies.split(";")) {
+            String[] nameAndValue = cookie.trim().split("=", 2);
+            if (nameAndValue.length == 2
+                    && "JSESSIONID".equals(nameAndValue[0])) {
+                try {
+                    long id = Long.parseLong(nameAndValue[1]);
+                    return sessions.contains(id)
+                            && token.equals("token-" + id);
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String searchRest(String query) throws IOException {
+        String name = null;
+        String version = null;
+        for (String parameter : query == null ? new String[0]
+                : query.split("&")) {
+            if (parameter.startsWith("f=")) {
+                String filter = URLDecoder.decode(parameter.substring(2),
+                        "UTF-8");
+                if (filter.startsWith("name=")) {
+                    name = filter.substring(5);
+                } else if (filter.startsWith("version=")) {
+                    version = filter.substring(8);
+                }
+            }
+        }
+        StringBuilder json = new StringBuilder("[");
+        for (ProcessDeploymentInfo info : processes.values()) {
+            if ((name == null || info.getName().equals(name))
+                    && (version == null || info.getVersion().equals(version))) {
+                json.append(json.length() > 1 ? "," : "")
+                        .append("{\"id\":\"").append(info.getProcessId())
+                        .append("\",\"name\":").append(JsonWriter.quote(
+                        info.getName())).append(",\"version\":")
+                        .append(JsonWriter.quote(info.getVersion()))
+                        .append(",\"activationState\":\"")
+                        .append(info.getActivationState())
+                        .append("\",\"configurationState\":\"")
+                        .append(info.getConfigurationState()).append("\"}");
+            }
+        }
+        return json.append(']').toString();
+    }
+
+    private void instantiate(HttpExchange exchange, long processDefinitionId,
+            String json) throws Exception {
+        if (!processes.containsKey(processDefinitionId)) {
+            respondJson(exchange, 404, "{\"exception\":\""
+                    + ProcessDefinitionNotFoundException.class.getName()
+                    + "\",\"message\":\"No process with id "
+                    + processDefinitionId + "\"}");
+            return;
+        }
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            failed.incrementAndGet();
+            respondJson(exchange, 500, "{\"exception\":\""
+                    + ProcessExecutionException.class.getName()
+                    + "\",\"message\":\"Failure of the stand-in server.\"}");
+            return;
+        }
+        long count = started.incrementAndGet();
+        if (count <= KEPT_PAYLOADS) {
+            jsonPayloads.add(json);
+        }
+        respondJson(exchange, 200, "{\"caseId\":" + nextId.incrementAndGet()
+                + "}");
+    }
+
+    private void count(String method) {
+        calls.computeIfAbsent(method, x -> new LongAdder()).increment();
+    }
+
+    private Object invoke(String api, String method, Object[] parameters,
+            APISession session) throws Exception {
+        if (LoginAPI.class.getName().equals(api)) {
+            switch (method) {
+                case "login":
+                    return login(parameters);
+                case "logout":
+                    return null;
+                default:
+                    break;
+            }
+        } else if (ProcessAPI.class.getName().equals(api)) {
+            if (session == null || !sessions.contains(session.getId())) {
+                throw new InvalidSessionException("Invalid session.");
+            }
+            switch (method) {
+                case "searchProcessDeploymentInfos":
+                    return search((SearchOptions) parameters[0]);
+                case "getProcessContract":
+                    return getContract((Long) parameters[0]);
+                case "getProcessDeploymentInfo":
+                    return getProcess((Long) parameters[0]);
+                case "getProcessDefinitionId":
+                    return getProcessDefinitionId((String) parameters[0],
+                            (String) parameters[1]);
+                case "startProcessWithInputs":
+                    @SuppressWarnings("unchecked")
+                    Map<String, Serializable> inputs
+                            = (Map<String, Serializable>) parameters[
+                            parameters.length - 1];
+                    return startProcess(
+                            (Long) parameters[parameters.length - 2], inputs);
+                default:
+                    break;
+            }
+        }
+        throw new BonitaRuntimeException("Not supported by the stand-in "
+                + "server: " + api + "." + method);
+    }
+
+    private Object login(Object[] parameters) throws LoginException {
+        String userName = parameters.length == 2
+                && parameters[0] instanceof String
+                ? (String) parameters[0] : null;
+        if (userName == null || userName.isEmpty()) {
+            throw new LoginException("User name is missing.");
+        }
+        long id = nextId.incrementAndGet();
+        sessions.add(id);
+        return new APISessionImpl(id, new Date(), TimeUnit.HOURS.toMillis(1),
+                userName, 1, "default", 1);
+    }
+
+    private Object search(SearchOptions options) {
+        List<ProcessDeploymentInfo> all = new ArrayList<>(processes.values());
+        Collections.sort(all, (a, b) -> Long.compare(b.getId(), a.getId()));
+        int from = Math.min(options.getStartIndex(), all.size());
+        int to = Math.min(from + options.getMaxResults(), all.size());
+        return new SearchResultImpl<>(all.size(),
+                new ArrayList<>(all.subList(from, to)));
+    }
+
+    private ContractDefinition getContract(long processDefinitionId)
+            throws ProcessDefinitionNotFoundException {
+        getProcess(processDefinitionId);
+        return contracts.get(processDefinitionId);
+    }
+
+    private Long getProcessDefinitionId(String name, String version)
+            throws ProcessDefinitionNotFoundException {
+        for (ProcessDeploymentInfo info : processes.values()) {
+            if (info.getName().equals(name)
+                    && info.getVersion().equals(version)) {
+                return info.getProcessId();
+            }
+        }
+        throw new ProcessDefinitionNotFoundException(name + " " + version);
+    }
+
+    private Object startProcess(long processDefinitionId,
+            Map<String, Serializable> inputs) throws Exception {
+        ProcessDeploymentInfo info = getProcess(processDefinitionId);
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            failed.incrementAndGet();
+            throw new ProcessExecutionException("Failure of the stand-in "
+                    + "server.");
+        }
+        long count = started.incrementAndGet();
+        if (count <= KEPT_PAYLOADS) {
+            payloads.add(inputs == null ? new HashMap<>() : inputs);
+        }
+        ProcessInstanceImpl processInstance
+                = new ProcessInstanceImpl(info.getName());
+        processInstance.setId(nextId.incrementAndGet());
+        return processInstance;
+    }
+
+    private ProcessDeploymentInfo getProcess(long processDefinitionId)
+            throws ProcessDefinitionNotFoundException {
+        ProcessDeploymentInfo info = processes.get(processDefinitionId);
+        if (info == null) {
+            throw new ProcessDefinitionNotFoundException(
+                    "No process with id " + processDefinitionId);
+        }
+        return info;
+    }
+
+    private Object fromXML(String xml) throws IOException,
+            ClassNotFoundException {
+        if (xml == null) {
+            return null;
+        }
+        try (ObjectInputStream in = xstream.createObjectInputStream(
+                new StringReader(xml))) {
+            return in.readObject();
+        }
+    }
+
+    private String toXML(Object object) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (ObjectOutputStream out = xstream.createObjectOutputStream(writer)) {
+            out.writeObject(object);
+        }
+        return writer.toString();
+    }
+
+    private static Map<String, String> parseForm(String body)
+            throws IOException {
+        Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return form;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void respondJson(HttpExchange exchange, int status,
+            String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        Options options = new Options();
+        options.addOption(Option.builder().longOpt("port").hasArg()
+                .desc("Port to listen on. Defaults to 8080.").build());
+        options.addOption(Option.builder().longOpt("application").hasArg()
+                .desc("Application name. Defaults to bonita.").build());
+        options.addOption(Option.builder().longOpt("concurrency").hasArg()
+                .desc("Requests that are handled at the same time. Defaults"
+                        + " to 50.").build());
+        options.addOption(Option.builder().longOpt("latency").hasArg()
+                .desc("Milliseconds per process start. Defaults to 0.")
+                .build());
+        options.addOption(Option.builder().longOpt("errorRate").hasArg()
+                .desc("Fraction of the process starts that fail. Defaults"
+                        + " to 0.").build());
+        options.addOption(Option.builder().longOpt("process").hasArg()
+                .desc("Process to deploy as name:version. Can be repeated."
+                        + " Defaults to Import:1.0.").build());
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        StandInServer server = new StandInServer(
+                Integer.parseInt(cmd.getOptionValue("port", "8080")),
+                cmd.getOptionValue("application", "bonita"),
+                Integer.parseInt(cmd.getOptionValue("concurrency", "50")),
+                Long.parseLong(cmd.getOptionValue("latency", "0")),
+                Double.parseDouble(cmd.getOptionValue("errorRate", "0")));
+        String[] processes = cmd.hasOption("process")
+                ? cmd.getOptionValues("process") : new String[]{"Import:1.0"};
+        for (String process : processes) {
+            int colon = process.lastIndexOf(':');
+            server.deploy(colon < 0 ? process : process.substring(0, colon),
+                    colon < 0 ? "1.0" : process.substring(colon + 1));
+        }
+        server.start();
+        System.out.println("Stand-in server listening on " + server.getUrl());
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            System.out.println("Requests: " + server.getRequests()
+                    + ", started: " + server.getStarted()
+                    + ", failed: " + server.getFailed()
+                    + ", bytes received: " + server.getBytesReceived()
+                    + ", max concurrent: " + server.getMaxActive());
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.csv.CSVRecord;
+import org.bonitasoft.engine.api.LoginAPI;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.api.internal.ServerAPI;
+import org.bonitasoft.engine.bpm.process.ProcessDeploymentInfo;
+import org.bonitasoft.engine.bpm.process.ProcessInstance;
+import org.bonitasoft.engine.session.APISession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class StandInServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Main.parseArguments(new String[0]);
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testLoginSearchAndStart() throws Exception {
+        server = start(0);
+        server.deploy("Import", "1.0");
+        ProcessAPI processAPI = login();
+
+        List<ProcessDeploymentInfo> processList
+                = Main.getProcessList(processAPI);
+        Assert.assertEquals(1, processList.size());
+        Assert.assertEquals("Import", processList.get(0).getName());
+
+        Map<String, Serializable> map = new HashMap<>();
+        map.put("make", "Volvo");
+        ProcessInstance processInstance = Main.pushRecordToBonita(processAPI,
+                processList.get(0), map);
+        Assert.assertTrue(processInstance.getId() > 0);
+        Assert.assertEquals(1, server.getStarted());
+        Assert.assertEquals(map, server.getPayloads().get(0));
+        Assert.assertEquals(1,
+                server.getCalls("ProcessAPI.startProcessWithInputs"));
+    }
+
+    @Test
+    public void testFailedStartIsRetryable() throws Exception {
+        server = start(1);
+        ProcessDeploymentInfo info = server.deploy("Import", "1.0");
+        try {
+            Main.pushRecordToBonita(login(), info, new HashMap<>());
+            Assert.fail("Start should fail.");
+        } catch (ImportException ex) {
+            Assert.assertTrue(ex.isRetryable());
+        }
+        Assert.assertEquals(1, server.getFailed());
+    }
+
+    @Test
+    public void testImportWithFailures() throws Exception {
+        server = start(0.2);
+        ProcessDeploymentInfo info = server.deploy("Import", "1.0");
+        File file = folder.newFile("import.csv");
+        List<String> lines = new ArrayList<>();
+        lines.add("request.make (STRING),request.weight (INTEGER)");
+        for (int i = 0; i < 100; i++) {
+            lines.add("Volvo," + i);
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+
+        Iterator<CSVRecord> records = Main.getCSVRecords(
+                Files.newBufferedReader(file.toPath())).iterator();
+        RecordSource source = RecordSource.serial(Main.getFullHeader(records),
+                records);
+        RecordSubmitter submitter = new RecordSubmitter(login(), info,
+                new RetryPolicy(10, 1, 2), true, null, null, null,
+                new Metrics(), null);
+        ImportPipeline pipeline = new ImportPipeline(4, 8);
+        Main.importRecords(source, HeaderPlan.compile(source.getFullHeader()),
+                new BitSet(), null, submitter, pipeline, new Metrics());
+        pipeline.awaitCompletion();
+
+        Assert.assertEquals(100, submitter.getSucceeded());
+        Assert.assertEquals(100, server.getStarted());
+        Assert.assertTrue(server.getMaxActive() <= 4);
+    }
+
+    private StandInServer start(double errorRate) throws IOException {
+        StandInServer standInServer = new StandInServer(0, "bonita", 4, 0,
+                errorRate);
+        standInServer.start();
+        return standInServer;
+    }
+
+    private ProcessAPI login() {
+        ServerAPI serverAPI = Main.getServerAPI(server.getUrl(), "bonita");
+        LoginAPI loginAPI = Main.getLoginAPI(serverAPI);
+        APISession apiSession = Main.getAPISession(loginAPI, "walter.bates",
+                "bpm".toCharArray());
+        return Main.getProcessAPI(serverAPI, apiSession);
+    }
+
+}
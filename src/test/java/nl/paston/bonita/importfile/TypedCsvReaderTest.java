@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class TypedCsvReaderTest {
+
+    private static final String HEADER = "request.car.model (STRING);"
+            + "request.car.length (INTEGER);request.car.price (DOUBLE);"
+            + "request.car.electric (BOOLEAN);request.car.built (LOCALDATE);"
+            + "request.car.options[] (STRING);request.car.remark (TEXT)\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testTokenizerSplitsLikeParser() throws IOException {
+        Random random = new Random(42);
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    csv.append("\"Model\nS\";\"say \"\"hi\"\"\r\nnow\";").append(i);
+                    break;
+                case 1:
+                    csv.append("Zoë;\"a;b\";\"\"");
+                    break;
+                case 2:
+                    break;
+                default:
+                    csv.append("BMW;plain;").append(i).append(';');
+            }
+            csv.append(random.nextBoolean() ? "\n" : "\r\n");
+        }
+        csv.append("last;\"row\"");
+        List<CSVRecord> expected = CSVFormat.EXCEL.withDelimiter(';')
+                .parse(new StringReader(csv.toString())).getRecords();
+        File file = write(csv.toString(), StandardCharsets.UTF_8);
+        for (int bufferSize : new int[]{1, 3, 16, 1 << 16}) {
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                ByteCsvTokenizer tokenizer = new ByteCsvTokenizer(
+                        in.getChannel(), 0, (byte) ';', bufferSize);
+                for (CSVRecord record : expected) {
+                    Assert.assertTrue(tokenizer.next());
+                    Assert.assertEquals(toList(record), Arrays.asList(
+                            tokenizer.getStrings(StandardCharsets.UTF_8)));
+                }
+                Assert.assertFalse(tokenizer.next());
+            }
+        }
+    }
+
+    @Test
+    public void testSameMapsAsParser() throws IOException {
+        String csv = HEADER
+                + "BMW;4500;32999.95;TRUE;2016/02/29;sunroof;\"a \"\"b\"\"\"\n"
+                + "Tesla;;-0.5;FALSE;;;\n"
+                + "\"Fiat;500\";3500;1e3;TRUE;2015/07/03;;\r\n";
+        File file = write(csv, StandardCharsets.UTF_8);
+        HeaderPlan headerPlan = HeaderPlan.compile(CSVFormat.EXCEL
+                .withDelimiter(';').parse(new StringReader(HEADER))
+                .getRecords().get(0));
+        RecordSource expected = RecordSource.open(file,
+                StandardCharsets.UTF_8, ';');
+        RecordSource source = RecordSource.tokenized(file,
+                StandardCharsets.UTF_8, ';');
+        source.prepare(headerPlan);
+        Iterator<CSVRecord> records = expected.parse(Function.identity());
+        Iterator<Object[]> typed = source.parse((record, map)
+                -> new Object[]{record, map});
+        while (records.hasNext()) {
+            CSVRecord record = records.next();
+            Object[] next = typed.next();
+            CSVRecord typedRecord = (CSVRecord) next[0];
+            Assert.assertEquals(record.getRecordNumber(),
+                    typedRecord.getRecordNumber());
+            Assert.assertEquals(Main.parseRecord(record, headerPlan),
+                    next[1]);
+            Assert.assertEquals(toList(record),
+                    toList(source.restore(typedRecord)));
+        }
+        Assert.assertFalse(typed.hasNext());
+        expected.close();
+        source.close();
+    }
+
+    @Test
+    public void testValueThatCannotBeConvertedIsParsedAsUsual()
+            throws IOException {
+        File file = write(HEADER + "BMW;long;1.5;TRUE;2016/02/29;;\n",
+                StandardCharsets.UTF_8);
+        RecordSource source = RecordSource.tokenized(file,
+                StandardCharsets.UTF_8, ';');
+        source.prepare(HeaderPlan.compile(source.getFullHeader()));
+        Object[] next = source.parse((record, map)
+                -> new Object[]{record, map}).next();
+        Assert.assertNull(next[1]);
+        Assert.assertEquals("long", ((CSVRecord) next[0]).get(1));
+        source.close();
+    }
+
+    @Test
+    public void testTextColumnsAreKept() throws IOException {
+        File file = write(HEADER + "BMW;4500;1.5;TRUE;2016/02/29;;\n",
+                StandardCharsets.UTF_8);
+        RecordSource source = RecordSource.tokenized(file,
+                StandardCharsets.UTF_8, ';');
+        source.prepare(HeaderPlan.compile(source.getFullHeader()), 1);
+        CSVRecord record = source.parse(Function.identity()).next();
+        Assert.assertEquals("BMW", record.get(0));
+        Assert.assertEquals("4500", record.get(1));
+        Assert.assertNull(record.get(2));
+        source.close();
+    }
+
+    @Test
+    public void testCharset() throws IOException {
+        Charset latin1 = StandardCharsets.ISO_8859_1;
+        File file = write(HEADER + "Citroën;4500;1.5;TRUE;2016/02/29;;\n",
+                latin1);
+        RecordSource source = RecordSource.tokenized(file, latin1, ';');
+        source.prepare(HeaderPlan.compile(source.getFullHeader()));
+        Map<String, Serializable> map = source.parse((record, converted)
+                -> converted).next();
+        Assert.assertEquals("Citroën",
+                ((Map<?, ?>) ((Map<?, ?>) map.get("request")).get("car"))
+                .get("model"));
+        source.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCharsetWithWideCharacters() throws IOException {
+        RecordSource.tokenized(write(HEADER, StandardCharsets.UTF_16),
+                StandardCharsets.UTF_16, ';');
+    }
+
+    private File write(String csv, Charset charset) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), csv.getBytes(charset));
+        return file;
+    }
+
+    private static List<String> toList(CSVRecord record) {
+        List<String> values = new ArrayList<>();
+        record.forEach(values::add);
+        return values;
+    }
+
+}
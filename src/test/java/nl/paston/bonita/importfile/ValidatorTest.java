@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author marti
+ */
+public class ValidatorTest {
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testValidate() throws IOException, InterruptedException {
+        StringBuilder csv = new StringBuilder(
+                "request.car.model (STRING),other.person.length (INTEGER)\n");
+        for (int i = 1; i <= 5000; i++) {
+            csv.append("BMW,").append(i % 1000 == 0 ? "tall" : i % 100 == 0
+                    ? "" : Integer.toString(i)).append('\n');
+        }
+        Iterator<CSVRecord> iterator = CSVFormat.EXCEL.parse(
+                new StringReader(csv.toString())).iterator();
+        Validator validator = new Validator(
+                HeaderPlan.compile(iterator.next()), 3);
+        validator.validate(iterator, 4);
+        Assert.assertFalse(validator.isValid());
+        Assert.assertEquals(0, validator.getInvalid(0));
+        Assert.assertEquals(5, validator.getInvalid(1));
+        Assert.assertEquals(45, validator.getEmpty(1));
+        Assert.assertEquals(Arrays.asList(1000L, 2000L, 3000L),
+                validator.getOffenders(1));
+    }
+
+    @Test
+    public void testUnusableColumn() throws IOException, InterruptedException {
+        Iterator<CSVRecord> iterator = CSVFormat.EXCEL.parse(new StringReader(
+                "request.make (STRING),request.weight (INTEGR),"
+                + "request.date (DATE:bad),notes,process (ROUTE)\n"
+                + "BMW,12,2015-01-01,fast,Import/1.0\n")).iterator();
+        Validator validator = new Validator(
+                HeaderPlan.compile(iterator.next()), 3);
+        validator.validate(iterator, 1);
+        Assert.assertFalse(validator.isValid());
+        Assert.assertFalse(validator.isUnusable(0));
+        Assert.assertTrue(validator.isUnusable(1));
+        Assert.assertTrue(validator.isUnusable(2));
+        Assert.assertFalse(validator.isUnusable(3));
+        Assert.assertFalse(validator.isUnusable(4));
+    }
+
+}
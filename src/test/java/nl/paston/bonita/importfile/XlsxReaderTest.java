@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Paston Solutions BV
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.paston.bonita.importfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author marti
+ */
+public class XlsxReaderTest {
+
+    private static final String WORKBOOK = "<workbook xmlns=\"http://schemas."
+            + "openxmlformats.org/spreadsheetml/2006/main\" xmlns:r=\"http://"
+            + "schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+            + "<sheets><sheet name=\"Cars\" sheetId=\"1\" r:id=\"rId3\"/>"
+            + "</sheets></workbook>";
+    private static final String RELATIONS = "<Relationships xmlns=\"http://"
+            + "schemas.openxmlformats.org/package/2006/relationships\">"
+            + "<Relationship Id=\"rId3\" Target=\"worksheets/cars.xml\" "
+            + "Type=\"worksheet\"/></Relationships>";
+    private static final String STYLES = "<styleSheet><numFmts count=\"1\">"
+            + "<numFmt numFmtId=\"164\" formatCode=\"dd\\-mm\\-yyyy\"/>"
+            + "<numFmt numFmtId=\"165\" formatCode=\"&quot;Day&quot; 0\"/>"
+            + "</numFmts><cellXfs count=\"4\"><xf numFmtId=\"0\"/>"
+            + "<xf numFmtId=\"14\"/><xf numFmtId=\"164\"/>"
+            + "<xf numFmtId=\"165\"/></cellXfs></styleSheet>";
+    private static final String SHARED_STRINGS = "<sst><si><t>input.make "
+            + "(STRING)</t></si><si><t>input.weight (INTEGER)</t></si>"
+            + "<si><t>input.start (DATE:d-M-yyyy)</t></si><si><t>input.turbo"
+            + " (BOOLEAN)</t></si><si><t>input.day (LOCALDATE)</t></si>"
+            + "<si><r><t>Volvo, </t></r><r><t>V70</t></r>"
+            + "<rPh><t>ignored</t></rPh></si></sst>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Main.parseArguments(new String[0]);
+    }
+
+    @Test
+    public void testRecords() throws IOException {
+        File file = write("cars.xlsx", "<row r=\"1\"><c r=\"A1\" t=\"s\">"
+                + "<v>0</v></c><c r=\"B1\" t=\"s\"><v>1</v></c>"
+                + "<c r=\"C1\" t=\"s\"><v>2</v></c><c r=\"D1\" t=\"s\">"
+                + "<v>3</v></c><c r=\"E1\" t=\"s\"><v>4</v></c></row>"
+                + "<row r=\"2\"><c r=\"A2\" t=\"s\"><v>5</v></c>"
+                + "<c r=\"B2\"><v>1450</v></c><c r=\"C2\" s=\"2\">"
+                + "<v>42401</v></c><c r=\"D2\" t=\"b\"><v>1</v></c>"
+                + "<c r=\"E2\" s=\"1\"><v>42402.5</v></c></row>"
+                + "<row r=\"3\"><c r=\"A3\" s=\"3\"/></row>"
+                + "<row r=\"5\"><c r=\"A5\" t=\"inlineStr\"><is><t>Saab"
+                + "</t></is></c><c r=\"B5\"><f>B2/3</f><v>0.30000000000000004"
+                + "</v></c><c r=\"D5\" t=\"b\"><v>0</v></c></row>",
+                true);
+        List<List<String>> rows = new ArrayList<>();
+        List<Long> recordNumbers = new ArrayList<>();
+        try (XlsxReader reader = XlsxReader.open(file, "TRUE", "FALSE",
+                "yyyy/MM/dd")) {
+            Assert.assertEquals(Arrays.asList("input.make (STRING)",
+                    "input.weight (INTEGER)", "input.start (DATE:d-M-yyyy)",
+                    "input.turbo (BOOLEAN)", "input.day (LOCALDATE)"),
+                    Arrays.asList(CsvRecords.values(reader.getFullHeader())));
+            while (reader.hasNext()) {
+                CSVRecord record = reader.next();
+                rows.add(Arrays.asList(CsvRecords.values(record)));
+                recordNumbers.add(record.getRecordNumber());
+            }
+            Assert.assertEquals(1, reader.getFractionRead(), 0);
+        }
+        Assert.assertEquals(Arrays.asList(
+                Arrays.asList("Volvo, V70", "1450", "1-2-2016", "TRUE",
+                        "2016/02/02"),
+                Arrays.asList("Saab", "0.3", "", "FALSE", "")), rows);
+        Assert.assertEquals(Arrays.asList(2L, 3L), recordNumbers);
+    }
+
+    @Test
+    public void testImport() throws IOException {
+        StringBuilder sheet = new StringBuilder("<row><c t=\"inlineStr\"><is>"
+                + "<t>input.id (INTEGER)</t></is></c></row>");
+        for (int i = 1; i <= 20000; i++) {
+            sheet.append("<row><c><v>").append(i).append("</v></c></row>");
+        }
+        File file = write("ids.xlsx", sheet.toString(), false);
+        RecordSource source = RecordSource.open(file, StandardCharsets.UTF_8);
+        HeaderPlan headerPlan = HeaderPlan.compile(source.getFullHeader());
+        long[] sum = {0};
+        source.parse(record -> Main.parseRecord(record, headerPlan))
+                .forEachRemaining(map -> sum[0] += (Integer) ((Map<?, ?>)
+                        map.get("input")).get("id"));
+        source.close();
+        Assert.assertEquals(20000L * 20001 / 2, sum[0]);
+    }
+
+    @Test
+    public void testColumn() {
+        Assert.assertEquals(0, XlsxReader.getColumn("A1"));
+        Assert.assertEquals(25, XlsxReader.getColumn("Z9"));
+        Assert.assertEquals(27, XlsxReader.getColumn("AB12"));
+    }
+
+    private File write(String name, String rows, boolean full)
+            throws IOException {
+        File file = new File(folder.getRoot(), name);
+        try (ZipOutputStream zip = new ZipOutputStream(
+                new FileOutputStream(file))) {
+            Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+            if (full) {
+                put(zip, writer, "xl/workbook.xml", WORKBOOK);
+                put(zip, writer, "xl/_rels/workbook.xml.rels", RELATIONS);
+                put(zip, writer, "xl/styles.xml", STYLES);
+                put(zip, writer, "xl/sharedStrings.xml", SHARED_STRINGS);
+            }
+            put(zip, writer, full ? "xl/worksheets/cars.xml"
+                    : "xl/worksheets/sheet1.xml", "<worksheet><sheetData>"
+                    + rows + "</sheetData></worksheet>");
+        }
+        return file;
+    }
+
+    private static void put(ZipOutputStream zip, Writer writer, String name,
+            String xml) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        writer.write(xml);
+        writer.flush();
+        zip.closeEntry();
+    }
+
+}